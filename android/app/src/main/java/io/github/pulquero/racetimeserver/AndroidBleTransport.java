@@ -0,0 +1,112 @@
+package io.github.pulquero.racetimeserver;
+
+import android.content.Context;
+import android.os.ParcelUuid;
+
+import com.polidea.rxandroidble2.RxBleClient;
+import com.polidea.rxandroidble2.RxBleConnection;
+import com.polidea.rxandroidble2.RxBleDevice;
+import com.polidea.rxandroidble2.exceptions.BleException;
+
+import java.util.UUID;
+
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import io.reactivex.internal.functions.Functions;
+
+public class AndroidBleTransport implements TrackerTransport {
+    public static final ParcelUuid SERVICE_UUID = ParcelUuid.fromString("0000FFF0-0000-1000-8000-00805F9B34FB");
+    private static final UUID WRITE_UUID = createUUID16("FFF1");
+    private static final UUID READ_UUID = createUUID16("FFF2");
+
+    private static volatile RxBleClient rxBleClient;
+
+    public static RxBleClient getRxBleClient(Context appContext) {
+        if(rxBleClient == null) {
+            synchronized (AndroidBleTransport.class) {
+                if(rxBleClient == null) {
+                    rxBleClient = RxBleClient.create(appContext);
+                }
+            }
+        }
+        return rxBleClient;
+    }
+
+    private final RxBleDevice device;
+
+    public AndroidBleTransport(Context appContext, String btAddress) {
+        this.device = getRxBleClient(appContext).getBleDevice(btAddress);
+    }
+
+    @Override
+    public String getAddress() {
+        return device.getMacAddress();
+    }
+
+    @Override
+    public Observable<ConnectionState> observeConnectionState() {
+        return device.observeConnectionStateChanges().map(AndroidBleTransport::toConnectionState);
+    }
+
+    @Override
+    public ConnectionState getConnectionState() {
+        return toConnectionState(device.getConnectionState());
+    }
+
+    @Override
+    public Observable<TrackerLink> establishConnection() {
+        return device.establishConnection(false)
+                .<TrackerLink>map(Link::new)
+                .onErrorResumeNext((Throwable ex) -> Observable.error(toTrackerException(ex)));
+    }
+
+    private static ConnectionState toConnectionState(RxBleConnection.RxBleConnectionState state) {
+        switch (state) {
+            case CONNECTING:
+                return ConnectionState.CONNECTING;
+            case CONNECTED:
+                return ConnectionState.CONNECTED;
+            case DISCONNECTING:
+                return ConnectionState.DISCONNECTING;
+            default:
+                return ConnectionState.DISCONNECTED;
+        }
+    }
+
+    private static Throwable toTrackerException(Throwable ex) {
+        return (ex instanceof BleException) ? new TrackerException(ex.getMessage(), ex) : ex;
+    }
+
+    private static UUID createUUID16(String s) {
+        return UUID.fromString("0000"+s+"-0000-1000-8000-00805F9B34FB");
+    }
+
+    static final class Link implements TrackerLink {
+        final RxBleConnection conn;
+
+        Link(RxBleConnection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public Single<byte[]> write(byte[] data) {
+            return conn.writeCharacteristic(WRITE_UUID, data)
+                    .onErrorResumeNext((Throwable ex) -> Single.error(toTrackerException(ex)));
+        }
+
+        @Override
+        public Single<byte[]> read() {
+            return conn.readCharacteristic(READ_UUID)
+                    .onErrorResumeNext((Throwable ex) -> Single.error(toTrackerException(ex)));
+        }
+
+        @Override
+        public Observable<Notification> notifications() {
+            return conn.setupNotification(READ_UUID)
+                    .flatMap(Functions.identity())
+                    // on the BLE callback thread
+                    .map(data -> new Notification(data, System.nanoTime()))
+                    .onErrorResumeNext((Throwable ex) -> Observable.error(toTrackerException(ex)));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package io.github.pulquero.racetimeserver;
+
+import java.util.logging.Level;
+
+/**
+ * Routes core logging to logcat.
+ */
+final class AndroidLogSink implements Log.Sink {
+    @Override
+    public void log(Level level, String tag, String msg, Throwable ex) {
+        int priority;
+        if(level.intValue() >= Level.SEVERE.intValue()) {
+            priority = android.util.Log.ERROR;
+        } else if(level.intValue() >= Level.WARNING.intValue()) {
+            priority = android.util.Log.WARN;
+        } else if(level.intValue() >= Level.INFO.intValue()) {
+            priority = android.util.Log.INFO;
+        } else {
+            priority = android.util.Log.DEBUG;
+        }
+        if(ex != null) {
+            msg = msg + '\n' + android.util.Log.getStackTraceString(ex);
+        }
+        android.util.Log.println(priority, tag, msg);
+    }
+}
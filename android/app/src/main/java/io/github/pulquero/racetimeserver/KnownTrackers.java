@@ -0,0 +1,50 @@
+package io.github.pulquero.racetimeserver;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+/**
+ * Trackers connected to before, with their last seen RSSI, so the last one can be reconnected to without a scan.
+ */
+final class KnownTrackers {
+    private static final String PREFS_NAME = "known_trackers";
+    private static final String LAST_USED_SUFFIX = ".lastUsed";
+    private static final String RSSI_SUFFIX = ".rssi";
+    static final int UNKNOWN_RSSI = Integer.MIN_VALUE;
+
+    private final SharedPreferences prefs;
+
+    KnownTrackers(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    void used(String macAddress) {
+        prefs.edit().putLong(macAddress + LAST_USED_SUFFIX, System.currentTimeMillis()).apply();
+    }
+
+    void seen(String macAddress, int rssi) {
+        prefs.edit().putInt(macAddress + RSSI_SUFFIX, rssi).apply();
+    }
+
+    int getLastRssi(String macAddress) {
+        return prefs.getInt(macAddress + RSSI_SUFFIX, UNKNOWN_RSSI);
+    }
+
+    /**
+     * @return null if none.
+     */
+    String getLastUsed() {
+        String lastUsed = null;
+        long lastUsedMillis = 0L;
+        for(Map.Entry<String,?> entry : prefs.getAll().entrySet()) {
+            String key = entry.getKey();
+            if(key.endsWith(LAST_USED_SUFFIX) && (Long) entry.getValue() > lastUsedMillis) {
+                lastUsed = key.substring(0, key.length() - LAST_USED_SUFFIX.length());
+                lastUsedMillis = (Long) entry.getValue();
+            }
+        }
+        return lastUsed;
+    }
+}
@@ -6,14 +6,190 @@ import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
 
+import com.polidea.rxandroidble2.RxBleClient;
+import com.polidea.rxandroidble2.scan.ScanFilter;
+import com.polidea.rxandroidble2.scan.ScanSettings;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+
 public class RaceTimeService extends Service {
+    private static final String LOG_TAG = "RaceTimeService";
+    private static final long CONFIRMATION_SCAN_SECS = 10L;
     private RaceTracker raceTracker;
+    private RecordingTransport recordingTransport;
     private TimingServer timingServer;
+    private RaceHistory history;
+    private SettingsSnapshot settingsSnapshot;
+    private final Leaderboard leaderboard = new Leaderboard();
+    private LeaderboardServer leaderboardServer;
+    private KnownTrackers knownTrackers;
+    private SessionLocks sessionLocks;
+    private Disposable confirmationScanDisposable;
+    private Disposable connectedDisposable;
+    private Disposable sessionDisposable;
+    private boolean destroyed;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.setSink(new AndroidLogSink());
+        knownTrackers = new KnownTrackers(this);
+        sessionLocks = new SessionLocks(this);
+        loadHistory(new File(getFilesDir(), RaceHistory.DEFAULT_FILE_NAME));
+        loadSettingsSnapshot(new File(getFilesDir(), SettingsSnapshot.DEFAULT_FILE_NAME));
+        try {
+            leaderboardServer = new LeaderboardServer(leaderboard, new InetSocketAddress(LeaderboardServer.DEFAULT_PORT));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Leaderboard server unavailable", e);
+        }
+    }
+
+    /**
+     * Replaying the journal can take a while, so races started before it has loaded aren't recorded.
+     */
+    private void loadHistory(File file) {
+        Single.fromCallable(() -> new RaceHistory(file))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(
+                        this::onHistoryLoaded,
+                        ex -> Log.e(LOG_TAG, "Race history unavailable", ex)
+                );
+    }
+
+    private void onHistoryLoaded(RaceHistory loaded) {
+        if(destroyed) {
+            closeHistory(loaded);
+            return;
+        }
+        history = loaded;
+        if(timingServer != null) {
+            timingServer.setHistory(loaded);
+        }
+    }
+
+    /**
+     * Read from storage, so also off the main thread.
+     */
+    private void loadSettingsSnapshot(File file) {
+        Single.fromCallable(() -> new SettingsSnapshot(file))
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(
+                        this::onSettingsSnapshotLoaded,
+                        ex -> Log.e(LOG_TAG, "Settings snapshot unavailable", ex)
+                );
+    }
+
+    private void onSettingsSnapshotLoaded(SettingsSnapshot loaded) {
+        if(destroyed) {
+            return;
+        }
+        settingsSnapshot = loaded;
+        if(timingServer != null) {
+            timingServer.setSettingsSnapshot(loaded);
+        }
+    }
+
+    private static void closeHistory(RaceHistory history) {
+        try {
+            history.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Close race history", e);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyed = true;
+        stopMonitoringSession();
+        sessionLocks.setActive(false);
+        if(leaderboardServer != null) {
+            try {
+                leaderboardServer.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Close leaderboard server", e);
+            }
+        }
+        if(history != null) {
+            closeHistory(history);
+        }
+        super.onDestroy();
+    }
 
     public void connect(Context appContext, String btAddress) {
-        raceTracker = new RaceTracker(appContext, btAddress);
+        recordingTransport = new RecordingTransport(new AndroidBleTransport(appContext, btAddress));
+        raceTracker = new RaceTracker(recordingTransport);
         raceTracker.connect();
+        confirmInRange(appContext, btAddress);
+        connectedDisposable = raceTracker.observeConnectionState()
+                .filter(state -> state == TrackerTransport.ConnectionState.CONNECTED)
+                .firstElement()
+                .subscribe(state -> knownTrackers.used(btAddress));
+        createTimingServer();
+    }
+
+    private void createTimingServer() {
+        stopMonitoringSession();
         timingServer = new TimingServer(raceTracker);
+        timingServer.setHistory(history);
+        // served until the tracker has connected
+        timingServer.setSettingsSnapshot(settingsSnapshot);
+        timingServer.setLeaderboard(leaderboard);
+        // races are only run for connected clients
+        sessionDisposable = timingServer.observeState()
+                .subscribe(state -> sessionLocks.setActive(state == TimingServer.State.CONNECTED));
+    }
+
+    private void stopMonitoringSession() {
+        if(sessionDisposable != null) {
+            sessionDisposable.dispose();
+            sessionDisposable = null;
+        }
+    }
+
+    /**
+     * Short duty-cycled scan for the tracker alongside the direct connection attempt,
+     * which also refreshes the system's device cache that connecting depends on.
+     * Stops as soon as the tracker is seen or connected.
+     */
+    private void confirmInRange(Context appContext, String btAddress) {
+        RxBleClient rxBleClient = AndroidBleTransport.getRxBleClient(appContext);
+        if(rxBleClient.getState() != RxBleClient.State.READY) {
+            return;
+        }
+        confirmationScanDisposable = rxBleClient.scanBleDevices(
+                new ScanSettings.Builder()
+                        .setScanMode(ScanSettings.SCAN_MODE_BALANCED)
+                        .build(),
+                new ScanFilter.Builder()
+                        .setDeviceAddress(btAddress)
+                        .build()
+        )
+                .takeUntil(raceTracker.observeConnectionState().filter(state -> state == TrackerTransport.ConnectionState.CONNECTED))
+                .firstElement()
+                .timeout(CONFIRMATION_SCAN_SECS, TimeUnit.SECONDS)
+                .subscribeOn(Schedulers.io())
+                .subscribe(
+                        result -> knownTrackers.seen(btAddress, result.getRssi()),
+                        ex -> Log.w(LOG_TAG, "Tracker not seen: "+ex.getMessage())
+                );
+    }
+
+    KnownTrackers getKnownTrackers() {
+        return knownTrackers;
     }
 
     public RaceTracker getRaceTracker() {
@@ -30,12 +206,50 @@ public class RaceTimeService extends Service {
 
     public void restartTimingService() {
         timingServer = null;
-        timingServer = new TimingServer(raceTracker);
+        sessionLocks.setActive(false);
+        createTimingServer();
+    }
+
+    public void setLowLatency(boolean enabled) {
+        sessionLocks.setEnabled(enabled);
+    }
+
+    public boolean isLowLatency() {
+        return sessionLocks.isEnabled();
+    }
+
+    /**
+     * Records tracker traffic to the app's external files directory.
+     * @return the recording file.
+     */
+    public File startRecording() throws IOException {
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date());
+        File file = new File(getExternalFilesDir(null), "tracker-"+timestamp+".rtr");
+        recordingTransport.startRecording(new FileOutputStream(file));
+        return file;
+    }
+
+    public void stopRecording() {
+        recordingTransport.stopRecording();
+    }
+
+    public boolean isRecording() {
+        return recordingTransport != null && recordingTransport.isRecording();
     }
 
     public void disconnect() {
+        if(confirmationScanDisposable != null) {
+            confirmationScanDisposable.dispose();
+            confirmationScanDisposable = null;
+        }
+        connectedDisposable.dispose();
+        connectedDisposable = null;
         raceTracker.disconnect();
         raceTracker = null;
+        recordingTransport.stopRecording();
+        recordingTransport = null;
+        stopMonitoringSession();
+        sessionLocks.setActive(false);
         timingServer = null;
     }
 
@@ -7,15 +7,20 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CompoundButton;
 import android.widget.EditText;
+import android.widget.Switch;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import com.polidea.rxandroidble2.RxBleConnection;
+import java.io.File;
+import java.io.IOException;
 
 import androidx.fragment.app.Fragment;
 import butterknife.BindColor;
 import butterknife.BindView;
 import butterknife.ButterKnife;
+import butterknife.OnCheckedChanged;
 import butterknife.OnClick;
 import io.reactivex.Observable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
@@ -49,6 +54,8 @@ public class RaceTrackerFragment extends Fragment implements RaceTimeServiceSubs
     Button sendButton;
     @BindView(R.id.response)
     TextView responseView;
+    @BindView(R.id.record)
+    Switch recordSwitch;
 
     private RaceTimeService raceTimeService;
     private Disposable raceTimeServiceDisposable;
@@ -72,6 +79,7 @@ public class RaceTrackerFragment extends Fragment implements RaceTimeServiceSubs
     }
 
     private void initUI() {
+        recordSwitch.setChecked(raceTimeService.isRecording());
         updateUI(raceTimeService.getRaceTracker().getConnectionState(), null);
         startMonitoringBluetoothConnectionState();
     }
@@ -155,6 +163,25 @@ public class RaceTrackerFragment extends Fragment implements RaceTimeServiceSubs
         }
     }
 
+    @OnCheckedChanged(R.id.record)
+    public void onRecordChanged(CompoundButton button, boolean checked) {
+        if(raceTimeService == null || checked == raceTimeService.isRecording()) {
+            return;
+        }
+        if(checked) {
+            try {
+                File file = raceTimeService.startRecording();
+                Toast.makeText(getContext(), file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Recording", e);
+                Toast.makeText(getContext(), e.getMessage(), Toast.LENGTH_LONG).show();
+                recordSwitch.setChecked(false);
+            }
+        } else {
+            raceTimeService.stopRecording();
+        }
+    }
+
     private void startMonitoringBluetoothConnectionState() {
         btConnStateDisposable = raceTimeService.getRaceTracker().observeConnectionState()
                 .observeOn(AndroidSchedulers.mainThread())
@@ -165,7 +192,7 @@ public class RaceTrackerFragment extends Fragment implements RaceTimeServiceSubs
                         });
     }
 
-    private void updateUI(RxBleConnection.RxBleConnectionState state, Throwable err) {
+    private void updateUI(TrackerTransport.ConnectionState state, Throwable err) {
         if(raceTimeService != null) {
             bluetoothAddressView.setText(raceTimeService.getRaceTracker().getAddress());
         }
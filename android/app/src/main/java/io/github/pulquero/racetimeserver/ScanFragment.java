@@ -12,6 +12,7 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.Toast;
 
+import com.polidea.rxandroidble2.RxBleClient;
 import com.polidea.rxandroidble2.scan.ScanFilter;
 import com.polidea.rxandroidble2.scan.ScanResult;
 import com.polidea.rxandroidble2.scan.ScanSettings;
@@ -30,6 +31,7 @@ import io.reactivex.schedulers.Schedulers;
 public class ScanFragment extends Fragment {
     private static final int REQUEST_ENABLE_BT = 1;
     private static final String LOG_TAG = "ScanFragment";
+    private static final String RECONNECT_ATTEMPTED_STATE = "reconnectAttempted";
 
     @BindView(R.id.scan)
     Button scanToggleButton;
@@ -37,12 +39,18 @@ public class ScanFragment extends Fragment {
     RecyclerView recyclerView;
     private Disposable scanDisposable;
     private ScanResultsAdapter resultsAdapter;
+    private KnownTrackers knownTrackers;
+    private boolean reconnectAttempted;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_scan, container, false);
         ButterKnife.bind(this, view);
+        knownTrackers = new KnownTrackers(getContext());
+        if(savedInstanceState != null) {
+            reconnectAttempted = savedInstanceState.getBoolean(RECONNECT_ATTEMPTED_STATE);
+        }
 
         configureResultList();
         return view;
@@ -58,6 +66,7 @@ public class ScanFragment extends Fragment {
         resultsAdapter.setOnAdapterItemClickListener(view -> {
             final int childAdapterPosition = recyclerView.getChildAdapterPosition(view);
             final ScanResult itemAtPosition = resultsAdapter.getItemAtPosition(childAdapterPosition);
+            knownTrackers.seen(itemAtPosition.getBleDevice().getMacAddress(), itemAtPosition.getRssi());
             doConnect(itemAtPosition.getBleDevice().getMacAddress());
         });
     }
@@ -78,13 +87,13 @@ public class ScanFragment extends Fragment {
 
     private void scanBleDevices() {
         resultsAdapter.clearScanResults();
-        scanDisposable = RaceTracker.getRxBleClient(getContext()).scanBleDevices(
+        scanDisposable = AndroidBleTransport.getRxBleClient(getContext()).scanBleDevices(
                 new ScanSettings.Builder()
                         .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
                         .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
                         .build(),
                 new ScanFilter.Builder()
-                        .setServiceUuid(RaceTracker.SERVICE_UUID)
+                        .setServiceUuid(AndroidBleTransport.SERVICE_UUID)
                         .build()
         )
                 .subscribeOn(Schedulers.io())
@@ -93,6 +102,36 @@ public class ScanFragment extends Fragment {
                 .subscribe(resultsAdapter::addScanResult, this::onScanFailure);
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        // only once, so backing out of the server returns to scanning
+        if(!reconnectAttempted) {
+            reconnectAttempted = true;
+            reconnectToLastUsed();
+        }
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(RECONNECT_ATTEMPTED_STATE, reconnectAttempted);
+    }
+
+    /**
+     * Connects directly to the last used tracker, without waiting for a scan.
+     */
+    private void reconnectToLastUsed() {
+        String macAddress = knownTrackers.getLastUsed();
+        if(macAddress == null || AndroidBleTransport.getRxBleClient(getContext()).getState() != RxBleClient.State.READY) {
+            return;
+        }
+        int rssi = knownTrackers.getLastRssi(macAddress);
+        String msg = (rssi != KnownTrackers.UNKNOWN_RSSI) ? getString(R.string.reconnectingRssi, macAddress, rssi) : getString(R.string.reconnecting, macAddress);
+        Toast.makeText(getContext(), msg, Toast.LENGTH_SHORT).show();
+        doConnect(macAddress);
+    }
+
     @Override
     public void onPause() {
         super.onPause();
@@ -131,7 +170,7 @@ public class ScanFragment extends Fragment {
     }
 
     boolean ensureBluetoothOn() {
-        switch(RaceTracker.getRxBleClient(getContext()).getState()) {
+        switch(AndroidBleTransport.getRxBleClient(getContext()).getState()) {
             case BLUETOOTH_NOT_AVAILABLE:
                 Toast.makeText(getContext(), R.string.errNoBluetooth, Toast.LENGTH_LONG).show();
                 return false;
@@ -0,0 +1,112 @@
+package io.github.pulquero.racetimeserver;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+
+import androidx.core.app.NotificationCompat;
+
+/**
+ * Keeps Wi-Fi out of power save, the CPU awake and the service in the foreground while clients are connected,
+ * so Wi-Fi power save doesn't add jitter to pass records and Doze doesn't stall the heartbeat.
+ */
+final class SessionLocks {
+    private static final String LOG_TAG = "SessionLocks";
+    private static final String LOCK_TAG = "racetimeserver:session";
+    private static final String CHANNEL_ID = "session";
+    private static final int NOTIFICATION_ID = 1;
+    /**
+     * So the CPU isn't kept awake indefinitely if never released, renewed well before it lapses while the session is active.
+     */
+    private static final long WAKE_LOCK_TIMEOUT_MS = 10*60*1000L;
+    private static final long WAKE_LOCK_RENEWAL_MS = WAKE_LOCK_TIMEOUT_MS/2L;
+
+    private final Service service;
+    private final WifiManager.WifiLock wifiLock;
+    private final PowerManager.WakeLock wakeLock;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable renewal = this::renew;
+    private boolean enabled = true;
+    private boolean active;
+    private boolean held;
+
+    SessionLocks(Service service) {
+        this.service = service;
+        WifiManager wifiManager = (WifiManager) service.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        // the closest to low-latency mode available below API 29
+        wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, LOCK_TAG);
+        wifiLock.setReferenceCounted(false);
+        PowerManager powerManager = (PowerManager) service.getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOCK_TAG);
+        wakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Disabling allows delivery jitter to be compared with and without the locks.
+     */
+    synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        update();
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized void setActive(boolean active) {
+        this.active = active;
+        update();
+    }
+
+    private void update() {
+        if(enabled && active) {
+            if(!held) {
+                held = true;
+                wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+                wifiLock.acquire();
+                handler.postDelayed(renewal, WAKE_LOCK_RENEWAL_MS);
+                service.startForeground(NOTIFICATION_ID, createNotification());
+                Log.i(LOG_TAG, "Session locks acquired");
+            }
+        } else if(held) {
+            held = false;
+            handler.removeCallbacks(renewal);
+            wifiLock.release();
+            if(wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+            service.stopForeground(true);
+            Log.i(LOG_TAG, "Session locks released");
+        }
+    }
+
+    /**
+     * Not reference counted, so acquiring again just restarts the timeout.
+     */
+    private synchronized void renew() {
+        if(held) {
+            wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+            handler.postDelayed(renewal, WAKE_LOCK_RENEWAL_MS);
+        }
+    }
+
+    private Notification createNotification() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, service.getString(R.string.sessionChannel), NotificationManager.IMPORTANCE_LOW);
+            ((NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE)).createNotificationChannel(channel);
+        }
+        return new NotificationCompat.Builder(service, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(service.getString(R.string.app_name))
+                .setContentText(service.getString(R.string.sessionActive))
+                .setOngoing(true)
+                .build();
+    }
+}
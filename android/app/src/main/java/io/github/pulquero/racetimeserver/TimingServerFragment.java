@@ -7,12 +7,15 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CompoundButton;
+import android.widget.Switch;
 import android.widget.TextView;
 
 import androidx.fragment.app.Fragment;
 import butterknife.BindColor;
 import butterknife.BindView;
 import butterknife.ButterKnife;
+import butterknife.OnCheckedChanged;
 import butterknife.OnClick;
 import io.reactivex.Observable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
@@ -34,6 +37,8 @@ public class TimingServerFragment extends Fragment implements RaceTimeServiceSub
     TextView networkAddressView;
     @BindView(R.id.server)
     Button serverToggleButton;
+    @BindView(R.id.lowLatency)
+    Switch lowLatencySwitch;
 
     private RaceTimeService raceTimeService;
     private RaceTimeServiceManager raceTimeServiceManager;
@@ -59,6 +64,7 @@ public class TimingServerFragment extends Fragment implements RaceTimeServiceSub
     private void initUI() {
         updateNetworkAddressView(raceTimeService.getTimingServer().getState(), null);
         updateServerToggleButton();
+        lowLatencySwitch.setChecked(raceTimeService.isLowLatency());
         startMonitoringNetworkConnectionState();
     }
 
@@ -85,6 +91,13 @@ public class TimingServerFragment extends Fragment implements RaceTimeServiceSub
         }
     }
 
+    @OnCheckedChanged(R.id.lowLatency)
+    public void onLowLatencyChanged(CompoundButton button, boolean checked) {
+        if(raceTimeService != null) {
+            raceTimeService.setLowLatency(checked);
+        }
+    }
+
     private void startMonitoringNetworkConnectionState() {
         netStateDisposable = raceTimeService.getTimingServer().observeState()
                 .observeOn(AndroidSchedulers.mainThread())
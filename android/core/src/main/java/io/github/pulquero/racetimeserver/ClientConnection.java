@@ -0,0 +1,23 @@
+package io.github.pulquero.racetimeserver;
+
+/**
+ * A client connection of a {@link NetworkEngine}.
+ */
+public interface ClientConnection {
+    /**
+     * Queues a text message, never blocking.
+     * @throws org.java_websocket.exceptions.WebsocketNotConnectedException if no longer open.
+     */
+    void send(String text);
+
+    boolean isOpen();
+
+    /**
+     * Closes gracefully, once anything queued has been sent.
+     */
+    void close();
+
+    <T> T getAttachment();
+
+    void setAttachment(Object attachment);
+}
@@ -0,0 +1,307 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the passes of several peer timing servers, each with its own tracker, into one feed in time order.
+ *
+ * Each peer is subscribed to over a passive connection, so its races are not disturbed.
+ * Tracker time restarts every heat and each tracker has its own clock,
+ * so a peer's tracker time is aligned to the coordinator's clock with the same {@link TrackerClock} model as the local tracker's,
+ * from the peer's passes in the heat: the offset as seen over the fastest recent delivery, and the drift once the heat is long enough.
+ * Passes are buffered per peer and k-way merged, a pass being released once the watermark,
+ * the current time less the reorder window, has passed it.
+ * A pass arriving after later ones have been released is released immediately, flagged late.
+ */
+public class ClusterCoordinator implements Closeable {
+    public interface Listener {
+        /**
+         * Called in time order on a single thread.
+         */
+        void onPass(Pass pass);
+    }
+
+    public static final long DEFAULT_REORDER_WINDOW_MS = 250L;
+    private static final long RECONNECT_DELAY_MS = 2000L;
+    private static final String LOG_TAG = "ClusterCoordinator";
+
+    private final List<Peer> peers = new ArrayList<>();
+    private final long reorderWindowMillis;
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+    /**
+     * Peers with buffered passes, by their earliest.
+     */
+    private final PriorityQueue<Peer> heads = new PriorityQueue<>(11, (p1, p2) -> {
+        int cmp = Long.compare(p1.buffered.peekFirst().globalMillis, p2.buffered.peekFirst().globalMillis);
+        return cmp != 0 ? cmp : Integer.compare(p1.index, p2.index);
+    });
+    private long releasedMillis = Long.MIN_VALUE;
+
+    /**
+     * @param peerUris web socket addresses of the peer timing servers, e.g. ws://192.168.0.10:5001
+     */
+    public ClusterCoordinator(List<URI> peerUris, long reorderWindowMillis, Listener listener) {
+        this.reorderWindowMillis = reorderWindowMillis;
+        this.listener = listener;
+        for(URI uri : peerUris) {
+            peers.add(new Peer(peers.size(), uri));
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Cluster coordinator");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param peers comma separated web socket addresses.
+     */
+    public static List<URI> parsePeers(String peers) throws URISyntaxException {
+        List<URI> uris = new ArrayList<>();
+        for(String peer : peers.split(",")) {
+            uris.add(new URI(peer.trim()));
+        }
+        return uris;
+    }
+
+    public void start() {
+        for(Peer peer : peers) {
+            peer.connect();
+        }
+        long tickMillis = Math.max(reorderWindowMillis/5L, 10L);
+        executor.scheduleWithFixedDelay(this::release, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public List<Peer> getPeers() {
+        return Collections.unmodifiableList(peers);
+    }
+
+    private void onPeerPass(Peer peer, int node, int frequency, long timestamp) {
+        long arrivalNanos = System.nanoTime();
+        long arrivalMillis = System.currentTimeMillis();
+        executor.execute(() -> merge(peer.align(node, frequency, timestamp, arrivalNanos, arrivalMillis)));
+    }
+
+    /**
+     * Runs on the executor.
+     */
+    void merge(Pass pass) {
+        if(pass.globalMillis <= releasedMillis) {
+            // the merged feed has already moved past it
+            emit(new Pass(pass, true));
+            return;
+        }
+        Peer peer = peers.get(pass.peer);
+        if(!peer.buffered.isEmpty()) {
+            // re-keyed if its head changes
+            heads.remove(peer);
+        }
+        peer.buffer(pass);
+        heads.add(peer);
+    }
+
+    private void release() {
+        release(System.currentTimeMillis() - reorderWindowMillis);
+    }
+
+    /**
+     * Runs on the executor.
+     */
+    void release(long watermark) {
+        while(!heads.isEmpty() && heads.peek().buffered.peekFirst().globalMillis <= watermark) {
+            Peer peer = heads.poll();
+            Pass pass = peer.buffered.pollFirst();
+            if(!peer.buffered.isEmpty()) {
+                heads.add(peer);
+            }
+            releasedMillis = Math.max(releasedMillis, pass.globalMillis);
+            emit(pass);
+        }
+    }
+
+    private void emit(Pass pass) {
+        try {
+            listener.onPass(pass);
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Pass listener", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        for(Peer peer : peers) {
+            peer.close();
+        }
+    }
+
+    public static final class Pass {
+        public final int peer;
+        public final int node;
+        public final int frequency;
+        /**
+         * Peer tracker time since the start of its heat.
+         */
+        public final long timestamp;
+        /**
+         * Coordinator wall clock time.
+         */
+        public final long globalMillis;
+        public final boolean late;
+
+        Pass(int peer, int node, int frequency, long timestamp, long globalMillis) {
+            this.peer = peer;
+            this.node = node;
+            this.frequency = frequency;
+            this.timestamp = timestamp;
+            this.globalMillis = globalMillis;
+            this.late = false;
+        }
+
+        Pass(Pass pass, boolean late) {
+            this.peer = pass.peer;
+            this.node = pass.node;
+            this.frequency = pass.frequency;
+            this.timestamp = pass.timestamp;
+            this.globalMillis = pass.globalMillis;
+            this.late = late;
+        }
+    }
+
+    public final class Peer {
+        public final int index;
+        public final URI uri;
+        final ArrayDeque<Pass> buffered = new ArrayDeque<>();
+        private volatile boolean connected;
+        private volatile boolean closed;
+        private final TrackerClock clock = new TrackerClock();
+        private volatile long passes;
+        private long lastTimestamp = -1L;
+        private WebSocketClient client;
+
+        Peer(int index, URI uri) {
+            this.index = index;
+            this.uri = (uri.getPath() == null || uri.getPath().isEmpty()) ? uri.resolve(TimingServer.PASSIVE_PATH) : uri;
+        }
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        /**
+         * Coordinator wall clock time of the peer's tracker timer reading 0, Long.MAX_VALUE until the first pass.
+         */
+        public long getOffsetMillis() {
+            return clock.isStarted() ? clock.getOriginMillis() : Long.MAX_VALUE;
+        }
+
+        /**
+         * Parts per million the peer's tracker clock runs slow, negative if fast.
+         */
+        public double getDriftPpm() {
+            return clock.getDriftPpm();
+        }
+
+        public long getPasses() {
+            return passes;
+        }
+
+        /**
+         * Runs on the executor.
+         */
+        Pass align(int node, int frequency, long timestamp, long arrivalNanos, long arrivalMillis) {
+            if(!clock.isStarted() || timestamp < lastTimestamp) {
+                // first pass or new heat, tracker time restarted
+                clock.start(timestamp, arrivalNanos, arrivalMillis);
+            } else {
+                clock.observe(timestamp, arrivalNanos);
+            }
+            lastTimestamp = timestamp;
+            passes++;
+            return new Pass(index, node, frequency, timestamp, clock.toWallMillis(timestamp));
+        }
+
+        /**
+         * Keeps the buffer in time order, a pass only being out of order if the offset has just improved.
+         */
+        void buffer(Pass pass) {
+            if(buffered.isEmpty() || buffered.peekLast().globalMillis <= pass.globalMillis) {
+                buffered.addLast(pass);
+                return;
+            }
+            List<Pass> later = new ArrayList<>();
+            while(!buffered.isEmpty() && buffered.peekLast().globalMillis > pass.globalMillis) {
+                later.add(buffered.pollLast());
+            }
+            buffered.addLast(pass);
+            for(int i=later.size()-1; i>=0; i--) {
+                buffered.addLast(later.get(i));
+            }
+        }
+
+        synchronized void connect() {
+            if(closed) {
+                return;
+            }
+            client = new WebSocketClient(uri) {
+                @Override
+                public void onOpen(ServerHandshake handshake) {
+                    connected = true;
+                    Log.i(LOG_TAG, "Connected to peer "+uri);
+                    send("{\"subscribe\": {\"passes\": true}}");
+                }
+
+                @Override
+                public void onMessage(String message) {
+                    try {
+                        JSONObject json = new JSONObject(message);
+                        if("pass_record".equals(json.optString("notification"))) {
+                            JSONObject data = json.getJSONObject("data");
+                            onPeerPass(Peer.this, data.getInt("node"), data.getInt("frequency"), data.getLong("timestamp"));
+                        }
+                    } catch (JSONException e) {
+                        Log.w(LOG_TAG, "Invalid message from "+uri+": "+message);
+                    }
+                }
+
+                @Override
+                public void onClose(int code, String reason, boolean remote) {
+                    connected = false;
+                    if(!closed) {
+                        Log.w(LOG_TAG, "Lost peer "+uri+", reconnecting");
+                        executor.schedule(Peer.this::connect, RECONNECT_DELAY_MS, TimeUnit.MILLISECONDS);
+                    }
+                }
+
+                @Override
+                public void onError(Exception ex) {
+                    Log.d(LOG_TAG, "Peer "+uri+": "+ex.getMessage());
+                }
+            };
+            client.connect();
+        }
+
+        synchronized void close() {
+            closed = true;
+            if(client != null) {
+                client.close();
+            }
+        }
+    }
+}
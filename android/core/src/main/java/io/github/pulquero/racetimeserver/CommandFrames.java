@@ -0,0 +1,83 @@
+package io.github.pulquero.racetimeserver;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Outbound command frames, null terminated and padded to {@link RaceTracker#MAX_DATA_SIZE}.
+ * Fixed commands are interned once, parameterized ones are formatted straight into pooled buffers,
+ * so routine traffic doesn't allocate.
+ * Frames must not be modified once written.
+ */
+final class CommandFrames {
+    private static final int POOL_SIZE = 4;
+    static final byte SPACE = ' ';
+
+    private final ArrayDeque<byte[]> pool = new ArrayDeque<>(POOL_SIZE);
+
+    static byte[] intern(String cmd) {
+        byte[] frame = new byte[RaceTracker.MAX_DATA_SIZE];
+        put(frame, 0, cmd);
+        return frame;
+    }
+
+    /**
+     * Return with {@link #release(byte[])} once sent.
+     */
+    synchronized byte[] acquire() {
+        byte[] frame = pool.poll();
+        return (frame != null) ? frame : new byte[RaceTracker.MAX_DATA_SIZE];
+    }
+
+    synchronized void release(byte[] frame) {
+        if(pool.size() < POOL_SIZE) {
+            Arrays.fill(frame, (byte) 0);
+            pool.offer(frame);
+        }
+    }
+
+    /**
+     * @return the position after the string.
+     */
+    static int put(byte[] frame, int pos, String s) {
+        checkSpace(frame, pos, s.length());
+        for(int i=0; i<s.length(); i++) {
+            frame[pos++] = (byte) s.charAt(i);
+        }
+        return pos;
+    }
+
+    static int put(byte[] frame, int pos, byte b) {
+        checkSpace(frame, pos, 1);
+        frame[pos++] = b;
+        return pos;
+    }
+
+    /**
+     * Decimal.
+     * @return the position after the number.
+     */
+    static int put(byte[] frame, int pos, int value) {
+        long v = value;
+        if(v < 0) {
+            pos = put(frame, pos, (byte) '-');
+            v = -v;
+        }
+        int digits = 1;
+        for(long p = 10L; p <= v; p *= 10L) {
+            digits++;
+        }
+        checkSpace(frame, pos, digits);
+        for(int i=pos+digits-1; i>=pos; i--) {
+            frame[i] = (byte) ('0' + v%10L);
+            v /= 10L;
+        }
+        return pos + digits;
+    }
+
+    private static void checkSpace(byte[] frame, int pos, int len) {
+        if(pos + len + 1 > frame.length) { // including null terminator
+            throw new IllegalArgumentException("Invalid command - too long");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.pulquero.racetimeserver;
+
+import java.util.Arrays;
+
+/**
+ * Mirror of the last known tracker state, so commands that would not change it can be skipped.
+ * Values are unknown until read or written and are forgotten whenever they may have changed by other means,
+ * e.g. raw commands or reconnecting.
+ */
+final class DeviceState {
+    static final int UNKNOWN = Integer.MIN_VALUE;
+
+    enum Race {
+        UNKNOWN, RUNNING, STOPPED
+    }
+
+    private final short[] pilotFreqs;
+    private int pilotCount;
+    private int triggerRssi = UNKNOWN;
+    private int minLapSecs = UNKNOWN;
+    private volatile Race race = Race.UNKNOWN;
+
+    DeviceState(int maxPilots) {
+        this.pilotFreqs = new short[maxPilots];
+    }
+
+    synchronized void forget() {
+        forgetPilots();
+        triggerRssi = UNKNOWN;
+        minLapSecs = UNKNOWN;
+        race = Race.UNKNOWN;
+    }
+
+    /**
+     * Forgets anything a raw command might change.
+     */
+    synchronized void onCommand(String cmd, boolean hasArgs) {
+        switch (cmd.substring(0, 1)) {
+            case RaceTracker.PILOTS:
+                if(hasArgs) {
+                    forgetPilots();
+                }
+                break;
+            case RaceTracker.SET_TRIGGER_RSSI:
+            case RaceTracker.CALIBRATION:
+                triggerRssi = UNKNOWN;
+                break;
+            case RaceTracker.MIN_LAP_TIME:
+                minLapSecs = UNKNOWN;
+                break;
+            case RaceTracker.STOP_RACE:
+            case RaceTracker.VRX:
+                race = Race.STOPPED;
+                break;
+            case "1":
+            case "2":
+                race = Race.RUNNING;
+                break;
+        }
+    }
+
+    private void forgetPilots() {
+        pilotCount = 0;
+        Arrays.fill(pilotFreqs, (short) 0);
+    }
+
+    /**
+     * @return 0 if unknown.
+     */
+    synchronized int getPilotCount() {
+        return pilotCount;
+    }
+
+    synchronized void setPilotCount(int count) {
+        pilotCount = count;
+    }
+
+    /**
+     * @return 0 if unknown.
+     */
+    synchronized int getPilotFrequency(int pilotIndex) {
+        return pilotFreqs[pilotIndex];
+    }
+
+    synchronized void setPilotFrequency(int pilotIndex, int freq) {
+        pilotFreqs[pilotIndex] = (short) freq;
+    }
+
+    /**
+     * Only the pilot written and the racer count, which an assignment or unassignment may change.
+     * @param freq as written, 0 if unassigned, which is then unknown.
+     */
+    synchronized void pilotAssigned(int pilotIndex, int freq) {
+        pilotFreqs[pilotIndex] = (short) freq;
+        pilotCount = 0;
+    }
+
+    synchronized int getTriggerRssi() {
+        return triggerRssi;
+    }
+
+    synchronized void setTriggerRssi(int rssi) {
+        triggerRssi = rssi;
+    }
+
+    synchronized int getMinimumLapTime() {
+        return minLapSecs;
+    }
+
+    synchronized void setMinimumLapTime(int secs) {
+        minLapSecs = secs;
+    }
+
+    Race getRace() {
+        return race;
+    }
+
+    void setRace(Race race) {
+        this.race = race;
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Java-WebSocket's server, with its selector thread and decoder threads.
+ */
+public class JavaWebSocketEngine implements NetworkEngine {
+    private final Server server;
+    private volatile Handler handler;
+
+    public JavaWebSocketEngine(InetSocketAddress address, int decoders) {
+        server = new Server(address, decoders);
+        // allow quick restarts
+        server.setReuseAddr(true);
+    }
+
+    @Override
+    public void start(Handler handler) {
+        this.handler = handler;
+        server.start();
+    }
+
+    @Override
+    public void stop() throws IOException, InterruptedException {
+        server.stop();
+    }
+
+    @Override
+    public Collection<ClientConnection> getConnections() {
+        Collection<WebSocket> sockets = server.getConnections();
+        List<ClientConnection> conns = new ArrayList<>(sockets.size());
+        for(WebSocket socket : sockets) {
+            Connection conn = socket.getAttachment();
+            if(conn != null) {
+                conns.add(conn);
+            }
+        }
+        return conns;
+    }
+
+    @Override
+    public void broadcast(String text, Collection<ClientConnection> connections) {
+        List<WebSocket> sockets = new ArrayList<>(connections.size());
+        for(ClientConnection conn : connections) {
+            sockets.add(((Connection) conn).socket);
+        }
+        server.broadcast(text, sockets);
+    }
+
+    final class Server extends WebSocketServer {
+        Server(InetSocketAddress address, int decoders) {
+            super(address, decoders);
+        }
+
+        @Override
+        public void onStart() {
+            handler.onStart();
+        }
+
+        @Override
+        public void onOpen(WebSocket socket, ClientHandshake handshake) {
+            Connection conn = new Connection(socket);
+            socket.setAttachment(conn);
+            handler.onOpen(conn, handshake.getResourceDescriptor());
+        }
+
+        @Override
+        public void onMessage(WebSocket socket, String message) {
+            Connection conn = socket.getAttachment();
+            if(conn != null) {
+                handler.onMessage(conn, message);
+            }
+        }
+
+        @Override
+        public void onClose(WebSocket socket, int code, String reason, boolean remote) {
+            Connection conn = socket.getAttachment();
+            if(conn != null) {
+                handler.onClose(conn);
+            }
+        }
+
+        @Override
+        public void onError(WebSocket socket, Exception ex) {
+            handler.onError((socket != null) ? (Connection) socket.getAttachment() : null, ex);
+        }
+    }
+
+    static final class Connection implements ClientConnection {
+        final WebSocket socket;
+        private volatile Object attachment;
+
+        Connection(WebSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void send(String text) {
+            socket.send(text);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return socket.isOpen();
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T getAttachment() {
+            return (T) attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package io.github.pulquero.racetimeserver;
+
+import java.util.Arrays;
+
+/**
+ * Latency distribution in a fixed set of log-linear buckets,
+ * so recording is cheap and memory is bounded however many values are recorded.
+ * Values are in microseconds and resolved to within about 3%.
+ */
+final class LatencyStats {
+    /**
+     * Buckets per power of 2.
+     */
+    private static final int SUB_BUCKETS = 32;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int BUCKETS = 2*SUB_BUCKETS + 40*SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long max;
+    private long total;
+
+    synchronized void record(long micros) {
+        long value = Math.max(micros, 0L);
+        counts[bucketOf(value)]++;
+        count++;
+        total += value;
+        max = Math.max(max, value);
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized long getMax() {
+        return max;
+    }
+
+    synchronized long getMean() {
+        return (count > 0L) ? total/count : 0L;
+    }
+
+    /**
+     * @return upper bound of the bucket containing the percentile, 0 if nothing recorded.
+     */
+    synchronized long getPercentile(double p) {
+        if(count == 0L) {
+            return 0L;
+        }
+        long rank = Math.max((long) Math.ceil(p*count), 1L);
+        long seen = 0L;
+        for(int i=0; i<counts.length; i++) {
+            seen += counts[i];
+            if(seen >= rank) {
+                // the last bucket also holds anything beyond it
+                return (i == counts.length - 1) ? max : Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    synchronized void reset() {
+        Arrays.fill(counts, 0L);
+        count = 0L;
+        max = 0L;
+        total = 0L;
+    }
+
+    private static int bucketOf(long value) {
+        if(value < 2*SUB_BUCKETS) {
+            // exact
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift);
+        return Math.min(2*SUB_BUCKETS + (shift - 1)*SUB_BUCKETS + (sub - SUB_BUCKETS), BUCKETS - 1);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if(bucket < 2*SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - 2*SUB_BUCKETS)/SUB_BUCKETS + 1;
+        int sub = (bucket - 2*SUB_BUCKETS)%SUB_BUCKETS + SUB_BUCKETS;
+        return ((long) (sub + 1) << shift) - 1L;
+    }
+}
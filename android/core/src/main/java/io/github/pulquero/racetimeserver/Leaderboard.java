@@ -0,0 +1,375 @@
+package io.github.pulquero.racetimeserver;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Event standings by best lap, updated incrementally from the lap stream.
+ * Laps are timed from gate to gate, so the holeshot from the start to the first pass isn't one.
+ * Entries are kept in an order statistics tree so a pass updates, and reports, a rank in O(log n).
+ * The tracker knows no pilot names, so entries are identified by node and frequency.
+ */
+public class Leaderboard {
+    public interface Listener {
+        /**
+         * Called with the leaderboard locked, so must not block.
+         */
+        void onUpdate(Update update);
+    }
+
+    private static final Comparator<Entry> FASTEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int cmp = Long.compare(e1.bestMillis, e2.bestMillis);
+            // ties go to whoever set the time first
+            return cmp != 0 ? cmp : Long.compare(e1.bestSequence, e2.bestSequence);
+        }
+    };
+
+    private final Map<Long,Entry> entries = new HashMap<>();
+    private final RankTree ranks = new RankTree();
+    private final Map<Integer,Long> lastPassByNode = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private long version;
+    private String rendered;
+    private long renderedVersion = -1L;
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Lap times restart from the start of the heat.
+     */
+    public synchronized void startHeat() {
+        lastPassByNode.clear();
+    }
+
+    /**
+     * @param timestampMillis tracker time since the start of the heat.
+     * @return null for a node's first pass of the heat, the holeshot, which only starts its first lap so isn't ranked.
+     */
+    public synchronized Update recordPass(int node, int frequency, long timestampMillis) {
+        Long previousPass = lastPassByNode.put(node, timestampMillis);
+        if(previousPass == null) {
+            return null;
+        }
+        long lapMillis = timestampMillis - previousPass;
+        version++;
+
+        Long key = key(node, frequency);
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            entry = new Entry(node, frequency);
+            entries.put(key, entry);
+        }
+        int previousRank = ranks.rank(entry);
+        boolean improved = lapMillis < entry.bestMillis;
+        if(improved) {
+            // re-keyed
+            if(previousRank != 0) {
+                ranks.remove(entry);
+            }
+            entry.bestMillis = lapMillis;
+            entry.bestSequence = version;
+            ranks.insert(entry);
+        }
+        entry.laps++;
+        Update update = new Update(entry, lapMillis, improved, previousRank, ranks.rank(entry), version);
+        for(Listener listener : listeners) {
+            listener.onUpdate(update);
+        }
+        return update;
+    }
+
+    /**
+     * @return 1-based, 0 if unknown.
+     */
+    public synchronized int getRank(int node, int frequency) {
+        Entry entry = entries.get(key(node, frequency));
+        return (entry != null) ? ranks.rank(entry) : 0;
+    }
+
+    /**
+     * @param fromRank 1-based.
+     */
+    public synchronized List<Entry> getStandings(int fromRank, int limit) {
+        List<Entry> standings = new ArrayList<>(Math.max(Math.min(limit, ranks.size() - fromRank + 1), 0));
+        for(int rank = Math.max(fromRank, 1); rank <= ranks.size() && standings.size() < limit; rank++) {
+            standings.add(ranks.select(rank));
+        }
+        return standings;
+    }
+
+    public synchronized int size() {
+        return ranks.size();
+    }
+
+    /**
+     * Changes with every lap.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Rendered once per version, however many clients ask.
+     */
+    public synchronized String toJsonString() {
+        if(renderedVersion != version) {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("version", version);
+                JSONArray standingsJson = new JSONArray();
+                int rank = 1;
+                for(Entry entry : getStandings(1, Integer.MAX_VALUE)) {
+                    standingsJson.put(entry.toJson(rank++));
+                }
+                json.put("standings", standingsJson);
+                rendered = json.toString();
+            } catch (JSONException e) {
+                // never expected to happen
+                throw new AssertionError(e);
+            }
+            renderedVersion = version;
+        }
+        return rendered;
+    }
+
+    private static Long key(int node, int frequency) {
+        return ((long) node << 32) | (frequency & 0xFFFFFFFFL);
+    }
+
+    public static final class Entry {
+        public final int node;
+        public final int frequency;
+        private volatile long bestMillis = Long.MAX_VALUE;
+        private long bestSequence;
+        private volatile int laps;
+
+        Entry(int node, int frequency) {
+            this.node = node;
+            this.frequency = frequency;
+        }
+
+        public long getBestMillis() {
+            return bestMillis;
+        }
+
+        public int getLaps() {
+            return laps;
+        }
+
+        JSONObject toJson(int rank) throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("rank", rank);
+            json.put("node", node);
+            json.put("frequency", frequency);
+            json.put("best_lap", bestMillis);
+            json.put("laps", laps);
+            return json;
+        }
+    }
+
+    public static final class Update {
+        public final Entry entry;
+        public final long lapMillis;
+        public final boolean improved;
+        /**
+         * 0 if new.
+         */
+        public final int previousRank;
+        public final int rank;
+        public final long version;
+        private final long bestMillis;
+        private final int laps;
+
+        Update(Entry entry, long lapMillis, boolean improved, int previousRank, int rank, long version) {
+            this.entry = entry;
+            this.lapMillis = lapMillis;
+            this.improved = improved;
+            this.previousRank = previousRank;
+            this.rank = rank;
+            this.version = version;
+            this.bestMillis = entry.bestMillis;
+            this.laps = entry.laps;
+        }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = entry.toJson(rank);
+            // as of this update
+            json.put("best_lap", bestMillis);
+            json.put("laps", laps);
+            json.put("lap_time", lapMillis);
+            json.put("improved", improved);
+            json.put("previous_rank", previousRank);
+            json.put("version", version);
+            return json;
+        }
+    }
+
+    /**
+     * Treap of entries, each node knowing the size of its subtree.
+     */
+    static final class RankTree {
+        private final Random random = new Random();
+        private Node root;
+
+        int size() {
+            return size(root);
+        }
+
+        void insert(Entry entry) {
+            root = insert(root, new Node(entry, random.nextInt()));
+        }
+
+        void remove(Entry entry) {
+            root = remove(root, entry);
+        }
+
+        /**
+         * @return 1-based, 0 if absent.
+         */
+        int rank(Entry entry) {
+            int rank = 0;
+            Node node = root;
+            while(node != null) {
+                int cmp = FASTEST_FIRST.compare(entry, node.entry);
+                if(cmp < 0) {
+                    node = node.left;
+                } else {
+                    rank += size(node.left) + 1;
+                    if(cmp == 0) {
+                        return rank;
+                    }
+                    node = node.right;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @param rank 1-based.
+         */
+        Entry select(int rank) {
+            Node node = root;
+            while(node != null) {
+                int leftSize = size(node.left);
+                if(rank <= leftSize) {
+                    node = node.left;
+                } else if(rank == leftSize + 1) {
+                    return node.entry;
+                } else {
+                    rank -= leftSize + 1;
+                    node = node.right;
+                }
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        private static Node insert(Node node, Node newNode) {
+            if(node == null) {
+                return newNode;
+            }
+            if(FASTEST_FIRST.compare(newNode.entry, node.entry) < 0) {
+                node.left = insert(node.left, newNode);
+                if(node.left.priority > node.priority) {
+                    node = rotateRight(node);
+                }
+            } else {
+                node.right = insert(node.right, newNode);
+                if(node.right.priority > node.priority) {
+                    node = rotateLeft(node);
+                }
+            }
+            node.update();
+            return node;
+        }
+
+        private static Node remove(Node node, Entry entry) {
+            if(node == null) {
+                return null;
+            }
+            int cmp = FASTEST_FIRST.compare(entry, node.entry);
+            if(cmp < 0) {
+                node.left = remove(node.left, entry);
+            } else if(cmp > 0) {
+                node.right = remove(node.right, entry);
+            } else {
+                return merge(node.left, node.right);
+            }
+            node.update();
+            return node;
+        }
+
+        private static Node merge(Node left, Node right) {
+            if(left == null) {
+                return right;
+            }
+            if(right == null) {
+                return left;
+            }
+            if(left.priority > right.priority) {
+                left.right = merge(left.right, right);
+                left.update();
+                return left;
+            } else {
+                right.left = merge(left, right.left);
+                right.update();
+                return right;
+            }
+        }
+
+        private static Node rotateRight(Node node) {
+            Node left = node.left;
+            node.left = left.right;
+            left.right = node;
+            node.update();
+            left.update();
+            return left;
+        }
+
+        private static Node rotateLeft(Node node) {
+            Node right = node.right;
+            node.right = right.left;
+            right.left = node;
+            node.update();
+            right.update();
+            return right;
+        }
+
+        private static int size(Node node) {
+            return (node != null) ? node.size : 0;
+        }
+
+        static final class Node {
+            final Entry entry;
+            final int priority;
+            Node left;
+            Node right;
+            int size = 1;
+
+            Node(Entry entry, int priority) {
+                this.entry = entry;
+                this.priority = priority;
+            }
+
+            void update() {
+                size = size(left) + size(right) + 1;
+            }
+        }
+    }
+}
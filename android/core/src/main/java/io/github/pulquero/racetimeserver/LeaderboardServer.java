@@ -0,0 +1,278 @@
+package io.github.pulquero.racetimeserver;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves a {@link Leaderboard} over plain HTTP, for browser overlays without a web socket client:
+ * GET /leaderboard - the standings as JSON, with an ETag so unchanged standings cost a 304,
+ * GET /leaderboard/events - a Server-Sent Events stream, the standings then an update event per pass.
+ */
+public class LeaderboardServer implements Closeable {
+    public static final int DEFAULT_PORT = 5003;
+    static final String STANDINGS_PATH = "/leaderboard";
+    static final String EVENTS_PATH = "/leaderboard/events";
+    private static final String LOG_TAG = "LeaderboardServer";
+    /**
+     * Updates a slow stream client can fall behind by before being sent the standings again instead.
+     */
+    private static final int MAX_QUEUED_EVENTS = 64;
+    private static final long KEEP_ALIVE_SECS = 15L;
+    private static final int REQUEST_TIMEOUT_MS = 10000;
+    /**
+     * How long a write to a stream client can block before the client is dropped, as sockets have no write timeout.
+     */
+    private static final long WRITE_TIMEOUT_MS = 10000L;
+    /**
+     * Queued in place of the updates a slow stream client has missed.
+     */
+    private static final Object RESYNC = new Object();
+
+    private final Leaderboard leaderboard;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    /**
+     * Queues of encoded events, or {@link #RESYNC}.
+     */
+    private final List<BlockingQueue<Object>> streams = new CopyOnWriteArrayList<>();
+    private final Leaderboard.Listener listener = this::onUpdate;
+    private final Timer writeWatchdog = new Timer("Leaderboard write watchdog", true);
+    /**
+     * Shortened by tests.
+     */
+    volatile long writeTimeoutMillis = WRITE_TIMEOUT_MS;
+
+    public LeaderboardServer(Leaderboard leaderboard, InetSocketAddress address) throws IOException {
+        this.leaderboard = leaderboard;
+        serverSocket = new ServerSocket();
+        // allow quick restarts
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "Leaderboard server");
+            t.setDaemon(true);
+            return t;
+        });
+        leaderboard.addListener(listener);
+        executor.execute(this::accept);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        try {
+            while(true) {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> serve(socket));
+            }
+        } catch (SocketException e) {
+            // closed
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Accept failed", e);
+        }
+    }
+
+    private void serve(Socket socket) {
+        try(Socket s = socket) {
+            s.setSoTimeout(REQUEST_TIMEOUT_MS);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            String requestLine = in.readLine();
+            if(requestLine == null) {
+                return;
+            }
+            String ifNoneMatch = null;
+            for(String header = in.readLine(); header != null && !header.isEmpty(); header = in.readLine()) {
+                int sep = header.indexOf(':');
+                if(sep != -1 && header.substring(0, sep).trim().toLowerCase(Locale.ROOT).equals("if-none-match")) {
+                    ifNoneMatch = header.substring(sep + 1).trim();
+                }
+            }
+            String[] request = requestLine.split(" ");
+            OutputStream out = s.getOutputStream();
+            if(request.length < 2 || !"GET".equals(request[0])) {
+                respond(out, "405 Method Not Allowed", null, null);
+                return;
+            }
+            String path = request[1];
+            int query = path.indexOf('?');
+            if(query != -1) {
+                path = path.substring(0, query);
+            }
+            switch (path) {
+                case STANDINGS_PATH:
+                    sendStandings(out, ifNoneMatch);
+                    break;
+                case EVENTS_PATH:
+                    s.setSoTimeout(0);
+                    stream(s, out);
+                    break;
+                default:
+                    respond(out, "404 Not Found", null, null);
+            }
+        } catch (IOException e) {
+            // client has gone
+        } catch (InterruptedException e) {
+            // server closing
+        }
+    }
+
+    private void sendStandings(OutputStream out, String ifNoneMatch) throws IOException {
+        String body;
+        long version;
+        synchronized (leaderboard) {
+            version = leaderboard.getVersion();
+            body = leaderboard.toJsonString();
+        }
+        String etag = "\"" + version + "\"";
+        if(etag.equals(ifNoneMatch)) {
+            respond(out, "304 Not Modified", etag, null);
+        } else {
+            respond(out, "200 OK", etag, body);
+        }
+    }
+
+    private static void respond(OutputStream out, String status, String etag, String json) throws IOException {
+        byte[] body = (json != null) ? json.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(status).append("\r\n");
+        if(json != null) {
+            headers.append("Content-Type: application/json\r\n");
+        }
+        if(etag != null) {
+            headers.append("ETag: ").append(etag).append("\r\n");
+            headers.append("Cache-Control: no-cache\r\n");
+        }
+        headers.append("Access-Control-Allow-Origin: *\r\n");
+        headers.append("Content-Length: ").append(body.length).append("\r\n");
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    private void stream(Socket socket, OutputStream out) throws IOException, InterruptedException {
+        BlockingQueue<Object> events = new LinkedBlockingQueue<>(MAX_QUEUED_EVENTS);
+        streams.add(events);
+        try {
+            write(socket, out, ("HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: text/event-stream\r\n"
+                    + "Cache-Control: no-cache\r\n"
+                    + "Access-Control-Allow-Origin: *\r\n"
+                    + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            Object event = RESYNC;
+            while(true) {
+                if(event == null) {
+                    // comment, so dead connections are noticed
+                    write(socket, out, ":\n\n".getBytes(StandardCharsets.US_ASCII));
+                } else if(event == RESYNC) {
+                    String standings;
+                    long version;
+                    synchronized (leaderboard) {
+                        // updates are queued with the leaderboard locked, so none already in the standings are left queued
+                        events.clear();
+                        version = leaderboard.getVersion();
+                        standings = leaderboard.toJsonString();
+                    }
+                    write(socket, out, formatEvent("standings", version, standings));
+                } else {
+                    write(socket, out, (byte[]) event);
+                }
+                event = events.poll(KEEP_ALIVE_SECS, TimeUnit.SECONDS);
+            }
+        } finally {
+            streams.remove(events);
+        }
+    }
+
+    /**
+     * Closes the socket if the client stops reading for so long that the write blocks past the timeout.
+     */
+    private void write(Socket socket, OutputStream out, byte[] data) throws IOException {
+        TimerTask timeout = new TimerTask() {
+            @Override
+            public void run() {
+                Log.w(LOG_TAG, "Stream client stalled");
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        };
+        try {
+            writeWatchdog.schedule(timeout, writeTimeoutMillis);
+        } catch (IllegalStateException e) {
+            throw new IOException("Server closed", e);
+        }
+        try {
+            out.write(data);
+            out.flush();
+        } finally {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Rendered once for all stream clients.
+     */
+    private void onUpdate(Leaderboard.Update update) {
+        if(streams.isEmpty()) {
+            return;
+        }
+        byte[] event;
+        try {
+            event = formatEvent("update", update.version, update.toJson().toString());
+        } catch (JSONException e) {
+            // never expected to happen
+            throw new AssertionError(e);
+        }
+        for(BlockingQueue<Object> events : streams) {
+            if(!events.offer(event)) {
+                // fallen behind
+                events.clear();
+                events.offer(RESYNC);
+            }
+        }
+    }
+
+    int getStreamCount() {
+        return streams.size();
+    }
+
+    private static byte[] formatEvent(String type, long version, String data) {
+        return ("event: " + type + "\nid: " + version + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        leaderboard.removeListener(listener);
+        try {
+            serverSocket.close();
+        } finally {
+            executor.shutdownNow();
+            writeWatchdog.cancel();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package io.github.pulquero.racetimeserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Grants the tracker link to one command exchange at a time.
+ * The highest priority waiter within its rate budget goes next, waiters of the same priority take turns in arrival order.
+ * Background traffic is refused while suspended, e.g. during a race.
+ */
+final class LinkScheduler {
+    enum Priority {
+        /**
+         * Starting and stopping races.
+         */
+        RACE(0.0, 0),
+        /**
+         * Client settings commands.
+         */
+        COMMAND(20.0, 5),
+        /**
+         * Polling, e.g. RSSI.
+         */
+        BACKGROUND(30.0, 3);
+
+        /**
+         * Exchanges per second, 0 for unlimited.
+         */
+        final double rate;
+        final int burst;
+
+        Priority(double rate, int burst) {
+            this.rate = rate;
+            this.burst = burst;
+        }
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * A lock rather than a monitor so blocked virtual threads are not pinned.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final List<Queue<Thread>> waiters = new ArrayList<>(PRIORITIES.length);
+    private final double[] tokens = new double[PRIORITIES.length];
+    private final long[] refilledAt = new long[PRIORITIES.length];
+    private boolean busy;
+    private boolean backgroundSuspended;
+
+    LinkScheduler() {
+        long now = System.nanoTime();
+        for(Priority p : PRIORITIES) {
+            waiters.add(new ArrayDeque<>());
+            tokens[p.ordinal()] = p.burst;
+            refilledAt[p.ordinal()] = now;
+        }
+    }
+
+    /**
+     * Blocks until the link is granted, must be followed by {@link #release()}.
+     * @throws TrackerException if background traffic is suspended or interrupted.
+     */
+    void acquire(Priority priority) {
+        int c = priority.ordinal();
+        Thread self = Thread.currentThread();
+        lock.lock();
+        try {
+            waiters.get(c).add(self);
+            try {
+                while(true) {
+                    if(priority == Priority.BACKGROUND && backgroundSuspended) {
+                        throw new TrackerException("Background traffic suspended during race");
+                    }
+                    long now = System.nanoTime();
+                    boolean ready = !busy && waiters.get(c).peek() == self && hasToken(priority, now) && !isHigherReady(c, now);
+                    if(ready) {
+                        if(priority.rate > 0.0) {
+                            tokens[c] -= 1.0;
+                        }
+                        busy = true;
+                        return;
+                    }
+                    if(!busy && waiters.get(c).peek() == self && !hasToken(priority, now)) {
+                        changed.awaitNanos(nanosUntilToken(priority));
+                    } else {
+                        changed.await();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TrackerException(e);
+            } finally {
+                waiters.get(c).remove(self);
+                // the next in line may now be eligible
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        lock.lock();
+        try {
+            busy = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setBackgroundSuspended(boolean suspended) {
+        lock.lock();
+        try {
+            backgroundSuspended = suspended;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isHigherReady(int c, long now) {
+        for(int i=0; i<c; i++) {
+            if(!waiters.get(i).isEmpty() && hasToken(PRIORITIES[i], now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasToken(Priority priority, long now) {
+        if(priority.rate <= 0.0) {
+            return true;
+        }
+        int c = priority.ordinal();
+        tokens[c] = Math.min(priority.burst, tokens[c] + (now - refilledAt[c])*priority.rate/1e9);
+        refilledAt[c] = now;
+        return tokens[c] >= 1.0;
+    }
+
+    private long nanosUntilToken(Priority priority) {
+        double deficit = 1.0 - tokens[priority.ordinal()];
+        return Math.max((long) Math.ceil(deficit*1e9/priority.rate), TimeUnit.MICROSECONDS.toNanos(100L));
+    }
+}
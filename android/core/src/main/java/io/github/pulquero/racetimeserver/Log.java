@@ -0,0 +1,47 @@
+package io.github.pulquero.racetimeserver;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Platform independent logging.
+ * Defaults to java.util.logging, the Android app installs a sink that writes to logcat.
+ */
+public final class Log {
+    public interface Sink {
+        void log(Level level, String tag, String msg, Throwable ex);
+    }
+
+    private static volatile Sink sink = (level, tag, msg, ex) -> Logger.getLogger(tag).log(level, msg, ex);
+
+    private Log() {
+    }
+
+    public static void setSink(Sink sink) {
+        Log.sink = sink;
+    }
+
+    public static void d(String tag, String msg) {
+        sink.log(Level.FINE, tag, msg, null);
+    }
+
+    public static void i(String tag, String msg) {
+        sink.log(Level.INFO, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg) {
+        sink.log(Level.WARNING, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg, Throwable ex) {
+        sink.log(Level.WARNING, tag, msg, ex);
+    }
+
+    public static void e(String tag, String msg) {
+        sink.log(Level.SEVERE, tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable ex) {
+        sink.log(Level.SEVERE, tag, msg, ex);
+    }
+}
@@ -0,0 +1,162 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process transport, without sockets or framing, for tests and for measuring the server itself.
+ * Everything is delivered, in order, on a single thread, so client listeners must not block.
+ */
+public class LoopbackEngine implements NetworkEngine {
+    public interface ClientListener {
+        void onMessage(String message);
+
+        void onClose();
+    }
+
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection,Boolean>());
+    private final ExecutorService delivery = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Loopback engine");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile Handler handler;
+
+    @Override
+    public void start(Handler handler) {
+        this.handler = handler;
+        delivery.execute(handler::onStart);
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        for(Connection conn : connections) {
+            conn.close();
+        }
+        delivery.shutdown();
+        delivery.awaitTermination(5L, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Collection<ClientConnection> getConnections() {
+        return new ArrayList<ClientConnection>(connections);
+    }
+
+    @Override
+    public void broadcast(String text, Collection<ClientConnection> conns) {
+        for(ClientConnection conn : conns) {
+            if(conn.isOpen()) {
+                conn.send(text);
+            }
+        }
+    }
+
+    /**
+     * @param resource path and query, e.g. /feed.
+     * @return the client end, to send messages to the server.
+     */
+    public ClientConnection connect(String resource, ClientListener listener) {
+        Connection conn = new Connection(listener);
+        delivery.execute(() -> {
+            connections.add(conn);
+            handler.onOpen(conn, resource);
+        });
+        return conn.client;
+    }
+
+    /**
+     * Server end.
+     */
+    final class Connection implements ClientConnection {
+        final ClientListener listener;
+        final ClientConnection client = new ClientEnd();
+        private volatile boolean open = true;
+        private volatile Object attachment;
+
+        Connection(ClientListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void send(String text) {
+            if(!open) {
+                throw new WebsocketNotConnectedException();
+            }
+            delivery.execute(() -> listener.onMessage(text));
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            if(open) {
+                open = false;
+                delivery.execute(() -> {
+                    if(connections.remove(this)) {
+                        handler.onClose(this);
+                    }
+                    listener.onClose();
+                });
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T getAttachment() {
+            return (T) attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        final class ClientEnd implements ClientConnection {
+            private volatile Object clientAttachment;
+
+            @Override
+            public void send(String text) {
+                if(!open) {
+                    throw new WebsocketNotConnectedException();
+                }
+                delivery.execute(() -> {
+                    if(open) {
+                        handler.onMessage(Connection.this, text);
+                    }
+                });
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                Connection.this.close();
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public <T> T getAttachment() {
+                return (T) clientAttachment;
+            }
+
+            @Override
+            public void setAttachment(Object attachment) {
+                clientAttachment = attachment;
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.pulquero.racetimeserver;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Transport for the {@link TimingServer}, which only deals in text messages on client connections.
+ */
+public interface NetworkEngine {
+    interface Handler {
+        void onStart();
+
+        /**
+         * @param resource the requested path and query, e.g. /feed.
+         */
+        void onOpen(ClientConnection conn, String resource);
+
+        /**
+         * Must not block.
+         */
+        void onMessage(ClientConnection conn, String message);
+
+        void onClose(ClientConnection conn);
+
+        /**
+         * @param conn null if not of a connection.
+         */
+        void onError(ClientConnection conn, Exception ex);
+    }
+
+    /**
+     * Returns immediately, calling {@link Handler#onStart()} once accepting connections.
+     */
+    void start(Handler handler);
+
+    /**
+     * Closes all connections, returning when stopped.
+     */
+    void stop() throws IOException, InterruptedException;
+
+    Collection<ClientConnection> getConnections();
+
+    /**
+     * Sends the same message to several connections, encoding it only once, skipping any no longer open.
+     */
+    void broadcast(String text, Collection<ClientConnection> connections);
+}
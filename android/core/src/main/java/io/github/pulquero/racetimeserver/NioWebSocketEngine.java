@@ -0,0 +1,632 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A lean web socket server on a single selector thread, for many connections and cheap broadcasts.
+ * Reads go through one direct buffer.
+ * Writes are queued per connection and flushed by the selector thread as a gathering write,
+ * so a burst of notifications costs one system call,
+ * and a broadcast frame is encoded once into a direct buffer shared by every connection.
+ * Supports text messages, fragmented or not, pings and closes, binary messages are ignored.
+ */
+public class NioWebSocketEngine implements NetworkEngine {
+    private static final String LOG_TAG = "NioWebSocketEngine";
+    private static final int READ_BUFFER_SIZE = 64*1024;
+    private static final int MAX_HANDSHAKE_SIZE = 8*1024;
+    private static final int MAX_MESSAGE_SIZE = 1024*1024;
+    /**
+     * Frames per gathering write.
+     */
+    private static final int MAX_GATHER = 64;
+    private static final String WEB_SOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+    private static final int NORMAL_CLOSURE = 1000;
+    private static final int GOING_AWAY = 1001;
+    private static final int PROTOCOL_ERROR = 1002;
+    private static final int TOO_BIG = 1009;
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final InetSocketAddress address;
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection,Boolean>());
+    /**
+     * Connections with frames to write.
+     */
+    private final Queue<Connection> flushQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile Handler handler;
+    private volatile Selector selector;
+    private volatile boolean stopping;
+    private volatile int port;
+    private Thread thread;
+
+    public NioWebSocketEngine(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * The port bound, once started.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void start(Handler handler) {
+        this.handler = handler;
+        thread = new Thread(this::run, "NIO web socket engine");
+        thread.start();
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        stopping = true;
+        Selector s = selector;
+        if(s != null) {
+            s.wakeup();
+        }
+        if(thread != null) {
+            thread.join();
+        }
+    }
+
+    @Override
+    public Collection<ClientConnection> getConnections() {
+        return new ArrayList<ClientConnection>(connections);
+    }
+
+    @Override
+    public void broadcast(String text, Collection<ClientConnection> conns) {
+        ByteBuffer frame = encode(OP_TEXT, text.getBytes(StandardCharsets.UTF_8), true);
+        for(ClientConnection conn : conns) {
+            if(conn.isOpen()) {
+                ((Connection) conn).queue(frame.duplicate(), false);
+            }
+        }
+    }
+
+    private void run() {
+        ServerSocketChannel serverChannel;
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            // allow quick restarts
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(address);
+            port = serverChannel.socket().getLocalPort();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            handler.onError(null, e);
+            return;
+        }
+        handler.onStart();
+        try {
+            while(!stopping) {
+                flushPending();
+                selector.select();
+                wakeupPending.set(false);
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while(iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    if(key.isAcceptable()) {
+                        accept(serverChannel);
+                    } else {
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if(key.isReadable()) {
+                                conn.read();
+                            }
+                            if(key.isValid() && key.isWritable()) {
+                                conn.flush();
+                            }
+                        } catch (IOException e) {
+                            conn.terminate();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            handler.onError(null, e);
+        } finally {
+            for(Connection conn : connections) {
+                conn.closeNow(GOING_AWAY);
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Close", e);
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
+
+    /**
+     * Runs on the selector thread.
+     */
+    private void flushPending() {
+        Connection conn;
+        while((conn = flushQueue.poll()) != null) {
+            try {
+                conn.flush();
+            } catch (IOException e) {
+                conn.terminate();
+            }
+        }
+    }
+
+    private void requestFlush(Connection conn) {
+        flushQueue.add(conn);
+        if(Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+            Selector s = selector;
+            if(s != null) {
+                s.wakeup();
+            }
+        }
+    }
+
+    static ByteBuffer encode(int opcode, byte[] payload, boolean direct) {
+        int len = payload.length;
+        int headerLen = (len < 126) ? 2 : (len <= 0xFFFF) ? 4 : 10;
+        ByteBuffer frame = direct ? ByteBuffer.allocateDirect(headerLen + len) : ByteBuffer.allocate(headerLen + len);
+        // final fragment
+        frame.put((byte) (0x80 | opcode));
+        if(len < 126) {
+            frame.put((byte) len);
+        } else if(len <= 0xFFFF) {
+            frame.put((byte) 126);
+            frame.putShort((short) len);
+        } else {
+            frame.put((byte) 127);
+            frame.putLong(len);
+        }
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer encodeClose(int code) {
+        return encode(OP_CLOSE, new byte[] {(byte) (code >> 8), (byte) code}, false);
+    }
+
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key + WEB_SOCKET_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            // always available
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * java.util.Base64 needs API 26.
+     */
+    static String base64(byte[] data) {
+        StringBuilder s = new StringBuilder((data.length + 2)/3*4);
+        for(int i=0; i<data.length; i+=3) {
+            int b = (data[i] & 0xFF) << 16;
+            if(i + 1 < data.length) {
+                b |= (data[i + 1] & 0xFF) << 8;
+            }
+            if(i + 2 < data.length) {
+                b |= data[i + 2] & 0xFF;
+            }
+            s.append(BASE64[(b >> 18) & 0x3F]);
+            s.append(BASE64[(b >> 12) & 0x3F]);
+            s.append((i + 1 < data.length) ? BASE64[(b >> 6) & 0x3F] : '=');
+            s.append((i + 2 < data.length) ? BASE64[b & 0x3F] : '=');
+        }
+        return s.toString();
+    }
+
+    final class Connection implements ClientConnection {
+        private static final int HANDSHAKE = 0;
+        private static final int OPEN = 1;
+        private static final int CLOSING = 2;
+        private static final int CLOSED = 3;
+
+        final SocketChannel channel;
+        final SelectionKey key;
+        /**
+         * Guarded by this.
+         */
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private boolean closeQueued;
+        private volatile int state = HANDSHAKE;
+        private volatile Object attachment;
+        /**
+         * Only used by the selector thread, in write mode between reads.
+         */
+        private ByteBuffer inbound = ByteBuffer.allocate(1024);
+        private ByteArrayOutputStream fragments;
+        private int fragmentsOpcode;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        @Override
+        public void send(String text) {
+            if(state != OPEN) {
+                throw new WebsocketNotConnectedException();
+            }
+            queue(encode(OP_TEXT, text.getBytes(StandardCharsets.UTF_8), false), false);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return state == OPEN;
+        }
+
+        @Override
+        public void close() {
+            close(NORMAL_CLOSURE);
+        }
+
+        private void close(int code) {
+            synchronized (this) {
+                if(state != OPEN) {
+                    return;
+                }
+                state = CLOSING;
+            }
+            queue(encodeClose(code), true);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T getAttachment() {
+            return (T) attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        /**
+         * Nothing is queued after a close.
+         */
+        void queue(ByteBuffer frame, boolean isClose) {
+            boolean wasEmpty;
+            synchronized (this) {
+                if(closeQueued) {
+                    return;
+                }
+                wasEmpty = outbound.isEmpty();
+                outbound.add(frame);
+                closeQueued = isClose;
+            }
+            if(wasEmpty) {
+                requestFlush(this);
+            }
+        }
+
+        /**
+         * Runs on the selector thread.
+         */
+        void flush() throws IOException {
+            boolean closeNow;
+            synchronized (this) {
+                if(state == CLOSED) {
+                    return;
+                }
+                while(!outbound.isEmpty()) {
+                    ByteBuffer[] batch = new ByteBuffer[Math.min(outbound.size(), MAX_GATHER)];
+                    Iterator<ByteBuffer> iter = outbound.iterator();
+                    for(int i=0; i<batch.length; i++) {
+                        batch[i] = iter.next();
+                    }
+                    channel.write(batch);
+                    while(!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                        outbound.poll();
+                    }
+                    if(!outbound.isEmpty() && !batch[batch.length - 1].hasRemaining()) {
+                        // more than a batch
+                        continue;
+                    }
+                    if(!outbound.isEmpty()) {
+                        // socket buffer full, wait until writable
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                closeNow = closeQueued;
+            }
+            if(closeNow) {
+                terminate();
+            }
+        }
+
+        /**
+         * Runs on the selector thread.
+         */
+        void read() throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if(n == -1) {
+                terminate();
+                return;
+            }
+            readBuffer.flip();
+            if(inbound.remaining() < readBuffer.remaining()) {
+                grow(readBuffer.remaining());
+            }
+            inbound.put(readBuffer);
+            inbound.flip();
+            try {
+                if(state == HANDSHAKE && !handshake()) {
+                    return;
+                }
+                while(state != CLOSED && inbound.hasRemaining() && decodeFrame()) {
+                    // next frame
+                }
+            } finally {
+                inbound.compact();
+            }
+        }
+
+        private void grow(int extra) throws IOException {
+            int needed = inbound.position() + extra;
+            if(needed > MAX_MESSAGE_SIZE + 14) {
+                throw new IOException("Message too big");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(2*inbound.capacity(), needed));
+            inbound.flip();
+            bigger.put(inbound);
+            inbound = bigger;
+        }
+
+        /**
+         * @return false if incomplete.
+         */
+        private boolean handshake() throws IOException {
+            int start = inbound.position();
+            int end = -1;
+            for(int i=start; i+3<inbound.limit(); i++) {
+                if(inbound.get(i) == '\r' && inbound.get(i + 1) == '\n' && inbound.get(i + 2) == '\r' && inbound.get(i + 3) == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if(end == -1) {
+                if(inbound.remaining() > MAX_HANDSHAKE_SIZE) {
+                    throw new IOException("Handshake too big");
+                }
+                return false;
+            }
+            byte[] request = new byte[end - start];
+            inbound.get(request);
+            inbound.position(end + 4);
+
+            String[] lines = new String(request, StandardCharsets.US_ASCII).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            Map<String,String> headers = new HashMap<>();
+            for(int i=1; i<lines.length; i++) {
+                int sep = lines[i].indexOf(':');
+                if(sep != -1) {
+                    headers.put(lines[i].substring(0, sep).trim().toLowerCase(Locale.ROOT), lines[i].substring(sep + 1).trim());
+                }
+            }
+            String key = headers.get("sec-websocket-key");
+            if(requestLine.length < 3 || !"GET".equals(requestLine[0]) || key == null
+                    || !"websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                queue(ByteBuffer.wrap("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII)), true);
+                state = CLOSING;
+                return false;
+            }
+            queue(ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII)), false);
+            state = OPEN;
+            connections.add(this);
+            handler.onOpen(this, requestLine[1]);
+            return true;
+        }
+
+        /**
+         * @return false if incomplete.
+         */
+        private boolean decodeFrame() throws IOException {
+            int pos = inbound.position();
+            int available = inbound.remaining();
+            if(available < 2) {
+                return false;
+            }
+            int b0 = inbound.get(pos) & 0xFF;
+            int b1 = inbound.get(pos + 1) & 0xFF;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            long len = b1 & 0x7F;
+            int headerLen = 2;
+            if(len == 126) {
+                if(available < 4) {
+                    return false;
+                }
+                len = inbound.getShort(pos + 2) & 0xFFFF;
+                headerLen = 4;
+            } else if(len == 127) {
+                if(available < 10) {
+                    return false;
+                }
+                len = inbound.getLong(pos + 2);
+                headerLen = 10;
+            }
+            if((b1 & 0x80) == 0) {
+                // clients must mask
+                closeNow(PROTOCOL_ERROR);
+                return false;
+            }
+            if(len < 0 || len > MAX_MESSAGE_SIZE) {
+                closeNow(TOO_BIG);
+                return false;
+            }
+            headerLen += 4;
+            if(available < headerLen + len) {
+                return false;
+            }
+            byte[] payload = new byte[(int) len];
+            int maskPos = pos + headerLen - 4;
+            for(int i=0; i<payload.length; i++) {
+                payload[i] = (byte) (inbound.get(pos + headerLen + i) ^ inbound.get(maskPos + (i & 3)));
+            }
+            inbound.position(pos + headerLen + payload.length);
+
+            switch (opcode) {
+                case OP_TEXT:
+                case OP_BINARY:
+                    if(fragments != null) {
+                        // a new message before the fragmented one has finished
+                        closeNow(PROTOCOL_ERROR);
+                        return false;
+                    }
+                    if(fin) {
+                        if(opcode == OP_TEXT) {
+                            deliver(payload);
+                        }
+                    } else {
+                        fragments = new ByteArrayOutputStream();
+                        fragments.write(payload);
+                        fragmentsOpcode = opcode;
+                    }
+                    break;
+                case OP_CONTINUATION:
+                    if(fragments == null) {
+                        closeNow(PROTOCOL_ERROR);
+                        return false;
+                    }
+                    if(fragments.size() + payload.length > MAX_MESSAGE_SIZE) {
+                        closeNow(TOO_BIG);
+                        return false;
+                    }
+                    fragments.write(payload);
+                    if(fin) {
+                        if(fragmentsOpcode == OP_TEXT) {
+                            deliver(fragments.toByteArray());
+                        }
+                        fragments = null;
+                    }
+                    break;
+                case OP_PING:
+                    if(state == OPEN) {
+                        queue(encode(OP_PONG, payload, false), false);
+                    }
+                    break;
+                case OP_PONG:
+                    break;
+                case OP_CLOSE:
+                    if(state == OPEN) {
+                        // echo
+                        state = CLOSING;
+                        queue(encode(OP_CLOSE, (payload.length >= 2) ? new byte[] {payload[0], payload[1]} : new byte[0], false), true);
+                    } else {
+                        terminate();
+                    }
+                    return false;
+                default:
+                    closeNow(PROTOCOL_ERROR);
+                    return false;
+            }
+            return true;
+        }
+
+        private void deliver(byte[] text) {
+            if(state == OPEN) {
+                handler.onMessage(this, new String(text, StandardCharsets.UTF_8));
+            }
+        }
+
+        /**
+         * Sends what it can of a close frame without waiting.
+         */
+        void closeNow(int code) {
+            if(state == OPEN) {
+                state = CLOSING;
+                queue(encodeClose(code), true);
+            }
+            try {
+                synchronized (this) {
+                    for(ByteBuffer frame : outbound) {
+                        if(channel.write(frame) == 0 && frame.hasRemaining()) {
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // going anyway
+            }
+            terminate();
+        }
+
+        /**
+         * Runs on the selector thread.
+         */
+        void terminate() {
+            synchronized (this) {
+                if(state == CLOSED) {
+                    return;
+                }
+                state = CLOSED;
+                outbound.clear();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+            if(connections.remove(this)) {
+                handler.onClose(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.json.JSONException;
+
+/**
+ * The consumers of the races' passes, each on its own thread off a pass ring, so the multicast isn't held up by anything slower.
+ * The race journal and the racer's own notifications are lossless, so take every pass.
+ * The multicast feed and the subscribers watching drop passes rather than hold up the race, counting them.
+ * A race is drained as it ends, so everything it passed is journaled and sent to the racer before anything that follows.
+ */
+final class PassConsumers {
+    private static final String LOG_TAG = "PassConsumers";
+    private static final int RING_CAPACITY = 1024;
+    private static final long DRAIN_TIMEOUT_MS = 2000L;
+
+    interface Dispatcher {
+        /**
+         * To the racer.
+         */
+        void sendPass(ClientConnection racer, PassRing.Pass pass, int freq) throws JSONException;
+
+        /**
+         * To the subscribers watching the racer.
+         */
+        void publishPass(ClientConnection racer, PassRing.Pass pass, int freq) throws JSONException;
+    }
+
+    private final PassRing ring = new PassRing(RING_CAPACITY);
+    private final RaceTracker raceTracker;
+    private final Dispatcher dispatcher;
+    private volatile PassRing.Consumer feedConsumer;
+    private volatile PassRing.Consumer subscriberConsumer;
+
+    PassConsumers(RaceTracker raceTracker, Dispatcher dispatcher) {
+        this.raceTracker = raceTracker;
+        this.dispatcher = dispatcher;
+    }
+
+    void start() {
+        feedConsumer = ring.addConsumer("Pass feed", this::feedPass);
+        ring.addLosslessConsumer("Race journal", this::journalPass);
+        ring.addLosslessConsumer("Racer dispatch", this::sendPass);
+        subscriberConsumer = ring.addConsumer("Subscriber dispatch", this::publishPass);
+    }
+
+    /**
+     * Drops anything not yet taken.
+     */
+    void close() {
+        ring.close();
+    }
+
+    /**
+     * Ignored once the race has ended, e.g. a lap already on its way as it was stopped.
+     */
+    void publish(Race race, RaceTracker.LapNotification lap) {
+        synchronized (race) {
+            if(!race.ended) {
+                race.lastSequence = ring.publish(lap.pilot, lap.ts, lap.receivedNanos, lap.parsedNanos, race);
+            }
+        }
+    }
+
+    /**
+     * Takes no more of the race's passes, waiting until those already taken have been journaled and sent to the racer.
+     */
+    void end(Race race) {
+        long last;
+        synchronized (race) {
+            race.ended = true;
+            last = race.lastSequence;
+        }
+        if(last != -1L && !ring.awaitConsumed(last, DRAIN_TIMEOUT_MS)) {
+            Log.w(LOG_TAG, "Race passes still pending");
+        }
+    }
+
+    long getFeedDropped() {
+        PassRing.Consumer consumer = feedConsumer;
+        return (consumer != null) ? consumer.getDropped() : 0L;
+    }
+
+    long getSubscriberDropped() {
+        PassRing.Consumer consumer = subscriberConsumer;
+        return (consumer != null) ? consumer.getDropped() : 0L;
+    }
+
+    private void feedPass(PassRing.Pass pass, boolean endOfBatch) {
+        Race race = (Race) pass.context;
+        if(race.feed != null) {
+            race.feed.publish(pass.node, raceTracker.getPilotFrequency(pass.node), pass.timestamp);
+        }
+    }
+
+    private void journalPass(PassRing.Pass pass, boolean endOfBatch) {
+        Race race = (Race) pass.context;
+        if(race.heat == null && race.board == null) {
+            return;
+        }
+        int freq = raceTracker.getPilotFrequency(pass.node);
+        if(race.heat != null) {
+            race.history.recordLap(race.heat, pass.node, freq, pass.timestamp);
+        }
+        if(race.board != null) {
+            race.board.recordPass(pass.node, freq, pass.timestamp);
+        }
+    }
+
+    private void sendPass(PassRing.Pass pass, boolean endOfBatch) throws JSONException {
+        Race race = (Race) pass.context;
+        try {
+            dispatcher.sendPass(race.conn, pass, raceTracker.getPilotFrequency(pass.node));
+        } catch(WebsocketNotConnectedException ex) {
+            // racer has gone, others may still be watching
+        }
+    }
+
+    private void publishPass(PassRing.Pass pass, boolean endOfBatch) throws JSONException {
+        Race race = (Race) pass.context;
+        dispatcher.publishPass(race.conn, pass, raceTracker.getPilotFrequency(pass.node));
+    }
+
+    /**
+     * What the consumers of a race's passes need, fixed when it starts.
+     */
+    static final class Race {
+        final ClientConnection conn;
+        final PassFeed feed;
+        final RaceHistory history;
+        final RaceHistory.Heat heat;
+        final Leaderboard board;
+        /**
+         * Guarded by the race.
+         */
+        private long lastSequence = -1L;
+        private boolean ended;
+
+        Race(ClientConnection conn, PassFeed feed, RaceHistory history, RaceHistory.Heat heat, Leaderboard board) {
+            this.conn = conn;
+            this.feed = feed;
+            this.history = history;
+            this.heat = heat;
+            this.board = board;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package io.github.pulquero.racetimeserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multicasts passes to LAN consumers, e.g. LED gates and overlays, as small sequenced UDP datagrams,
+ * so the cost of a pass does not depend on the number of listeners.
+ *
+ * Datagrams are big-endian:
+ * pass: 'P', version, epoch (int), sequence (int), node (byte), 0, frequency (short), timestamp millis (int)
+ * status: 'S', version, epoch (int), last sequence (int), sent every {@link #STATUS_INTERVAL_MS} so a lost last pass is noticed.
+ * Sequences start at 1 for each epoch, which changes whenever the feed is restarted.
+ * Recent passes are kept so receivers can fetch any they missed over the web socket.
+ */
+public class PassFeed implements Closeable {
+    public static final String DEFAULT_GROUP = "239.255.82.84";
+    public static final int DEFAULT_PORT = 5002;
+    public static final long STATUS_INTERVAL_MS = 2000L;
+    static final byte PASS = 'P';
+    static final byte STATUS = 'S';
+    static final byte VERSION = 1;
+    static final int PASS_SIZE = 18;
+    static final int STATUS_SIZE = 10;
+    private static final int RETAINED = 1024;
+    private static final int TTL = 1;
+    private static final String LOG_TAG = "PassFeed";
+
+    private final InetSocketAddress group;
+    private final DatagramSocket socket;
+    private final int epoch = new Random().nextInt(Integer.MAX_VALUE) + 1;
+    private final Pass[] retained = new Pass[RETAINED];
+    private final ScheduledExecutorService statusExecutor;
+    private int sequence;
+
+    public PassFeed(InetSocketAddress group) throws IOException {
+        this.group = group;
+        MulticastSocket multicastSocket = new MulticastSocket();
+        multicastSocket.setTimeToLive(TTL);
+        this.socket = multicastSocket;
+        statusExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Pass feed status");
+            t.setDaemon(true);
+            return t;
+        });
+        statusExecutor.scheduleAtFixedRate(this::sendStatus, STATUS_INTERVAL_MS, STATUS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param address group:port.
+     */
+    public static InetSocketAddress parseGroup(String address) {
+        int sep = address.lastIndexOf(':');
+        if(sep == -1) {
+            return new InetSocketAddress(address, DEFAULT_PORT);
+        }
+        return new InetSocketAddress(address.substring(0, sep), Integer.parseInt(address.substring(sep + 1)));
+    }
+
+    public InetSocketAddress getGroup() {
+        return group;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public synchronized int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Sends immediately on the calling thread.
+     * @param timestamp tracker time in milliseconds.
+     */
+    public void publish(int node, int frequency, long timestamp) {
+        Pass pass;
+        synchronized (this) {
+            pass = new Pass(++sequence, node, frequency, timestamp);
+            retained[pass.sequence % RETAINED] = pass;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(PASS_SIZE);
+        buf.put(PASS).put(VERSION).putInt(epoch).putInt(pass.sequence)
+                .put((byte) node).put((byte) 0).putShort((short) frequency).putInt((int) timestamp);
+        send(buf);
+    }
+
+    private void sendStatus() {
+        ByteBuffer buf = ByteBuffer.allocate(STATUS_SIZE);
+        buf.put(STATUS).put(VERSION).putInt(epoch).putInt(getSequence());
+        send(buf);
+    }
+
+    private void send(ByteBuffer buf) {
+        try {
+            socket.send(new DatagramPacket(buf.array(), buf.position(), group));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Send failed: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Retained passes in the inclusive range, oldest first.
+     */
+    public synchronized List<Pass> getPasses(int fromSequence, int toSequence) {
+        List<Pass> passes = new ArrayList<>();
+        int from = Math.max(fromSequence, Math.max(sequence - RETAINED + 1, 1));
+        int to = Math.min(toSequence, sequence);
+        for(int seq = from; seq <= to; seq++) {
+            passes.add(retained[seq % RETAINED]);
+        }
+        return passes;
+    }
+
+    @Override
+    public void close() {
+        statusExecutor.shutdownNow();
+        socket.close();
+    }
+
+    public static final class Pass {
+        public final int sequence;
+        public final int node;
+        public final int frequency;
+        public final long timestamp;
+
+        Pass(int sequence, int node, int frequency, long timestamp) {
+            this.sequence = sequence;
+            this.node = node;
+            this.frequency = frequency;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Joins a feed and reports passes and any gaps in the sequence.
+     */
+    public static class Receiver implements Closeable {
+        public interface Listener {
+            void onPass(int epoch, Pass pass);
+
+            /**
+             * Passes in the inclusive range were missed and can be fetched over the web socket.
+             */
+            void onGap(int epoch, int fromSequence, int toSequence);
+        }
+
+        private final MulticastSocket socket;
+        private final InetAddress groupAddress;
+        private final Decoder decoder;
+        private final Thread thread;
+
+        public Receiver(InetSocketAddress group, Listener listener) throws IOException {
+            this.socket = new MulticastSocket(group.getPort());
+            this.groupAddress = group.getAddress();
+            this.decoder = new Decoder(listener);
+            socket.joinGroup(groupAddress);
+            thread = new Thread(this::receive, "Pass feed receiver");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void receive() {
+            byte[] data = new byte[Math.max(PASS_SIZE, STATUS_SIZE)];
+            DatagramPacket packet = new DatagramPacket(data, data.length);
+            try {
+                while(true) {
+                    packet.setLength(data.length);
+                    socket.receive(packet);
+                    decoder.decode(ByteBuffer.wrap(data, 0, packet.getLength()));
+                }
+            } catch (SocketException e) {
+                // closed
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Receive failed", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                socket.leaveGroup(groupAddress);
+            } finally {
+                socket.close();
+            }
+        }
+
+        /**
+         * Tracks the sequence of the datagrams received, only used by the receiver thread.
+         */
+        static final class Decoder {
+            private final Listener listener;
+            private int epoch;
+            private int lastSequence;
+
+            Decoder(Listener listener) {
+                this.listener = listener;
+            }
+
+            void decode(ByteBuffer buf) {
+                if(buf.remaining() < STATUS_SIZE) {
+                    return;
+                }
+                byte type = buf.get();
+                if(buf.get() != VERSION) {
+                    return;
+                }
+                int packetEpoch = buf.getInt();
+                int seq = buf.getInt();
+                if(epoch == 0) {
+                    // joined mid-feed, earlier passes are not of interest
+                    lastSequence = (type == PASS) ? seq - 1 : seq;
+                } else if(packetEpoch != epoch) {
+                    // feed restarted
+                    lastSequence = 0;
+                }
+                epoch = packetEpoch;
+                if(type == PASS && buf.remaining() >= PASS_SIZE - STATUS_SIZE) {
+                    int node = buf.get();
+                    buf.get();
+                    int frequency = buf.getShort() & 0xFFFF;
+                    long timestamp = buf.getInt() & 0xFFFFFFFFL;
+                    if(seq > lastSequence + 1) {
+                        listener.onGap(epoch, lastSequence + 1, seq - 1);
+                    }
+                    if(seq > lastSequence) {
+                        lastSequence = seq;
+                        listener.onPass(epoch, new Pass(seq, node, frequency, timestamp));
+                    }
+                } else if(type == STATUS) {
+                    if(seq > lastSequence) {
+                        listener.onGap(epoch, lastSequence + 1, seq);
+                        lastSequence = seq;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package io.github.pulquero.racetimeserver;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands passes from the tracker to any number of consumers through a ring of preallocated slots.
+ * Each consumer has its own thread and sequence, and takes whatever has been published since its last batch.
+ * The producer never waits for a lossy consumer: one that falls a whole ring behind skips the passes overwritten, counting them as dropped,
+ * so a slow consumer never holds up parsing or the other consumers.
+ * A lossless consumer takes every pass instead, the producer waiting for it rather than overwrite a pass it has yet to take,
+ * so must keep up, it only being a whole ring behind if stalled.
+ * Slots are written and read field by field, marked as being written first, so a consumer can tell if one was overwritten while it was copying it.
+ */
+final class PassRing {
+    private static final String LOG_TAG = "PassRing";
+    private static final long BEING_WRITTEN = -1L;
+    private static final int TIMESTAMP = 0;
+    private static final int RECEIVED = 1;
+    private static final int PARSED = 2;
+    private static final int LONGS_PER_SLOT = 3;
+    private static final long CLOSE_TIMEOUT_MS = 1000L;
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+
+    interface Handler {
+        /**
+         * Called on the consumer's thread.
+         * @param pass only valid until returning.
+         * @param endOfBatch no more passes are available yet, e.g. to flush.
+         */
+        void onPass(Pass pass, boolean endOfBatch) throws Exception;
+    }
+
+    /**
+     * A consumer's copy of a slot, reused for every pass.
+     */
+    static final class Pass {
+        long sequence;
+        int node;
+        long timestamp;
+        /**
+         * Monotonic time the notification arrived from the tracker.
+         */
+        long receivedNanos;
+        /**
+         * Monotonic time the notification was parsed.
+         */
+        long parsedNanos;
+        Object context;
+    }
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicIntegerArray nodes;
+    private final AtomicLongArray longs;
+    private final AtomicReferenceArray<Object> contexts;
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+    /**
+     * Last published sequence.
+     */
+    private volatile long cursor = -1L;
+
+    PassRing(int capacity) {
+        if(Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of 2");
+        }
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        for(int i=0; i<capacity; i++) {
+            sequences.set(i, BEING_WRITTEN);
+        }
+        nodes = new AtomicIntegerArray(capacity);
+        longs = new AtomicLongArray(LONGS_PER_SLOT*capacity);
+        contexts = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Publishers are serialized, though there is normally only the one.
+     * @param context passed on to the consumers, e.g. the race.
+     * @return the pass's sequence.
+     */
+    synchronized long publish(int node, long timestamp, long receivedNanos, long parsedNanos, Object context) {
+        long seq = cursor + 1L;
+        // the pass the slot last held
+        long overwritten = seq - mask - 1L;
+        for(Consumer consumer : consumers) {
+            while(consumer.lossless && consumer.running && consumer.next <= overwritten) {
+                LockSupport.parkNanos(this, WAIT_NANOS);
+            }
+        }
+        int i = (int) (seq & mask);
+        sequences.set(i, BEING_WRITTEN);
+        nodes.set(i, node);
+        longs.set(LONGS_PER_SLOT*i + TIMESTAMP, timestamp);
+        longs.set(LONGS_PER_SLOT*i + RECEIVED, receivedNanos);
+        longs.set(LONGS_PER_SLOT*i + PARSED, parsedNanos);
+        contexts.set(i, context);
+        sequences.set(i, seq);
+        cursor = seq;
+        for(Consumer consumer : consumers) {
+            if(consumer.waiting) {
+                LockSupport.unpark(consumer.thread);
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * @return false if overwritten.
+     */
+    private boolean copy(long seq, Pass pass) {
+        int i = (int) (seq & mask);
+        if(sequences.get(i) != seq) {
+            return false;
+        }
+        pass.sequence = seq;
+        pass.node = nodes.get(i);
+        pass.timestamp = longs.get(LONGS_PER_SLOT*i + TIMESTAMP);
+        pass.receivedNanos = longs.get(LONGS_PER_SLOT*i + RECEIVED);
+        pass.parsedNanos = longs.get(LONGS_PER_SLOT*i + PARSED);
+        pass.context = contexts.get(i);
+        return sequences.get(i) == seq;
+    }
+
+    /**
+     * Starts a consumer of passes published from now on, dropping any it falls too far behind to take.
+     */
+    Consumer addConsumer(String name, Handler handler) {
+        return addConsumer(name, handler, false);
+    }
+
+    /**
+     * Starts a consumer of every pass published from now on.
+     */
+    Consumer addLosslessConsumer(String name, Handler handler) {
+        return addConsumer(name, handler, true);
+    }
+
+    private synchronized Consumer addConsumer(String name, Handler handler, boolean lossless) {
+        Consumer consumer = new Consumer(name, handler, lossless, cursor + 1L);
+        consumers.add(consumer);
+        consumer.thread.start();
+        return consumer;
+    }
+
+    /**
+     * Waits until the lossless consumers have taken everything up to and including the given sequence.
+     * @return false if timed out.
+     */
+    boolean awaitConsumed(long sequence, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for(Consumer consumer : consumers) {
+            while(consumer.lossless && consumer.running && consumer.next <= sequence) {
+                if(System.nanoTime() - deadline > 0L) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, WAIT_NANOS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops all the consumers, dropping anything they have yet to take.
+     */
+    void close() {
+        for(Consumer consumer : consumers) {
+            consumer.running = false;
+            LockSupport.unpark(consumer.thread);
+        }
+        for(Consumer consumer : consumers) {
+            try {
+                consumer.thread.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        consumers.clear();
+    }
+
+    final class Consumer implements Runnable {
+        final String name;
+        final Handler handler;
+        final Thread thread;
+        final boolean lossless;
+        final Pass pass = new Pass();
+        volatile boolean waiting;
+        volatile boolean running = true;
+        /**
+         * Next sequence to take.
+         */
+        private volatile long next;
+        private volatile long dropped;
+
+        Consumer(String name, Handler handler, boolean lossless, long next) {
+            this.name = name;
+            this.handler = handler;
+            this.lossless = lossless;
+            this.next = next;
+            thread = new Thread(this, name+" consumer");
+            thread.setDaemon(true);
+        }
+
+        long getSequence() {
+            return next;
+        }
+
+        long getDropped() {
+            return dropped;
+        }
+
+        @Override
+        public void run() {
+            long seq = next;
+            while(running) {
+                long available = cursor;
+                if(available < seq) {
+                    waiting = true;
+                    // re-check, so a publish between the two isn't missed
+                    if(cursor < seq && running) {
+                        LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1L));
+                    }
+                    waiting = false;
+                    continue;
+                }
+                long oldest = available - mask;
+                if(seq < oldest) {
+                    dropped += oldest - seq;
+                    seq = oldest;
+                }
+                for(; seq <= available && running; seq++) {
+                    if(!copy(seq, pass)) {
+                        dropped++;
+                        continue;
+                    }
+                    try {
+                        handler.onPass(pass, seq == available);
+                    } catch(Exception ex) {
+                        Log.w(LOG_TAG, name, ex);
+                    }
+                    pass.context = null;
+                    if(lossless) {
+                        // frees the slot
+                        next = seq + 1L;
+                    }
+                }
+                next = seq;
+            }
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package io.github.pulquero.racetimeserver;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent history of sessions, heats and laps.
+ * Records are appended to a journal file, one line each, and indexed in memory when loaded
+ * so queries never scan the whole history:
+ * best laps are kept sorted overall, per node and per frequency,
+ * heats are kept in start time order and each node has a summary per heat for its progress.
+ *
+ * Journal lines:
+ * S,${session},${startMillis},${tracker}
+ * H,${heat},${session},${startMillis}
+ * L,${heat},${node},${frequency},${timestampMillis},${wallMillis}
+ * E,${heat},${endMillis}
+ */
+public class RaceHistory implements Closeable {
+    public static final String DEFAULT_FILE_NAME = "race-history.log";
+    public static final String CSV = "csv";
+    public static final String JSON = "json";
+    private static final String LOG_TAG = "RaceHistory";
+    private static final String SESSION_RECORD = "S";
+    private static final String HEAT_RECORD = "H";
+    private static final String LAP_RECORD = "L";
+    private static final String END_RECORD = "E";
+    private static final Comparator<Lap> FASTEST_FIRST = new Comparator<Lap>() {
+        @Override
+        public int compare(Lap l1, Lap l2) {
+            int cmp = Long.compare(l1.lapMillis, l2.lapMillis);
+            return cmp != 0 ? cmp : Integer.compare(l1.id, l2.id);
+        }
+    };
+
+    private final List<Session> sessions = new ArrayList<>();
+    /**
+     * In start time order.
+     */
+    private final List<Heat> heats = new ArrayList<>();
+    private final Map<Integer,Heat> heatsById = new HashMap<>();
+    private final List<Lap> laps = new ArrayList<>();
+    private final NavigableSet<Lap> bestLaps = new TreeSet<>(FASTEST_FIRST);
+    private final Map<Integer,NavigableSet<Lap>> bestLapsByNode = new HashMap<>();
+    private final Map<Integer,NavigableSet<Lap>> bestLapsByFrequency = new HashMap<>();
+    private final Map<Integer,List<NodeHeat>> progressByNode = new HashMap<>();
+    private final Writer journal;
+    private Session currentSession;
+
+    /**
+     * Loads any existing history and appends to it.
+     */
+    public RaceHistory(File file) throws IOException {
+        boolean partialLine = false;
+        if(file.exists()) {
+            load(file);
+            partialLine = endsWithPartialLine(file);
+        }
+        journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        if(partialLine) {
+            // end the truncated record so it doesn't swallow the next one
+            journal.write('\n');
+            journal.flush();
+        }
+    }
+
+    private static boolean endsWithPartialLine(File file) throws IOException {
+        try(RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            if(length == 0L) {
+                return false;
+            }
+            in.seek(length - 1L);
+            return in.read() != '\n';
+        }
+    }
+
+    private void load(File file) throws IOException {
+        try(BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            int lineNo = 0;
+            for(String line; (line = in.readLine()) != null; ) {
+                lineNo++;
+                try {
+                    replay(line.split(","));
+                } catch(RuntimeException ex) {
+                    // e.g. truncated by a crash
+                    Log.w(LOG_TAG, String.format("Ignoring invalid record on line %d: %s", lineNo, line));
+                }
+            }
+        }
+    }
+
+    private void replay(String[] fields) {
+        switch (fields[0]) {
+            case SESSION_RECORD:
+                addSession(new Session(Integer.parseInt(fields[1]), Long.parseLong(fields[2]), fields.length > 3 ? fields[3] : ""));
+                break;
+            case HEAT_RECORD:
+                addHeat(new Heat(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Long.parseLong(fields[3])));
+                break;
+            case LAP_RECORD:
+                addLap(heatsById.get(Integer.parseInt(fields[1])), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), Long.parseLong(fields[4]), Long.parseLong(fields[5]));
+                break;
+            case END_RECORD:
+                heatsById.get(Integer.parseInt(fields[1])).endMillis = Long.parseLong(fields[2]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown record type");
+        }
+    }
+
+    private void append(Object... fields) {
+        StringBuilder line = new StringBuilder();
+        for(Object field : fields) {
+            if(line.length() > 0) {
+                line.append(',');
+            }
+            line.append(field);
+        }
+        try {
+            journal.write(line.append('\n').toString());
+            // laps are rare and must survive a crash
+            journal.flush();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write history", e);
+        }
+    }
+
+    private void addSession(Session session) {
+        sessions.add(session);
+    }
+
+    private void addHeat(Heat heat) {
+        heats.add(heat);
+        heatsById.put(heat.id, heat);
+    }
+
+    private Lap addLap(Heat heat, int node, int frequency, long timestampMillis, long wallMillis) {
+        Lap previous = heat.lastLaps.get(node);
+        long lapMillis = timestampMillis - (previous != null ? previous.timestampMillis : 0L);
+        Lap lap = new Lap(laps.size(), heat, node, frequency, previous != null ? previous.number + 1 : 0, timestampMillis, lapMillis, wallMillis);
+        laps.add(lap);
+        heat.lastLaps.put(node, lap);
+        if(previous == null) {
+            // the holeshot only starts the first lap, so is exported but not ranked
+            return lap;
+        }
+        bestLaps.add(lap);
+        index(bestLapsByNode, node, lap);
+        index(bestLapsByFrequency, frequency, lap);
+
+        List<NodeHeat> progress = progressByNode.get(node);
+        if(progress == null) {
+            progress = new ArrayList<>();
+            progressByNode.put(node, progress);
+        }
+        NodeHeat nodeHeat = progress.isEmpty() ? null : progress.get(progress.size() - 1);
+        if(nodeHeat == null || nodeHeat.heat != heat) {
+            nodeHeat = new NodeHeat(heat);
+            progress.add(nodeHeat);
+        }
+        nodeHeat.add(lap);
+        return lap;
+    }
+
+    private static void index(Map<Integer,NavigableSet<Lap>> index, int key, Lap lap) {
+        NavigableSet<Lap> laps = index.get(key);
+        if(laps == null) {
+            laps = new TreeSet<>(FASTEST_FIRST);
+            index.put(key, laps);
+        }
+        laps.add(lap);
+    }
+
+    /**
+     * Starts a heat, in a new session if this is the first since the history was opened or the tracker has changed.
+     * @param tracker tracker address.
+     */
+    public synchronized Heat startHeat(String tracker) {
+        long now = System.currentTimeMillis();
+        if(currentSession == null || !currentSession.tracker.equals(tracker)) {
+            currentSession = new Session(sessions.size() + 1, now, tracker);
+            addSession(currentSession);
+            append(SESSION_RECORD, currentSession.id, currentSession.startMillis, tracker);
+        }
+        Heat heat = new Heat(heats.size() + 1, currentSession.id, now);
+        addHeat(heat);
+        append(HEAT_RECORD, heat.id, heat.sessionId, heat.startMillis);
+        return heat;
+    }
+
+    /**
+     * @param timestampMillis tracker time since the start of the heat.
+     * @return null if the heat has already ended, nothing being recorded.
+     */
+    public synchronized Lap recordLap(Heat heat, int node, int frequency, long timestampMillis) {
+        if(heat.endMillis != 0L) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Lap lap = addLap(heat, node, frequency, timestampMillis, now);
+        append(LAP_RECORD, heat.id, node, frequency, timestampMillis, now);
+        return lap;
+    }
+
+    public synchronized void endHeat(Heat heat) {
+        if(heat.endMillis == 0L) {
+            heat.endMillis = System.currentTimeMillis();
+            append(END_RECORD, heat.id, heat.endMillis);
+        }
+    }
+
+    /**
+     * @param node -1 for all nodes.
+     * @param frequency 0 for all frequencies.
+     */
+    public synchronized List<Lap> getBestLaps(int node, int frequency, int limit) {
+        NavigableSet<Lap> index;
+        if(node != -1) {
+            index = bestLapsByNode.get(node);
+        } else if(frequency != 0) {
+            index = bestLapsByFrequency.get(frequency);
+        } else {
+            index = bestLaps;
+        }
+        List<Lap> result = new ArrayList<>();
+        if(index != null) {
+            for(Iterator<Lap> iter = index.iterator(); iter.hasNext() && result.size() < limit; ) {
+                Lap lap = iter.next();
+                if(frequency == 0 || lap.frequency == frequency) {
+                    result.add(lap);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Most recent first.
+     */
+    public synchronized List<Heat> getRecentHeats(int limit) {
+        List<Heat> result = new ArrayList<>(heats.subList(Math.max(heats.size() - limit, 0), heats.size()));
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Heats started within the given time range, in start order.
+     */
+    public synchronized List<Heat> getHeats(long fromMillis, long toMillis) {
+        return new ArrayList<>(heats.subList(indexOfHeatAt(fromMillis), indexOfHeatAt(toMillis)));
+    }
+
+    private int indexOfHeatAt(long millis) {
+        int low = 0;
+        int high = heats.size();
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(heats.get(mid).startMillis < millis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Per heat summaries for a node, oldest first.
+     */
+    public synchronized List<NodeHeat> getProgress(int node) {
+        List<NodeHeat> progress = progressByNode.get(node);
+        return progress != null ? new ArrayList<>(progress) : Collections.<NodeHeat>emptyList();
+    }
+
+    /**
+     * Streams all laps, oldest first.
+     * @param format {@link #CSV} or {@link #JSON} (an array of lap objects).
+     */
+    public void export(Writer out, String format) throws IOException {
+        List<Lap> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(laps);
+        }
+        switch (format) {
+            case CSV:
+                out.write("session,heat,heat_start,node,frequency,lap,lap_time,timestamp,wall_time\n");
+                for(Lap lap : snapshot) {
+                    out.write(lap.heat.sessionId+","+lap.heat.id+","+lap.heat.startMillis+","+lap.node+","+lap.frequency+","
+                            +lap.number+","+lap.lapMillis+","+lap.timestampMillis+","+lap.wallMillis+"\n");
+                }
+                break;
+            case JSON:
+                out.write('[');
+                for(int i=0; i<snapshot.size(); i++) {
+                    if(i > 0) {
+                        out.write(',');
+                    }
+                    try {
+                        out.write(snapshot.get(i).toJson().toString());
+                    } catch (JSONException e) {
+                        // never expected to happen
+                        throw new AssertionError(e);
+                    }
+                }
+                out.write(']');
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown export format: "+format);
+        }
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        journal.close();
+    }
+
+    public static final class Session {
+        public final int id;
+        public final long startMillis;
+        public final String tracker;
+
+        Session(int id, long startMillis, String tracker) {
+            this.id = id;
+            this.startMillis = startMillis;
+            this.tracker = tracker;
+        }
+    }
+
+    public static final class Heat {
+        public final int id;
+        public final int sessionId;
+        public final long startMillis;
+        /**
+         * 0 if not ended.
+         */
+        volatile long endMillis;
+        final Map<Integer,Lap> lastLaps = new ConcurrentHashMap<>();
+
+        Heat(int id, int sessionId, long startMillis) {
+            this.id = id;
+            this.sessionId = sessionId;
+            this.startMillis = startMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("heat", id);
+            json.put("session", sessionId);
+            json.put("start", startMillis);
+            if(endMillis != 0L) {
+                json.put("end", endMillis);
+            }
+            JSONArray nodesJson = new JSONArray();
+            for(Lap lastLap : lastLaps.values()) {
+                JSONObject nodeJson = new JSONObject();
+                nodeJson.put("node", lastLap.node);
+                nodeJson.put("laps", lastLap.number);
+                nodesJson.put(nodeJson);
+            }
+            json.put("nodes", nodesJson);
+            return json;
+        }
+    }
+
+    public static final class Lap {
+        final int id;
+        public final Heat heat;
+        public final int node;
+        public final int frequency;
+        /**
+         * 0 for the holeshot, the first pass after the start, 1 for the first full lap.
+         */
+        public final int number;
+        /**
+         * Tracker time since the start of the heat.
+         */
+        public final long timestampMillis;
+        /**
+         * Since the previous pass, or the start of the heat for the holeshot.
+         */
+        public final long lapMillis;
+        public final long wallMillis;
+
+        Lap(int id, Heat heat, int node, int frequency, int number, long timestampMillis, long lapMillis, long wallMillis) {
+            this.id = id;
+            this.heat = heat;
+            this.node = node;
+            this.frequency = frequency;
+            this.number = number;
+            this.timestampMillis = timestampMillis;
+            this.lapMillis = lapMillis;
+            this.wallMillis = wallMillis;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("session", heat.sessionId);
+            json.put("heat", heat.id);
+            json.put("node", node);
+            json.put("frequency", frequency);
+            json.put("lap", number);
+            json.put("lap_time", lapMillis);
+            json.put("timestamp", timestampMillis);
+            json.put("wall_time", wallMillis);
+            return json;
+        }
+    }
+
+    /**
+     * A node's laps in one heat.
+     */
+    public static final class NodeHeat {
+        public final Heat heat;
+        private int laps;
+        private long bestMillis = Long.MAX_VALUE;
+        private long totalMillis;
+
+        NodeHeat(Heat heat) {
+            this.heat = heat;
+        }
+
+        void add(Lap lap) {
+            laps++;
+            bestMillis = Math.min(bestMillis, lap.lapMillis);
+            totalMillis += lap.lapMillis;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("heat", heat.id);
+            json.put("session", heat.sessionId);
+            json.put("start", heat.startMillis);
+            json.put("laps", laps);
+            json.put("best_lap_time", bestMillis);
+            json.put("average_lap_time", totalMillis/laps);
+            return json;
+        }
+    }
+}
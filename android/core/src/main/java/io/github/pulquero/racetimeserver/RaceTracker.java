@@ -0,0 +1,756 @@
+package io.github.pulquero.racetimeserver;
+
+import com.jakewharton.rx.ReplayingShare;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.reactivex.Completable;
+import io.reactivex.Maybe;
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Predicate;
+import io.reactivex.schedulers.Schedulers;
+
+public class RaceTracker {
+    static final int MAX_DATA_SIZE = 20;
+    private static final int RETRIES = 3;
+    /**
+     * Per write, read or wait for the connection, as for a stream transport response.
+     */
+    private static final long EXCHANGE_TIMEOUT_MILLIS = 5000L;
+    private static final int MAX_PILOTS = 8;
+    /**
+     * How long an RSSI reading can be shared between callers.
+     */
+    private static final long RSSI_MAX_AGE_MS = 250L;
+
+    private static final String BATTERY = "B";
+    /**
+     * F ${timeoutSecs}
+     * Timeout:${timeoutSecs}s
+     */
+    static final String MIN_LAP_TIME = "F";
+    /**
+     * G
+     * Cal in-progress -> Calibrated
+     */
+    static final String CALIBRATION = "G";
+    public static final String CALIBRATING_STATE = "Cal in-progress";
+    public static final String CALIBRATED_STATE = "Calibrated";
+    private static final String NAME = "I";
+    private static final String GATE_DRIVERS = "L";
+    private static final String RACE_MODE = "M";
+    /**
+     * Racers: ${count}
+     * N ${pilot} ${bandChannel}
+     */
+    static final String PILOTS = "N";
+    private static final String PILOTS_RESPONSE = "Racers";
+    private static final String MAX_LAPS = "O";
+    private static final String SCALING_FACTOR = "o";
+    /**
+     * Will interrupt a race.
+     * ${bandChannel},${rssi}dbm,${x}
+     */
+    static final String VRX = "Q";
+    private static final Pattern VRX_RESPONSE = Pattern.compile("([ABCEF][1-8]),(-?[0-9]+(\\.[0-9]+)?)dbm,([\\+-]?[0-9]+)");
+    /**
+     * R
+     * Total Rounds:${lapCount}
+     * R ${pilot}
+     * Total Rounds:${pilotLaps} P${pilot}
+     */
+    private static final String ROUNDS = "R";
+    private static final String TIME_LOG = "T";
+    /**
+     * Don't use - irreversible.
+     */
+    private static final String FACTORY_RESET = "Y";
+    /**
+     * Z ${index}
+     * ${index} = 1..12, 17-24
+     * 25 = Pilot 1 band-channel
+     * 32 = Pilot 8 band-channel
+     */
+    private static final String FLASH = "Z";
+    /**
+     * Calibration value.
+     */
+    private static final int Z_TRIGGER_RSSI_INDEX = 1;
+    private static final int Z_MAX_LAPS_INDEX = 2;
+    private static final int Z_MIN_LAP_TIME_INDEX = 6;
+    private static final int Z_TX_POWER_INDEX = 7;
+    private static final int Z_RX_GAIN_INDEX = 8;
+    private static final int Z_GATE_DRIVERS_INDEX = 10;
+    private static final int Z_NORMALIZE_DRONES_INDEX = 24;
+    private static final int Z_PILOT_FREQ_INDEX = 25;
+
+    static final String STOP_RACE = "0";
+    // single pilot
+    // R${lap},T${lapTime},${time}
+    // multi-pilot
+    // P${pilot}R${lap}T${lapTime},${time}
+    public static final int SHOTGUN_RACE = 1;
+    public static final int FLYOVER_RACE = 2;
+    private static final String GATE_COLOR = "3";
+    private static final String READY = "READY";
+    private static final Pattern SINGLE_PILOT_LAP = Pattern.compile("R([0-9]+),T([0-9]+),([0-9]+)");
+    private static final Pattern MULTI_PILOT_LAP = Pattern.compile("P([0-9])R([0-9]+)T([0-9]+),([0-9]+)");
+    private static final String TEST_LEDS = "=";
+    private static final String GET_TRIGGER_RSSI = ".";
+    static final String SET_TRIGGER_RSSI = ",";
+    private static final String TRIGGER_RSSI_RESPONSE = "GATE";
+    /**
+     * RSSI: ${rssi}
+     */
+    private static final String RSSI = "/";
+    private static final String RSSI_RESPONSE = "RSSI";
+
+    private static final String BAND_A = "A";
+    private static final String BAND_B = "B";
+    /**
+     * Raceband.
+     */
+    private static final String BAND_C = "C";
+    private static final String BAND_E = "E";
+    private static final String BAND_F = "F";
+
+    private static final String UNASSIGNED_PILOT = "FF";
+
+    private static final short[] BAND_A_FREQS = {5865, 5845, 5825, 5805, 5785, 5765, 5745, 5725};
+    private static final short[] BAND_B_FREQS = {5733, 5752, 5771, 5790, 5809, 5828, 5847, 5866};
+    private static final short[] BAND_C_FREQS = {5658, 5695, 5732, 5769, 5806, 5843, 5880, 5917};
+    private static final short[] BAND_E_FREQS = {5705, 5685, 5665, 5645, 5885, 5905, 5925, 5945};
+    private static final short[] BAND_F_FREQS = {5740, 5760, 5780, 5800, 5820, 5840, 5860, 5880};
+    private static final short[][] BAND_FREQS = {BAND_C_FREQS, BAND_A_FREQS, BAND_B_FREQS, BAND_E_FREQS, BAND_F_FREQS};
+    private static final String[] BANDS = {BAND_C, BAND_A, BAND_B, BAND_E, BAND_F};
+
+    private static final byte[] RSSI_FRAME = CommandFrames.intern(RSSI);
+    private static final byte[] PILOTS_FRAME = CommandFrames.intern(PILOTS);
+    private static final byte[] VRX_FRAME = CommandFrames.intern(VRX);
+    private static final byte[] STOP_RACE_FRAME = CommandFrames.intern(STOP_RACE);
+    private static final byte[] CALIBRATION_FRAME = CommandFrames.intern(CALIBRATION);
+    private static final byte[][] RACE_MODE_FRAMES = {null, CommandFrames.intern(String.valueOf(SHOTGUN_RACE)), CommandFrames.intern(String.valueOf(FLYOVER_RACE))};
+    /**
+     * Indexed by flash index.
+     */
+    private static final byte[][] FLASH_FRAMES = new byte[Z_PILOT_FREQ_INDEX + MAX_PILOTS][];
+    private static final String[] FLASH_RESPONSES = new String[FLASH_FRAMES.length];
+    static {
+        for(int i=0; i<FLASH_FRAMES.length; i++) {
+            FLASH_FRAMES[i] = CommandFrames.intern(FLASH + " " + i);
+            FLASH_RESPONSES[i] = String.valueOf(i);
+        }
+    }
+
+    private static final String LOG_TAG = "RaceTracker";
+
+    private final DeviceState state = new DeviceState(MAX_PILOTS);
+    /**
+     * Keyed by interned frame.
+     */
+    private final SingleFlight<byte[],String> reads = new SingleFlight<>();
+    private final CommandFrames frames = new CommandFrames();
+    /**
+     * Serializes command exchanges by priority.
+     */
+    private final LinkScheduler scheduler = new LinkScheduler();
+    /**
+     * Running while the tracker is known to be racing.
+     */
+    private final TrackerClock clock = new TrackerClock();
+    private final TrackerTransport transport;
+    /**
+     * Shortened by tests.
+     */
+    volatile long exchangeTimeoutMillis = EXCHANGE_TIMEOUT_MILLIS;
+    private Observable<TrackerLink> conn;
+    private volatile TrackerLink link;
+    private Disposable connDisposable;
+
+    public RaceTracker(TrackerTransport transport) {
+        this.transport = transport;
+    }
+
+    public TrackerTransport getTransport() {
+        return transport;
+    }
+
+    public String getAddress() {
+        return transport.getAddress();
+    }
+
+    public Observable<TrackerTransport.ConnectionState> observeConnectionState() {
+        return transport.observeConnectionState().subscribeOn(Schedulers.io());
+    }
+
+    public TrackerTransport.ConnectionState getConnectionState() {
+        return transport.getConnectionState();
+    }
+
+    /**
+     * Model of the race timer, from the laps observed.
+     */
+    TrackerClock getClock() {
+        return clock;
+    }
+
+    public void connect() {
+        if(conn != null) {
+            throw new IllegalStateException("Already connected");
+        }
+        // may have been changed while disconnected
+        state.forget();
+        scheduler.setBackgroundSuspended(false);
+        conn = transport.establishConnection().subscribeOn(Schedulers.io()).compose(ReplayingShare.instance());
+        // establish connection
+        connDisposable = conn.subscribe(link -> {
+            this.link = link;
+            Log.i(LOG_TAG, "Connected");
+        }, ex -> {
+            link = null;
+            Log.e(LOG_TAG, "Connection error: "+ex.getMessage());
+        });
+    }
+
+    public void disconnect() {
+        connDisposable.dispose();
+        connDisposable = null;
+        conn = null;
+        link = null;
+    }
+
+    /**
+     * Sends a raw command, forgetting any known state it might change.
+     */
+    public Single<String> sendAndObserve(String cmd) {
+        return Single.fromCallable(() -> send(cmd)).subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Sends a raw command as client command traffic, forgetting any known state it might change.
+     */
+    public String send(String cmd) {
+        if(cmd.length() + 1 > MAX_DATA_SIZE) { // including null terminator
+            throw new IllegalArgumentException("Invalid command - too long");
+        }
+        byte[] frame = stringToBytes(cmd);
+        scheduler.acquire(LinkScheduler.Priority.COMMAND);
+        try {
+            if(!cmd.isEmpty()) {
+                state.onCommand(cmd, cmd.length() > 1);
+                scheduler.setBackgroundSuspended(isRaceRunning());
+                if(state.getRace() == DeviceState.Race.STOPPED) {
+                    clock.stop();
+                }
+            }
+            return exchange(frame);
+        } finally {
+            scheduler.release();
+        }
+    }
+
+    /**
+     * Blocks the calling thread rather than building an Rx pipeline per command,
+     * but never for longer than the timeout at each step, so an unresponsive tracker can't hold the link forever.
+     * @throws TrackerException on timeout.
+     */
+    private String exchange(byte[] frame) {
+        long timeoutMillis = exchangeTimeoutMillis;
+        TrackerLink currentLink = link;
+        if(currentLink == null) {
+            Observable<TrackerLink> currentConn = conn;
+            if(currentConn == null) {
+                throw new TrackerException("Not connected");
+            }
+            // wait for the connection
+            currentLink = currentConn.timeout(timeoutMillis, TimeUnit.MILLISECONDS,
+                    Observable.error(() -> new TrackerException("Timed out connecting"))).blockingFirst();
+        }
+        currentLink.write(frame).timeout(timeoutMillis, TimeUnit.MILLISECONDS,
+                Single.error(() -> new TrackerException("Timed out writing '"+bytesToString(frame)+"'"))).blockingGet();
+        byte[] response = currentLink.read().timeout(timeoutMillis, TimeUnit.MILLISECONDS,
+                Single.error(() -> new TrackerException("Timed out reading the response to '"+bytesToString(frame)+"'"))).blockingGet();
+        return bytesToString(response);
+    }
+
+    private String send(byte[] frame, LinkScheduler.Priority priority) {
+        scheduler.acquire(priority);
+        try {
+            return exchange(frame);
+        } finally {
+            scheduler.release();
+        }
+    }
+
+    /**
+     * For frames from {@link #frames}, which are released.
+     */
+    private String sendFormatted(byte[] frame, LinkScheduler.Priority priority) {
+        try {
+            return send(frame, priority);
+        } finally {
+            frames.release(frame);
+        }
+    }
+
+    /**
+     * Each attempt is scheduled separately so higher priority traffic can go in between.
+     */
+    private String send(byte[] frame, Predicate<String> isExpectedResponse, LinkScheduler.Priority priority) {
+        TrackerException exception = null;
+        for(int i=0; i<RETRIES; i++) {
+            try {
+                String result = send(frame, priority);
+                if (isExpectedResponse.test(result)) {
+                    if(i > 0) {
+                        Log.d(LOG_TAG, String.format("Expected response '%s' for command '%s' received on attempt %d/%d", result, bytesToString(frame), i+1, RETRIES));
+                    }
+                    return result;
+                }
+                Log.d(LOG_TAG, String.format("Unexpected response '%s' for command '%s' received on attempt %d/%d", result, bytesToString(frame), i+1, RETRIES));
+            } catch(TrackerException ex) {
+                exception = ex;
+            } catch(RuntimeException ex) {
+                throw ex;
+            } catch(Exception ex) {
+                throw new AssertionError(ex);
+            }
+        }
+
+        if(exception != null) {
+            throw exception;
+        } else {
+            throw new TrackerException(String.format("Failed to properly read '%s' after %d retries", bytesToString(frame), RETRIES));
+        }
+    }
+
+    private String readValue(byte[] frame, String expectedResponse) {
+        return readValue(frame, expectedResponse, 0L, LinkScheduler.Priority.COMMAND);
+    }
+
+    /**
+     * Concurrent reads of the same value share a single BLE exchange.
+     * @param frame interned.
+     */
+    private String readValue(byte[] frame, String expectedResponse, long maxAgeMillis, LinkScheduler.Priority priority) {
+        return reads.get(frame, maxAgeMillis, () -> exchangeValue(frame, expectedResponse, priority));
+    }
+
+    private String exchangeValue(byte[] frame, String expectedResponse, LinkScheduler.Priority priority) {
+        String result = send(frame, read -> {
+            int pos = read.indexOf(':');
+            return pos == expectedResponse.length() && read.startsWith(expectedResponse);
+        }, priority);
+        int pos = result.indexOf(':');
+        return result.substring(pos + 1).trim();
+    }
+
+    public synchronized Observable<String> calibrate() {
+        // calibration sets the trigger RSSI
+        state.setTriggerRssi(DeviceState.UNKNOWN);
+        return conn.subscribeOn(Schedulers.io())
+                .flatMap(link ->
+                        link.write(CALIBRATION_FRAME).subscribeOn(Schedulers.io())
+                        .flatMapObservable(raceRead -> Observable.mergeDelayError(
+                            link.read().toObservable().subscribeOn(Schedulers.io()),
+                            link.notifications().map(notification -> notification.data).subscribeOn(Schedulers.io())
+                        )).subscribeOn(Schedulers.io())
+                )
+                .map(RaceTracker::bytesToString)
+                .takeUntil((String s) -> CALIBRATED_STATE.equals(s));
+    }
+
+    /**
+     * Background traffic, refused during a race.
+     */
+    public void activateVRX() {
+        send(VRX_FRAME, new RegexPredicate(VRX_RESPONSE), LinkScheduler.Priority.BACKGROUND);
+        state.setRace(DeviceState.Race.STOPPED);
+    }
+
+    public int getRssi() {
+        return getRssi(RSSI_MAX_AGE_MS);
+    }
+
+    /**
+     * Background traffic, refused during a race.
+     * @param maxAgeMillis how old a reading shared with other callers can be.
+     */
+    public int getRssi(long maxAgeMillis) {
+        String result = readValue(RSSI_FRAME, RSSI_RESPONSE, maxAgeMillis, LinkScheduler.Priority.BACKGROUND);
+        return Integer.parseInt(result);
+    }
+
+    public int getPilotCount() {
+        int pilotCount = state.getPilotCount();
+        if(pilotCount == 0) {
+            String value = readValue(PILOTS_FRAME, PILOTS_RESPONSE);
+            pilotCount = Integer.parseInt(value);
+            state.setPilotCount(pilotCount);
+        }
+        return pilotCount;
+    }
+
+    public void setPilotFrequency(int pilotIndex, int freq) {
+        byte[] frame = formatPilotFrequency(pilotIndex, freq);
+        if(frame != null) {
+            sendFormatted(frame, LinkScheduler.Priority.COMMAND);
+            state.pilotAssigned(pilotIndex, freq);
+        }
+    }
+
+    /**
+     * @param freq 0 to unassign.
+     */
+    public static boolean isValidFrequency(int freq) {
+        return freq == 0 || bandOf(freq) != -1;
+    }
+
+    /**
+     * @return index into {@link #BAND_FREQS} or -1.
+     */
+    private static int bandOf(int freq) {
+        for(int i=0; i<BAND_FREQS.length; i++) {
+            if(channelOf(BAND_FREQS[i], freq) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 1-based channel or 0.
+     */
+    private static int channelOf(short[] freqs, int freq) {
+        for(int j=0; j<freqs.length; j++) {
+            if(freqs[j] == freq) {
+                return j+1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return null if there is nothing to send, i.e. unchanged or an unknown frequency.
+     */
+    private byte[] formatPilotFrequency(int pilotIndex, int freq) {
+        int band = -1;
+        if(freq != 0) {
+            band = bandOf(freq);
+            if(band == -1 || freq == state.getPilotFrequency(pilotIndex)) {
+                return null;
+            }
+        }
+
+        byte[] frame = frames.acquire();
+        int pos = CommandFrames.put(frame, 0, PILOTS);
+        pos = CommandFrames.put(frame, pos, CommandFrames.SPACE);
+        pos = CommandFrames.put(frame, pos, pilotIndex+1);
+        pos = CommandFrames.put(frame, pos, CommandFrames.SPACE);
+        if(band != -1) {
+            pos = CommandFrames.put(frame, pos, BANDS[band]);
+            CommandFrames.put(frame, pos, channelOf(BAND_FREQS[band], freq));
+        } else {
+            CommandFrames.put(frame, pos, UNASSIGNED_PILOT);
+        }
+        return frame;
+    }
+
+    /**
+     * ${cmd} ${value}
+     */
+    private byte[] formatSetting(String cmd, int value) {
+        byte[] frame = frames.acquire();
+        int pos = CommandFrames.put(frame, 0, cmd);
+        pos = CommandFrames.put(frame, pos, CommandFrames.SPACE);
+        CommandFrames.put(frame, pos, value);
+        return frame;
+    }
+
+    /**
+     * Validates everything up front, then sends only the commands needed, back-to-back.
+     * Unassignments are sent first, and each pilot command makes the racer count unknown again.
+     * @return the number of commands sent.
+     * @throws IllegalArgumentException if any value is invalid, in which case nothing is sent.
+     */
+    public int configure(Configuration config) {
+        config.validate();
+        int sent = 0;
+        scheduler.acquire(LinkScheduler.Priority.COMMAND);
+        try {
+            for(int pass=0; pass<2; pass++) {
+                boolean unassigning = (pass == 0);
+                for(int i=0; i<MAX_PILOTS; i++) {
+                    int freq = config.freqs[i];
+                    if(freq != Configuration.UNSET && (freq == 0) == unassigning) {
+                        if(exchangeFormatted(formatPilotFrequency(i, freq))) {
+                            state.pilotAssigned(i, freq);
+                            sent++;
+                        }
+                    }
+                }
+            }
+            if(config.triggerRssi != Configuration.UNSET && config.triggerRssi != state.getTriggerRssi()) {
+                exchangeFormatted(formatSetting(SET_TRIGGER_RSSI, config.triggerRssi));
+                state.setTriggerRssi(config.triggerRssi);
+                sent++;
+            }
+            if(config.minLapSecs != Configuration.UNSET && config.minLapSecs != state.getMinimumLapTime()) {
+                exchangeFormatted(formatSetting(MIN_LAP_TIME, config.minLapSecs));
+                state.setMinimumLapTime(config.minLapSecs);
+                sent++;
+            }
+        } finally {
+            scheduler.release();
+        }
+        return sent;
+    }
+
+    /**
+     * Without scheduling, the caller already has the link.
+     * @return false if there was nothing to send.
+     */
+    private boolean exchangeFormatted(byte[] frame) {
+        if(frame == null) {
+            return false;
+        }
+        try {
+            exchange(frame);
+        } finally {
+            frames.release(frame);
+        }
+        return true;
+    }
+
+    public int getTriggerRssi() {
+        int rssi = state.getTriggerRssi();
+        if(rssi == DeviceState.UNKNOWN) {
+            rssi = Integer.parseInt(readFlash(Z_TRIGGER_RSSI_INDEX));
+            state.setTriggerRssi(rssi);
+        }
+        return rssi;
+    }
+
+    public void setTriggerRssi(int rssi) {
+        if(rssi != state.getTriggerRssi()) {
+            sendFormatted(formatSetting(SET_TRIGGER_RSSI, rssi), LinkScheduler.Priority.COMMAND);
+            state.setTriggerRssi(rssi);
+        }
+    }
+
+    public void setMinimumLapTime(int secs) {
+        if(secs != state.getMinimumLapTime()) {
+            sendFormatted(formatSetting(MIN_LAP_TIME, secs), LinkScheduler.Priority.COMMAND);
+            state.setMinimumLapTime(secs);
+        }
+    }
+
+    public int getPilotFrequency(int pilotIndex) {
+        int knownFreq = state.getPilotFrequency(pilotIndex);
+        if(knownFreq != 0) {
+            return knownFreq;
+        }
+        String bandChannel = readFlash(Z_PILOT_FREQ_INDEX + pilotIndex);
+        String band = bandChannel.substring(0, 1);
+        int channelIndex = Integer.parseInt(bandChannel.substring(1, 2)) - 1;
+        short freq;
+        switch (band) {
+            case BAND_C:
+                freq = BAND_C_FREQS[channelIndex];
+                break;
+            case BAND_A:
+                freq = BAND_A_FREQS[channelIndex];
+                break;
+            case BAND_B:
+                freq = BAND_B_FREQS[channelIndex];
+                break;
+            case BAND_E:
+                freq = BAND_E_FREQS[channelIndex];
+                break;
+            case BAND_F:
+                freq = BAND_F_FREQS[channelIndex];
+                break;
+            default:
+                freq = 0;
+        }
+        state.setPilotFrequency(pilotIndex, freq);
+        return freq;
+    }
+
+    private String readFlash(int index) {
+        return readValue(FLASH_FRAMES[index], FLASH_RESPONSES[index]);
+    }
+
+    /**
+     * Only sent if a race might be running.
+     * Not waiting for a connection, as the race state stays unknown until stopped once connected.
+     */
+    public void stopRace() {
+        clock.stop();
+        if(state.getRace() != DeviceState.Race.STOPPED && link != null) {
+            send(STOP_RACE_FRAME, LinkScheduler.Priority.RACE);
+            setRace(DeviceState.Race.STOPPED);
+        }
+    }
+
+    private void setRace(DeviceState.Race race) {
+        state.setRace(race);
+        scheduler.setBackgroundSuspended(race == DeviceState.Race.RUNNING);
+    }
+
+    /**
+     * Whether the tracker is known to be racing, even if no longer observed.
+     */
+    public boolean isRaceRunning() {
+        return state.getRace() == DeviceState.Race.RUNNING;
+    }
+
+    /**
+     * Laps are emitted on the thread notifications arrive on, so subscribers must hand them off rather than block.
+     * The clock is started once the race mode is acknowledged, from when it was sent, as the tracker's timer starts on receiving it,
+     * and observes every lap.
+     */
+    public synchronized Observable<LapNotification> startRace(int mode) {
+        return conn.subscribeOn(Schedulers.io())
+                .flatMap(link ->
+                        Completable.fromAction(() -> {
+                            send(VRX_FRAME, LinkScheduler.Priority.RACE);
+                            long sentNanos = System.nanoTime();
+                            long sentWallMillis = System.currentTimeMillis();
+                            send(raceModeFrame(mode), LinkScheduler.Priority.RACE);
+                            clock.start(sentNanos, sentWallMillis);
+                        }).subscribeOn(Schedulers.io())
+                        .andThen(link.notifications().subscribeOn(Schedulers.io()))
+                )
+                .flatMapMaybe(notification -> {
+                    String s = bytesToString(notification.data);
+                    int pilotIndex;
+                    long ts;
+                    Matcher matcher = SINGLE_PILOT_LAP.matcher(s);
+                    if(matcher.matches()) {
+                        // single pilot
+                        pilotIndex = 0;
+                        ts = Long.parseLong(matcher.group(3));
+                    } else {
+                        matcher = MULTI_PILOT_LAP.matcher(s);
+                        if(!matcher.matches()) {
+                            return Maybe.empty();
+                        }
+                        pilotIndex = Integer.parseInt(matcher.group(1)) - 1;
+                        ts = Long.parseLong(matcher.group(4));
+                    }
+                    clock.observe(ts, notification.receivedNanos);
+                    return Maybe.just(new LapNotification(pilotIndex, ts, notification.receivedNanos, System.nanoTime()));
+                })
+                // the tracker keeps racing until stopped, even once no longer observed
+                .doOnSubscribe(d -> setRace(DeviceState.Race.RUNNING))
+                // unless the link failed, then it is unknown, so still stopped but no longer holding up background traffic
+                .doOnTerminate(() -> setRace(DeviceState.Race.UNKNOWN));
+    }
+
+    private static byte[] raceModeFrame(int mode) {
+        return (mode > 0 && mode < RACE_MODE_FRAMES.length) ? RACE_MODE_FRAMES[mode] : CommandFrames.intern(String.valueOf(mode));
+    }
+
+    static String bytesToString(byte[] sz) {
+        // strip null terminator
+        int endPos = 0;
+        while(endPos < sz.length && sz[endPos] != 0) {
+            endPos++;
+        }
+        return new String(sz, 0, endPos, StandardCharsets.US_ASCII);
+    }
+
+    static byte[] stringToBytes(String str) {
+        byte[] s = str.getBytes(StandardCharsets.US_ASCII);
+        // add null terminator
+        byte[] sz = new byte[MAX_DATA_SIZE];
+        System.arraycopy(s, 0, sz, 0, s.length);
+        return sz;
+    }
+
+    /**
+     * Settings to apply together, anything not set is left as it is.
+     */
+    public static final class Configuration {
+        static final int UNSET = Integer.MIN_VALUE;
+
+        final int[] freqs = new int[MAX_PILOTS];
+        int triggerRssi = UNSET;
+        int minLapSecs = UNSET;
+
+        public Configuration() {
+            Arrays.fill(freqs, UNSET);
+        }
+
+        /**
+         * @param freq 0 to unassign.
+         */
+        public Configuration setPilotFrequency(int pilotIndex, int freq) {
+            if(pilotIndex < 0 || pilotIndex >= MAX_PILOTS) {
+                throw new IllegalArgumentException("Invalid pilot: "+pilotIndex);
+            }
+            freqs[pilotIndex] = freq;
+            return this;
+        }
+
+        public Configuration setTriggerRssi(int rssi) {
+            triggerRssi = rssi;
+            return this;
+        }
+
+        public Configuration setMinimumLapTime(int secs) {
+            minLapSecs = secs;
+            return this;
+        }
+
+        void validate() {
+            for(int i=0; i<MAX_PILOTS; i++) {
+                if(freqs[i] != UNSET && !isValidFrequency(freqs[i])) {
+                    throw new IllegalArgumentException(String.format("Invalid frequency for pilot %d: %d", i, freqs[i]));
+                }
+            }
+            if(minLapSecs != UNSET && minLapSecs < 0) {
+                throw new IllegalArgumentException("Invalid minimum lap time: "+minLapSecs);
+            }
+        }
+    }
+
+    static final class LapNotification {
+        final int pilot;
+        final long ts;
+        /**
+         * Monotonic time the notification arrived from the tracker.
+         */
+        final long receivedNanos;
+        /**
+         * Monotonic time the notification was parsed.
+         */
+        final long parsedNanos;
+
+        LapNotification(int pilot, long ts, long receivedNanos, long parsedNanos) {
+            this.pilot = pilot;
+            this.ts = ts;
+            this.receivedNanos = receivedNanos;
+            this.parsedNanos = parsedNanos;
+        }
+    }
+
+    static final class RegexPredicate implements Predicate<String> {
+        final Pattern regex;
+
+        RegexPredicate(Pattern regex) {
+            this.regex = regex;
+        }
+
+        public boolean test(String s) {
+            return regex.matcher(s).matches();
+        }
+    }
+}
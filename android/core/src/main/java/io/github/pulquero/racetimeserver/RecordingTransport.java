@@ -0,0 +1,100 @@
+package io.github.pulquero.racetimeserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import io.reactivex.Observable;
+import io.reactivex.Single;
+
+/**
+ * Optionally records all link traffic of another transport, see {@link TrafficRecording}.
+ */
+public class RecordingTransport implements TrackerTransport {
+    private static final String LOG_TAG = "RecordingTransport";
+
+    private final TrackerTransport transport;
+    private volatile TrafficRecording.Writer recorder;
+
+    public RecordingTransport(TrackerTransport transport) {
+        this.transport = transport;
+    }
+
+    public synchronized void startRecording(OutputStream out) throws IOException {
+        stopRecording();
+        recorder = new TrafficRecording.Writer(out);
+    }
+
+    public synchronized void stopRecording() {
+        if(recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Close recording", e);
+            }
+            recorder = null;
+        }
+    }
+
+    public boolean isRecording() {
+        return recorder != null;
+    }
+
+    @Override
+    public String getAddress() {
+        return transport.getAddress();
+    }
+
+    @Override
+    public Observable<ConnectionState> observeConnectionState() {
+        return transport.observeConnectionState();
+    }
+
+    @Override
+    public ConnectionState getConnectionState() {
+        return transport.getConnectionState();
+    }
+
+    @Override
+    public Observable<TrackerLink> establishConnection() {
+        return transport.establishConnection().map(Link::new);
+    }
+
+    private void record(byte type, byte[] data) {
+        TrafficRecording.Writer writer = recorder;
+        if(writer != null) {
+            try {
+                writer.write(type, data);
+                if(type == TrafficRecording.NOTIFICATION) {
+                    // laps are rare but the most interesting
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Recording failed", e);
+                stopRecording();
+            }
+        }
+    }
+
+    final class Link implements TrackerLink {
+        final TrackerLink link;
+
+        Link(TrackerLink link) {
+            this.link = link;
+        }
+
+        @Override
+        public Single<byte[]> write(byte[] data) {
+            return link.write(data).doOnSuccess(written -> record(TrafficRecording.WRITE, data));
+        }
+
+        @Override
+        public Single<byte[]> read() {
+            return link.read().doOnSuccess(data -> record(TrafficRecording.READ, data));
+        }
+
+        @Override
+        public Observable<Notification> notifications() {
+            return link.notifications().doOnNext(notification -> record(TrafficRecording.NOTIFICATION, notification.data));
+        }
+    }
+}
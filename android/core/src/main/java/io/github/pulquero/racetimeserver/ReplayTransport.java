@@ -0,0 +1,177 @@
+package io.github.pulquero.racetimeserver;
+
+import com.jakewharton.rxrelay2.BehaviorRelay;
+import com.jakewharton.rxrelay2.PublishRelay;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+import io.reactivex.Single;
+
+/**
+ * Plays back a {@link TrafficRecording} as a tracker.
+ * Writes and reads are served in recorded order and notifications are emitted between them as recorded,
+ * so the same traffic is seen on every run.
+ * Timing is reproduced relative to the last write or read, scaled by the speed (0 for as fast as possible).
+ */
+public class ReplayTransport implements TrackerTransport {
+    public static final String ADDRESS = "replay";
+    private static final String LOG_TAG = "ReplayTransport";
+
+    private final List<TrafficRecording.Record> records;
+    private final double speed;
+    private final BehaviorRelay<ConnectionState> stateSubject = BehaviorRelay.createDefault(ConnectionState.DISCONNECTED);
+    private final PublishRelay<TrackerLink.Notification> notifications = PublishRelay.create();
+    private int cursor;
+    private long anchorRecordNanos;
+    private long anchorNanos;
+    private int mismatches;
+
+    public ReplayTransport(List<TrafficRecording.Record> records, double speed) {
+        this.records = records;
+        this.speed = speed;
+    }
+
+    @Override
+    public String getAddress() {
+        return ADDRESS;
+    }
+
+    @Override
+    public Observable<ConnectionState> observeConnectionState() {
+        return stateSubject;
+    }
+
+    @Override
+    public ConnectionState getConnectionState() {
+        return stateSubject.getValue();
+    }
+
+    @Override
+    public Observable<TrackerLink> establishConnection() {
+        return Observable.create(emitter -> {
+            Thread pump = new Thread(this::pumpNotifications, "Replay notifications");
+            pump.setDaemon(true);
+            synchronized (this) {
+                cursor = 0;
+                mismatches = 0;
+                anchorRecordNanos = 0L;
+                anchorNanos = System.nanoTime();
+            }
+            stateSubject.accept(ConnectionState.CONNECTING);
+            emitter.setCancellable(() -> {
+                pump.interrupt();
+                stateSubject.accept(ConnectionState.DISCONNECTED);
+            });
+            pump.start();
+            stateSubject.accept(ConnectionState.CONNECTED);
+            emitter.onNext(new Link());
+        });
+    }
+
+    public synchronized boolean isFinished() {
+        return cursor >= records.size();
+    }
+
+    /**
+     * Number of writes that differed from the recording, i.e. where the replay has diverged.
+     */
+    public synchronized int getMismatches() {
+        return mismatches;
+    }
+
+    private long dueNanos(TrafficRecording.Record record) {
+        if(speed <= 0.0) {
+            return anchorNanos;
+        }
+        return anchorNanos + (long) ((record.nanos - anchorRecordNanos)/speed);
+    }
+
+    private void waitUntilDue(TrafficRecording.Record record) throws InterruptedException {
+        long waitNanos;
+        while((waitNanos = dueNanos(record) - System.nanoTime()) > 0L) {
+            TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+        }
+    }
+
+    /**
+     * Emits notifications on time while the client is not writing or reading, e.g. laps during a race.
+     */
+    private synchronized void pumpNotifications() {
+        try {
+            while(cursor < records.size()) {
+                TrafficRecording.Record record = records.get(cursor);
+                if(record.type == TrafficRecording.NOTIFICATION) {
+                    long waitNanos = dueNanos(record) - System.nanoTime();
+                    if(waitNanos > 0L) {
+                        TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                    } else {
+                        cursor++;
+                        notify(record);
+                    }
+                } else {
+                    // wait for the client
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            // disconnected
+        }
+    }
+
+    private synchronized byte[] next(byte type, byte[] written) throws InterruptedException {
+        // keep recorded ordering with notifications
+        while(cursor < records.size() && records.get(cursor).type == TrafficRecording.NOTIFICATION) {
+            notify(records.get(cursor++));
+        }
+        if(cursor >= records.size()) {
+            throw new TrackerException("End of recording");
+        }
+        TrafficRecording.Record record = records.get(cursor);
+        if(record.type != type) {
+            mismatches++;
+            throw new TrackerException(String.format("Replay diverged at record %d: expected %c but was %c", cursor, (char) record.type, (char) type));
+        }
+        if(written != null && !Arrays.equals(record.data, pad(written))) {
+            mismatches++;
+            Log.w(LOG_TAG, String.format("Replay diverged at record %d: recorded write '%s' but was '%s'", cursor,
+                    RaceTracker.bytesToString(record.data), RaceTracker.bytesToString(written)));
+        }
+        waitUntilDue(record);
+        cursor++;
+        anchorRecordNanos = record.nanos;
+        anchorNanos = System.nanoTime();
+        notifyAll();
+        return record.data.clone();
+    }
+
+    private void notify(TrafficRecording.Record record) {
+        notifications.accept(new TrackerLink.Notification(record.data, System.nanoTime()));
+    }
+
+    private static byte[] pad(byte[] data) {
+        return Arrays.copyOf(data, RaceTracker.MAX_DATA_SIZE);
+    }
+
+    final class Link implements TrackerLink {
+        @Override
+        public Single<byte[]> write(byte[] data) {
+            return Single.fromCallable(() -> {
+                next(TrafficRecording.WRITE, data);
+                return data;
+            });
+        }
+
+        @Override
+        public Single<byte[]> read() {
+            return Single.fromCallable(() -> next(TrafficRecording.READ, null));
+        }
+
+        @Override
+        public Observable<Notification> notifications() {
+            return notifications;
+        }
+    }
+}
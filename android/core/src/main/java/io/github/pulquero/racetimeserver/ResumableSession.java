@@ -0,0 +1,115 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.TimerTask;
+
+/**
+ * A client's notifications, sequenced and kept in a bounded replay buffer,
+ * so a client whose connection drops can resume on a new one and be sent only what it missed.
+ */
+final class ResumableSession {
+    static final int REPLAY_CAPACITY = 256;
+    static final String SEQUENCE = "sequence";
+    static final String RESUMED_NOTIF = "resumed";
+
+    final String id;
+    private final String[] replay = new String[REPLAY_CAPACITY];
+    /**
+     * Last sequence number sent.
+     */
+    private long sequence;
+    /**
+     * Null while detached.
+     */
+    private ClientConnection conn;
+    private TimerTask expiry;
+    private boolean expired;
+
+    ResumableSession(String id, ClientConnection conn) {
+        this.id = id;
+        this.conn = conn;
+    }
+
+    synchronized void send(JSONObject notification) throws JSONException {
+        if(expired) {
+            return;
+        }
+        long seq = ++sequence;
+        notification.put(SEQUENCE, seq);
+        String s = notification.toString();
+        replay[(int) (seq % REPLAY_CAPACITY)] = s;
+        if(conn != null) {
+            try {
+                conn.send(s);
+            } catch (WebsocketNotConnectedException e) {
+                // dropped, kept for replay
+            }
+        }
+    }
+
+    /**
+     * Null while detached.
+     */
+    synchronized ClientConnection getConnection() {
+        return conn;
+    }
+
+    /**
+     * @return false if the connection has already been replaced.
+     */
+    synchronized boolean detach(ClientConnection conn, TimerTask expiry) {
+        if(this.conn != conn) {
+            return false;
+        }
+        this.conn = null;
+        this.expiry = expiry;
+        return true;
+    }
+
+    /**
+     * @return false if resumed since.
+     */
+    synchronized boolean expire() {
+        if(conn != null) {
+            return false;
+        }
+        expired = true;
+        return true;
+    }
+
+    /**
+     * Moves the session to a new connection, sending a resumed notification then everything after the given sequence number.
+     * Complete is false if some of it is no longer held, in which case the client should fetch its state again.
+     * @return the connection replaced, if it hadn't been noticed to drop, else null.
+     * @throws IllegalStateException if the session has expired.
+     */
+    synchronized ClientConnection resume(ClientConnection newConn, long lastSequence) throws JSONException {
+        if(expired) {
+            throw new IllegalStateException("Session expired");
+        }
+        if(expiry != null) {
+            expiry.cancel();
+            expiry = null;
+        }
+        ClientConnection previous = conn;
+        conn = newConn;
+        long next = Math.max(lastSequence, 0L) + 1L;
+        long from = Math.max(next, sequence - REPLAY_CAPACITY + 1L);
+        JSONObject data = new JSONObject();
+        data.put("session", id);
+        data.put(SEQUENCE, sequence);
+        data.put("replayed", Math.max(sequence - from + 1L, 0L));
+        data.put("complete", from == next);
+        JSONObject json = new JSONObject();
+        json.put("notification", RESUMED_NOTIF);
+        json.put("data", data);
+        newConn.send(json.toString());
+        for(long seq = from; seq <= sequence; seq++) {
+            newConn.send(replay[(int) (seq % REPLAY_CAPACITY)]);
+        }
+        return previous != newConn ? previous : null;
+    }
+}
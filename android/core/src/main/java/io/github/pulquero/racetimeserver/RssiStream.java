@@ -0,0 +1,243 @@
+package io.github.pulquero.racetimeserver;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the tracker RSSI at a high rate for live tuning.
+ * The tracker only reports RSSI for the principal channel and has no RSSI notifications,
+ * so samples are polled with the RSSI command into a ring buffer
+ * and pushed to listeners as decimated batches.
+ * Sampling is paused while a race is running and backs off when other commands are waiting for the link.
+ */
+public class RssiStream {
+    public static final int MAX_RATE_HZ = 30;
+    private static final int CAPACITY = 512;
+    private static final long BATCH_INTERVAL_MS = 250L;
+    private static final long RACE_POLL_INTERVAL_MS = 500L;
+    /**
+     * Maximum fraction of link time that sampling may use.
+     */
+    private static final double BLE_BUDGET = 0.5;
+    private static final String LOG_TAG = "RssiStream";
+
+    public interface Listener {
+        /**
+         * Called on the sampling thread.
+         * @param startMillis time of the first sample, in milliseconds since the stream started.
+         * @param intervalMillis time between values.
+         */
+        void onRssi(long startMillis, long intervalMillis, int[] rssi, int count);
+    }
+
+    private final RaceTracker raceTracker;
+    final RingBuffer samples = new RingBuffer(CAPACITY);
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> sampling;
+    private long startNanos;
+
+    public RssiStream(RaceTracker raceTracker) {
+        this.raceTracker = raceTracker;
+    }
+
+    /**
+     * @param rateHz requested sample rate, capped at {@link #MAX_RATE_HZ}.
+     */
+    public synchronized Subscription subscribe(int rateHz, Listener listener) {
+        if(rateHz <= 0) {
+            throw new IllegalArgumentException("Invalid rate: "+rateHz);
+        }
+        Subscription sub = new Subscription(Math.min(rateHz, MAX_RATE_HZ), listener);
+        sub.nextSeq = samples.sequence();
+        subscriptions.add(sub);
+        if(executor == null) {
+            ScheduledExecutorService newExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "RSSI stream");
+                t.setDaemon(true);
+                return t;
+            });
+            executor = newExecutor;
+            startNanos = System.nanoTime();
+            sampling = newExecutor.schedule(() -> sample(newExecutor), 0L, TimeUnit.MILLISECONDS);
+        }
+        return sub;
+    }
+
+    private synchronized void unsubscribe(Subscription sub) {
+        if(subscriptions.remove(sub) && subscriptions.isEmpty() && executor != null) {
+            sampling.cancel(false);
+            executor.shutdown();
+            executor = null;
+            sampling = null;
+        }
+    }
+
+    public boolean isActive() {
+        return !subscriptions.isEmpty();
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    private int getSampleRate() {
+        int rate = 0;
+        for(Subscription sub : subscriptions) {
+            rate = Math.max(rate, sub.rateHz);
+        }
+        return rate;
+    }
+
+    /**
+     * @param owner the executor this sample was scheduled on, only rescheduled while it is still the current one,
+     * so a sample in progress when the stream stops can't carry on after it is restarted.
+     */
+    private void sample(ScheduledExecutorService owner) {
+        int rate = getSampleRate();
+        if(rate == 0) {
+            return;
+        }
+        long periodNanos = TimeUnit.SECONDS.toNanos(1L)/rate;
+        long delayNanos;
+        if(raceTracker.isRaceRunning()) {
+            // race traffic takes priority
+            delayNanos = TimeUnit.MILLISECONDS.toNanos(RACE_POLL_INTERVAL_MS);
+        } else {
+            long start = System.nanoTime();
+            try {
+                // fresh reading for every sample
+                int rssi = raceTracker.getRssi(0L);
+                samples.add(start - startNanos, rssi);
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "RSSI sample", e);
+            }
+            long exchangeNanos = System.nanoTime() - start;
+            // the exchange time includes any wait for other commands so back off when the link is busy
+            delayNanos = Math.max(periodNanos, (long) (exchangeNanos/BLE_BUDGET)) - exchangeNanos;
+            publish();
+        }
+        synchronized (this) {
+            if(executor == owner) {
+                sampling = owner.schedule(() -> sample(owner), Math.max(delayNanos, 0L), TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void publish() {
+        long now = System.nanoTime();
+        for(Subscription sub : subscriptions) {
+            if(now - sub.lastPublished >= TimeUnit.MILLISECONDS.toNanos(BATCH_INTERVAL_MS)) {
+                sub.lastPublished = now;
+                try {
+                    sub.publish();
+                } catch (RuntimeException e) {
+                    Log.w(LOG_TAG, "RSSI listener", e);
+                }
+            }
+        }
+    }
+
+    public final class Subscription {
+        final int rateHz;
+        final Listener listener;
+        final int[] batch = new int[CAPACITY];
+        long nextSeq;
+        long lastPublished;
+
+        Subscription(int rateHz, Listener listener) {
+            this.rateHz = rateHz;
+            this.listener = listener;
+        }
+
+        public int getRate() {
+            return rateHz;
+        }
+
+        public void cancel() {
+            unsubscribe(this);
+        }
+
+        /**
+         * Decimates to the subscribed rate by keeping the peak of each interval, so fly-bys are not lost.
+         */
+        void publish() {
+            long seq = Math.max(nextSeq, samples.oldestSequence());
+            long end = samples.sequence();
+            if(seq >= end) {
+                return;
+            }
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1L)/rateHz;
+            long startNanos = samples.timeAt(seq);
+            long bucketEnd = startNanos + intervalNanos;
+            int count = 0;
+            int peak = Integer.MIN_VALUE;
+            for(; seq < end; seq++) {
+                long t = samples.timeAt(seq);
+                while(t >= bucketEnd) {
+                    if(peak != Integer.MIN_VALUE) {
+                        batch[count++] = peak;
+                        peak = Integer.MIN_VALUE;
+                    }
+                    bucketEnd += intervalNanos;
+                }
+                peak = Math.max(peak, samples.valueAt(seq));
+            }
+            if(peak != Integer.MIN_VALUE) {
+                batch[count++] = peak;
+            }
+            nextSeq = end;
+            listener.onRssi(TimeUnit.NANOSECONDS.toMillis(startNanos), TimeUnit.NANOSECONDS.toMillis(intervalNanos), batch, count);
+        }
+    }
+
+    /**
+     * Single producer ring buffer of timestamped samples.
+     */
+    static final class RingBuffer {
+        private final long[] times;
+        private final int[] values;
+        private final int mask;
+        private volatile long sequence;
+
+        RingBuffer(int capacity) {
+            if(Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Capacity must be a power of 2");
+            }
+            this.times = new long[capacity];
+            this.values = new int[capacity];
+            this.mask = capacity - 1;
+        }
+
+        void add(long time, int value) {
+            long seq = sequence;
+            int i = (int) (seq & mask);
+            times[i] = time;
+            values[i] = value;
+            sequence = seq + 1;
+        }
+
+        /**
+         * Sequence of the next sample to be added.
+         */
+        long sequence() {
+            return sequence;
+        }
+
+        long oldestSequence() {
+            return Math.max(0L, sequence - times.length);
+        }
+
+        long timeAt(long seq) {
+            return times[(int) (seq & mask)];
+        }
+
+        int valueAt(long seq) {
+            return values[(int) (seq & mask)];
+        }
+    }
+}
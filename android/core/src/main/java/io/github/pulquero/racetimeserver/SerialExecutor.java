@@ -0,0 +1,56 @@
+package io.github.pulquero.racetimeserver;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks one at a time, in submission order, on a shared executor.
+ */
+final class SerialExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final Executor executor;
+    private Runnable active;
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void execute(Runnable r) {
+        tasks.add(() -> {
+            try {
+                r.run();
+            } finally {
+                scheduleNext();
+            }
+        });
+        if(active == null) {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the executor rejects the next task, which is dropped.
+     */
+    private synchronized void scheduleNext() {
+        active = tasks.poll();
+        if(active != null) {
+            try {
+                executor.execute(active);
+            } catch (RejectedExecutionException e) {
+                // so later tasks aren't queued behind one that will never run
+                active = null;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Drops any tasks that have not started yet.
+     */
+    synchronized void clear() {
+        tasks.clear();
+    }
+}
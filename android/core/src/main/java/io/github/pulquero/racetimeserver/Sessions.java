@@ -0,0 +1,158 @@
+package io.github.pulquero.racetimeserver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The resumable sessions of a server's connections, by id.
+ * A session's attachment, race and all, is kept once its connection drops, until resumed on a new connection or expired.
+ * Only the connection a session is on may detach it, so the close of one it has been moved from changes nothing.
+ */
+final class Sessions {
+    private static final String LOG_TAG = "Sessions";
+
+    interface Listener {
+        /**
+         * Releases what the session's attachment holds.
+         */
+        void onExpired(TimingServer.AttachmentData attachmentData);
+    }
+
+    private final Map<String,TimingServer.AttachmentData> sessions = new ConcurrentHashMap<>();
+    private final Set<ClientConnection> passSubscribers;
+    private final long timeoutMillis;
+    private final Listener listener;
+
+    /**
+     * @param passSubscribers moved along with their session.
+     */
+    Sessions(Set<ClientConnection> passSubscribers, long timeoutMillis, Listener listener) {
+        this.passSubscribers = passSubscribers;
+        this.timeoutMillis = timeoutMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the connection's session, started if it hasn't one.
+     */
+    ResumableSession start(ClientConnection conn) {
+        TimingServer.AttachmentData attachmentData = conn.getAttachment();
+        if(attachmentData.session == null) {
+            attachmentData.session = new ResumableSession(UUID.randomUUID().toString(), conn);
+            sessions.put(attachmentData.session.id, attachmentData);
+        }
+        return attachmentData.session;
+    }
+
+    /**
+     * Keeps the session of a closed connection until resumed or expired, dropping its pending requests.
+     * @param timer null if stopping.
+     * @return false if the session has already been moved to another connection, whose requests they now are.
+     */
+    boolean detach(ClientConnection conn, TimingServer.AttachmentData attachmentData, Timer timer) {
+        ResumableSession session = attachmentData.session;
+        TimerTask expiry = new TimerTask() {
+            @Override
+            public void run() {
+                expire(attachmentData);
+            }
+        };
+        // so it can't be resumed part way through
+        synchronized (session) {
+            if(!session.detach(conn, expiry)) {
+                return false;
+            }
+            attachmentData.requests.clear();
+            if(timer != null) {
+                timer.schedule(expiry, timeoutMillis);
+            }
+        }
+        return true;
+    }
+
+    private void expire(TimingServer.AttachmentData attachmentData) {
+        ResumableSession session = attachmentData.session;
+        if(!session.expire()) {
+            return;
+        }
+        Log.i(LOG_TAG, "Session "+session.id+" expired");
+        sessions.remove(session.id);
+        for(ClientConnection subscriber : passSubscribers) {
+            if(subscriber.getAttachment() == attachmentData) {
+                passSubscribers.remove(subscriber);
+            }
+        }
+        attachmentData.requests.clear();
+        listener.onExpired(attachmentData);
+    }
+
+    /**
+     * Runs on the connection's thread, before any of its messages.
+     * Any connection the session is still on is closed, as half-open.
+     * @return false if the session couldn't be resumed, reported to the connection.
+     */
+    boolean resume(ClientConnection conn, String id, String lastSequence) {
+        TimingServer.AttachmentData attachmentData = sessions.get(id);
+        try {
+            if(attachmentData == null) {
+                sendResumeError(conn, id, "Unknown session");
+                return false;
+            }
+            long sequence;
+            try {
+                sequence = (lastSequence != null) ? Long.parseLong(lastSequence) : 0L;
+            } catch (NumberFormatException e) {
+                sendResumeError(conn, id, "Invalid sequence: "+lastSequence);
+                return false;
+            }
+            // the previous connection's attachment is kept for the tasks and subscriptions still referring to it
+            conn.setAttachment(attachmentData);
+            ClientConnection previous;
+            try {
+                previous = attachmentData.session.resume(conn, sequence);
+            } catch (IllegalStateException e) {
+                conn.setAttachment(null);
+                sendResumeError(conn, id, e.getMessage());
+                return false;
+            }
+            movePassSubscription(attachmentData, conn);
+            if(previous != null) {
+                previous.close();
+            }
+            return true;
+        } catch (JSONException e) {
+            // never expected to happen
+            throw new AssertionError(e);
+        }
+    }
+
+    private void movePassSubscription(TimingServer.AttachmentData attachmentData, ClientConnection conn) {
+        boolean subscribed = false;
+        for(ClientConnection subscriber : passSubscribers) {
+            if(subscriber.getAttachment() == attachmentData && subscriber != conn) {
+                passSubscribers.remove(subscriber);
+                subscribed = true;
+            }
+        }
+        if(subscribed) {
+            passSubscribers.add(conn);
+        }
+    }
+
+    private static void sendResumeError(ClientConnection conn, String id, String error) throws JSONException {
+        JSONObject data = new JSONObject();
+        data.put("session", id);
+        data.put("error", error);
+        JSONObject json = new JSONObject();
+        json.put("notification", ResumableSession.RESUMED_NOTIF);
+        json.put("data", data);
+        conn.send(json.toString());
+    }
+}
@@ -0,0 +1,109 @@
+package io.github.pulquero.racetimeserver;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps a tracker's entry in the settings snapshot up to date.
+ * The settings are only read from the tracker when it (re)connects, as it may have been changed by other means while away,
+ * after that the snapshot follows what is applied, without reading anything back.
+ * Listeners are told of any change, as clients may have been served something else provisionally.
+ */
+final class SettingsReconciler {
+    private static final String LOG_TAG = "SettingsReconciler";
+
+    interface Listener {
+        void onSettingsChanged(SettingsSnapshot.Settings settings);
+    }
+
+    private final RaceTracker raceTracker;
+    private final Listener listener;
+    private volatile SettingsSnapshot snapshot;
+    /**
+     * Null until read from the tracker.
+     */
+    private SettingsSnapshot.Settings current;
+
+    SettingsReconciler(RaceTracker raceTracker, Listener listener) {
+        this.raceTracker = raceTracker;
+        this.listener = listener;
+    }
+
+    void setSnapshot(SettingsSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return null if none.
+     */
+    SettingsSnapshot.Settings getLastKnown() {
+        SettingsSnapshot s = snapshot;
+        return (s != null) ? s.get(raceTracker.getAddress()) : null;
+    }
+
+    /**
+     * Reads the settings from the tracker, mostly already known, on connecting.
+     * Blocks on the tracker.
+     */
+    synchronized void reconcile() {
+        SettingsSnapshot s = snapshot;
+        if(s == null) {
+            return;
+        }
+        SettingsSnapshot.Settings settings;
+        try {
+            int[] freqs = new int[raceTracker.getPilotCount()];
+            for(int i=0; i<freqs.length; i++) {
+                freqs[i] = raceTracker.getPilotFrequency(i);
+            }
+            settings = new SettingsSnapshot.Settings(raceTracker.getTriggerRssi(), freqs);
+        } catch(Exception ex) {
+            if(!(ex.getCause() instanceof InterruptedException)) {
+                Log.w(LOG_TAG, "Settings not reconciled: "+ex.getMessage());
+            }
+            return;
+        }
+        update(s, settings);
+    }
+
+    /**
+     * Applies a configuration the tracker has accepted.
+     * A pilot assigned beyond those known adds to the racers, an unassigned one is kept with frequency 0.
+     */
+    synchronized void applied(RaceTracker.Configuration config) {
+        SettingsSnapshot s = snapshot;
+        if(s == null) {
+            return;
+        }
+        if(current == null) {
+            // never read, e.g. it failed on connecting
+            reconcile();
+            return;
+        }
+        int[] freqs = current.frequencies.clone();
+        for(int i=0; i<config.freqs.length; i++) {
+            int freq = config.freqs[i];
+            if(freq == RaceTracker.Configuration.UNSET || (freq == 0 && i >= freqs.length)) {
+                continue;
+            }
+            if(i >= freqs.length) {
+                freqs = Arrays.copyOf(freqs, i + 1);
+            }
+            freqs[i] = freq;
+        }
+        int triggerRssi = (config.triggerRssi != RaceTracker.Configuration.UNSET) ? config.triggerRssi : current.triggerRssi;
+        update(s, new SettingsSnapshot.Settings(triggerRssi, freqs));
+    }
+
+    private void update(SettingsSnapshot s, SettingsSnapshot.Settings settings) {
+        current = settings;
+        try {
+            if(!s.put(raceTracker.getAddress(), settings)) {
+                return;
+            }
+        } catch(IOException ex) {
+            Log.w(LOG_TAG, "Settings not saved", ex);
+        }
+        listener.onSettingsChanged(settings);
+    }
+}
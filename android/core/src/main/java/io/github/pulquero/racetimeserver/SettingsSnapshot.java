@@ -0,0 +1,163 @@
+package io.github.pulquero.racetimeserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Last known settings of each tracker, by address, so they can be served before the tracker has connected.
+ * The whole file is rewritten, via a synced temporary file, whenever any settings change.
+ *
+ * File format (big-endian):
+ * int magic, byte version, short count,
+ * then for each tracker: UTF address, long savedMillis, short triggerRssi, byte pilotCount, short frequency * pilotCount.
+ */
+public class SettingsSnapshot {
+    public static final String DEFAULT_FILE_NAME = "tracker-settings.bin";
+    private static final String LOG_TAG = "SettingsSnapshot";
+    private static final int MAGIC = 0x52545353; // RTSS
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final Map<String,Settings> settingsByAddress = new HashMap<>();
+
+    /**
+     * Loads any existing snapshot, a corrupt one is ignored.
+     */
+    public SettingsSnapshot(File file) {
+        this.file = file;
+        if(file.exists()) {
+            try {
+                load();
+            } catch(IOException ex) {
+                Log.w(LOG_TAG, "Ignoring unreadable snapshot "+file, ex);
+                settingsByAddress.clear();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Not a settings snapshot");
+            }
+            int count = in.readUnsignedShort();
+            for(int i=0; i<count; i++) {
+                String address = in.readUTF();
+                long savedMillis = in.readLong();
+                int triggerRssi = in.readShort();
+                int[] frequencies = new int[in.readUnsignedByte()];
+                for(int j=0; j<frequencies.length; j++) {
+                    frequencies[j] = in.readShort();
+                }
+                settingsByAddress.put(address, new Settings(triggerRssi, frequencies, savedMillis));
+            }
+        }
+    }
+
+    /**
+     * @return null if none.
+     */
+    public synchronized Settings get(String address) {
+        return settingsByAddress.get(address);
+    }
+
+    /**
+     * @return false if unchanged, so not saved.
+     */
+    public synchronized boolean put(String address, Settings settings) throws IOException {
+        if(settings.equals(settingsByAddress.get(address))) {
+            return false;
+        }
+        settingsByAddress.put(address, settings);
+        save();
+        return true;
+    }
+
+    private void save() throws IOException {
+        File tmpFile = new File(file.getPath()+".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(settingsByAddress.size());
+            for(Map.Entry<String,Settings> entry : settingsByAddress.entrySet()) {
+                Settings settings = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(settings.savedMillis);
+                out.writeShort(settings.triggerRssi);
+                out.writeByte(settings.frequencies.length);
+                for(int freq : settings.frequencies) {
+                    out.writeShort(freq);
+                }
+            }
+            out.flush();
+            // on disk before it replaces the old snapshot, else a crash could leave neither
+            fileOut.getFD().sync();
+        }
+        // renameTo doesn't replace on all platforms
+        if(!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+            throw new IOException("Failed to replace "+file);
+        }
+    }
+
+    public static final class Settings {
+        final int triggerRssi;
+        final int[] frequencies;
+        final long savedMillis;
+
+        /**
+         * @param frequencies by pilot.
+         */
+        public Settings(int triggerRssi, int[] frequencies) {
+            this(triggerRssi, frequencies, System.currentTimeMillis());
+        }
+
+        Settings(int triggerRssi, int[] frequencies, long savedMillis) {
+            this.triggerRssi = triggerRssi;
+            this.frequencies = frequencies.clone();
+            this.savedMillis = savedMillis;
+        }
+
+        public int getPilotCount() {
+            return frequencies.length;
+        }
+
+        public int getTriggerRssi() {
+            return triggerRssi;
+        }
+
+        public int getPilotFrequency(int pilotIndex) {
+            return frequencies[pilotIndex];
+        }
+
+        public long getSavedMillis() {
+            return savedMillis;
+        }
+
+        /**
+         * Ignores when saved.
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) obj;
+            return triggerRssi == other.triggerRssi && Arrays.equals(frequencies, other.frequencies);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31*triggerRssi + Arrays.hashCode(frequencies);
+        }
+    }
+}
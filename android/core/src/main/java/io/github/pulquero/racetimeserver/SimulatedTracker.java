@@ -0,0 +1,220 @@
+package io.github.pulquero.racetimeserver;
+
+import com.jakewharton.rxrelay2.BehaviorRelay;
+import com.jakewharton.rxrelay2.PublishRelay;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * In-process RaceTracker for running the server without hardware.
+ * Emulates the firmware command responses and lap notifications.
+ */
+public class SimulatedTracker implements TrackerTransport {
+    public static final String ADDRESS = "00:00:00:00:00:00";
+    private static final int NOISE_FLOOR_RSSI = 60;
+    private static final int PEAK_RSSI = 180;
+    private static final long PEAK_MS = 300L;
+
+    private final int pilots;
+    private final long lapMillis;
+    private final long latencyMillis;
+    private final BehaviorRelay<ConnectionState> stateSubject = BehaviorRelay.createDefault(ConnectionState.DISCONNECTED);
+    private final PublishRelay<TrackerLink.Notification> notifications = PublishRelay.create();
+    private final Random random = new Random();
+    private final String[] bandChannels;
+    private final int[] laps;
+    private int triggerRssi = 150;
+    private int minLapSecs = 5;
+    private String response = "";
+    private ScheduledExecutorService race;
+    private long raceStart;
+    private long lastLap;
+
+    public SimulatedTracker() {
+        this(4, 20000L, 15L);
+    }
+
+    /**
+     * @param lapMillis average lap time.
+     * @param latencyMillis delay added to each write and read.
+     */
+    public SimulatedTracker(int pilots, long lapMillis, long latencyMillis) {
+        this.pilots = pilots;
+        this.lapMillis = lapMillis;
+        this.latencyMillis = latencyMillis;
+        this.bandChannels = new String[pilots];
+        this.laps = new int[pilots];
+        for(int i=0; i<pilots; i++) {
+            bandChannels[i] = "C"+(i+1);
+        }
+    }
+
+    @Override
+    public String getAddress() {
+        return ADDRESS;
+    }
+
+    @Override
+    public Observable<ConnectionState> observeConnectionState() {
+        return stateSubject;
+    }
+
+    @Override
+    public ConnectionState getConnectionState() {
+        return stateSubject.getValue();
+    }
+
+    @Override
+    public Observable<TrackerLink> establishConnection() {
+        return Observable.create(emitter -> {
+            stateSubject.accept(ConnectionState.CONNECTING);
+            stateSubject.accept(ConnectionState.CONNECTED);
+            emitter.setCancellable(() -> {
+                stopRace();
+                stateSubject.accept(ConnectionState.DISCONNECTED);
+            });
+            emitter.onNext(new Link());
+        });
+    }
+
+    private synchronized void process(String cmd) {
+        String[] args = cmd.split(" ");
+        switch (args[0]) {
+            case "N":
+                if(args.length == 3) {
+                    bandChannels[Integer.parseInt(args[1]) - 1] = args[2];
+                }
+                response = "Racers: "+pilots;
+                break;
+            case "Z":
+                response = args[1]+": "+readFlash(Integer.parseInt(args[1]));
+                break;
+            case "/":
+                response = "RSSI: "+getRssi();
+                break;
+            case ".":
+                response = "GATE: "+triggerRssi;
+                break;
+            case ",":
+                triggerRssi = Integer.parseInt(args[1]);
+                response = "GATE: "+triggerRssi;
+                break;
+            case "F":
+                minLapSecs = Integer.parseInt(args[1]);
+                response = "Timeout:"+minLapSecs+"s";
+                break;
+            case "Q":
+                stopRace();
+                response = bandChannels[0]+","+(getRssi() - 100)+"dbm,+0";
+                break;
+            case "G":
+                response = RaceTracker.CALIBRATING_STATE;
+                Schedulers.computation().scheduleDirect(() -> notify(RaceTracker.CALIBRATED_STATE), 2L, TimeUnit.SECONDS);
+                break;
+            case "0":
+                stopRace();
+                response = "READY";
+                break;
+            case "1":
+            case "2":
+                startRace();
+                response = "READY";
+                break;
+            default:
+                response = "";
+        }
+    }
+
+    private String readFlash(int index) {
+        if(index == 1) {
+            return String.valueOf(triggerRssi);
+        } else if(index == 6) {
+            return String.valueOf(minLapSecs);
+        } else if(index >= 25 && index < 25 + pilots) {
+            return bandChannels[index - 25];
+        } else {
+            return "0";
+        }
+    }
+
+    private int getRssi() {
+        boolean isPassing = race != null && System.currentTimeMillis() - lastLap < PEAK_MS;
+        return (isPassing ? PEAK_RSSI : NOISE_FLOOR_RSSI) + random.nextInt(7) - 3;
+    }
+
+    private void startRace() {
+        stopRace();
+        Arrays.fill(laps, 0);
+        raceStart = System.currentTimeMillis();
+        race = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "Simulated race"));
+        for(int i=0; i<pilots; i++) {
+            scheduleLap(race, i, raceStart);
+        }
+    }
+
+    private void scheduleLap(ScheduledExecutorService race, int pilot, long lapStart) {
+        // +/- 10%
+        long lapTime = lapMillis + (long) ((random.nextDouble() - 0.5)*lapMillis/5.0);
+        race.schedule(() -> lap(race, pilot, lapStart), lapTime, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void lap(ScheduledExecutorService race, int pilot, long lapStart) {
+        if(race != this.race) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int lap = ++laps[pilot];
+        String msg;
+        if(pilots == 1) {
+            msg = String.format("R%d,T%d,%d", lap, now - lapStart, now - raceStart);
+        } else {
+            msg = String.format("P%dR%dT%d,%d", pilot+1, lap, now - lapStart, now - raceStart);
+        }
+        lastLap = now;
+        notify(msg);
+        scheduleLap(race, pilot, now);
+    }
+
+    private void notify(String msg) {
+        notifications.accept(new TrackerLink.Notification(RaceTracker.stringToBytes(msg), System.nanoTime()));
+    }
+
+    private synchronized void stopRace() {
+        if(race != null) {
+            race.shutdownNow();
+            race = null;
+        }
+    }
+
+    final class Link implements TrackerLink {
+        @Override
+        public Single<byte[]> write(byte[] data) {
+            return Single.fromCallable(() -> {
+                process(RaceTracker.bytesToString(data));
+                return data;
+            }).delay(latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public Single<byte[]> read() {
+            return Single.fromCallable(() -> {
+                synchronized (SimulatedTracker.this) {
+                    return RaceTracker.stringToBytes(response);
+                }
+            }).delay(latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public Observable<Notification> notifications() {
+            return notifications;
+        }
+    }
+}
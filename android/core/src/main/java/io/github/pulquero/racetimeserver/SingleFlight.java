@@ -0,0 +1,98 @@
+package io.github.pulquero.racetimeserver;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent loads of the same key share a single in-flight load and its result.
+ * A completed result can optionally be reused for a short time.
+ */
+final class SingleFlight<K,V> {
+    private final ConcurrentMap<K,Flight<V>> flights = new ConcurrentHashMap<>();
+
+    V get(K key, Callable<V> loader) {
+        return get(key, 0L, loader);
+    }
+
+    /**
+     * @param maxAgeMillis how long a completed result can be reused for, 0 to only share in-flight loads.
+     */
+    V get(K key, long maxAgeMillis, Callable<V> loader) {
+        long maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        Flight<V> flight = flights.get(key);
+        if(flight != null && flight.isStale(maxAgeNanos)) {
+            flights.remove(key, flight);
+            flight = null;
+        }
+
+        if(flight == null) {
+            Flight<V> newFlight = new Flight<>(loader);
+            flight = flights.putIfAbsent(key, newFlight);
+            if(flight == null) {
+                // we are the leader
+                flight = newFlight;
+                try {
+                    newFlight.run();
+                } finally {
+                    if(maxAgeNanos <= 0L || newFlight.failed) {
+                        flights.remove(key, newFlight);
+                    }
+                }
+            }
+        }
+        return flight.await();
+    }
+
+    void invalidate(K key) {
+        flights.remove(key);
+    }
+
+    void invalidateAll() {
+        flights.clear();
+    }
+
+    static final class Flight<V> extends FutureTask<V> {
+        volatile long completedAt;
+        volatile boolean failed;
+
+        Flight(Callable<V> loader) {
+            super(loader);
+        }
+
+        @Override
+        protected void done() {
+            try {
+                get();
+            } catch (ExecutionException | InterruptedException | RuntimeException e) {
+                failed = true;
+            }
+            completedAt = System.nanoTime();
+        }
+
+        boolean isStale(long maxAgeNanos) {
+            return completedAt != 0L && (failed || System.nanoTime() - completedAt > maxAgeNanos);
+        }
+
+        V await() {
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if(cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new IllegalStateException(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for shared result", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package io.github.pulquero.racetimeserver;
+
+import com.jakewharton.rxrelay2.BehaviorRelay;
+import com.jakewharton.rxrelay2.PublishRelay;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+import io.reactivex.Single;
+
+/**
+ * Talks to a RaceTracker through a serial BLE bridge, e.g. a USB dongle or a TCP to BLE gateway.
+ * Each frame is a type byte followed by a null padded characteristic value:
+ * host sends W (write FFF1) and R (read FFF2),
+ * bridge replies W (write acknowledged) and R (value read), and sends N (FFF2 notification) at any time.
+ */
+public class StreamTransport implements TrackerTransport {
+    private static final byte WRITE = 'W';
+    private static final byte READ = 'R';
+    private static final byte NOTIFICATION = 'N';
+    private static final int FRAME_SIZE = 1 + RaceTracker.MAX_DATA_SIZE;
+    private static final long TIMEOUT_SECS = 5L;
+    private static final String LOG_TAG = "StreamTransport";
+
+    /**
+     * @param address serial device path or tcp:host:port.
+     */
+    public static StreamTransport create(String address) {
+        if(address.startsWith("tcp:")) {
+            String hostPort = address.substring("tcp:".length());
+            int pos = hostPort.lastIndexOf(':');
+            String host = hostPort.substring(0, pos);
+            int port = Integer.parseInt(hostPort.substring(pos + 1));
+            return new StreamTransport(address, () -> {
+                Socket socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                return new Streams(socket.getInputStream(), socket.getOutputStream(), socket);
+            });
+        } else {
+            // serial port settings are expected to be configured externally, e.g. with stty
+            return new StreamTransport(address, () -> {
+                FileInputStream in = new FileInputStream(address);
+                return new Streams(in, new FileOutputStream(address), in);
+            });
+        }
+    }
+
+    interface Opener {
+        Streams open() throws IOException;
+    }
+
+    private final String address;
+    private final Opener opener;
+    private final BehaviorRelay<ConnectionState> stateSubject = BehaviorRelay.createDefault(ConnectionState.DISCONNECTED);
+
+    StreamTransport(String address, Opener opener) {
+        this.address = address;
+        this.opener = opener;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public Observable<ConnectionState> observeConnectionState() {
+        return stateSubject;
+    }
+
+    @Override
+    public ConnectionState getConnectionState() {
+        return stateSubject.getValue();
+    }
+
+    @Override
+    public Observable<TrackerLink> establishConnection() {
+        return Observable.create(emitter -> {
+            stateSubject.accept(ConnectionState.CONNECTING);
+            Link link;
+            try {
+                link = new Link(opener.open());
+            } catch(IOException ex) {
+                stateSubject.accept(ConnectionState.DISCONNECTED);
+                throw new TrackerException("Failed to open "+address, ex);
+            }
+            Thread reader = new Thread(() -> {
+                try {
+                    link.readFrames();
+                } catch(IOException ex) {
+                    if(!emitter.isDisposed()) {
+                        emitter.tryOnError(new TrackerException("Connection lost to "+address, ex));
+                    }
+                }
+            }, "Tracker stream reader");
+            reader.setDaemon(true);
+            emitter.setCancellable(() -> {
+                stateSubject.accept(ConnectionState.DISCONNECTING);
+                link.close();
+                stateSubject.accept(ConnectionState.DISCONNECTED);
+            });
+            reader.start();
+            stateSubject.accept(ConnectionState.CONNECTED);
+            emitter.onNext(link);
+        });
+    }
+
+    static final class Streams {
+        final InputStream in;
+        final OutputStream out;
+        final Closeable closeable;
+
+        Streams(InputStream in, OutputStream out, Closeable closeable) {
+            this.in = in;
+            this.out = out;
+            this.closeable = closeable;
+        }
+    }
+
+    final class Link implements TrackerLink {
+        final Streams streams;
+        final BlockingQueue<byte[]> writeAcks = new LinkedBlockingQueue<>();
+        final BlockingQueue<byte[]> reads = new LinkedBlockingQueue<>();
+        final PublishRelay<Notification> notifications = PublishRelay.create();
+
+        Link(Streams streams) {
+            this.streams = streams;
+        }
+
+        @Override
+        public Single<byte[]> write(byte[] data) {
+            return Single.fromCallable(() -> {
+                send(WRITE, data);
+                await(writeAcks);
+                return data;
+            });
+        }
+
+        @Override
+        public Single<byte[]> read() {
+            return Single.fromCallable(() -> {
+                send(READ, new byte[RaceTracker.MAX_DATA_SIZE]);
+                return await(reads);
+            });
+        }
+
+        @Override
+        public Observable<Notification> notifications() {
+            return notifications;
+        }
+
+        private void send(byte type, byte[] data) {
+            byte[] frame = new byte[FRAME_SIZE];
+            frame[0] = type;
+            System.arraycopy(data, 0, frame, 1, Math.min(data.length, RaceTracker.MAX_DATA_SIZE));
+            try {
+                synchronized (streams.out) {
+                    streams.out.write(frame);
+                    streams.out.flush();
+                }
+            } catch(IOException ex) {
+                throw new TrackerException("Failed to send to "+address, ex);
+            }
+        }
+
+        private byte[] await(BlockingQueue<byte[]> responses) throws InterruptedException {
+            byte[] response = responses.poll(TIMEOUT_SECS, TimeUnit.SECONDS);
+            if(response == null) {
+                throw new TrackerException("No response from "+address);
+            }
+            return response;
+        }
+
+        void readFrames() throws IOException {
+            DataInputStream in = new DataInputStream(streams.in);
+            byte[] frame = new byte[FRAME_SIZE];
+            while(true) {
+                try {
+                    in.readFully(frame);
+                } catch(EOFException ex) {
+                    return;
+                }
+                long receivedNanos = System.nanoTime();
+                byte[] data = new byte[RaceTracker.MAX_DATA_SIZE];
+                System.arraycopy(frame, 1, data, 0, data.length);
+                switch (frame[0]) {
+                    case WRITE:
+                        writeAcks.add(data);
+                        break;
+                    case READ:
+                        reads.add(data);
+                        break;
+                    case NOTIFICATION:
+                        notifications.accept(new Notification(data, receivedNanos));
+                        break;
+                    default:
+                        Log.w(LOG_TAG, "Unknown frame type: "+frame[0]);
+                }
+            }
+        }
+
+        void close() {
+            try {
+                streams.closeable.close();
+                streams.out.close();
+            } catch(IOException ex) {
+                Log.w(LOG_TAG, "Close", ex);
+            }
+        }
+    }
+}
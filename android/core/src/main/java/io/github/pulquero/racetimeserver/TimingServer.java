@@ -0,0 +1,1555 @@
+package io.github.pulquero.racetimeserver;
+
+import com.jakewharton.rxrelay2.BehaviorRelay;
+
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.Timer;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Observable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+
+public class TimingServer implements NetworkEngine.Handler {
+    private static final int PORT = 5001;
+    /**
+     * Decoders only parse messages, tracker work is done on {@link #trackerExecutor}.
+     */
+    public static final int DEFAULT_DECODERS = 1;
+    private static final String LOG_TAG = "TimingServer";
+    private static final int MAJOR_VERSION = 0;
+    private static final int MINOR_VERSION = 1;
+    private static final String CALIBRATION_THRESHOLD = "calibration_threshold";
+    private static final String CALIBRATION_OFFSET = "calibration_offset";
+    private static final String TRIGGER_THRESHOLD = "trigger_threshold";
+    /**
+     * Extension.
+     */
+    private static final String MIN_LAP_TIME = "minimum_lap_time";
+    private static final String TRIGGER_RSSI = "trigger_rssi";
+    private static final String CURRENT_RSSI = "current_rssi";
+    private static final String FREQUENCY = "frequency";
+    private static final String NODE = "node";
+    private static final String TIMESTAMP = "timestamp";
+    /**
+     * Extension.
+     * RSSI stream rate in Hz, 0 to stop.
+     */
+    private static final String RSSI_STREAM = "rssi_stream";
+    private static final String INTERVAL = "interval";
+    /**
+     * Extension.
+     * Records fly-bys to propose a trigger threshold: start, propose, apply or stop.
+     */
+    private static final String AUTO_CALIBRATION = "auto_calibration";
+    private static final String AUTO_CALIBRATION_START = "start";
+    private static final String AUTO_CALIBRATION_PROPOSE = "propose";
+    private static final String AUTO_CALIBRATION_APPLY = "apply";
+    private static final String AUTO_CALIBRATION_STOP = "stop";
+    private static final String NOISE_FLOOR = "noise_floor";
+    private static final String MIN_PEAK = "min_peak";
+    private static final String MAX_PEAK = "max_peak";
+    private static final String PASSES = "passes";
+    private static final String APPLIED = "applied";
+    private static final String RSSI = "rssi";
+    /**
+     * Extension.
+     * Race history query: {"history": {"query": "best_laps|heats|progress|export", ...}}
+     */
+    private static final String HISTORY = "history";
+    private static final String QUERY = "query";
+    private static final String BEST_LAPS_QUERY = "best_laps";
+    private static final String HEATS_QUERY = "heats";
+    private static final String PROGRESS_QUERY = "progress";
+    private static final String EXPORT_QUERY = "export";
+    private static final String LIMIT = "limit";
+    private static final String FROM = "from";
+    private static final String TO = "to";
+    private static final String FORMAT = "format";
+    private static final String RESULTS = "results";
+    private static final String CHUNK = "chunk";
+    private static final String LAST = "last";
+    private static final int DEFAULT_HISTORY_LIMIT = 10;
+    /**
+     * Extension.
+     * Fetches passes missed from the multicast feed: {"missed_passes": {"epoch": e, "from": seq, "to": seq}}
+     */
+    private static final String MISSED_PASSES = "missed_passes";
+    /**
+     * Connections to this path, e.g. pass feed consumers fetching missed passes,
+     * don't stop races or receive heartbeats.
+     */
+    public static final String PASSIVE_PATH = "/feed";
+    /**
+     * Extension.
+     * Adds server stage times to this client's pass records: {"latency_trace": true}
+     */
+    private static final String LATENCY_TRACE = "latency_trace";
+    private static final String TRACE = "trace";
+    private static final String RECEIVED = "received";
+    private static final String PARSE_STAGE = "parse";
+    private static final String DISPATCH_STAGE = "dispatch";
+    private static final String WRITE_STAGE = "write";
+    private static final String TOTAL = "total";
+    private static final String DROPPED = "dropped";
+    private static final String EPOCH = "epoch";
+    private static final String SEQUENCE = "sequence";
+    private static final String GROUP = "group";
+    private static final String PORT_KEY = "port";
+    /**
+     * Extension.
+     * Topic subscriptions, each with its own rate, a topic of false or 0 unsubscribes:
+     * {"subscribe": {"heartbeat": {"interval": ms, "threshold": dB}, "rssi": {"rate": Hz},
+     * "state": {"interval": ms}, "metrics": {"interval": ms}, "passes": true}}
+     * With a threshold, heartbeats only carry the nodes whose RSSI has changed by at least that much, and are skipped if none have.
+     * State and metrics are only sent when they change.
+     * Unlike other messages, a subscription on its own doesn't stop a race, and a heartbeat subscribed to while racing starts once it stops.
+     */
+    private static final String SUBSCRIBE = "subscribe";
+    private static final String HEARTBEAT_TOPIC = "heartbeat";
+    private static final String RSSI_TOPIC = "rssi";
+    private static final String STATE_TOPIC = "state";
+    private static final String METRICS_TOPIC = "metrics";
+    private static final String PASSES_TOPIC = "passes";
+    private static final String CLOCK_TOPIC = "clock";
+    private static final String RATE = "rate";
+    private static final String THRESHOLD = "threshold";
+    private static final String RSSI_CHANGES = "rssi_changes";
+    private static final long DEFAULT_HEARTBEAT_DELAY_MS = 8000L;
+    private static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 15000L;
+    private static final long DEFAULT_STATE_INTERVAL_MS = 1000L;
+    private static final long DEFAULT_METRICS_INTERVAL_MS = 5000L;
+    private static final long DEFAULT_CLOCK_INTERVAL_MS = 1000L;
+    private static final int DEFAULT_RSSI_RATE = 10;
+    private static final long MIN_TOPIC_INTERVAL_MS = 100L;
+    /**
+     * Extension.
+     * Validates and applies settings together, confirmed by a single configured notification:
+     * {"configure": {"nodes": [{"node": n, "frequency": f}, ...], "trigger_threshold": rssi, "minimum_lap_time": secs}}
+     */
+    private static final String CONFIGURE = "configure";
+    /**
+     * Extension.
+     * {"resumable": true} starts a session, confirmed by a session notification: {"session": id}.
+     * From then on notifications carry a sequence number, besides heartbeats and RSSI samples, which are superseded by the next,
+     * and the connection dropping leaves its race running for a while.
+     * Connecting to ws://host:5001/?session=id&amp;sequence=last seen moves the session to the new connection,
+     * without stopping the race, sending a resumed notification then the notifications missed, as far as they are still held:
+     * {"session": id, "sequence": latest, "replayed": count, "complete": b}
+     * An unknown session is reported as an error and the connection starts afresh.
+     */
+    private static final String RESUMABLE = "resumable";
+    private static final String SESSION = "session";
+    private static final long SESSION_TIMEOUT_MS = 60000L;
+    private static final String NODES = "nodes";
+    private static final String COMMANDS = "commands";
+    private static final String ERROR = "error";
+    private static final String REQUEST = "request";
+    /**
+     * Extension.
+     * Passes merged from the peers of a cluster coordinator are sent to pass subscribers as cluster_pass notifications:
+     * {"timestamp": coordinator ms, "peer": p, "node": n, "frequency": f, "peer_timestamp": ms, "late": b}
+     * and {"get_cluster": null} reports the peers.
+     */
+    private static final String PEER = "peer";
+    private static final String PEER_TIMESTAMP = "peer_timestamp";
+    private static final String LATE = "late";
+    private static final String PEERS = "peers";
+    private static final String PROVISIONAL = "provisional";
+    private static final String ORIGIN = "origin";
+    private static final String DRIFT = "drift";
+    private static final String SAMPLES = "samples";
+    private static final int EXPORT_CHUNK_SIZE = 16*1024;
+    private static final String FREQUENCY_SET_NOTIF = "frequency_set";
+    private static final String TRIGGER_THRESHOLD_SET_NOTIF = "trigger_threshold_set";
+    private static final String HEARTBEAT_NOTIF = "heartbeat";
+    private static final String PASS_RECORD_NOTIF = "pass_record";
+    private static final String RSSI_STREAM_NOTIF = "rssi_stream";
+    private static final String TRIGGER_THRESHOLD_PROPOSED_NOTIF = "trigger_threshold_proposed";
+    private static final String HISTORY_NOTIF = "history";
+    private static final String HISTORY_EXPORT_NOTIF = "history_export";
+    private static final String MISSED_PASSES_NOTIF = "missed_passes";
+    private static final String STATE_NOTIF = "state";
+    private static final String METRICS_NOTIF = "metrics";
+    private static final String CONFIGURED_NOTIF = "configured";
+    private static final String CLUSTER_PASS_NOTIF = "cluster_pass";
+    private static final String SESSION_NOTIF = "session";
+    private static final String SETTINGS_NOTIF = "settings";
+    private static final String CLOCK_NOTIF = "clock";
+    private static final String ERROR_NOTIF = "error";
+
+    enum State {
+        STARTED, CONNECTED, STOPPED
+    }
+
+    private final BehaviorRelay<State> stateSubject = BehaviorRelay.create();
+    private final NetworkEngine engine;
+    private final RaceTracker raceTracker;
+    private final RssiStream rssiStream;
+    private final ExecutorService trackerExecutor;
+    private volatile RaceHistory history;
+    private volatile PassFeed passFeed;
+    private volatile Leaderboard leaderboard;
+    private volatile ClusterCoordinator cluster;
+    private final SettingsReconciler settings;
+    private Disposable trackerConnectedDisposable;
+    /**
+     * Pass latencies by stage, in microseconds.
+     */
+    private final LatencyStats parseLatency = new LatencyStats();
+    private final LatencyStats dispatchLatency = new LatencyStats();
+    private final LatencyStats writeLatency = new LatencyStats();
+    private final LatencyStats totalLatency = new LatencyStats();
+    private final TrackerClock trackerClock;
+    private final PassConsumers passConsumers;
+    /**
+     * Connections subscribed to the passes of any race.
+     */
+    private final Set<ClientConnection> passSubscribers = new CopyOnWriteArraySet<>();
+    /**
+     * Per connection timer tasks and race subscriptions, so leaks can be spotted.
+     */
+    private final AtomicInteger openTasks = new AtomicInteger();
+    private final AtomicInteger openRaces = new AtomicInteger();
+    private final Sessions sessions = new Sessions(passSubscribers, SESSION_TIMEOUT_MS, this::release);
+    private Timer timer;
+
+    public TimingServer(RaceTracker raceTracker) {
+        this(raceTracker, DEFAULT_DECODERS);
+    }
+
+    public TimingServer(RaceTracker raceTracker, int decoders) {
+        this(raceTracker, new InetSocketAddress(PORT), decoders, Executors.newCachedThreadPool());
+    }
+
+    /**
+     * @param trackerExecutor runs client requests, shut down when the server stops.
+     */
+    public TimingServer(RaceTracker raceTracker, InetSocketAddress address, int decoders, ExecutorService trackerExecutor) {
+        this(raceTracker, new JavaWebSocketEngine(address, decoders), trackerExecutor);
+    }
+
+    /**
+     * @param engine transport for the clients.
+     * @param trackerExecutor runs client requests, shut down when the server stops.
+     */
+    public TimingServer(RaceTracker raceTracker, NetworkEngine engine, ExecutorService trackerExecutor) {
+        this.engine = engine;
+        this.raceTracker = raceTracker;
+        this.rssiStream = new RssiStream(raceTracker);
+        this.trackerExecutor = trackerExecutor;
+        this.trackerClock = raceTracker.getClock();
+        this.settings = new SettingsReconciler(raceTracker, this::broadcastSettings);
+        this.passConsumers = new PassConsumers(raceTracker, new PassDispatcher());
+        stateSubject.accept(State.STOPPED);
+    }
+
+    public Observable<State> observeState() {
+        return stateSubject.subscribeOn(Schedulers.io()).skip(1);
+    }
+
+    public State getState() {
+        return stateSubject.getValue();
+    }
+
+    /**
+     * Returns immediately before the server has started.
+     */
+    public void start() {
+        timer = new Timer("Timing server heartbeat",true);
+        passConsumers.start();
+        trackerConnectedDisposable = raceTracker.observeConnectionState()
+                .startWith(raceTracker.getConnectionState())
+                .distinctUntilChanged()
+                .filter(state -> state == TrackerTransport.ConnectionState.CONNECTED)
+                .subscribe(state -> trackerExecutor.execute(settings::reconcile));
+        engine.start(this);
+    }
+
+    /**
+     * Returns when the server has stopped.
+     */
+    public void stop() {
+        try {
+            engine.stop();
+        } catch (IOException | InterruptedException e) {
+        }
+        if(timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        if(trackerConnectedDisposable != null) {
+            trackerConnectedDisposable.dispose();
+            trackerConnectedDisposable = null;
+        }
+        passConsumers.close();
+        trackerExecutor.shutdownNow();
+        stateSubject.accept(State.STOPPED);
+    }
+
+    @Override
+    public void onStart() {
+        stateSubject.accept(State.STARTED);
+    }
+
+    public Collection<ClientConnection> getConnections() {
+        return engine.getConnections();
+    }
+
+    @Override
+    public void onOpen(ClientConnection conn, String resource) {
+        String sessionId = queryParameter(resource, SESSION);
+        if(sessionId != null && sessions.resume(conn, sessionId, queryParameter(resource, SEQUENCE))) {
+            stateSubject.accept(State.CONNECTED);
+            return;
+        }
+        AttachmentData attachmentData = new AttachmentData(trackerExecutor, resource.startsWith(PASSIVE_PATH), new Topics(timer, openTasks));
+        conn.setAttachment(attachmentData);
+        attachmentData.requests.execute(() -> ensureHeartbeat(conn));
+        stateSubject.accept(State.CONNECTED);
+    }
+
+    @Override
+    public void onClose(ClientConnection conn) {
+        AttachmentData attachmentData = conn.getAttachment();
+        ResumableSession session = (attachmentData != null) ? attachmentData.session : null;
+        if(session != null) {
+            // kept, race and all, until resumed or expired
+            // notifications for the connection go to the session's current one, if any
+            sessions.detach(conn, attachmentData, timer);
+        } else {
+            if(attachmentData != null) {
+                conn.setAttachment(null);
+                attachmentData.requests.clear();
+                release(attachmentData);
+            }
+            passSubscribers.remove(conn);
+        }
+
+        if(getConnections().isEmpty()) {
+            stateSubject.accept(State.STARTED);
+        }
+    }
+
+    private void release(AttachmentData attachmentData) {
+        attachmentData.topics.stopAll();
+        attachmentData.stopRssiStream();
+        attachmentData.stopCalibration();
+        attachmentData.stopRace(null, passConsumers);
+    }
+
+    /**
+     * Runs on an engine thread, so only parses the message.
+     * Requests are handled in order, per connection, on the tracker executor.
+     */
+    @Override
+    public void onMessage(ClientConnection conn, String message) {
+        AttachmentData attachmentData = conn.getAttachment();
+        if(attachmentData == null || message.isEmpty()) {
+            return;
+        }
+
+        if (message.charAt(0) == '{') {
+            // JSON object
+            JSONObject json;
+            try {
+                json = new JSONObject(message);
+            } catch(JSONException ex) {
+                Log.w(LOG_TAG, "Invalid message: "+message, ex);
+                return;
+            }
+            if(isSetFrequency(json)) {
+                // a burst of set_frequency messages is applied as one batch
+                FrequencyBatch batch = attachmentData.frequencyBatch;
+                if(batch == null || !batch.add(json)) {
+                    FrequencyBatch newBatch = new FrequencyBatch(json);
+                    attachmentData.frequencyBatch = newBatch;
+                    attachmentData.requests.execute(() -> handle(conn, message, () -> setFrequencies(conn, newBatch)));
+                }
+            } else {
+                // keep requests in order
+                attachmentData.frequencyBatch = null;
+                attachmentData.requests.execute(() -> handle(conn, message, () -> set(conn, json)));
+            }
+        } else {
+            attachmentData.frequencyBatch = null;
+            // 'get' command
+            attachmentData.requests.execute(() -> handle(conn, message, () -> {
+                JSONObject result = get(conn, message);
+                if (result != null) {
+                    conn.send(result.toString());
+                }
+            }));
+        }
+    }
+
+    private void handle(ClientConnection conn, String message, Request request) {
+        if(!conn.isOpen()) {
+            return;
+        }
+        try {
+            request.run();
+        } catch(JSONException ex) {
+            // well-formed JSON but not a valid request, e.g. a missing or mistyped field
+            Log.w(LOG_TAG, "Invalid request: "+message, ex);
+            sendError(conn, message, ex.getMessage());
+        } catch(WebsocketNotConnectedException ex) {
+            // client has gone
+        } catch(Exception ex) {
+            if(!(ex.getCause() instanceof InterruptedException)) {
+                onError(conn, ex);
+            }
+            // else server stopping
+        }
+    }
+
+    private void sendError(ClientConnection conn, String message, String error) {
+        try {
+            JSONObject data = new JSONObject();
+            data.put(REQUEST, message);
+            data.put(ERROR, error);
+            sendNotification(conn, ERROR_NOTIF, data);
+        } catch(JSONException | WebsocketNotConnectedException ex) {
+            Log.w(LOG_TAG, "Error notification", ex);
+        }
+    }
+
+    private JSONObject get(ClientConnection conn, String action) throws JSONException {
+        switch (action) {
+            case "get_version":
+                ensureHeartbeat(conn);
+                return getVersion();
+            case "get_settings":
+                ensureHeartbeat(conn);
+                return getSettings();
+            case "get_timestamp": return getTimestamp();
+            case "get_history": return getHistory();
+            case "get_pass_feed": return getPassFeed();
+            case "get_latency": return getLatency();
+            case "get_cluster": return getCluster();
+        }
+        return null;
+    }
+
+    private JSONObject getVersion() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("major", MAJOR_VERSION);
+        json.put("minor", MINOR_VERSION);
+        return json;
+    }
+
+    /**
+     * Until the tracker has connected, any last known settings are served marked as provisional.
+     */
+    private JSONObject getSettings() throws JSONException {
+        if(raceTracker.getConnectionState() != TrackerTransport.ConnectionState.CONNECTED) {
+            SettingsSnapshot.Settings lastKnown = settings.getLastKnown();
+            if(lastKnown != null) {
+                JSONObject json = settingsToJson(lastKnown);
+                json.put(PROVISIONAL, true);
+                return json;
+            }
+        }
+
+        int nodeCount;
+        try {
+            nodeCount = raceTracker.getPilotCount();
+        } catch(Exception e) {
+            Log.w(LOG_TAG,"settings - pilot count", e);
+            nodeCount = 0;
+        }
+        int triggerRssi;
+        try {
+            triggerRssi = raceTracker.getTriggerRssi();
+        } catch (Exception e) {
+            Log.w(LOG_TAG,"settings - trigger RSSI", e);
+            triggerRssi = 0;
+        }
+
+        int[] freqs = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            try {
+                freqs[i] = raceTracker.getPilotFrequency(i);
+            } catch (Exception e) {
+                Log.w(LOG_TAG,"settings - pilot frequency", e);
+                freqs[i] = 0;
+            }
+        }
+        return settingsToJson(new SettingsSnapshot.Settings(triggerRssi, freqs));
+    }
+
+    private static JSONObject settingsToJson(SettingsSnapshot.Settings settings) throws JSONException {
+        int calibrationThreshold = 0;
+        int calibrationOffset = 0;
+
+        JSONArray nodesJson = new JSONArray();
+        for (int i = 0; i < settings.getPilotCount(); i++) {
+            JSONObject nodeJson = new JSONObject();
+            nodeJson.put(FREQUENCY, settings.getPilotFrequency(i));
+            nodeJson.put(TRIGGER_RSSI, settings.getTriggerRssi());
+            nodesJson.put(nodeJson);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("nodes", nodesJson);
+        json.put(CALIBRATION_THRESHOLD, calibrationThreshold);
+        json.put(CALIBRATION_OFFSET, calibrationOffset);
+        json.put(TRIGGER_THRESHOLD, settings.getTriggerRssi());
+        return json;
+    }
+
+    /**
+     * Tells clients of changed settings, as they may have been served something else provisionally.
+     */
+    private void broadcastSettings(SettingsSnapshot.Settings settings) {
+        List<ClientConnection> conns = new ArrayList<>();
+        for(ClientConnection conn : getConnections()) {
+            if(conn.getAttachment() != null) {
+                conns.add(conn);
+            }
+        }
+        try {
+            broadcastNotification(conns, SETTINGS_NOTIF, settingsToJson(settings));
+        } catch(JSONException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * The tracker's race timer now, from the clock model so without asking the tracker,
+     * and the model itself, for clients to map pass timestamps to wall clock time.
+     */
+    private JSONObject getTimestamp() throws JSONException {
+        JSONObject json = new JSONObject();
+        // 0 unless a race is running
+        json.put(TIMESTAMP, trackerClock.toTrackerMillis(System.nanoTime()));
+        if(trackerClock.isStarted()) {
+            clockToJson(json);
+            json.put(SAMPLES, trackerClock.getSamples());
+        }
+        return json;
+    }
+
+    /**
+     * Wall clock time = origin + timestamp * (1 + drift/1e6).
+     */
+    private void clockToJson(JSONObject json) throws JSONException {
+        json.put(ORIGIN, trackerClock.getOriginMillis());
+        json.put(DRIFT, Math.round(trackerClock.getDriftPpm()*10.0)/10.0);
+    }
+
+    /**
+     * Most recent heats.
+     */
+    private JSONObject getHistory() throws JSONException {
+        JSONObject json = new JSONObject();
+        RaceHistory raceHistory = history;
+        if(raceHistory != null) {
+            json.put(HEATS_QUERY, heatsToJson(raceHistory.getRecentHeats(DEFAULT_HISTORY_LIMIT)));
+        }
+        return json;
+    }
+
+    private JSONObject getPassFeed() throws JSONException {
+        JSONObject json = new JSONObject();
+        PassFeed feed = passFeed;
+        if(feed != null) {
+            json.put(GROUP, feed.getGroup().getAddress().getHostAddress());
+            json.put(PORT_KEY, feed.getGroup().getPort());
+            json.put(EPOCH, feed.getEpoch());
+            json.put(SEQUENCE, feed.getSequence());
+        }
+        return json;
+    }
+
+    private JSONObject getCluster() throws JSONException {
+        JSONObject json = new JSONObject();
+        JSONArray peersJson = new JSONArray();
+        ClusterCoordinator coordinator = cluster;
+        if(coordinator != null) {
+            for(ClusterCoordinator.Peer peer : coordinator.getPeers()) {
+                JSONObject peerJson = new JSONObject();
+                peerJson.put(PEER, peer.index);
+                peerJson.put("uri", peer.uri.toString());
+                peerJson.put("connected", peer.isConnected());
+                if(peer.getOffsetMillis() != Long.MAX_VALUE) {
+                    peerJson.put("offset", peer.getOffsetMillis());
+                    peerJson.put(DRIFT, Math.round(peer.getDriftPpm()*10.0)/10.0);
+                }
+                peerJson.put(PASSES, peer.getPasses());
+                peersJson.put(peerJson);
+            }
+        }
+        json.put(PEERS, peersJson);
+        return json;
+    }
+
+    /**
+     * Pass latency distributions by stage since the server started, in microseconds:
+     * parse (tracker notification to lap), dispatch (lap to web socket send, including the hand off through the pass ring),
+     * write (queuing the message on the web socket) and total.
+     * Also the passes dropped by the multicast feed and the subscribers watching, for falling too far behind.
+     */
+    private JSONObject getLatency() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(PARSE_STAGE, latencyToJson(parseLatency));
+        json.put(DISPATCH_STAGE, latencyToJson(dispatchLatency));
+        json.put(WRITE_STAGE, latencyToJson(writeLatency));
+        json.put(TOTAL, latencyToJson(totalLatency));
+        json.put(DROPPED, droppedToJson());
+        return json;
+    }
+
+    private JSONObject droppedToJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("feed", passConsumers.getFeedDropped());
+        json.put("subscribers", passConsumers.getSubscriberDropped());
+        return json;
+    }
+
+    private static JSONObject latencyToJson(LatencyStats stats) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", stats.getCount());
+        json.put("mean", stats.getMean());
+        json.put("p50", stats.getPercentile(0.5));
+        json.put("p90", stats.getPercentile(0.9));
+        json.put("p99", stats.getPercentile(0.99));
+        json.put("max", stats.getMax());
+        return json;
+    }
+
+    private static boolean isSetFrequency(JSONObject json) {
+        return json.length() == 2 && json.has(FREQUENCY) && json.optInt(NODE, -1) != -1;
+    }
+
+    /**
+     * Each applied set_frequency is still confirmed individually, as before.
+     * An invalid one, e.g. an unknown frequency or node, is answered with an error instead, without holding up the rest.
+     */
+    private void setFrequencies(ClientConnection conn, FrequencyBatch batch) throws JSONException {
+        ensureHeartbeat(conn);
+        List<JSONObject> requests = batch.drain();
+        RaceTracker.Configuration config = new RaceTracker.Configuration();
+        List<JSONObject> applied = new ArrayList<>(requests.size());
+        for(JSONObject request : requests) {
+            try {
+                int freq = request.getInt(FREQUENCY);
+                if(!RaceTracker.isValidFrequency(freq)) {
+                    throw new IllegalArgumentException("Unknown frequency: "+freq);
+                }
+                config.setPilotFrequency(request.getInt(NODE), freq);
+                applied.add(request);
+            } catch(JSONException | IllegalArgumentException ex) {
+                Log.w(LOG_TAG, "Invalid set_frequency: "+request, ex);
+                sendError(conn, request.toString(), ex.getMessage());
+            }
+        }
+        if(applied.isEmpty()) {
+            return;
+        }
+        raceTracker.configure(config);
+        for(JSONObject request : applied) {
+            sendNotification(conn, FREQUENCY_SET_NOTIF, request);
+        }
+        settings.applied(config);
+    }
+
+    private void configure(ClientConnection conn, JSONObject json) throws JSONException {
+        JSONObject result;
+        RaceTracker.Configuration config = new RaceTracker.Configuration();
+        boolean configured = false;
+        try {
+            JSONArray nodesJson = json.optJSONArray(NODES);
+            if(nodesJson != null) {
+                for(int i=0; i<nodesJson.length(); i++) {
+                    JSONObject nodeJson = nodesJson.getJSONObject(i);
+                    config.setPilotFrequency(nodeJson.getInt(NODE), nodeJson.getInt(FREQUENCY));
+                }
+            }
+            if(json.has(TRIGGER_THRESHOLD)) {
+                config.setTriggerRssi(json.getInt(TRIGGER_THRESHOLD));
+            }
+            if(json.has(MIN_LAP_TIME)) {
+                config.setMinimumLapTime(json.getInt(MIN_LAP_TIME));
+            }
+            int commands = raceTracker.configure(config);
+            configured = true;
+            result = json;
+            result.put(COMMANDS, commands);
+        } catch(IllegalArgumentException | JSONException | TrackerException ex) {
+            result = new JSONObject();
+            result.put(ERROR, ex.getMessage());
+        }
+        sendNotification(conn, CONFIGURED_NOTIF, result);
+        if(configured) {
+            settings.applied(config);
+        }
+    }
+
+    private void set(ClientConnection conn, JSONObject json) throws JSONException {
+        if(json.has(NODE)) {
+            int node = json.getInt(NODE);
+            if(node != -1) {
+                // set_frequency with extra keys
+                setFrequencies(conn, new FrequencyBatch(json));
+            } else {
+                // reset_auto_calibration
+                // closest thing to a start race message
+                // there is nothing equivalent to a stop race message besides any other message
+                AttachmentData attachmentData = conn.getAttachment();
+                attachmentData.topics.stop(HEARTBEAT_TOPIC);
+                attachmentData.stopRace(raceTracker, passConsumers);
+                RaceHistory raceHistory = history;
+                PassFeed feed = passFeed;
+                Leaderboard board = leaderboard;
+                if(board != null) {
+                    board.startHeat();
+                }
+                RaceHistory.Heat heat = (raceHistory != null) ? raceHistory.startHeat(raceTracker.getAddress()) : null;
+                PassConsumers.Race race = new PassConsumers.Race(conn, feed, raceHistory, heat, board);
+                attachmentData.race = race;
+                attachmentData.raceDisposable = raceTracker.startRace(RaceTracker.SHOTGUN_RACE)
+                    .doOnSubscribe(d -> openRaces.incrementAndGet())
+                    .doFinally(openRaces::decrementAndGet)
+                    .subscribe(
+                    pass -> passConsumers.publish(race, pass),
+                    ex -> Log.e(LOG_TAG, "Lap notification", ex)
+                );
+            }
+        } else {
+            if(!isSubscription(json)) {
+                ensureHeartbeat(conn);
+            }
+            for (Iterator<String> iter = json.keys(); iter.hasNext(); ) {
+                String key = iter.next();
+                switch(key) {
+                    case CALIBRATION_THRESHOLD:
+                        break;
+                    case CALIBRATION_OFFSET:
+                        break;
+                    case TRIGGER_THRESHOLD:
+                        int triggerRssi = json.getInt(key);
+                        raceTracker.setTriggerRssi(triggerRssi);
+                        sendNotification(conn, TRIGGER_THRESHOLD_SET_NOTIF, json);
+                        settings.applied(new RaceTracker.Configuration().setTriggerRssi(triggerRssi));
+                        break;
+                    case MIN_LAP_TIME:
+                        raceTracker.setMinimumLapTime(json.getInt(key));
+                        break;
+                    case RSSI_STREAM:
+                        setRssiStream(conn, json.getInt(key));
+                        break;
+                    case AUTO_CALIBRATION:
+                        autoCalibrate(conn, json.getString(key));
+                        break;
+                    case HISTORY:
+                        queryHistory(conn, json.getJSONObject(key));
+                        break;
+                    case LATENCY_TRACE:
+                        ((AttachmentData) conn.getAttachment()).latencyTrace = json.getBoolean(key);
+                        break;
+                    case MISSED_PASSES:
+                        sendMissedPasses(conn, json.getJSONObject(key));
+                        break;
+                    case SUBSCRIBE:
+                        subscribe(conn, json.getJSONObject(key));
+                        break;
+                    case CONFIGURE:
+                        configure(conn, json.getJSONObject(key));
+                        break;
+                    case RESUMABLE:
+                        if(json.getBoolean(key)) {
+                            startSession(conn);
+                        }
+                        break;
+                }
+            }
+        }
+    }
+
+    private void startSession(ClientConnection conn) throws JSONException {
+        ResumableSession session = sessions.start(conn);
+        JSONObject json = new JSONObject();
+        json.put(SESSION, session.id);
+        sendNotification(conn, SESSION_NOTIF, json);
+    }
+
+    /**
+     * @return null if absent.
+     */
+    static String queryParameter(String resource, String name) {
+        int query = resource.indexOf('?');
+        if(query == -1) {
+            return null;
+        }
+        for(String param : resource.substring(query + 1).split("&")) {
+            int sep = param.indexOf('=');
+            if(sep != -1 && param.substring(0, sep).equals(name)) {
+                return param.substring(sep + 1);
+            }
+        }
+        return null;
+    }
+
+    private void queryHistory(ClientConnection conn, JSONObject query) throws JSONException {
+        RaceHistory raceHistory = history;
+        if(raceHistory == null) {
+            Log.w(LOG_TAG, "History query but no history");
+            return;
+        }
+        String type = query.getString(QUERY);
+        int limit = query.optInt(LIMIT, DEFAULT_HISTORY_LIMIT);
+        JSONArray results;
+        switch (type) {
+            case BEST_LAPS_QUERY:
+                results = new JSONArray();
+                for(RaceHistory.Lap lap : raceHistory.getBestLaps(query.optInt(NODE, -1), query.optInt(FREQUENCY, 0), limit)) {
+                    results.put(lap.toJson());
+                }
+                break;
+            case HEATS_QUERY:
+                if(query.has(FROM) || query.has(TO)) {
+                    results = heatsToJson(raceHistory.getHeats(query.optLong(FROM, 0L), query.optLong(TO, Long.MAX_VALUE)));
+                } else {
+                    results = heatsToJson(raceHistory.getRecentHeats(limit));
+                }
+                break;
+            case PROGRESS_QUERY:
+                results = new JSONArray();
+                for(RaceHistory.NodeHeat nodeHeat : raceHistory.getProgress(query.getInt(NODE))) {
+                    results.put(nodeHeat.toJson());
+                }
+                break;
+            case EXPORT_QUERY:
+                exportHistory(conn, raceHistory, query.optString(FORMAT, RaceHistory.CSV));
+                return;
+            default:
+                Log.w(LOG_TAG, "Unknown history query: "+type);
+                return;
+        }
+        JSONObject json = new JSONObject();
+        json.put(QUERY, query);
+        json.put(RESULTS, results);
+        sendNotification(conn, HISTORY_NOTIF, json);
+    }
+
+    private static JSONArray heatsToJson(List<RaceHistory.Heat> heats) throws JSONException {
+        JSONArray heatsJson = new JSONArray();
+        for(RaceHistory.Heat heat : heats) {
+            heatsJson.put(heat.toJson());
+        }
+        return heatsJson;
+    }
+
+    private void exportHistory(ClientConnection conn, RaceHistory raceHistory, String format) throws JSONException {
+        try(ExportWriter out = new ExportWriter(conn, format)) {
+            raceHistory.export(out, format);
+        } catch(IOException ex) {
+            Log.w(LOG_TAG, "History export", ex);
+        } catch(IllegalArgumentException ex) {
+            Log.w(LOG_TAG, "History export: "+ex.getMessage());
+        }
+    }
+
+    /**
+     * Passes no longer retained, or from a previous epoch, are omitted.
+     */
+    private void sendMissedPasses(ClientConnection conn, JSONObject range) throws JSONException {
+        PassFeed feed = passFeed;
+        if(feed == null) {
+            Log.w(LOG_TAG, "Missed passes requested but no pass feed");
+            return;
+        }
+        JSONArray passesJson = new JSONArray();
+        if(range.getInt(EPOCH) == feed.getEpoch()) {
+            for(PassFeed.Pass pass : feed.getPasses(range.getInt(FROM), range.optInt(TO, Integer.MAX_VALUE))) {
+                JSONObject passJson = new JSONObject();
+                passJson.put(SEQUENCE, pass.sequence);
+                passJson.put(NODE, pass.node);
+                passJson.put(FREQUENCY, pass.frequency);
+                passJson.put(TIMESTAMP, pass.timestamp);
+                passesJson.put(passJson);
+            }
+        }
+        JSONObject json = new JSONObject();
+        json.put(EPOCH, feed.getEpoch());
+        json.put("passes", passesJson);
+        sendNotification(conn, MISSED_PASSES_NOTIF, json);
+    }
+
+    /**
+     * Topic management alone, which never stops a race.
+     */
+    private static boolean isSubscription(JSONObject json) {
+        return json.length() == 1 && json.has(SUBSCRIBE);
+    }
+
+    private void ensureHeartbeat(ClientConnection conn) {
+        AttachmentData attachmentData = conn.getAttachment();
+        if(attachmentData == null || attachmentData.passive) {
+            // closed, or never races
+            return;
+        }
+        // ensure any previous races are stopped
+        attachmentData.stopRace(raceTracker, passConsumers);
+        startHeartbeat(conn, attachmentData);
+    }
+
+    /**
+     * Starts the heartbeat if not already running.
+     */
+    private void startHeartbeat(ClientConnection conn, AttachmentData attachmentData) {
+        if(!attachmentData.topics.isScheduled(HEARTBEAT_TOPIC) && attachmentData.heartbeatIntervalMs > 0L) {
+            attachmentData.topics.schedule(new HeartbeatTask(conn, attachmentData.heartbeatThreshold),
+                    attachmentData.heartbeatDelayMs, attachmentData.heartbeatIntervalMs);
+        }
+    }
+
+    /**
+     * Topics not mentioned are left as they are.
+     */
+    private void subscribe(ClientConnection conn, JSONObject topics) throws JSONException {
+        AttachmentData attachmentData = conn.getAttachment();
+        for (Iterator<String> iter = topics.keys(); iter.hasNext(); ) {
+            String topic = iter.next();
+            JSONObject options = topics.optJSONObject(topic);
+            boolean subscribed = (options != null) || topics.optBoolean(topic, topics.optInt(topic, 0) != 0);
+            if(options == null) {
+                options = new JSONObject();
+            }
+            switch (topic) {
+                case HEARTBEAT_TOPIC:
+                    if(attachmentData.passive) {
+                        // reading RSSI would stop races
+                        Log.w(LOG_TAG, "Heartbeat not available to passive connections");
+                        break;
+                    }
+                    attachmentData.topics.stop(HEARTBEAT_TOPIC);
+                    attachmentData.heartbeatIntervalMs = subscribed ? topicInterval(options, DEFAULT_HEARTBEAT_INTERVAL_MS) : 0L;
+                    attachmentData.heartbeatDelayMs = attachmentData.heartbeatIntervalMs;
+                    attachmentData.heartbeatThreshold = options.optInt(THRESHOLD, -1);
+                    // only rescheduled, a racing connection gets it once its race is stopped
+                    if(attachmentData.raceDisposable == null) {
+                        startHeartbeat(conn, attachmentData);
+                    }
+                    break;
+                case RSSI_TOPIC:
+                    if(attachmentData.passive) {
+                        Log.w(LOG_TAG, "RSSI not available to passive connections");
+                        break;
+                    }
+                    setRssiStream(conn, subscribed ? options.optInt(RATE, DEFAULT_RSSI_RATE) : 0);
+                    break;
+                case STATE_TOPIC:
+                    if(subscribed) {
+                        attachmentData.topics.schedule(new StateTask(conn), 0L, topicInterval(options, DEFAULT_STATE_INTERVAL_MS));
+                    } else {
+                        attachmentData.topics.stop(STATE_TOPIC);
+                    }
+                    break;
+                case METRICS_TOPIC:
+                    if(subscribed) {
+                        attachmentData.topics.schedule(new MetricsTask(conn), 0L, topicInterval(options, DEFAULT_METRICS_INTERVAL_MS));
+                    } else {
+                        attachmentData.topics.stop(METRICS_TOPIC);
+                    }
+                    break;
+                case CLOCK_TOPIC:
+                    if(subscribed) {
+                        attachmentData.topics.schedule(new ClockTask(conn), 0L, topicInterval(options, DEFAULT_CLOCK_INTERVAL_MS));
+                    } else {
+                        attachmentData.topics.stop(CLOCK_TOPIC);
+                    }
+                    break;
+                case PASSES_TOPIC:
+                    if(subscribed) {
+                        passSubscribers.add(conn);
+                    } else {
+                        passSubscribers.remove(conn);
+                    }
+                    break;
+                default:
+                    Log.w(LOG_TAG, "Unknown topic: "+topic);
+            }
+        }
+    }
+
+    private static long topicInterval(JSONObject options, long defaultIntervalMs) {
+        return Topics.interval(options, INTERVAL, defaultIntervalMs, MIN_TOPIC_INTERVAL_MS);
+    }
+
+    private void sendHeartbeat(ClientConnection conn, int[] rssi) throws JSONException {
+        JSONArray rssiJson = new JSONArray();
+        for (int i = 0; i < rssi.length; i++) {
+            rssiJson.put(rssi[i]);
+        }
+        JSONObject json = new JSONObject();
+        json.put(CURRENT_RSSI, rssiJson);
+        sendNotification(conn, HEARTBEAT_NOTIF, json);
+    }
+
+    /**
+     * Only nodes that have changed by at least the threshold since they were last sent.
+     * @return false if nothing was sent.
+     */
+    private boolean sendHeartbeatDelta(ClientConnection conn, int[] rssi, int[] lastRssi, int threshold) throws JSONException {
+        JSONArray changesJson = new JSONArray();
+        for (int i = 0; i < rssi.length; i++) {
+            if (Math.abs(rssi[i] - lastRssi[i]) >= Math.max(threshold, 1)) {
+                JSONObject changeJson = new JSONObject();
+                changeJson.put(NODE, i);
+                changeJson.put(RSSI, rssi[i]);
+                changesJson.put(changeJson);
+                lastRssi[i] = rssi[i];
+            }
+        }
+        if (changesJson.length() == 0) {
+            return false;
+        }
+        JSONObject json = new JSONObject();
+        json.put(RSSI_CHANGES, changesJson);
+        sendNotification(conn, HEARTBEAT_NOTIF, json);
+        return true;
+    }
+
+    private int[] readRssi() {
+        int nodeCount = raceTracker.getPilotCount();
+        int[] rssi = new int[nodeCount];
+        if (nodeCount > 0) {
+            // rssi only available for the principal channel
+            rssi[0] = raceTracker.getRssi();
+        }
+        return rssi;
+    }
+
+    private void setRssiStream(ClientConnection conn, int rate) {
+        AttachmentData attachmentData = conn.getAttachment();
+        attachmentData.stopRssiStream();
+        if(rate > 0) {
+            attachmentData.rssiSubscription = rssiStream.subscribe(rate, (startMillis, intervalMillis, rssi, count) -> {
+                try {
+                    sendRssiStream(conn, startMillis, intervalMillis, rssi, count);
+                } catch (WebsocketNotConnectedException e) {
+                    attachmentData.stopRssiStream();
+                } catch (JSONException e) {
+                    // never expected to happen
+                    throw new AssertionError(e);
+                }
+            });
+        }
+    }
+
+    private void sendRssiStream(ClientConnection conn, long startMillis, long intervalMillis, int[] rssi, int count) throws JSONException {
+        JSONArray rssiJson = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            rssiJson.put(rssi[i]);
+        }
+        JSONObject json = new JSONObject();
+        // rssi only available for the principal channel
+        json.put(NODE, 0);
+        json.put(TIMESTAMP, startMillis);
+        json.put(INTERVAL, intervalMillis);
+        json.put(RSSI, rssiJson);
+        sendNotification(conn, RSSI_STREAM_NOTIF, json);
+    }
+
+    private void autoCalibrate(ClientConnection conn, String action) throws JSONException {
+        AttachmentData attachmentData = conn.getAttachment();
+        switch (action) {
+            case AUTO_CALIBRATION_START:
+                attachmentData.stopCalibration();
+                attachmentData.calibrator = new TriggerCalibrator();
+                attachmentData.calibrator.start(rssiStream);
+                break;
+            case AUTO_CALIBRATION_PROPOSE:
+            case AUTO_CALIBRATION_APPLY:
+                if(attachmentData.calibrator != null) {
+                    boolean apply = AUTO_CALIBRATION_APPLY.equals(action);
+                    TriggerCalibrator.Proposal proposal = attachmentData.calibrator.getProposal();
+                    if(apply) {
+                        attachmentData.stopCalibration();
+                    }
+                    sendCalibrationProposal(conn, proposal, apply);
+                }
+                break;
+            case AUTO_CALIBRATION_STOP:
+                attachmentData.stopCalibration();
+                break;
+        }
+    }
+
+    private void sendCalibrationProposal(ClientConnection conn, TriggerCalibrator.Proposal proposal, boolean apply) throws JSONException {
+        JSONObject json = new JSONObject();
+        if(proposal != null) {
+            if(apply) {
+                raceTracker.setTriggerRssi(proposal.triggerRssi);
+            }
+            json.put(TRIGGER_THRESHOLD, proposal.triggerRssi);
+            json.put(NOISE_FLOOR, proposal.noiseFloor);
+            json.put(MIN_PEAK, proposal.minPeak);
+            json.put(MAX_PEAK, proposal.maxPeak);
+            json.put(PASSES, proposal.passes);
+        } else {
+            json.put(PASSES, 0);
+        }
+        json.put(APPLIED, apply && proposal != null);
+        sendNotification(conn, TRIGGER_THRESHOLD_PROPOSED_NOTIF, json);
+        if(apply && proposal != null) {
+            JSONObject setJson = new JSONObject();
+            setJson.put(TRIGGER_THRESHOLD, proposal.triggerRssi);
+            sendNotification(conn, TRIGGER_THRESHOLD_SET_NOTIF, setJson);
+        }
+    }
+
+    private void sendPass(ClientConnection conn, PassRing.Pass pass, int freq) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(TIMESTAMP, pass.timestamp);
+        json.put(NODE, pass.node);
+        json.put(FREQUENCY, freq);
+        AttachmentData attachmentData = conn.getAttachment();
+        long sendingNanos = System.nanoTime();
+        if(attachmentData != null && attachmentData.latencyTrace) {
+            JSONObject traceJson = new JSONObject();
+            traceJson.put(RECEIVED, TimeUnit.NANOSECONDS.toMicros(pass.receivedNanos));
+            traceJson.put(PARSE_STAGE, TimeUnit.NANOSECONDS.toMicros(pass.parsedNanos - pass.receivedNanos));
+            traceJson.put(DISPATCH_STAGE, TimeUnit.NANOSECONDS.toMicros(sendingNanos - pass.parsedNanos));
+            json.put(TRACE, traceJson);
+        }
+        sendNotification(conn, PASS_RECORD_NOTIF, json);
+        long sentNanos = System.nanoTime();
+        parseLatency.record(TimeUnit.NANOSECONDS.toMicros(pass.parsedNanos - pass.receivedNanos));
+        dispatchLatency.record(TimeUnit.NANOSECONDS.toMicros(sendingNanos - pass.parsedNanos));
+        writeLatency.record(TimeUnit.NANOSECONDS.toMicros(sentNanos - sendingNanos));
+        totalLatency.record(TimeUnit.NANOSECONDS.toMicros(sentNanos - pass.receivedNanos));
+    }
+
+    /**
+     * To the subscribers watching, without any trace.
+     */
+    private void publishPass(ClientConnection racer, PassRing.Pass pass, int freq) throws JSONException {
+        if(passSubscribers.isEmpty()) {
+            return;
+        }
+        JSONObject json = new JSONObject();
+        json.put(TIMESTAMP, pass.timestamp);
+        json.put(NODE, pass.node);
+        json.put(FREQUENCY, freq);
+        AttachmentData racerData = racer.getAttachment();
+        List<ClientConnection> conns = new ArrayList<>(passSubscribers.size());
+        for(ClientConnection conn : passSubscribers) {
+            // a resumed racer has a new connection
+            if(conn != racer && (racerData == null || conn.getAttachment() != racerData)) {
+                conns.add(conn);
+            }
+        }
+        broadcastNotification(conns, PASS_RECORD_NOTIF, json);
+    }
+
+    /**
+     * Relays a pass of the merged cluster feed to the subscribers watching.
+     */
+    public void publishClusterPass(ClusterCoordinator.Pass pass) throws JSONException {
+        if(passSubscribers.isEmpty()) {
+            return;
+        }
+        JSONObject json = new JSONObject();
+        json.put(TIMESTAMP, pass.globalMillis);
+        json.put(PEER, pass.peer);
+        json.put(NODE, pass.node);
+        json.put(FREQUENCY, pass.frequency);
+        json.put(PEER_TIMESTAMP, pass.timestamp);
+        json.put(LATE, pass.late);
+        broadcastNotification(new ArrayList<>(passSubscribers), CLUSTER_PASS_NOTIF, json);
+    }
+
+    /**
+     * Encoded once for all the connections without a session, as those with one each have their own sequence.
+     */
+    private void broadcastNotification(List<ClientConnection> conns, String type, JSONObject data) throws JSONException {
+        List<ClientConnection> unsequenced = new ArrayList<>(conns.size());
+        for(ClientConnection conn : conns) {
+            AttachmentData attachmentData = conn.getAttachment();
+            if(attachmentData != null && attachmentData.session != null) {
+                sendNotification(conn, type, data);
+            } else {
+                unsequenced.add(conn);
+            }
+        }
+        if(!unsequenced.isEmpty()) {
+            JSONObject json = new JSONObject();
+            json.put("notification", type);
+            json.put("data", data);
+            engine.broadcast(json.toString(), unsequenced);
+        }
+    }
+
+    private void sendNotification(ClientConnection conn, String type, JSONObject data) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("notification", type);
+        json.put("data", data);
+        AttachmentData attachmentData = conn.getAttachment();
+        ResumableSession session = (attachmentData != null) ? attachmentData.session : null;
+        if(session != null && !HEARTBEAT_NOTIF.equals(type) && !RSSI_STREAM_NOTIF.equals(type)) {
+            session.send(json);
+        } else if(session != null) {
+            ClientConnection current = session.getConnection();
+            if(current != null) {
+                current.send(json.toString());
+            }
+        } else {
+            String notification = json.toString();
+            conn.send(notification);
+        }
+    }
+
+    /**
+     * Timer tasks, race subscriptions and RSSI streams held for connections,
+     * so none once every connection has closed.
+     */
+    public int getOpenSubscriptions() {
+        return openTasks.get() + openRaces.get() + rssiStream.getSubscriberCount();
+    }
+
+    public void setHistory(RaceHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Optional multicast of passes for LAN consumers.
+     */
+    public void setPassFeed(PassFeed passFeed) {
+        this.passFeed = passFeed;
+    }
+
+    /**
+     * Optional event standings, fed by every race.
+     */
+    public void setLeaderboard(Leaderboard leaderboard) {
+        this.leaderboard = leaderboard;
+    }
+
+    /**
+     * Optional, when acting as the coordinator of a cluster.
+     */
+    public void setCluster(ClusterCoordinator cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Optional last known tracker settings, kept up to date.
+     */
+    public void setSettingsSnapshot(SettingsSnapshot settingsSnapshot) {
+        settings.setSnapshot(settingsSnapshot);
+        if(settingsSnapshot != null && trackerConnectedDisposable != null
+                && raceTracker.getConnectionState() == TrackerTransport.ConnectionState.CONNECTED) {
+            // loaded after the tracker connected
+            trackerExecutor.execute(settings::reconcile);
+        }
+    }
+
+    @Override
+    public void onError(ClientConnection conn, Exception ex) {
+        Log.e(LOG_TAG, "Network error", ex);
+    }
+
+    final class HeartbeatTask extends Topics.Task {
+        final ClientConnection conn;
+        /**
+         * Negative for full heartbeats.
+         */
+        final int threshold;
+        int[] lastRssi;
+        boolean isFirst = true;
+
+        HeartbeatTask(ClientConnection conn, int threshold) {
+            super(HEARTBEAT_TOPIC);
+            this.conn = conn;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void run() {
+            AttachmentData attachmentData = conn.getAttachment();
+            if(attachmentData == null) {
+                cancel();
+                return;
+            }
+            // queued behind any pending requests so the timer thread never blocks on the tracker
+            attachmentData.requests.execute(this::beat);
+        }
+
+        private void beat() {
+            AttachmentData attachmentData = conn.getAttachment();
+            if(attachmentData == null || !isCurrent()) {
+                // stopped while queued
+                return;
+            }
+            try {
+                if(isFirst) {
+                    raceTracker.activateVRX();
+                    isFirst = false;
+                }
+                int[] rssi = readRssi();
+                if(threshold < 0) {
+                    sendHeartbeat(conn, rssi);
+                } else if(lastRssi == null || lastRssi.length != rssi.length) {
+                    // baseline for the deltas
+                    sendHeartbeat(conn, rssi);
+                    lastRssi = rssi;
+                } else {
+                    sendHeartbeatDelta(conn, rssi, lastRssi, threshold);
+                }
+            } catch (WebsocketNotConnectedException e) {
+                cancel();
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "heartbeat", e);
+            }
+        }
+    }
+
+    final class StateTask extends Topics.PollTask {
+        StateTask(ClientConnection conn) {
+            super(conn, STATE_TOPIC, STATE_NOTIF, TimingServer.this::sendNotification);
+        }
+
+        @Override
+        JSONObject poll() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("tracker", raceTracker.getConnectionState().name().toLowerCase(Locale.ROOT));
+            json.put("race_running", raceTracker.isRaceRunning());
+            json.put("connections", getConnections().size());
+            return json;
+        }
+    }
+
+    final class MetricsTask extends Topics.PollTask {
+        MetricsTask(ClientConnection conn) {
+            super(conn, METRICS_TOPIC, METRICS_NOTIF, TimingServer.this::sendNotification);
+        }
+
+        @Override
+        JSONObject poll() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("connections", getConnections().size());
+            json.put("pass_subscribers", passSubscribers.size());
+            json.put("open_subscriptions", getOpenSubscriptions());
+            json.put(PASSES, totalLatency.getCount());
+            json.put(TOTAL, latencyToJson(totalLatency));
+            json.put(DROPPED, droppedToJson());
+            return json;
+        }
+    }
+
+    /**
+     * Sent as the model changes, once a race has started.
+     */
+    final class ClockTask extends Topics.PollTask {
+        ClockTask(ClientConnection conn) {
+            super(conn, CLOCK_TOPIC, CLOCK_NOTIF, TimingServer.this::sendNotification);
+        }
+
+        @Override
+        JSONObject poll() throws JSONException {
+            JSONObject json = new JSONObject();
+            if(trackerClock.isStarted()) {
+                clockToJson(json);
+            }
+            return json;
+        }
+    }
+
+    /**
+     * Streams an export to a client as a sequence of notifications, the last flagged.
+     */
+    final class ExportWriter extends Writer {
+        final ClientConnection conn;
+        final String format;
+        final StringBuilder chunk = new StringBuilder(EXPORT_CHUNK_SIZE);
+
+        ExportWriter(ClientConnection conn, String format) {
+            this.conn = conn;
+            this.format = format;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            chunk.append(cbuf, off, len);
+            if(chunk.length() >= EXPORT_CHUNK_SIZE) {
+                send(false);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() throws IOException {
+            send(true);
+        }
+
+        private void send(boolean last) throws IOException {
+            try {
+                JSONObject json = new JSONObject();
+                json.put(FORMAT, format);
+                json.put(CHUNK, chunk.toString());
+                json.put(LAST, last);
+                sendNotification(conn, HISTORY_EXPORT_NOTIF, json);
+            } catch(JSONException ex) {
+                // never expected to happen
+                throw new AssertionError(ex);
+            } catch(WebsocketNotConnectedException ex) {
+                throw new IOException("Client has gone", ex);
+            }
+            chunk.setLength(0);
+        }
+    }
+
+    /**
+     * set_frequency messages received together, closed once being applied.
+     */
+    static final class FrequencyBatch {
+        private final List<JSONObject> requests = new ArrayList<>();
+        private boolean draining;
+
+        FrequencyBatch(JSONObject request) {
+            requests.add(request);
+        }
+
+        /**
+         * @return false if too late to join the batch.
+         */
+        synchronized boolean add(JSONObject request) {
+            if(draining) {
+                return false;
+            }
+            requests.add(request);
+            return true;
+        }
+
+        synchronized List<JSONObject> drain() {
+            draining = true;
+            return requests;
+        }
+    }
+
+    interface Request {
+        void run() throws JSONException;
+    }
+
+    private final class PassDispatcher implements PassConsumers.Dispatcher {
+        @Override
+        public void sendPass(ClientConnection racer, PassRing.Pass pass, int freq) throws JSONException {
+            TimingServer.this.sendPass(racer, pass, freq);
+        }
+
+        @Override
+        public void publishPass(ClientConnection racer, PassRing.Pass pass, int freq) throws JSONException {
+            TimingServer.this.publishPass(racer, pass, freq);
+        }
+    }
+
+    static final class AttachmentData {
+        final SerialExecutor requests;
+        final boolean passive;
+        volatile boolean latencyTrace;
+        /**
+         * Only used by the decoder thread.
+         */
+        FrequencyBatch frequencyBatch;
+        final Topics topics;
+        long heartbeatDelayMs = DEFAULT_HEARTBEAT_DELAY_MS;
+        long heartbeatIntervalMs = DEFAULT_HEARTBEAT_INTERVAL_MS;
+        int heartbeatThreshold = -1;
+        Disposable raceDisposable;
+        volatile ResumableSession session;
+        RssiStream.Subscription rssiSubscription;
+        PassConsumers.Race race;
+        TriggerCalibrator calibrator;
+
+        AttachmentData(Executor executor, boolean passive, Topics topics) {
+            this.requests = new SerialExecutor(executor);
+            this.passive = passive;
+            this.topics = topics;
+        }
+
+        void stopRssiStream() {
+            if (rssiSubscription != null) {
+                rssiSubscription.cancel();
+                rssiSubscription = null;
+            }
+        }
+
+        void stopCalibration() {
+            if (calibrator != null) {
+                calibrator.stop();
+                calibrator = null;
+            }
+        }
+
+        /**
+         * The race's passes are all journaled and sent to the racer before its heat ends and anything else is sent.
+         */
+        void stopRace(RaceTracker raceTracker, PassConsumers passConsumers) {
+            if(raceDisposable != null) {
+                raceDisposable.dispose();
+                raceDisposable = null;
+            }
+            if(race != null) {
+                passConsumers.end(race);
+                if(race.heat != null) {
+                    race.history.endHeat(race.heat);
+                }
+                race = null;
+            }
+            if(raceTracker != null) {
+                raceTracker.stopRace();
+            }
+        }
+    }
+
+    public static String getNetworkAddress() {
+        try {
+            Enumeration<NetworkInterface> intfIter = NetworkInterface.getNetworkInterfaces();
+            if (intfIter == null) {
+                return "No network interface - permissions?";
+            }
+            while (intfIter.hasMoreElements()) {
+                NetworkInterface intf = intfIter.nextElement();
+                if (intf.isUp() && !intf.isLoopback()) {
+                    for (Enumeration<InetAddress> addrIter = intf.getInetAddresses(); addrIter.hasMoreElements(); ) {
+                        InetAddress addr = addrIter.nextElement();
+                        if (!addr.isLoopbackAddress() && (addr instanceof Inet4Address)) {
+                            return addr.getHostAddress();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Get network address", e);
+        }
+        return "No IP address";
+    }
+}
@@ -0,0 +1,140 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The timer tasks of a connection's topic subscriptions, at most one per topic, counted while scheduled.
+ * Changing a subscription only reschedules its task.
+ */
+final class Topics {
+    private static final String LOG_TAG = "Topics";
+
+    interface Notifier {
+        void send(ClientConnection conn, String type, JSONObject data) throws JSONException;
+    }
+
+    private final Timer timer;
+    private final AtomicInteger openTasks;
+    private final Map<String,Task> tasks = new HashMap<>();
+
+    /**
+     * @param openTasks counts the tasks scheduled, across connections.
+     */
+    Topics(Timer timer, AtomicInteger openTasks) {
+        this.timer = timer;
+        this.openTasks = openTasks;
+    }
+
+    /**
+     * Replaces any task already scheduled for the topic.
+     */
+    synchronized void schedule(Task task, long delayMs, long intervalMs) {
+        stop(task.topic);
+        task.topics = this;
+        tasks.put(task.topic, task);
+        timer.schedule(task, delayMs, intervalMs);
+        openTasks.incrementAndGet();
+    }
+
+    synchronized boolean isScheduled(String topic) {
+        return tasks.containsKey(topic);
+    }
+
+    synchronized void stop(String topic) {
+        Task task = tasks.remove(topic);
+        if(task != null) {
+            task.cancel();
+        }
+    }
+
+    synchronized void stopAll() {
+        for(Task task : tasks.values()) {
+            task.cancel();
+        }
+        tasks.clear();
+    }
+
+    private synchronized boolean isCurrent(Task task) {
+        return tasks.get(task.topic) == task;
+    }
+
+    /**
+     * Interval requested in the subscription options, no shorter than the minimum.
+     */
+    static long interval(JSONObject options, String key, long defaultIntervalMs, long minIntervalMs) {
+        return Math.max(options.optLong(key, defaultIntervalMs), minIntervalMs);
+    }
+
+    abstract static class Task extends TimerTask {
+        final String topic;
+        private Topics topics;
+
+        Task(String topic) {
+            this.topic = topic;
+        }
+
+        /**
+         * @return false once stopped or replaced, e.g. while queued behind other work.
+         */
+        boolean isCurrent() {
+            Topics t = topics;
+            return t != null && t.isCurrent(this);
+        }
+
+        @Override
+        public boolean cancel() {
+            boolean wasScheduled = super.cancel();
+            if(wasScheduled && topics != null) {
+                topics.openTasks.decrementAndGet();
+            }
+            return wasScheduled;
+        }
+    }
+
+    /**
+     * Polls a topic that doesn't need the tracker, sending only when its value changes.
+     */
+    abstract static class PollTask extends Task {
+        final ClientConnection conn;
+        final String notification;
+        private final Notifier notifier;
+        private String lastSent;
+
+        PollTask(ClientConnection conn, String topic, String notification, Notifier notifier) {
+            super(topic);
+            this.conn = conn;
+            this.notification = notification;
+            this.notifier = notifier;
+        }
+
+        abstract JSONObject poll() throws JSONException;
+
+        @Override
+        public void run() {
+            if(conn.getAttachment() == null) {
+                cancel();
+                return;
+            }
+            try {
+                JSONObject json = poll();
+                String value = json.toString();
+                if(!value.equals(lastSent)) {
+                    notifier.send(conn, notification, json);
+                    lastSent = value;
+                }
+            } catch (WebsocketNotConnectedException e) {
+                cancel();
+            } catch (Exception e) {
+                Log.w(LOG_TAG, topic, e);
+            }
+        }
+    }
+}
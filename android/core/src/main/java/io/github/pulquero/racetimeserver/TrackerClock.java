@@ -0,0 +1,174 @@
+package io.github.pulquero.racetimeserver;
+
+/**
+ * Maps the tracker's race timer onto local monotonic time, from when lap notifications arrive.
+ * The rate (drift) is a least squares fit over the passes of the race, updated in constant time as each arrives,
+ * so it improves as the race goes on.
+ * Passes delivered well after the lower envelope, e.g. held up by a reconnection, are left out of the fit, as they would skew it.
+ * As notifications can only be delayed, never early, the offset follows the lower envelope of recent arrivals,
+ * and can't be before the race was started, if that was seen.
+ * Until there are enough passes for a fit, the tracker's clock is assumed to run at the local rate.
+ */
+final class TrackerClock {
+    /**
+     * Recent passes for the offset.
+     */
+    private static final int WINDOW = 64;
+    /**
+     * Shorter spans are dominated by notification delays.
+     */
+    private static final double MIN_FIT_SPAN_MS = 10000.0;
+    /**
+     * Beyond any crystal or resonator.
+     */
+    private static final double MAX_DRIFT = 0.005;
+    /**
+     * Beyond the usual notification jitter.
+     */
+    private static final double MAX_FIT_DELAY_MS = 250.0;
+
+    private final double[] xs = new double[WINDOW];
+    private final double[] ys = new double[WINDOW];
+    private int count;
+    private int next;
+    private double minX;
+    private double maxX;
+    private double sumX;
+    private double sumY;
+    private double sumXX;
+    private double sumXY;
+    private long samples;
+    private long fitted;
+    private long startNanos;
+    private long startWallMillis;
+    private boolean started;
+    /**
+     * Whether the race start was seen, bounding the offset.
+     */
+    private boolean bounded;
+    /**
+     * Local millis since start = offsetMillis + rate * tracker millis.
+     */
+    private double rate = 1.0;
+    private double offsetMillis;
+    /**
+     * Offset before any bound.
+     */
+    private double envelopeMillis;
+
+    /**
+     * @param startNanos when the race was requested, before the tracker's timer started from 0.
+     * @param startWallMillis wall clock time at the same moment.
+     */
+    synchronized void start(long startNanos, long startWallMillis) {
+        reset(startNanos, startWallMillis);
+        bounded = true;
+    }
+
+    /**
+     * For a tracker whose race start isn't seen, e.g. a peer's, from the first pass of the race.
+     */
+    synchronized void start(long trackerMillis, long receivedNanos, long receivedWallMillis) {
+        reset(receivedNanos, receivedWallMillis);
+        bounded = false;
+        observe(trackerMillis, receivedNanos);
+    }
+
+    private void reset(long startNanos, long startWallMillis) {
+        this.startNanos = startNanos;
+        this.startWallMillis = startWallMillis;
+        started = true;
+        count = 0;
+        next = 0;
+        minX = Double.MAX_VALUE;
+        maxX = -Double.MAX_VALUE;
+        sumX = sumY = sumXX = sumXY = 0.0;
+        samples = 0L;
+        fitted = 0L;
+        rate = 1.0;
+        offsetMillis = 0.0;
+        envelopeMillis = 0.0;
+    }
+
+    synchronized void observe(long trackerMillis, long receivedNanos) {
+        if(!started) {
+            return;
+        }
+        double x = trackerMillis;
+        double y = (receivedNanos - startNanos)/1e6;
+        xs[next] = x;
+        ys[next] = y;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+        samples++;
+        if(fitted == 0L || y - rate*x - envelopeMillis <= MAX_FIT_DELAY_MS) {
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            sumX += x;
+            sumY += y;
+            sumXX += x*x;
+            sumXY += x*y;
+            fitted++;
+        }
+
+        double varX = sumXX - sumX*sumX/fitted;
+        if(maxX - minX >= MIN_FIT_SPAN_MS && varX > 0.0) {
+            double slope = (sumXY - sumX*sumY/fitted)/varX;
+            rate = Math.max(1.0 - MAX_DRIFT, Math.min(slope, 1.0 + MAX_DRIFT));
+        } else {
+            rate = 1.0;
+        }
+        double envelope = Double.MAX_VALUE;
+        for(int i=0; i<count; i++) {
+            envelope = Math.min(envelope, ys[i] - rate*xs[i]);
+        }
+        envelopeMillis = envelope;
+        offsetMillis = bounded ? Math.max(envelope, 0.0) : envelope;
+    }
+
+    /**
+     * Until the next race, once the tracker's timer is no longer running.
+     */
+    synchronized void stop() {
+        started = false;
+    }
+
+    synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @return 0 if no race is running.
+     */
+    synchronized long toTrackerMillis(long nanos) {
+        if(!started) {
+            return 0L;
+        }
+        return Math.max(Math.round(((nanos - startNanos)/1e6 - offsetMillis)/rate), 0L);
+    }
+
+    /**
+     * Wall clock time of a tracker timer reading.
+     */
+    synchronized long toWallMillis(long trackerMillis) {
+        return startWallMillis + Math.round(offsetMillis + rate*trackerMillis);
+    }
+
+    /**
+     * Wall clock time of the tracker's timer reading 0.
+     */
+    synchronized long getOriginMillis() {
+        return startWallMillis + Math.round(offsetMillis);
+    }
+
+    /**
+     * Parts per million the tracker's clock runs slow, negative if fast.
+     */
+    synchronized double getDriftPpm() {
+        return (rate - 1.0)*1e6;
+    }
+
+    synchronized long getSamples() {
+        return samples;
+    }
+}
@@ -0,0 +1,20 @@
+package io.github.pulquero.racetimeserver;
+
+/**
+ * Failure communicating with a RaceTracker.
+ */
+public class TrackerException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public TrackerException(String msg) {
+        super(msg);
+    }
+
+    public TrackerException(Throwable cause) {
+        super(cause);
+    }
+
+    public TrackerException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
@@ -0,0 +1,37 @@
+package io.github.pulquero.racetimeserver;
+
+import io.reactivex.Observable;
+import io.reactivex.Single;
+
+/**
+ * An established connection to a RaceTracker.
+ * Commands are written to the write characteristic (FFF1)
+ * and responses are read from, or notified on, the read characteristic (FFF2).
+ * Link failures are reported as {@link TrackerException}s.
+ */
+public interface TrackerLink {
+    /**
+     * The data may be reused once the write completes, so must be copied if kept.
+     */
+    Single<byte[]> write(byte[] data);
+
+    Single<byte[]> read();
+
+    /**
+     * Notifications are stamped as they arrive, so the time does not include any hand off to other threads.
+     */
+    Observable<Notification> notifications();
+
+    final class Notification {
+        final byte[] data;
+        /**
+         * Monotonic time the notification arrived from the tracker.
+         */
+        final long receivedNanos;
+
+        Notification(byte[] data, long receivedNanos) {
+            this.data = data;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
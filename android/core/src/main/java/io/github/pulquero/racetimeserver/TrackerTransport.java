@@ -0,0 +1,23 @@
+package io.github.pulquero.racetimeserver;
+
+import io.reactivex.Observable;
+
+/**
+ * Link to a RaceTracker, e.g. Android BLE, a serial bridge or an in-process simulator.
+ */
+public interface TrackerTransport {
+    enum ConnectionState {
+        CONNECTING, CONNECTED, DISCONNECTED, DISCONNECTING
+    }
+
+    String getAddress();
+
+    Observable<ConnectionState> observeConnectionState();
+
+    ConnectionState getConnectionState();
+
+    /**
+     * Connects on subscription and disconnects on disposal.
+     */
+    Observable<TrackerLink> establishConnection();
+}
@@ -0,0 +1,161 @@
+package io.github.pulquero.racetimeserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary log of tracker link traffic.
+ * Header: magic "RTR", version, wall clock millis at start.
+ * Record: type (W write FFF1, R read FFF2, N notification FFF2), varint nanos since the previous record,
+ * value length and the value up to its null terminator.
+ */
+public final class TrafficRecording {
+    public static final byte WRITE = 'W';
+    public static final byte READ = 'R';
+    public static final byte NOTIFICATION = 'N';
+    private static final byte[] MAGIC = {'R', 'T', 'R'};
+    private static final byte VERSION = 1;
+
+    private TrafficRecording() {
+    }
+
+    public static final class Record {
+        public final byte type;
+        /**
+         * Since the start of the recording.
+         */
+        public final long nanos;
+        public final byte[] data;
+
+        Record(byte type, long nanos, byte[] data) {
+            this.type = type;
+            this.nanos = nanos;
+            this.data = data;
+        }
+    }
+
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final long startNanos;
+        private long lastNanos;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.out.write(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeLong(System.currentTimeMillis());
+            this.startNanos = System.nanoTime();
+            this.lastNanos = startNanos;
+        }
+
+        public synchronized void write(byte type, byte[] data) throws IOException {
+            long now = System.nanoTime();
+            int len = 0;
+            while(len < data.length && data[len] != 0) {
+                len++;
+            }
+            out.writeByte(type);
+            writeVarLong(Math.max(now - lastNanos, 0L));
+            out.writeByte(len);
+            out.write(data, 0, len);
+            lastNanos = now;
+        }
+
+        private void writeVarLong(long v) throws IOException {
+            while((v & ~0x7FL) != 0L) {
+                out.writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long startMillis;
+        private long nanos;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            for(byte b : MAGIC) {
+                if(this.in.readByte() != b) {
+                    throw new IOException("Not a traffic recording");
+                }
+            }
+            int version = this.in.readByte();
+            if(version != VERSION) {
+                throw new IOException("Unsupported recording version: "+version);
+            }
+            this.startMillis = this.in.readLong();
+        }
+
+        /**
+         * Wall clock time the recording started.
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return null at the end of the recording.
+         */
+        public Record read() throws IOException {
+            int type = in.read();
+            if(type == -1) {
+                return null;
+            }
+            try {
+                nanos += readVarLong();
+                int len = in.readUnsignedByte();
+                byte[] data = new byte[RaceTracker.MAX_DATA_SIZE];
+                in.readFully(data, 0, len);
+                return new Record((byte) type, nanos, data);
+            } catch(EOFException ex) {
+                // truncated, e.g. not closed cleanly
+                return null;
+            }
+        }
+
+        public List<Record> readAll() throws IOException {
+            List<Record> records = new ArrayList<>();
+            for(Record record; (record = read()) != null; ) {
+                records.add(record);
+            }
+            return records;
+        }
+
+        private long readVarLong() throws IOException {
+            long v = 0L;
+            for(int shift = 0; ; shift += 7) {
+                int b = in.readUnsignedByte();
+                v |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
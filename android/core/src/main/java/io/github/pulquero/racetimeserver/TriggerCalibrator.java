@@ -0,0 +1,107 @@
+package io.github.pulquero.racetimeserver;
+
+/**
+ * Proposes a trigger RSSI from fly-bys recorded during practice.
+ * Runs an online noise floor and peak detector over the RSSI stream using constant memory.
+ */
+public class TriggerCalibrator implements RssiStream.Listener {
+    /**
+     * Samples used to settle the noise floor before looking for fly-bys.
+     */
+    private static final int WARM_UP_SAMPLES = 20;
+    private static final double FLOOR_ALPHA = 0.05;
+    /**
+     * Minimum rise above the noise floor to be considered a fly-by.
+     */
+    private static final int MIN_RISE = 10;
+    private static final double DEVIATIONS = 4.0;
+    /**
+     * Position of the trigger between the noise floor and the weakest fly-by peak.
+     */
+    private static final double TRIGGER_FRACTION = 0.5;
+
+    private RssiStream.Subscription subscription;
+    private long samples;
+    private double floor;
+    private double deviation;
+    private boolean inPass;
+    private int passPeak;
+    private int passes;
+    private int minPeak = Integer.MAX_VALUE;
+    private int maxPeak = Integer.MIN_VALUE;
+
+    public synchronized void start(RssiStream rssiStream) {
+        if(subscription == null) {
+            subscription = rssiStream.subscribe(RssiStream.MAX_RATE_HZ, this);
+        }
+    }
+
+    public synchronized void stop() {
+        if(subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+    }
+
+    @Override
+    public synchronized void onRssi(long startMillis, long intervalMillis, int[] rssi, int count) {
+        for(int i=0; i<count; i++) {
+            add(rssi[i]);
+        }
+    }
+
+    void add(int rssi) {
+        samples++;
+        if(samples == 1) {
+            floor = rssi;
+            return;
+        }
+
+        int enterLevel = (int) Math.round(floor + Math.max(MIN_RISE, DEVIATIONS*deviation));
+        if(inPass) {
+            passPeak = Math.max(passPeak, rssi);
+            // exit once back below half way to the peak
+            if(rssi < (floor + passPeak)/2.0) {
+                inPass = false;
+                passes++;
+                minPeak = Math.min(minPeak, passPeak);
+                maxPeak = Math.max(maxPeak, passPeak);
+            }
+        } else if(samples > WARM_UP_SAMPLES && rssi >= enterLevel) {
+            inPass = true;
+            passPeak = rssi;
+        } else {
+            double delta = rssi - floor;
+            floor += FLOOR_ALPHA*delta;
+            deviation += FLOOR_ALPHA*(Math.abs(delta) - deviation);
+        }
+    }
+
+    /**
+     * @return null if no fly-bys have been recorded.
+     */
+    public synchronized Proposal getProposal() {
+        if(passes == 0) {
+            return null;
+        }
+        int noiseFloor = (int) Math.round(floor);
+        int trigger = (int) Math.round(floor + TRIGGER_FRACTION*(minPeak - floor));
+        return new Proposal(trigger, noiseFloor, minPeak, maxPeak, passes);
+    }
+
+    public static final class Proposal {
+        public final int triggerRssi;
+        public final int noiseFloor;
+        public final int minPeak;
+        public final int maxPeak;
+        public final int passes;
+
+        Proposal(int triggerRssi, int noiseFloor, int minPeak, int maxPeak, int passes) {
+            this.triggerRssi = triggerRssi;
+            this.noiseFloor = noiseFloor;
+            this.minPeak = minPeak;
+            this.maxPeak = maxPeak;
+            this.passes = passes;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The merge is driven directly from the test thread, standing in for the executor, so times are exact.
+ */
+public class ClusterCoordinatorTest {
+    private static final long TIMEOUT_SECS = 5L;
+    private static final long WINDOW_MS = 100L;
+
+    private final List<ClusterCoordinator.Pass> released = new ArrayList<>();
+    private ClusterCoordinator coordinator;
+
+    @After
+    public void tearDown() {
+        if(coordinator != null) {
+            coordinator.close();
+        }
+    }
+
+    @Test
+    public void peerAddressesDefaultToThePassiveFeed() throws Exception {
+        coordinator = new ClusterCoordinator(ClusterCoordinator.parsePeers("ws://10.0.0.1:5001, ws://10.0.0.2:5001/other"), WINDOW_MS, released::add);
+        assertEquals(URI.create("ws://10.0.0.1:5001"+TimingServer.PASSIVE_PATH), coordinator.getPeers().get(0).uri);
+        assertEquals(URI.create("ws://10.0.0.2:5001/other"), coordinator.getPeers().get(1).uri);
+    }
+
+    @Test
+    public void offsetFollowsTheFastestDeliveryUntilTheNextHeat() {
+        ClusterCoordinator.Peer peer = newCoordinator(1).getPeers().get(0);
+        assertEquals(Long.MAX_VALUE, peer.getOffsetMillis());
+        assertEquals(2100L, align(peer, 0, 5800, 1000L, 2100L).globalMillis);
+        // delayed, so the offset stays
+        assertEquals(3000L, align(peer, 0, 5800, 1900L, 3050L).globalMillis);
+        assertEquals(1100L, peer.getOffsetMillis());
+        // faster, so the offset improves
+        assertEquals(3020L, align(peer, 0, 5800, 2000L, 3020L).globalMillis);
+        assertEquals(1020L, peer.getOffsetMillis());
+        // tracker time restarted
+        assertEquals(5000L, align(peer, 0, 5800, 500L, 5000L).globalMillis);
+        assertEquals(4500L, peer.getOffsetMillis());
+        assertEquals(4L, peer.getPasses());
+    }
+
+    @Test
+    public void peerDriftIsFittedOverTheHeat() {
+        ClusterCoordinator.Peer peer = newCoordinator(1).getPeers().get(0);
+        Random random = new Random(3L);
+        // the peer's tracker runs 1000ppm slow, so a minute behind by 60ms
+        ClusterCoordinator.Pass last = null;
+        for(long ts=1000L; ts<=60000L; ts+=1000L) {
+            long exact = 500L + Math.round(ts*1.001);
+            // with the odd slow delivery
+            long delay = (ts % 7000L == 0L) ? 200L : random.nextInt(5);
+            last = align(peer, 0, 5800, ts, exact + delay);
+        }
+        assertEquals(1000.0, peer.getDriftPpm(), 100.0);
+        assertEquals(500L + 60060L, last.globalMillis, 5L);
+    }
+
+    @Test
+    public void passesAreHeldUntilTheWatermark() {
+        newCoordinator(2);
+        coordinator.merge(pass(0, 1000L));
+        coordinator.merge(pass(1, 1200L));
+        coordinator.release(999L);
+        assertTrue(released.isEmpty());
+        coordinator.release(1000L);
+        assertReleased(1000L);
+        coordinator.release(1199L);
+        assertReleased(1000L);
+        coordinator.release(1300L);
+        assertReleased(1000L, 1200L);
+    }
+
+    @Test
+    public void peersAreMergedInTimeOrder() {
+        newCoordinator(3);
+        // interleaved differently from their times, as if delivered with varying delays
+        coordinator.merge(pass(0, 1000L));
+        coordinator.merge(pass(0, 1300L));
+        coordinator.merge(pass(1, 1100L));
+        coordinator.merge(pass(2, 1050L));
+        coordinator.merge(pass(1, 1250L));
+        coordinator.merge(pass(2, 1400L));
+        coordinator.release(2000L);
+        assertReleased(1000L, 1050L, 1100L, 1250L, 1300L, 1400L);
+        assertPeers(0, 2, 1, 1, 0, 2);
+    }
+
+    @Test
+    public void tiesGoToTheLowerPeer() {
+        newCoordinator(3);
+        coordinator.merge(pass(2, 1000L));
+        coordinator.merge(pass(1, 1000L));
+        coordinator.merge(pass(0, 1000L));
+        coordinator.release(1000L);
+        assertPeers(0, 1, 2);
+    }
+
+    @Test
+    public void improvedOffsetReordersAPeersBuffer() {
+        ClusterCoordinator.Peer peer = newCoordinator(2).getPeers().get(0);
+        coordinator.merge(align(peer, 0, 5800, 1000L, 1100L));
+        coordinator.merge(align(peer, 1, 5840, 1100L, 1300L));
+        coordinator.merge(pass(1, 1150L));
+        // delivered faster, so earlier than one already buffered
+        coordinator.merge(align(peer, 2, 5880, 1150L, 1160L));
+        coordinator.release(2000L);
+        assertReleased(1100L, 1150L, 1160L, 1200L);
+        assertPeers(0, 1, 0, 0);
+        assertEquals(2, released.get(2).node);
+        assertEquals(1, released.get(3).node);
+    }
+
+    @Test
+    public void passBehindTheFeedIsReleasedLate() {
+        newCoordinator(2);
+        coordinator.merge(pass(0, 1000L));
+        coordinator.release(1000L);
+        coordinator.merge(pass(1, 990L));
+        coordinator.merge(pass(1, 1000L));
+        assertReleased(1000L, 990L, 1000L);
+        assertFalse(released.get(0).late);
+        assertTrue(released.get(1).late);
+        assertTrue(released.get(2).late);
+
+        coordinator.merge(pass(1, 1001L));
+        assertEquals(3, released.size());
+        coordinator.release(1001L);
+        assertFalse(released.get(3).late);
+    }
+
+    @Test
+    public void randomDeliveryIsMergedInOrder() {
+        int peers = 4;
+        newCoordinator(peers);
+        Random random = new Random(7L);
+        long[] next = new long[peers];
+        long watermark = 0L;
+        int expected = 0;
+        for(int i=0; i<2000; i++) {
+            int p = random.nextInt(peers);
+            next[p] = Math.max(next[p], watermark + 1L) + random.nextInt(50);
+            coordinator.merge(pass(p, next[p]));
+            expected++;
+            if(i % 10 == 0) {
+                watermark += random.nextInt(40);
+                coordinator.release(watermark);
+            }
+        }
+        coordinator.release(Long.MAX_VALUE);
+        assertEquals(expected, released.size());
+        for(int i=1; i<released.size(); i++) {
+            assertFalse(released.get(i).late);
+            assertTrue(released.get(i - 1).globalMillis <= released.get(i).globalMillis);
+        }
+    }
+
+    @Test
+    public void peerPassesAreReleasedAfterTheReorderWindow() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch connected = new CountDownLatch(1);
+        BlockingQueue<ClusterCoordinator.Pass> feed = new LinkedBlockingQueue<>();
+        WebSocketServer peer = new WebSocketServer(new InetSocketAddress("localhost", 0)) {
+            @Override
+            public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            }
+
+            @Override
+            public void onMessage(WebSocket conn, String message) {
+                // the subscription
+                connected.countDown();
+            }
+
+            @Override
+            public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            }
+
+            @Override
+            public void onError(WebSocket conn, Exception ex) {
+            }
+
+            @Override
+            public void onStart() {
+                started.countDown();
+            }
+        };
+        peer.setReuseAddr(true);
+        peer.start();
+        try {
+            assertTrue(started.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+            coordinator = new ClusterCoordinator(Arrays.asList(URI.create("ws://localhost:"+peer.getPort())), WINDOW_MS, feed::add);
+            coordinator.start();
+            assertTrue(connected.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+            assertTrue(coordinator.getPeers().get(0).isConnected());
+
+            long sentMillis = System.currentTimeMillis();
+            for(int i=1; i<=3; i++) {
+                peer.broadcast("{\"notification\": \"pass_record\", \"data\": {\"node\": "+i+", \"frequency\": 5800, \"timestamp\": "+(i*1000)+"}}");
+            }
+            for(int i=1; i<=3; i++) {
+                ClusterCoordinator.Pass pass = feed.poll(TIMEOUT_SECS, TimeUnit.SECONDS);
+                assertNotNull(pass);
+                assertEquals(i, pass.node);
+                assertEquals(i*1000L, pass.timestamp);
+                assertFalse(pass.late);
+            }
+            assertTrue(System.currentTimeMillis() - sentMillis >= WINDOW_MS);
+            assertEquals(3L, coordinator.getPeers().get(0).getPasses());
+        } finally {
+            coordinator.close();
+            peer.stop();
+        }
+    }
+
+    private ClusterCoordinator newCoordinator(int peers) {
+        List<URI> uris = new ArrayList<>();
+        for(int i=0; i<peers; i++) {
+            uris.add(URI.create("ws://localhost:"+(5001 + i)));
+        }
+        // never started, so nothing else touches the merge
+        coordinator = new ClusterCoordinator(uris, WINDOW_MS, released::add);
+        return coordinator;
+    }
+
+    private static ClusterCoordinator.Pass align(ClusterCoordinator.Peer peer, int node, int frequency, long timestamp, long arrivalMillis) {
+        return peer.align(node, frequency, timestamp, arrivalMillis*1000000L, arrivalMillis);
+    }
+
+    private static ClusterCoordinator.Pass pass(int peer, long globalMillis) {
+        return new ClusterCoordinator.Pass(peer, 0, 5800, globalMillis, globalMillis);
+    }
+
+    private void assertReleased(long... expected) {
+        assertEquals(expected.length, released.size());
+        for(int i=0; i<expected.length; i++) {
+            assertEquals(expected[i], released.get(i).globalMillis);
+        }
+    }
+
+    private void assertPeers(int... expected) {
+        assertEquals(expected.length, released.size());
+        for(int i=0; i<expected.length; i++) {
+            assertEquals(expected[i], released.get(i).peer);
+        }
+    }
+}
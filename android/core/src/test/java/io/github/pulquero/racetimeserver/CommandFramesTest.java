@@ -0,0 +1,110 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class CommandFramesTest {
+    private final CommandFrames frames = new CommandFrames();
+
+    @Test
+    public void internedFramesAreNullPadded() {
+        byte[] frame = CommandFrames.intern("Z 25");
+        assertEquals(RaceTracker.MAX_DATA_SIZE, frame.length);
+        assertEquals("Z 25", RaceTracker.bytesToString(frame));
+        for(int i=4; i<frame.length; i++) {
+            assertEquals(0, frame[i]);
+        }
+    }
+
+    @Test
+    public void numbersAreDecimal() {
+        assertFormatted("0", 0);
+        assertFormatted("7", 7);
+        assertFormatted("10", 10);
+        assertFormatted("-95", -95);
+        assertFormatted("2147483647", Integer.MAX_VALUE);
+        assertFormatted("-2147483648", Integer.MIN_VALUE);
+    }
+
+    @Test
+    public void partsAreAppended() {
+        byte[] frame = frames.acquire();
+        int pos = CommandFrames.put(frame, 0, "N");
+        pos = CommandFrames.put(frame, pos, CommandFrames.SPACE);
+        pos = CommandFrames.put(frame, pos, 3);
+        pos = CommandFrames.put(frame, pos, CommandFrames.SPACE);
+        pos = CommandFrames.put(frame, pos, "C");
+        pos = CommandFrames.put(frame, pos, 8);
+        assertEquals(6, pos);
+        assertEquals("N 3 C8", RaceTracker.bytesToString(frame));
+    }
+
+    @Test
+    public void overlongFramesAreRejected() {
+        byte[] frame = frames.acquire();
+        // room for the null terminator only
+        int pos = CommandFrames.put(frame, 0, "0123456789012345678");
+        try {
+            CommandFrames.put(frame, pos, (byte) '9');
+            fail("Expected rejection");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+        try {
+            CommandFrames.put(frame, 15, 12345);
+            fail("Expected rejection");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+        try {
+            CommandFrames.intern("01234567890123456789");
+            fail("Expected rejection");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void releasedFramesAreReusedCleared() {
+        byte[] frame = frames.acquire();
+        CommandFrames.put(frame, 0, "T 120");
+        frames.release(frame);
+        byte[] reused = frames.acquire();
+        assertSame(frame, reused);
+        assertEquals("", RaceTracker.bytesToString(reused));
+        for(byte b : reused) {
+            assertEquals(0, b);
+        }
+        assertNotSame(reused, frames.acquire());
+    }
+
+    @Test
+    public void poolIsBounded() {
+        byte[][] acquired = new byte[10][];
+        for(int i=0; i<acquired.length; i++) {
+            acquired[i] = frames.acquire();
+        }
+        for(byte[] frame : acquired) {
+            frames.release(frame);
+        }
+        // only the first few released are kept
+        for(int i=0; i<4; i++) {
+            assertSame(acquired[i], frames.acquire());
+        }
+        byte[] fresh = frames.acquire();
+        for(byte[] frame : acquired) {
+            assertNotSame(frame, fresh);
+        }
+    }
+
+    private void assertFormatted(String expected, int value) {
+        byte[] frame = frames.acquire();
+        assertEquals(expected.length(), CommandFrames.put(frame, 0, value));
+        assertEquals(expected, RaceTracker.bytesToString(frame));
+        frames.release(frame);
+    }
+}
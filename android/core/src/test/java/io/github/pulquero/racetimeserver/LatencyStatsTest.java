@@ -0,0 +1,106 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyStatsTest {
+    private final LatencyStats stats = new LatencyStats();
+
+    @Test
+    public void emptyStatsAreZero() {
+        assertEquals(0L, stats.getCount());
+        assertEquals(0L, stats.getMean());
+        assertEquals(0L, stats.getMax());
+        assertEquals(0L, stats.getPercentile(0.99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for(long v=0L; v<64L; v++) {
+            stats.record(v);
+        }
+        assertEquals(64L, stats.getCount());
+        assertEquals(63L, stats.getMax());
+        assertEquals(31L, stats.getMean());
+        assertEquals(0L, stats.getPercentile(0.0));
+        assertEquals(31L, stats.getPercentile(0.5));
+        assertEquals(63L, stats.getPercentile(1.0));
+    }
+
+    @Test
+    public void largerValuesAreWithinTheBucketResolution() {
+        Random random = new Random(5L);
+        for(int i=0; i<10000; i++) {
+            long v = 64L + (long) (random.nextDouble()*random.nextDouble()*1e9);
+            LatencyStats single = new LatencyStats();
+            single.record(v);
+            // so the percentile is the bucket bound rather than the max
+            single.record(Long.MAX_VALUE/2);
+            long bound = single.getPercentile(0.5);
+            assertTrue(v+" in "+bound, bound >= v);
+            assertTrue(v+" in "+bound, bound <= v + v/32L + 1L);
+        }
+    }
+
+    @Test
+    public void percentilesFollowTheDistribution() {
+        // 1 to 1000 ms
+        for(long ms=1L; ms<=1000L; ms++) {
+            stats.record(ms*1000L);
+        }
+        assertPercentile(500000L, stats.getPercentile(0.5));
+        assertPercentile(900000L, stats.getPercentile(0.9));
+        assertPercentile(990000L, stats.getPercentile(0.99));
+        assertEquals(1000000L, stats.getPercentile(1.0));
+        assertEquals(1000000L, stats.getMax());
+        assertEquals(500500L, stats.getMean());
+    }
+
+    @Test
+    public void outliersOnlyMoveTheTail() {
+        for(int i=0; i<990; i++) {
+            stats.record(2000L);
+        }
+        for(int i=0; i<10; i++) {
+            stats.record(5000000L);
+        }
+        assertPercentile(2000L, stats.getPercentile(0.5));
+        assertPercentile(2000L, stats.getPercentile(0.99));
+        assertEquals(5000000L, stats.getPercentile(0.999));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        stats.record(-5L);
+        assertEquals(1L, stats.getCount());
+        assertEquals(0L, stats.getMax());
+        assertEquals(0L, stats.getPercentile(0.5));
+    }
+
+    @Test
+    public void hugeValuesAreKept() {
+        stats.record(Long.MAX_VALUE/2);
+        assertEquals(Long.MAX_VALUE/2, stats.getMax());
+        assertEquals(Long.MAX_VALUE/2, stats.getPercentile(1.0));
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        stats.record(100L);
+        stats.record(200L);
+        stats.reset();
+        assertEquals(0L, stats.getCount());
+        assertEquals(0L, stats.getMax());
+        assertEquals(0L, stats.getPercentile(0.5));
+        stats.record(10L);
+        assertEquals(10L, stats.getPercentile(0.5));
+    }
+
+    private static void assertPercentile(long expected, long actual) {
+        assertTrue(expected+" ~ "+actual, actual >= expected && actual <= expected + expected/32L + 1L);
+    }
+}
@@ -0,0 +1,262 @@
+package io.github.pulquero.racetimeserver;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LeaderboardServerTest {
+    private static final int TIMEOUT_MS = 10000;
+
+    private final Leaderboard leaderboard = new Leaderboard();
+    private LeaderboardServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LeaderboardServer(leaderboard, new InetSocketAddress("localhost", 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void standingsCarryTheVersionAsETag() throws Exception {
+        leaderboard.recordPass(0, 5800, 0L);
+        leaderboard.recordPass(0, 5800, 20000L);
+        Response response = get(LeaderboardServer.STANDINGS_PATH, null);
+        assertEquals("HTTP/1.1 200 OK", response.status);
+        assertEquals("\"1\"", response.headers.get("etag"));
+        assertEquals("application/json", response.headers.get("content-type"));
+        JSONObject json = new JSONObject(response.body);
+        assertEquals(1L, json.getLong("version"));
+        assertEquals(5800, json.getJSONArray("standings").getJSONObject(0).getInt("frequency"));
+    }
+
+    @Test
+    public void unchangedStandingsAreNotModified() throws Exception {
+        leaderboard.recordPass(0, 5800, 0L);
+        leaderboard.recordPass(0, 5800, 20000L);
+        Response response = get(LeaderboardServer.STANDINGS_PATH, "\"1\"");
+        assertEquals("HTTP/1.1 304 Not Modified", response.status);
+        assertEquals("", response.body);
+
+        leaderboard.recordPass(0, 5800, 38000L);
+        response = get(LeaderboardServer.STANDINGS_PATH, "\"1\"");
+        assertEquals("HTTP/1.1 200 OK", response.status);
+        assertEquals("\"2\"", response.headers.get("etag"));
+    }
+
+    @Test
+    public void queryIsIgnored() throws Exception {
+        assertEquals("HTTP/1.1 200 OK", get(LeaderboardServer.STANDINGS_PATH+"?overlay=1", null).status);
+    }
+
+    @Test
+    public void unknownPathIsNotFound() throws Exception {
+        assertEquals("HTTP/1.1 404 Not Found", get("/other", null).status);
+    }
+
+    @Test
+    public void onlyGetIsAllowed() throws Exception {
+        try(Socket socket = connect()) {
+            socket.getOutputStream().write("POST /leaderboard HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            assertEquals("HTTP/1.1 405 Method Not Allowed", readResponse(socket).status);
+        }
+    }
+
+    @Test
+    public void streamStartsWithTheCurrentStandings() throws Exception {
+        leaderboard.recordPass(0, 5800, 0L);
+        leaderboard.recordPass(1, 5840, 0L);
+        leaderboard.recordPass(0, 5800, 20000L);
+        leaderboard.recordPass(1, 5840, 21000L);
+        try(Socket socket = connect()) {
+            BufferedReader in = openStream(socket);
+            Event event = readEvent(in);
+            assertEquals("standings", event.type);
+            assertEquals(2L, event.id);
+            assertEquals(2, new JSONObject(event.data).getJSONArray("standings").length());
+
+            leaderboard.recordPass(0, 5800, 39000L);
+            event = readEvent(in);
+            assertEquals("update", event.type);
+            assertEquals(3L, event.id);
+            JSONObject update = new JSONObject(event.data);
+            assertEquals(19000L, update.getLong("lap_time"));
+            assertTrue(update.getBoolean("improved"));
+        }
+    }
+
+    /**
+     * Whether or not the client keeps up, every version after the standings it was last sent is accounted for, in order:
+     * updates follow on one by one and a resync of the standings only ever moves forward.
+     */
+    @Test
+    public void streamStaysInOrderWhilePassesArrive() throws Exception {
+        int passes = 5000;
+        // the holeshots aren't laps
+        for(int node=0; node<8; node++) {
+            leaderboard.recordPass(node, 5800, 0L);
+        }
+        try(Socket socket = connect()) {
+            socket.getOutputStream().write(("GET "+LeaderboardServer.EVENTS_PATH+" HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            // racing the stream's registration and first standings
+            Thread recorder = new Thread(() -> {
+                for(int i=1; i<=passes; i++) {
+                    leaderboard.recordPass(i % 8, 5800, i*1000L);
+                }
+            });
+            recorder.start();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            skipHeaders(in);
+
+            Event event = readEvent(in);
+            assertEquals("standings", event.type);
+            long last = event.id;
+            while(last < passes) {
+                event = readEvent(in);
+                if("update".equals(event.type)) {
+                    assertEquals("update after "+last, last + 1, event.id);
+                } else {
+                    assertEquals("standings", event.type);
+                    assertTrue("resync to "+event.id+" after "+last, event.id > last);
+                    assertEquals(event.id, new JSONObject(event.data).getLong("version"));
+                }
+                last = event.id;
+            }
+            recorder.join();
+        }
+    }
+
+    @Test
+    public void stalledStreamClientIsDropped() throws Exception {
+        server.writeTimeoutMillis = 200L;
+        // big standings, so a resync soon fills the socket buffers
+        for(int node=0; node<5000; node++) {
+            leaderboard.recordPass(node, 5800, 0L);
+            leaderboard.recordPass(node, 5800, 20000L + node);
+        }
+        try(Socket socket = connect()) {
+            socket.setReceiveBufferSize(1024);
+            socket.getOutputStream().write(("GET "+LeaderboardServer.EVENTS_PATH+" HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while(server.getStreamCount() == 0) {
+                assertTrue("Not streaming", System.currentTimeMillis() < deadline);
+                Thread.sleep(1L);
+            }
+            // never read, so updates overflow and resyncs block
+            long ts = 40000L;
+            while(server.getStreamCount() > 0) {
+                assertTrue("Stalled client kept", System.currentTimeMillis() < deadline);
+                leaderboard.recordPass(0, 5800, ts += 10000L);
+            }
+        }
+    }
+
+    @Test
+    public void closeEndsStreams() throws Exception {
+        try(Socket socket = connect()) {
+            BufferedReader in = openStream(socket);
+            readEvent(in);
+            server.close();
+            assertNull(in.readLine());
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(TIMEOUT_MS);
+        return socket;
+    }
+
+    private Response get(String path, String ifNoneMatch) throws IOException {
+        try(Socket socket = connect()) {
+            String request = "GET "+path+" HTTP/1.1\r\nHost: localhost\r\n";
+            if(ifNoneMatch != null) {
+                request += "If-None-Match: "+ifNoneMatch+"\r\n";
+            }
+            socket.getOutputStream().write((request+"\r\n").getBytes(StandardCharsets.US_ASCII));
+            return readResponse(socket);
+        }
+    }
+
+    private static Response readResponse(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Response response = new Response();
+        response.status = in.readLine();
+        for(String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine()) {
+            int sep = line.indexOf(':');
+            response.headers.put(line.substring(0, sep).toLowerCase(), line.substring(sep + 1).trim());
+        }
+        StringBuilder body = new StringBuilder();
+        for(int c = in.read(); c != -1; c = in.read()) {
+            body.append((char) c);
+        }
+        response.body = body.toString();
+        return response;
+    }
+
+    private static BufferedReader openStream(Socket socket) throws IOException {
+        socket.getOutputStream().write(("GET "+LeaderboardServer.EVENTS_PATH+" HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        skipHeaders(in);
+        return in;
+    }
+
+    private static void skipHeaders(BufferedReader in) throws IOException {
+        assertEquals("HTTP/1.1 200 OK", in.readLine());
+        boolean eventStream = false;
+        for(String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine()) {
+            eventStream |= line.equals("Content-Type: text/event-stream");
+        }
+        assertTrue(eventStream);
+    }
+
+    /**
+     * Skips keep alive comments.
+     */
+    private static Event readEvent(BufferedReader in) throws IOException {
+        Event event = new Event();
+        for(String line = in.readLine(); line != null; line = in.readLine()) {
+            if(line.isEmpty()) {
+                if(event.type != null) {
+                    return event;
+                }
+            } else if(line.startsWith("event: ")) {
+                event.type = line.substring(7);
+            } else if(line.startsWith("id: ")) {
+                event.id = Long.parseLong(line.substring(4));
+            } else if(line.startsWith("data: ")) {
+                event.data = line.substring(6);
+            }
+        }
+        throw new IOException("Stream ended");
+    }
+
+    static final class Response {
+        String status;
+        final Map<String,String> headers = new HashMap<>();
+        String body;
+    }
+
+    static final class Event {
+        String type;
+        long id;
+        String data;
+    }
+}
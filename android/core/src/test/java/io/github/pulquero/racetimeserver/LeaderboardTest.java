@@ -0,0 +1,267 @@
+package io.github.pulquero.racetimeserver;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LeaderboardTest {
+    private final Leaderboard leaderboard = new Leaderboard();
+
+    @Test
+    public void ranksMatchAReferenceSortThroughManyUpdates() {
+        Random random = new Random(42L);
+        int pilots = 200;
+        long[] best = new long[pilots];
+        long[] bestVersion = new long[pilots];
+        Arrays.fill(best, Long.MAX_VALUE);
+        for(int version=1; version<=5000; version++) {
+            int pilot = random.nextInt(pilots);
+            long lap = 10000L + random.nextInt(5000);
+            // a heat per lap, from the holeshot at the start, so the timestamp is the lap time
+            leaderboard.startHeat();
+            // each pilot on their own frequency of one node, so only the frequency tells them apart
+            holeshot(0, 5000 + pilot);
+            Leaderboard.Update update = leaderboard.recordPass(0, 5000 + pilot, lap);
+            if(lap < best[pilot]) {
+                best[pilot] = lap;
+                bestVersion[pilot] = version;
+            }
+            if(version % 250 == 0) {
+                assertMatchesReference(best, bestVersion);
+            }
+            assertEquals(version, update.version);
+        }
+        assertMatchesReference(best, bestVersion);
+    }
+
+    @Test
+    public void lapsAreTimedFromThePreviousPassOfTheSameNode() {
+        assertNull(leaderboard.recordPass(0, 5800, 2000L));
+        assertNull(leaderboard.recordPass(1, 5840, 3000L));
+        assertEquals(18000L, leaderboard.recordPass(0, 5800, 20000L).lapMillis);
+        assertEquals(18000L, leaderboard.recordPass(1, 5840, 21000L).lapMillis);
+        assertEquals(15000L, leaderboard.recordPass(0, 5800, 35000L).lapMillis);
+        assertEquals(16000L, leaderboard.recordPass(1, 5840, 37000L).lapMillis);
+    }
+
+    @Test
+    public void holeshotIsNotRanked() {
+        assertNull(leaderboard.recordPass(0, 5800, 1500L));
+        assertEquals(0, leaderboard.size());
+        assertEquals(0L, leaderboard.getVersion());
+        assertEquals(0, leaderboard.getRank(0, 5800));
+
+        Leaderboard.Update lap = leaderboard.recordPass(0, 5800, 21500L);
+        assertEquals(20000L, lap.lapMillis);
+        assertEquals(1, lap.entry.getLaps());
+        assertEquals(1, leaderboard.getRank(0, 5800));
+    }
+
+    @Test
+    public void startHeatRestartsLapTimes() {
+        holeshot(0, 5800);
+        leaderboard.recordPass(0, 5800, 20000L);
+        leaderboard.startHeat();
+        assertNull(leaderboard.recordPass(0, 5800, 2000L));
+        assertEquals(18000L, leaderboard.recordPass(0, 5800, 20000L).lapMillis);
+        assertEquals(1, leaderboard.size());
+    }
+
+    @Test
+    public void updatesReportRankChanges() {
+        holeshot(0, 5800);
+        holeshot(1, 5840);
+        Leaderboard.Update first = leaderboard.recordPass(0, 5800, 20000L);
+        assertTrue(first.improved);
+        assertEquals(0, first.previousRank);
+        assertEquals(1, first.rank);
+
+        Leaderboard.Update faster = leaderboard.recordPass(1, 5840, 15000L);
+        assertEquals(1, faster.rank);
+        assertEquals(2, leaderboard.getRank(0, 5800));
+
+        Leaderboard.Update slower = leaderboard.recordPass(0, 5800, 45000L);
+        assertFalse(slower.improved);
+        assertEquals(2, slower.previousRank);
+        assertEquals(2, slower.rank);
+        assertEquals(20000L, slower.entry.getBestMillis());
+        assertEquals(2, slower.entry.getLaps());
+
+        Leaderboard.Update fastest = leaderboard.recordPass(0, 5800, 55000L);
+        assertTrue(fastest.improved);
+        assertEquals(2, fastest.previousRank);
+        assertEquals(1, fastest.rank);
+        assertEquals(2, leaderboard.getRank(1, 5840));
+        assertEquals(0, leaderboard.getRank(7, 5800));
+    }
+
+    @Test
+    public void tiesGoToWhoeverSetTheTimeFirst() {
+        holeshot(0, 5800);
+        holeshot(1, 5840);
+        leaderboard.recordPass(0, 5800, 20000L);
+        leaderboard.recordPass(1, 5840, 20000L);
+        assertEquals(1, leaderboard.getRank(0, 5800));
+        assertEquals(2, leaderboard.getRank(1, 5840));
+    }
+
+    @Test
+    public void sameNodeOnAnotherFrequencyIsAnotherEntry() {
+        holeshot(0, 5800);
+        leaderboard.recordPass(0, 5800, 20000L);
+        leaderboard.startHeat();
+        holeshot(0, 5740);
+        leaderboard.recordPass(0, 5740, 19000L);
+        assertEquals(2, leaderboard.size());
+        assertEquals(1, leaderboard.getRank(0, 5740));
+        assertEquals(2, leaderboard.getRank(0, 5800));
+    }
+
+    @Test
+    public void standingsArePaged() {
+        for(int node=0; node<8; node++) {
+            holeshot(node, 5800);
+            leaderboard.recordPass(node, 5800, 20000L - node*1000L);
+        }
+        List<Leaderboard.Entry> page = leaderboard.getStandings(3, 4);
+        assertEquals(4, page.size());
+        assertEquals(5, page.get(0).node);
+        assertEquals(2, page.get(3).node);
+        assertEquals(2, leaderboard.getStandings(7, 10).size());
+        assertTrue(leaderboard.getStandings(9, 10).isEmpty());
+    }
+
+    @Test
+    public void jsonIsRenderedOncePerVersion() throws Exception {
+        holeshot(0, 5800);
+        holeshot(1, 5840);
+        leaderboard.recordPass(0, 5800, 20000L);
+        leaderboard.recordPass(1, 5840, 18000L);
+        String json = leaderboard.toJsonString();
+        assertSame(json, leaderboard.toJsonString());
+
+        JSONObject parsed = new JSONObject(json);
+        assertEquals(2L, parsed.getLong("version"));
+        JSONArray standings = parsed.getJSONArray("standings");
+        assertEquals(1, standings.getJSONObject(0).getInt("node"));
+        assertEquals(1, standings.getJSONObject(0).getInt("rank"));
+        assertEquals(18000L, standings.getJSONObject(0).getLong("best_lap"));
+
+        leaderboard.recordPass(0, 5800, 60000L);
+        assertNotSame(json, leaderboard.toJsonString());
+    }
+
+    @Test
+    public void updateJsonIsAsOfThatUpdate() throws Exception {
+        holeshot(0, 5800);
+        Leaderboard.Update first = leaderboard.recordPass(0, 5800, 20000L);
+        leaderboard.recordPass(0, 5800, 35000L);
+        JSONObject json = first.toJson();
+        assertEquals(20000L, json.getLong("best_lap"));
+        assertEquals(1, json.getInt("laps"));
+        assertEquals(1L, json.getLong("version"));
+    }
+
+    @Test
+    public void listenersSeeEveryVersionInOrder() {
+        List<Long> versions = new ArrayList<>();
+        leaderboard.addListener(update -> versions.add(update.version));
+        holeshot(0, 5800);
+        holeshot(1, 5800);
+        for(int i=1; i<=5; i++) {
+            leaderboard.recordPass(i % 2, 5800, i*10000L);
+        }
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), versions);
+    }
+
+    @Test
+    public void concurrentPassesKeepRanksConsistent() throws InterruptedException {
+        int nodes = 8;
+        int passesPerNode = 500;
+        AtomicInteger updates = new AtomicInteger();
+        leaderboard.addListener(update -> updates.incrementAndGet());
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for(int n=0; n<nodes; n++) {
+            int node = n;
+            Thread t = new Thread(() -> {
+                Random random = new Random(node);
+                long ts = 0L;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // the holeshot, then the laps
+                leaderboard.recordPass(node, 5800 + node, ts);
+                for(int i=0; i<passesPerNode; i++) {
+                    ts += 10000L + random.nextInt(10000);
+                    leaderboard.recordPass(node, 5800 + node, ts);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for(Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(nodes*passesPerNode, updates.get());
+        assertEquals(nodes*passesPerNode, leaderboard.getVersion());
+        assertEquals(nodes, leaderboard.size());
+        List<Leaderboard.Entry> standings = leaderboard.getStandings(1, nodes);
+        for(int rank=1; rank<=nodes; rank++) {
+            Leaderboard.Entry entry = standings.get(rank - 1);
+            assertEquals(passesPerNode, entry.getLaps());
+            assertEquals(rank, leaderboard.getRank(entry.node, entry.frequency));
+            if(rank > 1) {
+                assertTrue(standings.get(rank - 2).getBestMillis() <= entry.getBestMillis());
+            }
+        }
+    }
+
+    private void holeshot(int node, int frequency) {
+        assertNull(leaderboard.recordPass(node, frequency, 0L));
+    }
+
+    private void assertMatchesReference(long[] best, long[] bestVersion) {
+        List<Integer> expected = new ArrayList<>();
+        for(int pilot=0; pilot<best.length; pilot++) {
+            if(best[pilot] != Long.MAX_VALUE) {
+                expected.add(pilot);
+            }
+        }
+        Collections.sort(expected, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer p1, Integer p2) {
+                int cmp = Long.compare(best[p1], best[p2]);
+                return cmp != 0 ? cmp : Long.compare(bestVersion[p1], bestVersion[p2]);
+            }
+        });
+        assertEquals(expected.size(), leaderboard.size());
+        List<Leaderboard.Entry> standings = leaderboard.getStandings(1, expected.size());
+        for(int i=0; i<expected.size(); i++) {
+            int pilot = expected.get(i);
+            assertEquals(5000 + pilot, standings.get(i).frequency);
+            assertEquals(best[pilot], standings.get(i).getBestMillis());
+            assertEquals(i + 1, leaderboard.getRank(0, 5000 + pilot));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LinkSchedulerTest {
+    private static final long TIMEOUT_MS = 5000L;
+
+    private final LinkScheduler scheduler = new LinkScheduler();
+    private final List<String> granted = new CopyOnWriteArrayList<>();
+    private final List<Throwable> failures = new CopyOnWriteArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for(Thread t : threads) {
+            t.interrupt();
+            t.join(TIMEOUT_MS);
+        }
+    }
+
+    @Test
+    public void linkIsExclusive() throws InterruptedException {
+        scheduler.acquire(LinkScheduler.Priority.COMMAND);
+        Thread waiter = startWaiter(LinkScheduler.Priority.RACE, "race");
+        awaitBlocked(waiter);
+        assertTrue(granted.isEmpty());
+        scheduler.release();
+        waiter.join(TIMEOUT_MS);
+        assertEquals(Arrays.asList("race"), granted);
+    }
+
+    @Test
+    public void higherPrioritiesGoFirst() throws InterruptedException {
+        scheduler.acquire(LinkScheduler.Priority.RACE);
+        // queued lowest first
+        awaitBlocked(startWaiter(LinkScheduler.Priority.BACKGROUND, "background"));
+        awaitBlocked(startWaiter(LinkScheduler.Priority.COMMAND, "command"));
+        awaitBlocked(startWaiter(LinkScheduler.Priority.RACE, "race"));
+        scheduler.release();
+        joinAll();
+        assertEquals(Arrays.asList("race", "command", "background"), granted);
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void samePriorityTakesTurnsInArrivalOrder() throws InterruptedException {
+        scheduler.acquire(LinkScheduler.Priority.RACE);
+        List<String> expected = new ArrayList<>();
+        for(int i=0; i<5; i++) {
+            awaitBlocked(startWaiter(LinkScheduler.Priority.COMMAND, "command"+i));
+            expected.add("command"+i);
+        }
+        scheduler.release();
+        joinAll();
+        assertEquals(expected, granted);
+    }
+
+    @Test
+    public void suspendedBackgroundTrafficIsRefused() {
+        scheduler.setBackgroundSuspended(true);
+        try {
+            scheduler.acquire(LinkScheduler.Priority.BACKGROUND);
+            fail("Expected refusal");
+        } catch(TrackerException ex) {
+            // expected
+        }
+        // other traffic still goes
+        scheduler.acquire(LinkScheduler.Priority.COMMAND);
+        scheduler.release();
+        scheduler.setBackgroundSuspended(false);
+        scheduler.acquire(LinkScheduler.Priority.BACKGROUND);
+        scheduler.release();
+    }
+
+    @Test
+    public void suspendingRefusesWaitingBackgroundTraffic() throws InterruptedException {
+        scheduler.acquire(LinkScheduler.Priority.RACE);
+        Thread background = startWaiter(LinkScheduler.Priority.BACKGROUND, "background");
+        awaitBlocked(background);
+        awaitBlocked(startWaiter(LinkScheduler.Priority.COMMAND, "command"));
+        scheduler.setBackgroundSuspended(true);
+        background.join(TIMEOUT_MS);
+        assertFalse(background.isAlive());
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof TrackerException);
+        scheduler.release();
+        joinAll();
+        assertEquals(Arrays.asList("command"), granted);
+    }
+
+    @Test
+    public void interruptedWaiterLeavesTheQueue() throws InterruptedException {
+        scheduler.acquire(LinkScheduler.Priority.RACE);
+        Thread first = startWaiter(LinkScheduler.Priority.COMMAND, "first");
+        awaitBlocked(first);
+        awaitBlocked(startWaiter(LinkScheduler.Priority.COMMAND, "second"));
+        first.interrupt();
+        first.join(TIMEOUT_MS);
+        assertEquals(1, failures.size());
+        scheduler.release();
+        joinAll();
+        assertEquals(Arrays.asList("second"), granted);
+    }
+
+    @Test
+    public void backgroundRateIsBudgeted() {
+        LinkScheduler.Priority p = LinkScheduler.Priority.BACKGROUND;
+        int extra = 3;
+        long start = System.nanoTime();
+        for(int i=0; i<p.burst + extra; i++) {
+            scheduler.acquire(p);
+            scheduler.release();
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long minMs = (long) (1000.0*extra/p.rate);
+        // allow for the initial burst refilling a little meanwhile
+        assertTrue("Took "+elapsedMs+"ms", elapsedMs >= minMs*8/10);
+    }
+
+    @Test
+    public void raceTrafficIsUnlimited() {
+        long start = System.nanoTime();
+        for(int i=0; i<1000; i++) {
+            scheduler.acquire(LinkScheduler.Priority.RACE);
+            scheduler.release();
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS));
+    }
+
+    private Thread startWaiter(LinkScheduler.Priority priority, String name) {
+        Thread t = new Thread(() -> {
+            try {
+                scheduler.acquire(priority);
+            } catch(TrackerException ex) {
+                failures.add(ex);
+                return;
+            }
+            granted.add(name);
+            scheduler.release();
+        }, name);
+        threads.add(t);
+        t.start();
+        return t;
+    }
+
+    private static void awaitBlocked(Thread t) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(System.currentTimeMillis() < deadline) {
+            Thread.State state = t.getState();
+            if(state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) {
+                return;
+            }
+            Thread.sleep(1L);
+        }
+        fail(t.getName()+" not waiting");
+    }
+
+    private void joinAll() throws InterruptedException {
+        for(Thread t : threads) {
+            t.join(TIMEOUT_MS);
+            assertFalse(t.getName()+" still waiting", t.isAlive());
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.handshake.ServerHandshake;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class NioWebSocketEngineTest {
+    private static final long TIMEOUT_SECS = 5L;
+    private static final int MAX_MESSAGE_SIZE = 1024*1024;
+
+    private NioWebSocketEngine engine;
+    private RecordingHandler handler;
+    private final List<Client> clients = new ArrayList<>();
+
+    @Before
+    public void setUp() throws InterruptedException {
+        engine = new NioWebSocketEngine(new InetSocketAddress("localhost", 0));
+        handler = new RecordingHandler();
+        engine.start(handler);
+        assertTrue(handler.started.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        engine.stop();
+        for(Client client : clients) {
+            client.close();
+        }
+    }
+
+    @Test
+    public void acceptKeyMatchesRfcExample() {
+        // RFC 6455 section 1.3
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", NioWebSocketEngine.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void base64PadsPartialGroups() {
+        // RFC 4648 section 10
+        assertEquals("", NioWebSocketEngine.base64(new byte[0]));
+        assertEquals("Zg==", NioWebSocketEngine.base64(ascii("f")));
+        assertEquals("Zm8=", NioWebSocketEngine.base64(ascii("fo")));
+        assertEquals("Zm9v", NioWebSocketEngine.base64(ascii("foo")));
+        assertEquals("Zm9vYmFy", NioWebSocketEngine.base64(ascii("foobar")));
+    }
+
+    @Test
+    public void handshakeWithClientPassesResource() throws Exception {
+        Client client = connect("/feed?session=abc");
+        assertEquals("/feed?session=abc", handler.opened.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertTrue(client.isOpen());
+        assertEquals(1, engine.getConnections().size());
+    }
+
+    @Test
+    public void handshakeReturnsAcceptKey() throws IOException {
+        try(Socket socket = new Socket("localhost", engine.getPort())) {
+            String response = rawHandshake(socket, "dGhlIHNhbXBsZSBub25jZQ==");
+            assertTrue(response, response.startsWith("HTTP/1.1 101 "));
+            assertTrue(response, response.contains("\r\nSec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+        }
+    }
+
+    @Test
+    public void invalidHandshakeIsRefused() throws IOException {
+        try(Socket socket = new Socket("localhost", engine.getPort())) {
+            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECS));
+            socket.getOutputStream().write(ascii("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+            String response = new String(readAll(socket.getInputStream()), StandardCharsets.US_ASCII);
+            assertTrue(response, response.startsWith("HTTP/1.1 400 "));
+        }
+        assertTrue(engine.getConnections().isEmpty());
+    }
+
+    @Test
+    public void maskedMessagesOfEveryLengthEncoding() throws Exception {
+        handler.echo = true;
+        Client client = connect("/");
+        // 7 bit, 16 bit and 64 bit lengths
+        for(int len : new int[] {0, 125, 126, 0xFFFF, 0x10000, 200000}) {
+            String text = repeat('x', len);
+            client.send(text);
+            assertEquals(text, handler.messages.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+            assertEquals(text, client.messages.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void multiByteCharactersSurvive() throws Exception {
+        handler.echo = true;
+        Client client = connect("/");
+        String text = "5\u00B0C \u00E9t\u00E9 \u2713";
+        client.send(text);
+        assertEquals(text, client.messages.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fragmentsAreReassembled() throws Exception {
+        Client client = connect("/");
+        client.sendFragmentedFrame(Framedata.Opcode.TEXT, ByteBuffer.wrap(ascii("frag")), false);
+        client.sendFragmentedFrame(Framedata.Opcode.TEXT, ByteBuffer.wrap(ascii("men")), false);
+        client.sendFragmentedFrame(Framedata.Opcode.TEXT, ByteBuffer.wrap(ascii("ted")), true);
+        client.send("next");
+        assertEquals("fragmented", handler.messages.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals("next", handler.messages.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void pingInterleavedWithFragmentsIsAnswered() throws IOException, InterruptedException {
+        try(Socket socket = new Socket("localhost", engine.getPort())) {
+            rawHandshake(socket, "dGhlIHNhbXBsZSBub25jZQ==");
+            OutputStream out = socket.getOutputStream();
+            out.write(maskedFrame(false, 0x1, ascii("ab")));
+            out.write(maskedFrame(true, 0x9, ascii("ping")));
+            out.write(maskedFrame(true, 0x0, ascii("cd")));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertArrayEquals(new byte[] {(byte) 0x8A, 4, 'p', 'i', 'n', 'g'}, readFrame(in));
+            assertEquals("abcd", handler.messages.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void pingIsAnsweredWithPong() throws Exception {
+        Client client = connect("/");
+        client.sendPing();
+        assertTrue(client.ponged.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void clientCloseIsEchoed() throws Exception {
+        Client client = connect("/");
+        ClientConnection conn = handler.connections.poll(TIMEOUT_SECS, TimeUnit.SECONDS);
+        client.closeBlocking();
+        assertEquals(1000, client.closeCode);
+        assertEquals(conn, handler.closed.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertFalse(conn.isOpen());
+        assertTrue(engine.getConnections().isEmpty());
+    }
+
+    @Test
+    public void serverCloseSendsQueuedMessagesFirst() throws Exception {
+        Client client = connect("/");
+        ClientConnection conn = handler.connections.poll(TIMEOUT_SECS, TimeUnit.SECONDS);
+        conn.send("one");
+        conn.send("two");
+        conn.close();
+        assertFalse(conn.isOpen());
+        assertTrue(client.closed.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals(1000, client.closeCode);
+        assertEquals(Arrays.asList("one", "two"), drain(client.messages));
+        assertEquals(conn, handler.closed.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = org.java_websocket.exceptions.WebsocketNotConnectedException.class)
+    public void sendAfterCloseFails() throws Exception {
+        connect("/");
+        ClientConnection conn = handler.connections.poll(TIMEOUT_SECS, TimeUnit.SECONDS);
+        conn.close();
+        conn.send("late");
+    }
+
+    @Test
+    public void broadcastReachesOpenConnections() throws Exception {
+        Client client1 = connect("/");
+        Client client2 = connect("/");
+        engine.broadcast("all", engine.getConnections());
+        assertEquals("all", client1.messages.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals("all", client2.messages.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stopClosesConnectionsGoingAway() throws Exception {
+        Client client = connect("/");
+        engine.stop();
+        assertTrue(client.closed.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals(1001, client.closeCode);
+    }
+
+    @Test
+    public void unmaskedFrameIsAProtocolError() throws IOException, InterruptedException {
+        try(Socket socket = new Socket("localhost", engine.getPort())) {
+            rawHandshake(socket, "dGhlIHNhbXBsZSBub25jZQ==");
+            socket.getOutputStream().write(new byte[] {(byte) 0x81, 2, 'h', 'i'});
+            assertClosedWith(socket, 1002);
+        }
+        assertNotNull(handler.closed.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertTrue(handler.messages.isEmpty());
+    }
+
+    @Test
+    public void oversizedFrameIsRefusedFromItsHeader() throws IOException, InterruptedException {
+        try(Socket socket = new Socket("localhost", engine.getPort())) {
+            rawHandshake(socket, "dGhlIHNhbXBsZSBub25jZQ==");
+            ByteBuffer header = ByteBuffer.allocate(14);
+            header.put((byte) 0x81);
+            header.put((byte) (0x80 | 127));
+            header.putLong(MAX_MESSAGE_SIZE + 1L);
+            header.putInt(0x01020304);
+            // no payload needed, the length alone is too big
+            socket.getOutputStream().write(header.array());
+            assertClosedWith(socket, 1009);
+        }
+        assertNotNull(handler.closed.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void oversizedFragmentedMessageIsRefused() throws IOException, InterruptedException {
+        try(Socket socket = new Socket("localhost", engine.getPort())) {
+            rawHandshake(socket, "dGhlIHNhbXBsZSBub25jZQ==");
+            OutputStream out = socket.getOutputStream();
+            byte[] half = new byte[MAX_MESSAGE_SIZE/2 + 1];
+            Arrays.fill(half, (byte) 'x');
+            out.write(maskedFrame(false, 0x1, half));
+            out.write(maskedFrame(true, 0x0, half));
+            assertClosedWith(socket, 1009);
+        }
+        assertTrue(handler.messages.isEmpty());
+    }
+
+    @Test
+    public void continuationWithoutStartIsAProtocolError() throws IOException {
+        try(Socket socket = new Socket("localhost", engine.getPort())) {
+            rawHandshake(socket, "dGhlIHNhbXBsZSBub25jZQ==");
+            socket.getOutputStream().write(maskedFrame(true, 0x0, ascii("orphan")));
+            assertClosedWith(socket, 1002);
+        }
+    }
+
+    @Test
+    public void newMessageWithinAFragmentedOneIsAProtocolError() throws IOException, InterruptedException {
+        try(Socket socket = new Socket("localhost", engine.getPort())) {
+            rawHandshake(socket, "dGhlIHNhbXBsZSBub25jZQ==");
+            OutputStream out = socket.getOutputStream();
+            out.write(maskedFrame(false, 0x1, ascii("ab")));
+            out.write(maskedFrame(false, 0x1, ascii("cd")));
+            assertClosedWith(socket, 1002);
+        }
+        assertTrue(handler.messages.isEmpty());
+    }
+
+    @Test
+    public void frameSplitAcrossReadsIsDecoded() throws IOException, InterruptedException {
+        try(Socket socket = new Socket("localhost", engine.getPort())) {
+            socket.setTcpNoDelay(true);
+            rawHandshake(socket, "dGhlIHNhbXBsZSBub25jZQ==");
+            OutputStream out = socket.getOutputStream();
+            for(byte b : maskedFrame(true, 0x1, ascii("split"))) {
+                out.write(b);
+                out.flush();
+                Thread.sleep(1L);
+            }
+            assertEquals("split", handler.messages.poll(TIMEOUT_SECS, TimeUnit.SECONDS));
+        }
+    }
+
+    private Client connect(String resource) throws Exception {
+        Client client = new Client(new URI("ws://localhost:"+engine.getPort()+resource));
+        clients.add(client);
+        assertTrue(client.connectBlocking(TIMEOUT_SECS, TimeUnit.SECONDS));
+        return client;
+    }
+
+    private static String rawHandshake(Socket socket, String key) throws IOException {
+        socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECS));
+        socket.getOutputStream().write(ascii("GET /raw HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n"));
+        InputStream in = socket.getInputStream();
+        StringBuilder response = new StringBuilder();
+        while(!response.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if(b == -1) {
+                break;
+            }
+            response.append((char) b);
+        }
+        return response.toString();
+    }
+
+    private static byte[] maskedFrame(boolean fin, int opcode, byte[] payload) {
+        byte[] mask = {0x37, (byte) 0xFA, 0x21, 0x3D};
+        int len = payload.length;
+        ByteBuffer frame = ByteBuffer.allocate(14 + len);
+        frame.put((byte) ((fin ? 0x80 : 0) | opcode));
+        if(len < 126) {
+            frame.put((byte) (0x80 | len));
+        } else if(len <= 0xFFFF) {
+            frame.put((byte) (0x80 | 126));
+            frame.putShort((short) len);
+        } else {
+            frame.put((byte) (0x80 | 127));
+            frame.putLong(len);
+        }
+        frame.put(mask);
+        for(int i=0; i<len; i++) {
+            frame.put((byte) (payload[i] ^ mask[i & 3]));
+        }
+        return Arrays.copyOf(frame.array(), frame.position());
+    }
+
+    /**
+     * Unmasked server frame, header included.
+     */
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int b0 = in.readUnsignedByte();
+        int len = in.readUnsignedByte();
+        if(len >= 126) {
+            throw new IOException("Only short frames expected");
+        }
+        byte[] frame = new byte[2 + len];
+        frame[0] = (byte) b0;
+        frame[1] = (byte) len;
+        in.readFully(frame, 2, len);
+        return frame;
+    }
+
+    private static void assertClosedWith(Socket socket, int code) throws IOException {
+        socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECS));
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertArrayEquals(new byte[] {(byte) 0x88, 2, (byte) (code >> 8), (byte) code}, readFrame(in));
+        // then the server drops the connection
+        assertEquals(-1, in.read());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> drain(BlockingQueue<String> queue) {
+        List<String> items = new ArrayList<>();
+        queue.drainTo(items);
+        return items;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    static final class RecordingHandler implements NetworkEngine.Handler {
+        final CountDownLatch started = new CountDownLatch(1);
+        final BlockingQueue<String> opened = new LinkedBlockingQueue<>();
+        final BlockingQueue<ClientConnection> connections = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<ClientConnection> closed = new LinkedBlockingQueue<>();
+        volatile boolean echo;
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+
+        @Override
+        public void onOpen(ClientConnection conn, String resource) {
+            opened.add(resource);
+            connections.add(conn);
+        }
+
+        @Override
+        public void onMessage(ClientConnection conn, String message) {
+            messages.add(message);
+            if(echo) {
+                conn.send(message);
+            }
+        }
+
+        @Override
+        public void onClose(ClientConnection conn) {
+            closed.add(conn);
+        }
+
+        @Override
+        public void onError(ClientConnection conn, Exception ex) {
+        }
+    }
+
+    static final class Client extends WebSocketClient {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final CountDownLatch ponged = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile int closeCode;
+
+        Client(URI uri) {
+            super(uri);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void onWebsocketPong(WebSocket conn, Framedata f) {
+            ponged.countDown();
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            closeCode = code;
+            closed.countDown();
+        }
+
+        @Override
+        public void onError(Exception ex) {
+        }
+    }
+}
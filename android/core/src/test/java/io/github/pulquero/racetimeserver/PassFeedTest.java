@@ -0,0 +1,188 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PassFeedTest {
+    private static final int TIMEOUT_MS = 5000;
+
+    private final Events events = new Events();
+    private final PassFeed.Receiver.Decoder decoder = new PassFeed.Receiver.Decoder(events);
+    private DatagramSocket socket;
+    private PassFeed feed;
+
+    @Before
+    public void setUp() throws Exception {
+        // unicast to the test rather than to a group
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        socket.setSoTimeout(TIMEOUT_MS);
+        feed = new PassFeed(new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort()));
+    }
+
+    @After
+    public void tearDown() {
+        feed.close();
+        socket.close();
+    }
+
+    @Test
+    public void passesAreFramedWithTheirSequence() throws Exception {
+        feed.publish(3, 5880, 123456L);
+        feed.publish(0, 5658, 0xFFFFFFF0L);
+        ByteBuffer first = receive();
+        assertEquals(PassFeed.PASS_SIZE, first.remaining());
+        assertEquals(PassFeed.PASS, first.get());
+        assertEquals(PassFeed.VERSION, first.get());
+        assertEquals(feed.getEpoch(), first.getInt());
+        assertEquals(1, first.getInt());
+        assertEquals(3, first.get());
+        assertEquals(0, first.get());
+        assertEquals(5880, first.getShort() & 0xFFFF);
+        assertEquals(123456, first.getInt());
+
+        // decoded as sent, including unsigned values
+        decoder.decode(receive());
+        assertEquals(Arrays.asList("pass 2: node 0, frequency 5658, timestamp "+0xFFFFFFF0L), events.list);
+        assertEquals(2, feed.getSequence());
+    }
+
+    @Test
+    public void statusCarriesTheLastSequence() throws Exception {
+        feed.publish(1, 5658, 1000L);
+        receive();
+        ByteBuffer status;
+        do {
+            status = receive();
+        } while(status.get(0) != PassFeed.STATUS);
+        assertEquals(PassFeed.STATUS_SIZE, status.remaining());
+        status.get();
+        assertEquals(PassFeed.VERSION, status.get());
+        assertEquals(feed.getEpoch(), status.getInt());
+        assertEquals(1, status.getInt());
+    }
+
+    @Test
+    public void retainedPassesCanBeFetched() {
+        for(int i=1; i<=5; i++) {
+            feed.publish(i % 4, 5658, i*1000L);
+        }
+        List<PassFeed.Pass> passes = feed.getPasses(2, 4);
+        assertEquals(3, passes.size());
+        for(int i=0; i<passes.size(); i++) {
+            assertEquals(i + 2, passes.get(i).sequence);
+            assertEquals((i + 2)*1000L, passes.get(i).timestamp);
+        }
+        // clamped to what exists
+        assertEquals(5, feed.getPasses(0, 100).size());
+        assertTrue(feed.getPasses(6, 10).isEmpty());
+    }
+
+    @Test
+    public void joiningMidFeedIsNotAGap() {
+        decoder.decode(pass(7, 10));
+        decoder.decode(pass(7, 11));
+        assertEquals(Arrays.asList("pass 10", "pass 11"), events.list);
+    }
+
+    @Test
+    public void missedPassesAreReportedAsAGap() {
+        decoder.decode(pass(7, 1));
+        decoder.decode(pass(7, 4));
+        assertEquals(Arrays.asList("pass 1", "gap 2-3", "pass 4"), events.list);
+    }
+
+    @Test
+    public void statusReportsALostLastPass() {
+        decoder.decode(pass(7, 1));
+        decoder.decode(status(7, 1));
+        decoder.decode(status(7, 2));
+        decoder.decode(status(7, 2));
+        assertEquals(Arrays.asList("pass 1", "gap 2-2"), events.list);
+        // already reported, so not a pass again
+        decoder.decode(pass(7, 2));
+        assertEquals(2, events.list.size());
+    }
+
+    @Test
+    public void duplicatesAndReorderedPassesAreDropped() {
+        decoder.decode(pass(7, 1));
+        decoder.decode(pass(7, 3));
+        decoder.decode(pass(7, 2));
+        decoder.decode(pass(7, 3));
+        assertEquals(Arrays.asList("pass 1", "gap 2-2", "pass 3"), events.list);
+    }
+
+    @Test
+    public void newEpochStartsFromOne() {
+        decoder.decode(pass(7, 50));
+        decoder.decode(pass(8, 1));
+        decoder.decode(pass(9, 3));
+        assertEquals(Arrays.asList("pass 50", "pass 1", "gap 1-2", "pass 3"), events.list);
+        assertEquals(9, events.lastEpoch);
+    }
+
+    @Test
+    public void otherVersionsAndRuntsAreIgnored() {
+        ByteBuffer other = pass(7, 1);
+        other.put(1, (byte) (PassFeed.VERSION + 1));
+        decoder.decode(other);
+        decoder.decode(ByteBuffer.wrap(new byte[] {PassFeed.PASS, PassFeed.VERSION, 0, 0}));
+        assertTrue(events.list.isEmpty());
+    }
+
+    private ByteBuffer receive() throws Exception {
+        byte[] data = new byte[64];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        socket.receive(packet);
+        return ByteBuffer.wrap(data, 0, packet.getLength());
+    }
+
+    private static ByteBuffer pass(int epoch, int seq) {
+        ByteBuffer buf = ByteBuffer.allocate(PassFeed.PASS_SIZE);
+        buf.put(PassFeed.PASS).put(PassFeed.VERSION).putInt(epoch).putInt(seq)
+                .put((byte) 1).put((byte) 0).putShort((short) 5658).putInt(seq*1000);
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer status(int epoch, int seq) {
+        ByteBuffer buf = ByteBuffer.allocate(PassFeed.STATUS_SIZE);
+        buf.put(PassFeed.STATUS).put(PassFeed.VERSION).putInt(epoch).putInt(seq);
+        buf.flip();
+        return buf;
+    }
+
+    static final class Events implements PassFeed.Receiver.Listener {
+        final List<String> list = new ArrayList<>();
+        int lastEpoch;
+
+        @Override
+        public void onPass(int epoch, PassFeed.Pass pass) {
+            lastEpoch = epoch;
+            if(pass.timestamp == pass.sequence*1000L && pass.node == 1 && pass.frequency == 5658) {
+                list.add("pass "+pass.sequence);
+            } else {
+                list.add(String.format("pass %d: node %d, frequency %d, timestamp %d", pass.sequence, pass.node, pass.frequency, pass.timestamp));
+            }
+        }
+
+        @Override
+        public void onGap(int epoch, int fromSequence, int toSequence) {
+            lastEpoch = epoch;
+            list.add("gap "+fromSequence+"-"+toSequence);
+        }
+    }
+}
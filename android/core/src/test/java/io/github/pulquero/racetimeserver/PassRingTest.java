@@ -0,0 +1,299 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PassRingTest {
+    private static final long TIMEOUT_MS = 5000L;
+
+    private PassRing ring;
+
+    @After
+    public void tearDown() {
+        if(ring != null) {
+            ring.close();
+        }
+    }
+
+    @Test
+    public void capacityMustBeAPowerOf2() {
+        for(int capacity : new int[] {0, 3, 6, 100}) {
+            try {
+                new PassRing(capacity);
+                fail("Expected rejection of "+capacity);
+            } catch(IllegalArgumentException ex) {
+                // expected
+            }
+        }
+        new PassRing(1);
+        new PassRing(64);
+    }
+
+    @Test
+    public void everyConsumerSeesEveryPassInOrder() throws InterruptedException {
+        int passes = 10000;
+        ring = new PassRing(16384);
+        Object race = new Object();
+        List<Recorder> recorders = new ArrayList<>();
+        List<PassRing.Consumer> consumers = new ArrayList<>();
+        for(int i=0; i<3; i++) {
+            Recorder recorder = new Recorder();
+            recorders.add(recorder);
+            consumers.add(ring.addConsumer("test"+i, recorder));
+        }
+        for(int seq=0; seq<passes; seq++) {
+            publish(seq, race);
+        }
+        for(int i=0; i<recorders.size(); i++) {
+            awaitSequence(consumers.get(i), passes);
+            assertEquals(0L, consumers.get(i).getDropped());
+            Recorder recorder = recorders.get(i);
+            assertEquals(passes, recorder.sequences.size());
+            for(int seq=0; seq<passes; seq++) {
+                assertEquals(seq, (long) recorder.sequences.get(seq));
+            }
+            assertTrue(recorder.corrupt.isEmpty());
+            assertSame(race, recorder.lastContext);
+        }
+    }
+
+    @Test
+    public void consumersStartFromNow() throws InterruptedException {
+        ring = new PassRing(8);
+        for(int seq=0; seq<5; seq++) {
+            publish(seq, null);
+        }
+        Recorder recorder = new Recorder();
+        PassRing.Consumer consumer = ring.addConsumer("test", recorder);
+        assertEquals(5L, consumer.getSequence());
+        publish(5, null);
+        awaitSequence(consumer, 6L);
+        assertEquals(Collections.singletonList(5L), recorder.sequences);
+    }
+
+    @Test
+    public void lastPassAvailableEndsTheBatch() throws InterruptedException {
+        ring = new PassRing(8);
+        CountDownLatch taken = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Boolean> ends = Collections.synchronizedList(new ArrayList<>());
+        PassRing.Consumer consumer = ring.addConsumer("test", (pass, endOfBatch) -> {
+            ends.add(endOfBatch);
+            if(pass.sequence == 0L) {
+                taken.countDown();
+                release.await();
+            }
+        });
+        publish(0, null);
+        assertTrue(taken.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // published while the consumer is busy, so taken as one batch
+        for(int seq=1; seq<=4; seq++) {
+            publish(seq, null);
+        }
+        release.countDown();
+        awaitSequence(consumer, 5L);
+        assertEquals(Arrays.asList(true, false, false, false, true), ends);
+    }
+
+    @Test
+    public void slowConsumerDropsWithoutHoldingUpTheOthers() throws InterruptedException {
+        int passes = 100;
+        ring = new PassRing(8);
+        CountDownLatch taken = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Recorder slowRecorder = new Recorder() {
+            @Override
+            public void onPass(PassRing.Pass pass, boolean endOfBatch) throws Exception {
+                super.onPass(pass, endOfBatch);
+                taken.countDown();
+                release.await();
+            }
+        };
+        PassRing.Consumer slow = ring.addConsumer("slow", slowRecorder);
+        Recorder fastRecorder = new Recorder();
+        PassRing.Consumer fast = ring.addConsumer("fast", fastRecorder);
+        publish(0, null);
+        assertTrue(taken.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        awaitSequence(fast, 1L);
+        for(int seq=1; seq<passes; seq++) {
+            publish(seq, null);
+            // kept within the ring
+            awaitSequence(fast, seq + 1L);
+        }
+        assertEquals(passes, fastRecorder.sequences.size());
+        assertEquals(0L, fast.getDropped());
+        assertEquals(Collections.singletonList(0L), slowRecorder.sequences);
+
+        release.countDown();
+        awaitSequence(slow, passes);
+        // the first, then only what is still in the ring
+        assertEquals(9, slowRecorder.sequences.size());
+        assertEquals(passes - 8L, (long) slowRecorder.sequences.get(1));
+        assertEquals(passes - 9L, slow.getDropped());
+        assertTrue(slowRecorder.corrupt.isEmpty());
+    }
+
+    @Test
+    public void losslessConsumerHoldsUpThePublisherInsteadOfDropping() throws InterruptedException {
+        int passes = 100;
+        ring = new PassRing(8);
+        CountDownLatch taken = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Recorder slowRecorder = new Recorder() {
+            @Override
+            public void onPass(PassRing.Pass pass, boolean endOfBatch) throws Exception {
+                super.onPass(pass, endOfBatch);
+                taken.countDown();
+                release.await();
+            }
+        };
+        PassRing.Consumer slow = ring.addLosslessConsumer("slow", slowRecorder);
+        Thread publisher = new Thread(() -> {
+            for(int seq=0; seq<passes; seq++) {
+                publish(seq, null);
+            }
+        });
+        publisher.start();
+        assertTrue(taken.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // the ring fills up behind the pass being taken
+        publisher.join(200L);
+        assertTrue(publisher.isAlive());
+        assertFalse(ring.awaitConsumed(0L, 10L));
+
+        release.countDown();
+        publisher.join(TIMEOUT_MS);
+        assertFalse(publisher.isAlive());
+        assertTrue(ring.awaitConsumed(passes - 1L, TIMEOUT_MS));
+        assertEquals(passes, slowRecorder.sequences.size());
+        for(int seq=0; seq<passes; seq++) {
+            assertEquals(seq, (long) slowRecorder.sequences.get(seq));
+        }
+        assertEquals(0L, slow.getDropped());
+        assertTrue(slowRecorder.corrupt.isEmpty());
+    }
+
+    @Test
+    public void awaitConsumedIgnoresLossyConsumers() throws InterruptedException {
+        ring = new PassRing(8);
+        CountDownLatch release = new CountDownLatch(1);
+        ring.addConsumer("stuck", (pass, endOfBatch) -> release.await());
+        Recorder recorder = new Recorder();
+        ring.addLosslessConsumer("lossless", recorder);
+        publish(0, null);
+        publish(1, null);
+        assertTrue(ring.awaitConsumed(1L, TIMEOUT_MS));
+        assertEquals(Arrays.asList(0L, 1L), recorder.sequences);
+        release.countDown();
+    }
+
+    /**
+     * However far a consumer falls behind a ring being overwritten, it never sees a torn or repeated pass
+     * and every pass is either taken or counted as dropped.
+     */
+    @Test
+    public void overwrittenSlotsAreNeverTorn() throws InterruptedException {
+        int passes = 200000;
+        ring = new PassRing(16);
+        List<Recorder> recorders = new ArrayList<>();
+        List<PassRing.Consumer> consumers = new ArrayList<>();
+        for(int i=0; i<3; i++) {
+            Recorder recorder = new Recorder();
+            recorders.add(recorder);
+            consumers.add(ring.addConsumer("test"+i, recorder));
+        }
+        for(int seq=0; seq<passes; seq++) {
+            publish(seq, null);
+        }
+        for(int i=0; i<recorders.size(); i++) {
+            awaitSequence(consumers.get(i), passes);
+            Recorder recorder = recorders.get(i);
+            assertTrue("Torn passes: "+recorder.corrupt, recorder.corrupt.isEmpty());
+            for(int j=1; j<recorder.sequences.size(); j++) {
+                assertTrue(recorder.sequences.get(j - 1) < recorder.sequences.get(j));
+            }
+            assertEquals(passes, recorder.sequences.size() + consumers.get(i).getDropped());
+            assertEquals(passes - 1L, (long) recorder.sequences.get(recorder.sequences.size() - 1));
+        }
+    }
+
+    @Test
+    public void handlerFailureDoesNotStopTheConsumer() throws InterruptedException {
+        ring = new PassRing(8);
+        Recorder recorder = new Recorder() {
+            @Override
+            public void onPass(PassRing.Pass pass, boolean endOfBatch) throws Exception {
+                super.onPass(pass, endOfBatch);
+                if(pass.sequence == 0L) {
+                    throw new IllegalStateException("test");
+                }
+            }
+        };
+        PassRing.Consumer consumer = ring.addConsumer("test", recorder);
+        publish(0, null);
+        publish(1, null);
+        awaitSequence(consumer, 2L);
+        assertEquals(Arrays.asList(0L, 1L), recorder.sequences);
+    }
+
+    @Test
+    public void closeStopsTheConsumers() throws InterruptedException {
+        ring = new PassRing(8);
+        Recorder recorder = new Recorder();
+        PassRing.Consumer consumer = ring.addConsumer("test", recorder);
+        publish(0, null);
+        awaitSequence(consumer, 1L);
+        ring.close();
+        assertFalse(consumer.thread.isAlive());
+        publish(1, null);
+        assertEquals(Collections.singletonList(0L), recorder.sequences);
+    }
+
+    /**
+     * The fields of each pass are derived from its sequence, so a torn copy shows.
+     */
+    private void publish(long seq, Object context) {
+        ring.publish((int) (seq % 8), seq*10L, seq, seq + 1L, context);
+    }
+
+    private static void awaitSequence(PassRing.Consumer consumer, long sequence) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(consumer.getSequence() < sequence) {
+            if(System.currentTimeMillis() > deadline) {
+                fail(consumer.name+" stuck at "+consumer.getSequence());
+            }
+            Thread.sleep(1L);
+        }
+    }
+
+    static class Recorder implements PassRing.Handler {
+        /**
+         * Only read once the consumer has moved past.
+         */
+        final List<Long> sequences = Collections.synchronizedList(new ArrayList<>());
+        final List<Long> corrupt = Collections.synchronizedList(new ArrayList<>());
+        volatile Object lastContext;
+
+        @Override
+        public void onPass(PassRing.Pass pass, boolean endOfBatch) throws Exception {
+            long seq = pass.sequence;
+            if(pass.node != seq % 8 || pass.timestamp != seq*10L || pass.receivedNanos != seq || pass.parsedNanos != seq + 1L) {
+                corrupt.add(seq);
+            }
+            sequences.add(seq);
+            lastContext = pass.context;
+        }
+    }
+}
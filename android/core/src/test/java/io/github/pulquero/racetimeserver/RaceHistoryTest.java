@@ -0,0 +1,374 @@
+package io.github.pulquero.racetimeserver;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RaceHistoryTest {
+    private static final String TRACKER = "tracker";
+
+    private File file;
+    private RaceHistory history;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("race-history", ".log");
+        file.delete();
+        history = new RaceHistory(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        history.close();
+        file.delete();
+    }
+
+    @Test
+    public void lapsAreTimedFromThePreviousPassOfTheSameNode() {
+        RaceHistory.Heat heat = history.startHeat(TRACKER);
+        RaceHistory.Lap holeshot = history.recordLap(heat, 0, 5800, 2000L);
+        history.recordLap(heat, 1, 5840, 3000L);
+        RaceHistory.Lap first = history.recordLap(heat, 0, 5800, 20000L);
+        history.recordLap(heat, 1, 5840, 21000L);
+        RaceHistory.Lap second = history.recordLap(heat, 0, 5800, 35000L);
+        assertEquals(0, holeshot.number);
+        assertEquals(2000L, holeshot.lapMillis);
+        assertEquals(1, first.number);
+        assertEquals(18000L, first.lapMillis);
+        assertEquals(2, second.number);
+        assertEquals(15000L, second.lapMillis);
+
+        RaceHistory.Lap nextHeat = history.recordLap(history.startHeat(TRACKER), 0, 5800, 18000L);
+        assertEquals(0, nextHeat.number);
+        assertEquals(18000L, nextHeat.lapMillis);
+    }
+
+    @Test
+    public void holeshotIsExportedButNotRanked() throws Exception {
+        RaceHistory.Heat heat = history.startHeat(TRACKER);
+        history.recordLap(heat, 0, 5800, 1500L);
+        assertTrue(history.getBestLaps(-1, 0, 10).isEmpty());
+        assertTrue(history.getProgress(0).isEmpty());
+        assertEquals(0, heat.toJson().getJSONArray("nodes").getJSONObject(0).getInt("laps"));
+        JSONArray json = new JSONArray(export(RaceHistory.JSON));
+        assertEquals(1, json.length());
+        assertEquals(0, json.getJSONObject(0).getInt("lap"));
+
+        history.recordLap(heat, 0, 5800, 21500L);
+        assertLapTimes(history.getBestLaps(-1, 0, 10), 20000L);
+        assertEquals(1, history.getProgress(0).get(0).toJson().getInt("laps"));
+        assertEquals(1, heat.toJson().getJSONArray("nodes").getJSONObject(0).getInt("laps"));
+    }
+
+    @Test
+    public void bestLapsAreFastestFirstOverallPerNodeAndPerFrequency() {
+        RaceHistory.Heat heat = history.startHeat(TRACKER);
+        history.recordLap(heat, 0, 5800, 1000L);
+        history.recordLap(heat, 1, 5840, 2000L);
+        history.recordLap(heat, 2, 5800, 3000L);
+        history.recordLap(heat, 0, 5800, 21000L);
+        history.recordLap(heat, 1, 5840, 20000L);
+        history.recordLap(heat, 2, 5800, 22000L);
+        history.recordLap(heat, 0, 5800, 38000L);
+
+        assertLapTimes(history.getBestLaps(-1, 0, 10), 17000L, 18000L, 19000L, 20000L);
+        assertLapTimes(history.getBestLaps(-1, 0, 2), 17000L, 18000L);
+        assertLapTimes(history.getBestLaps(0, 0, 10), 17000L, 20000L);
+        assertLapTimes(history.getBestLaps(-1, 5800, 10), 17000L, 19000L, 20000L);
+        assertLapTimes(history.getBestLaps(2, 5840, 10));
+        assertTrue(history.getBestLaps(7, 0, 10).isEmpty());
+    }
+
+    @Test
+    public void tiesGoToTheEarlierLap() {
+        RaceHistory.Heat heat = history.startHeat(TRACKER);
+        history.recordLap(heat, 0, 5800, 0L);
+        history.recordLap(heat, 1, 5840, 0L);
+        RaceHistory.Lap first = history.recordLap(heat, 0, 5800, 20000L);
+        RaceHistory.Lap second = history.recordLap(heat, 1, 5840, 20000L);
+        List<RaceHistory.Lap> best = history.getBestLaps(-1, 0, 10);
+        assertEquals(first, best.get(0));
+        assertEquals(second, best.get(1));
+    }
+
+    @Test
+    public void recentHeatsAreMostRecentFirst() {
+        RaceHistory.Heat first = history.startHeat(TRACKER);
+        RaceHistory.Heat second = history.startHeat(TRACKER);
+        RaceHistory.Heat third = history.startHeat(TRACKER);
+        List<RaceHistory.Heat> recent = history.getRecentHeats(2);
+        assertEquals(2, recent.size());
+        assertEquals(third.id, recent.get(0).id);
+        assertEquals(second.id, recent.get(1).id);
+        assertEquals(first.id, history.getRecentHeats(10).get(2).id);
+        assertEquals(first.sessionId, third.sessionId);
+    }
+
+    @Test
+    public void anotherTrackerStartsAnotherSession() {
+        RaceHistory.Heat first = history.startHeat(TRACKER);
+        RaceHistory.Heat second = history.startHeat("other");
+        RaceHistory.Heat third = history.startHeat("other");
+        assertEquals(1, first.sessionId);
+        assertEquals(2, second.sessionId);
+        assertEquals(2, third.sessionId);
+    }
+
+    @Test
+    public void heatsAreFoundByStartTime() throws IOException {
+        reopenWith(
+                "S,1,1000,"+TRACKER,
+                "H,1,1,1000",
+                "H,2,1,2000",
+                "H,3,1,2000",
+                "H,4,1,3000");
+        assertHeatIds(history.getHeats(0L, 10000L), 1, 2, 3, 4);
+        assertHeatIds(history.getHeats(2000L, 3000L), 2, 3);
+        assertHeatIds(history.getHeats(1001L, 2000L));
+        assertHeatIds(history.getHeats(3001L, 10000L));
+    }
+
+    @Test
+    public void progressHasASummaryPerHeat() throws Exception {
+        RaceHistory.Heat first = history.startHeat(TRACKER);
+        history.recordLap(first, 0, 5800, 2000L);
+        history.recordLap(first, 0, 5800, 22000L);
+        history.recordLap(first, 0, 5800, 38000L);
+        RaceHistory.Heat second = history.startHeat(TRACKER);
+        history.recordLap(second, 1, 5840, 1000L);
+        history.recordLap(second, 0, 5800, 2000L);
+        history.recordLap(second, 1, 5840, 19000L);
+        history.recordLap(second, 0, 5800, 16000L);
+
+        List<RaceHistory.NodeHeat> progress = history.getProgress(0);
+        assertEquals(2, progress.size());
+        assertEquals(first.id, progress.get(0).toJson().getInt("heat"));
+        assertEquals(2, progress.get(0).toJson().getInt("laps"));
+        assertEquals(16000L, progress.get(0).toJson().getLong("best_lap_time"));
+        assertEquals(18000L, progress.get(0).toJson().getLong("average_lap_time"));
+        assertEquals(second.id, progress.get(1).toJson().getInt("heat"));
+        assertEquals(1, progress.get(1).toJson().getInt("laps"));
+        assertEquals(1, history.getProgress(1).size());
+        assertTrue(history.getProgress(7).isEmpty());
+    }
+
+    @Test
+    public void heatsEndOnce() throws IOException {
+        RaceHistory.Heat heat = history.startHeat(TRACKER);
+        assertEquals(0L, heat.getEndMillis());
+        history.endHeat(heat);
+        long endMillis = heat.getEndMillis();
+        assertTrue(endMillis > 0L);
+        history.endHeat(heat);
+        assertEquals(endMillis, heat.getEndMillis());
+
+        reopen();
+        assertEquals(endMillis, history.getRecentHeats(1).get(0).getEndMillis());
+    }
+
+    @Test
+    public void replayRestoresTheHistory() throws Exception {
+        RaceHistory.Heat first = history.startHeat(TRACKER);
+        history.recordLap(first, 0, 5800, 1000L);
+        history.recordLap(first, 1, 5840, 2000L);
+        history.recordLap(first, 0, 5800, 21000L);
+        history.recordLap(first, 1, 5840, 20000L);
+        history.recordLap(first, 0, 5800, 38000L);
+        history.endHeat(first);
+        RaceHistory.Heat second = history.startHeat("other");
+        history.recordLap(second, 2, 5800, 1000L);
+        history.recordLap(second, 2, 5800, 16000L);
+        String csv = export(RaceHistory.CSV);
+        String json = export(RaceHistory.JSON);
+        List<RaceHistory.Lap> best = history.getBestLaps(-1, 0, 10);
+
+        reopen();
+        assertEquals(csv, export(RaceHistory.CSV));
+        assertEquals(json, export(RaceHistory.JSON));
+        List<RaceHistory.Lap> replayed = history.getBestLaps(-1, 0, 10);
+        assertEquals(best.size(), replayed.size());
+        for(int i=0; i<best.size(); i++) {
+            assertEquals(best.get(i).toJson().toString(), replayed.get(i).toJson().toString());
+        }
+        List<RaceHistory.Heat> heats = history.getRecentHeats(10);
+        assertHeatIds(heats, second.id, first.id);
+        assertEquals(first.getEndMillis(), heats.get(1).getEndMillis());
+        assertEquals(0L, heats.get(0).getEndMillis());
+        assertEquals(2, history.getProgress(0).get(0).toJson().getInt("laps"));
+
+        // laps still follow on from the replayed ones
+        RaceHistory.Lap next = history.recordLap(heats.get(0), 2, 5800, 31000L);
+        assertEquals(2, next.number);
+        assertEquals(15000L, next.lapMillis);
+    }
+
+    @Test
+    public void lapsAfterTheHeatHasEndedAreIgnored() throws IOException {
+        RaceHistory.Heat heat = history.startHeat(TRACKER);
+        history.recordLap(heat, 0, 5800, 2000L);
+        history.recordLap(heat, 0, 5800, 20000L);
+        history.endHeat(heat);
+        assertNull(history.recordLap(heat, 0, 5800, 35000L));
+        assertLapTimes(history.getBestLaps(-1, 0, 10), 18000L);
+
+        reopen();
+        assertLapTimes(history.getBestLaps(-1, 0, 10), 18000L);
+    }
+
+    @Test
+    public void numberingContinuesAfterReopening() throws IOException {
+        RaceHistory.Heat first = history.startHeat(TRACKER);
+        reopen();
+        RaceHistory.Heat second = history.startHeat(TRACKER);
+        assertEquals(first.id + 1, second.id);
+        // a new session for every opening
+        assertEquals(first.sessionId + 1, second.sessionId);
+    }
+
+    @Test
+    public void invalidRecordsAreIgnored() throws IOException {
+        reopenWith(
+                "S,1,1000,"+TRACKER,
+                "H,1,1,1000",
+                "X,1,2,3",
+                "L,1,0,5800,2000,3000",
+                "L,1,0,5800,22000,23000",
+                "L,9,0,5800,20000,21000",
+                "L,1,0,5800,oops,21000",
+                "",
+                "E,9,5000",
+                "L,1,0,5800,38000,39000");
+        assertLapTimes(history.getBestLaps(-1, 0, 10), 16000L, 20000L);
+    }
+
+    @Test
+    public void recordsAfterATruncatedRecordAreKept() throws IOException {
+        try(Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            // crashed part way through a lap
+            out.write("S,1,1000,"+TRACKER+"\nH,1,1,1000\nL,1,0,58");
+        }
+        reopen();
+        RaceHistory.Heat heat = history.startHeat(TRACKER);
+        history.recordLap(heat, 0, 5800, 2000L);
+        history.recordLap(heat, 0, 5800, 22000L);
+
+        reopen();
+        assertHeatIds(history.getRecentHeats(10), heat.id, 1);
+        assertLapTimes(history.getBestLaps(-1, 0, 10), 20000L);
+        // the session appended after the truncated record was kept too
+        assertEquals(heat.sessionId + 1, history.startHeat(TRACKER).sessionId);
+    }
+
+    @Test
+    public void concurrentLapsReplayInTheSameOrder() throws Exception {
+        int nodes = 8;
+        int lapsPerNode = 200;
+        RaceHistory.Heat heat = history.startHeat(TRACKER);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for(int n=0; n<nodes; n++) {
+            int node = n;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // the holeshot, then the laps
+                for(int i=0; i<=lapsPerNode; i++) {
+                    history.recordLap(heat, node, 5800 + node, i*1000L + node);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for(Thread t : threads) {
+            t.join();
+        }
+        String csv = export(RaceHistory.CSV);
+        assertEquals(nodes*lapsPerNode, history.getBestLaps(-1, 0, Integer.MAX_VALUE).size());
+
+        reopen();
+        assertEquals(csv, export(RaceHistory.CSV));
+        for(int node=0; node<nodes; node++) {
+            assertEquals(lapsPerNode, history.getBestLaps(node, 0, Integer.MAX_VALUE).size());
+            assertEquals(lapsPerNode, history.getProgress(node).get(0).toJson().getInt("laps"));
+        }
+    }
+
+    @Test
+    public void exportsJsonArray() throws Exception {
+        assertEquals("[]", export(RaceHistory.JSON));
+        RaceHistory.Heat heat = history.startHeat(TRACKER);
+        history.recordLap(heat, 0, 5800, 20000L);
+        history.recordLap(heat, 0, 5800, 35000L);
+        JSONArray json = new JSONArray(export(RaceHistory.JSON));
+        assertEquals(2, json.length());
+        assertEquals(0, json.getJSONObject(0).getInt("lap"));
+        assertEquals(1, json.getJSONObject(1).getInt("lap"));
+        assertEquals(15000L, json.getJSONObject(1).getLong("lap_time"));
+    }
+
+    @Test
+    public void unknownExportFormatIsRejected() throws IOException {
+        try {
+            export("xml");
+            fail("Expected rejection");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    private void reopen() throws IOException {
+        history.close();
+        history = new RaceHistory(file);
+    }
+
+    private void reopenWith(String... lines) throws IOException {
+        history.close();
+        try(Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for(String line : lines) {
+                out.write(line+"\n");
+            }
+        }
+        history = new RaceHistory(file);
+    }
+
+    private String export(String format) throws IOException {
+        StringWriter out = new StringWriter();
+        history.export(out, format);
+        return out.toString();
+    }
+
+    private static void assertLapTimes(List<RaceHistory.Lap> laps, long... expected) {
+        assertEquals(expected.length, laps.size());
+        for(int i=0; i<expected.length; i++) {
+            assertEquals(expected[i], laps.get(i).lapMillis);
+        }
+    }
+
+    private static void assertHeatIds(List<RaceHistory.Heat> heats, int... expected) {
+        assertEquals(expected.length, heats.size());
+        for(int i=0; i<expected.length; i++) {
+            assertEquals(expected[i], heats.get(i).id);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.observers.TestObserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RaceTrackerTest {
+    private static final long TIMEOUT_SECS = 5L;
+
+    private final ScriptedTransport transport = new ScriptedTransport();
+    private final RaceTracker tracker = new RaceTracker(transport);
+
+    @Before
+    public void setUp() {
+        tracker.connect();
+    }
+
+    @After
+    public void tearDown() {
+        transport.releaseWrites();
+        tracker.disconnect();
+    }
+
+    @Test
+    public void rawCommandWaitsForTheLink() throws Exception {
+        transport.holdWrites();
+        AtomicInteger rssi = new AtomicInteger();
+        Thread poller = new Thread(() -> rssi.set(tracker.getRssi(0L)));
+        poller.start();
+        assertTrue(transport.awaitHeld());
+
+        TestObserver<String> raw = tracker.sendAndObserve(RaceTracker.PILOTS).test();
+        // would be written alongside the held exchange if not scheduled
+        Thread.sleep(200L);
+        raw.assertNotComplete();
+        assertEquals(Collections.emptyList(), transport.getWrites());
+
+        transport.releaseWrites();
+        raw.awaitDone(TIMEOUT_SECS, TimeUnit.SECONDS).assertValue("Racers: 4");
+        poller.join();
+        assertEquals(60, rssi.get());
+        assertEquals(Arrays.asList("/", RaceTracker.PILOTS), transport.getWrites());
+        assertEquals(0, transport.getOverlaps());
+    }
+
+    @Test
+    public void rawRaceCommandSuspendsBackgroundTraffic() {
+        tracker.sendAndObserve(String.valueOf(RaceTracker.SHOTGUN_RACE)).blockingGet();
+        assertTrue(tracker.isRaceRunning());
+        try {
+            tracker.getRssi(0L);
+            fail("Expected background traffic to be refused");
+        } catch(TrackerException ex) {
+            // expected
+        }
+        tracker.send(RaceTracker.STOP_RACE);
+        assertEquals(60, tracker.getRssi(0L));
+    }
+
+    @Test
+    public void rawCommandForgetsWhatItMayChange() {
+        assertEquals(4, tracker.getPilotCount());
+        assertEquals(4, tracker.getPilotCount());
+        tracker.send("N 1 C2");
+        assertEquals(4, tracker.getPilotCount());
+        assertEquals(Arrays.asList(RaceTracker.PILOTS, "N 1 C2", RaceTracker.PILOTS), transport.getWrites());
+    }
+
+    @Test
+    public void raceStateIsUnknownOnceTheLinkDrops() throws Exception {
+        TestObserver<RaceTracker.LapNotification> laps = tracker.startRace(RaceTracker.SHOTGUN_RACE).test();
+        awaitRaceObserved();
+        assertTrue(tracker.isRaceRunning());
+        transport.dropLink();
+        laps.awaitDone(TIMEOUT_SECS, TimeUnit.SECONDS).assertError(TrackerException.class);
+        assertFalse(tracker.isRaceRunning());
+        // background traffic is no longer suspended
+        assertEquals(60, tracker.getRssi(0L));
+        // but a stop is still sent, as the tracker may be racing
+        tracker.stopRace();
+        assertEquals(RaceTracker.STOP_RACE, last(transport.getWrites()));
+    }
+
+    @Test
+    public void raceKeepsRunningOnceNoLongerObserved() throws Exception {
+        TestObserver<RaceTracker.LapNotification> laps = tracker.startRace(RaceTracker.SHOTGUN_RACE).test();
+        awaitRaceObserved();
+        transport.notify("P2R1T5000,5000");
+        laps.awaitCount(1);
+        assertEquals(1, laps.values().get(0).pilot);
+        assertEquals(5000L, laps.values().get(0).ts);
+        laps.dispose();
+        assertTrue(tracker.isRaceRunning());
+        tracker.stopRace();
+        assertFalse(tracker.isRaceRunning());
+        assertEquals(Arrays.asList(RaceTracker.VRX, String.valueOf(RaceTracker.SHOTGUN_RACE), RaceTracker.STOP_RACE), transport.getWrites());
+    }
+
+    @Test
+    public void lapsKeepTheirArrivalTime() throws Exception {
+        TestObserver<RaceTracker.LapNotification> laps = tracker.startRace(RaceTracker.SHOTGUN_RACE).test();
+        awaitRaceObserved();
+        long receivedNanos = System.nanoTime();
+        transport.notify("R3,T4200,12600", receivedNanos);
+        transport.notify("Calibrated");
+        transport.notify("P8R1T5000,5000", receivedNanos + 1L);
+        laps.awaitCount(2);
+        RaceTracker.LapNotification single = laps.values().get(0);
+        assertEquals(0, single.pilot);
+        assertEquals(12600L, single.ts);
+        assertEquals(receivedNanos, single.receivedNanos);
+        assertTrue(single.parsedNanos >= receivedNanos);
+        RaceTracker.LapNotification multi = laps.values().get(1);
+        assertEquals(7, multi.pilot);
+        assertEquals(receivedNanos + 1L, multi.receivedNanos);
+        laps.dispose();
+    }
+
+    @Test
+    public void clockRunsFromTheRaceModeAcknowledgementUntilStopped() throws Exception {
+        transport.holdWrites();
+        TestObserver<RaceTracker.LapNotification> laps = tracker.startRace(RaceTracker.SHOTGUN_RACE).test();
+        assertTrue(transport.awaitHeld());
+        assertFalse(tracker.getClock().isStarted());
+        transport.releaseWrites();
+        awaitRaceObserved();
+        assertTrue(tracker.getClock().isStarted());
+
+        transport.notify("P2R1T5000,5000");
+        laps.awaitCount(1);
+        assertEquals(1L, tracker.getClock().getSamples());
+        laps.dispose();
+        tracker.stopRace();
+        assertFalse(tracker.getClock().isStarted());
+        assertEquals(0L, tracker.getClock().toTrackerMillis(System.nanoTime()));
+    }
+
+    @Test
+    public void overlongRawCommandIsRejected() {
+        try {
+            tracker.send("01234567890123456789");
+            fail("Expected rejection");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+        assertTrue(transport.getWrites().isEmpty());
+    }
+
+    @Test
+    public void unresponsiveTrackerTimesOut() {
+        tracker.exchangeTimeoutMillis = 100L;
+        transport.setSilent(true);
+        long start = System.currentTimeMillis();
+        try {
+            tracker.send(RaceTracker.PILOTS);
+            fail("Expected a timeout");
+        } catch(TrackerException ex) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(TIMEOUT_SECS));
+        // the link is free again
+        transport.setSilent(false);
+        assertEquals("Racers: 4", tracker.send(RaceTracker.PILOTS));
+    }
+
+    @Test
+    public void valueReadsRetryAfterATimeout() {
+        tracker.exchangeTimeoutMillis = 100L;
+        transport.setSilent(true);
+        try {
+            tracker.getRssi(0L);
+            fail("Expected a timeout");
+        } catch(TrackerException ex) {
+            // expected
+        }
+        assertEquals(Arrays.asList("/", "/", "/"), transport.getWrites());
+    }
+
+    @Test
+    public void assigningAPilotOnlyForgetsItAndTheRacerCount() {
+        assertEquals(4, tracker.getPilotCount());
+        assertEquals(5658, tracker.getPilotFrequency(0));
+        assertEquals(5695, tracker.getPilotFrequency(1));
+        tracker.setPilotFrequency(1, 5732);
+        assertEquals(5658, tracker.getPilotFrequency(0));
+        assertEquals(5732, tracker.getPilotFrequency(1));
+        assertEquals(4, tracker.getPilotCount());
+        assertEquals(Arrays.asList(RaceTracker.PILOTS, "Z 25", "Z 26", "N 2 C3", RaceTracker.PILOTS), transport.getWrites());
+    }
+
+    @Test
+    public void configureSkipsWhatIsAlreadySet() {
+        assertEquals(5658, tracker.getPilotFrequency(0));
+        assertEquals(150, tracker.getTriggerRssi());
+        int writes = transport.getWrites().size();
+        RaceTracker.Configuration config = new RaceTracker.Configuration()
+                .setPilotFrequency(0, 5658)
+                .setTriggerRssi(150);
+        assertEquals(0, tracker.configure(config));
+        assertEquals(writes, transport.getWrites().size());
+
+        config.setMinimumLapTime(5);
+        assertEquals(1, tracker.configure(config));
+        assertEquals(0, tracker.configure(config));
+        assertEquals("F 5", last(transport.getWrites()));
+    }
+
+    @Test
+    public void configureSendsTheBatchTogetherUnassigningFirst() {
+        RaceTracker.Configuration config = new RaceTracker.Configuration()
+                .setPilotFrequency(2, 5880)
+                .setPilotFrequency(0, 0)
+                .setPilotFrequency(1, 5740)
+                .setTriggerRssi(120)
+                .setMinimumLapTime(3);
+        assertEquals(5, tracker.configure(config));
+        assertEquals(Arrays.asList("N 1 FF", "N 2 F1", "N 3 C7", ", 120", "F 3"), transport.getWrites());
+        // as written, without reading back
+        assertEquals(5740, tracker.getPilotFrequency(1));
+        assertEquals(5880, tracker.getPilotFrequency(2));
+        assertEquals(120, tracker.getTriggerRssi());
+        assertEquals(5, transport.getWrites().size());
+    }
+
+    @Test
+    public void invalidConfigurationSendsNothing() {
+        RaceTracker.Configuration config = new RaceTracker.Configuration()
+                .setPilotFrequency(0, 5740)
+                .setPilotFrequency(1, 5999);
+        try {
+            tracker.configure(config);
+            fail("Expected rejection");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+        try {
+            config.setPilotFrequency(8, 5740);
+            fail("Expected rejection");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+        assertTrue(transport.getWrites().isEmpty());
+    }
+
+    private void awaitRaceObserved() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECS);
+        while(!transport.hasNotificationObservers()) {
+            if(System.currentTimeMillis() > deadline) {
+                fail("Race not started");
+            }
+            Thread.sleep(1L);
+        }
+    }
+
+    private static String last(List<String> list) {
+        return list.get(list.size() - 1);
+    }
+}
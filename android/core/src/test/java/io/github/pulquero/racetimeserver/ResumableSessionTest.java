@@ -0,0 +1,270 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResumableSessionTest {
+    private final Connection first = new Connection();
+    private final ResumableSession session = new ResumableSession("id", first);
+
+    @Test
+    public void notificationsAreSequencedFromOne() throws Exception {
+        send(3);
+        assertEquals(3, first.messages.size());
+        for(int i=0; i<3; i++) {
+            JSONObject json = new JSONObject(first.messages.get(i));
+            assertEquals(i + 1L, json.getLong(ResumableSession.SEQUENCE));
+            assertEquals("lap", json.getString("notification"));
+        }
+    }
+
+    @Test
+    public void resumeReplaysOnlyWhatWasMissed() throws Exception {
+        send(3);
+        TrackingTask expiry = new TrackingTask();
+        assertTrue(session.detach(first, expiry));
+        assertNull(session.getConnection());
+        send(2);
+        assertEquals(3, first.messages.size());
+
+        Connection second = new Connection();
+        assertNull(session.resume(second, 3L));
+        assertTrue(expiry.cancelled);
+        assertSame(second, session.getConnection());
+        JSONObject resumed = assertResumed(second, 5L, 2L, true);
+        assertEquals("id", resumed.getString("session"));
+        assertSequences(second, 1, 4L, 5L);
+
+        send(1);
+        assertSequences(second, 1, 4L, 5L, 6L);
+    }
+
+    @Test
+    public void resumeFromNothingReplaysEverything() throws Exception {
+        send(3);
+        Connection second = new Connection();
+        session.resume(second, 0L);
+        assertResumed(second, 3L, 3L, true);
+        assertSequences(second, 1, 1L, 2L, 3L);
+    }
+
+    @Test
+    public void resumeWhenUpToDateReplaysNothing() throws Exception {
+        send(3);
+        Connection second = new Connection();
+        session.resume(second, 3L);
+        assertResumed(second, 3L, 0L, true);
+        assertEquals(1, second.messages.size());
+    }
+
+    @Test
+    public void replayIsIncompleteOnceOverwritten() throws Exception {
+        session.detach(first, null);
+        int extra = 10;
+        send(ResumableSession.REPLAY_CAPACITY + extra);
+        Connection second = new Connection();
+        session.resume(second, 0L);
+        assertResumed(second, ResumableSession.REPLAY_CAPACITY + extra, ResumableSession.REPLAY_CAPACITY, false);
+        assertEquals(ResumableSession.REPLAY_CAPACITY + 1, second.messages.size());
+        assertEquals(extra + 1L, new JSONObject(second.messages.get(1)).getLong(ResumableSession.SEQUENCE));
+        assertEquals(ResumableSession.REPLAY_CAPACITY + (long) extra, new JSONObject(second.messages.get(ResumableSession.REPLAY_CAPACITY)).getLong(ResumableSession.SEQUENCE));
+    }
+
+    @Test
+    public void notificationsToAClosedConnectionAreKeptForReplay() throws Exception {
+        send(1);
+        first.open = false;
+        send(2);
+        Connection second = new Connection();
+        // the drop hadn't been noticed
+        assertSame(first, session.resume(second, 1L));
+        assertResumed(second, 3L, 2L, true);
+        assertSequences(second, 1, 2L, 3L);
+    }
+
+    @Test
+    public void resumingTheSameConnectionReplacesNothing() throws Exception {
+        send(1);
+        assertNull(session.resume(first, 0L));
+    }
+
+    @Test
+    public void onlyTheCurrentConnectionCanDetach() throws Exception {
+        Connection second = new Connection();
+        session.resume(second, 0L);
+        assertFalse(session.detach(first, null));
+        assertSame(second, session.getConnection());
+        assertTrue(session.detach(second, null));
+    }
+
+    @Test
+    public void attachedSessionDoesNotExpire() {
+        assertFalse(session.expire());
+    }
+
+    @Test
+    public void expiredSessionCannotBeResumed() throws Exception {
+        session.detach(first, null);
+        assertTrue(session.expire());
+        send(1);
+        try {
+            session.resume(new Connection(), 0L);
+            fail("Expected expiry");
+        } catch(IllegalStateException ex) {
+            // expected
+        }
+        assertTrue(first.messages.isEmpty());
+    }
+
+    @Test
+    public void resumedSessionDoesNotExpire() throws Exception {
+        session.detach(first, null);
+        session.resume(new Connection(), 0L);
+        assertFalse(session.expire());
+    }
+
+    /**
+     * However the sends interleave with a drop and resume, the client sees every sequence number once, in order.
+     */
+    @Test
+    public void sequencesStayContiguousAcrossAResumeWhileSending() throws Exception {
+        int count = 20000;
+        Thread sender = new Thread(() -> {
+            try {
+                send(count);
+            } catch (JSONException e) {
+                throw new AssertionError(e);
+            }
+        });
+        sender.start();
+        while(first.size() < 100) {
+            Thread.yield();
+        }
+        session.detach(first, null);
+        List<Long> before = sequences(first, 0);
+        long lastSeen = before.get(before.size() - 1);
+        Connection second = new Connection();
+        session.resume(second, lastSeen);
+        sender.join();
+
+        assertContiguous(before, 1L);
+        JSONObject resumed = new JSONObject(second.messages.get(0)).getJSONObject("data");
+        List<Long> after = sequences(second, 1);
+        if(resumed.getBoolean("complete")) {
+            assertContiguous(after, lastSeen + 1L);
+        } else {
+            assertContiguous(after, after.get(0));
+        }
+        assertEquals(count, after.isEmpty() ? lastSeen : after.get(after.size() - 1));
+    }
+
+    private void send(int n) throws JSONException {
+        for(int i=0; i<n; i++) {
+            JSONObject json = new JSONObject();
+            json.put("notification", "lap");
+            session.send(json);
+        }
+    }
+
+    private static JSONObject assertResumed(Connection conn, long sequence, long replayed, boolean complete) throws JSONException {
+        JSONObject json = new JSONObject(conn.messages.get(0));
+        assertEquals(ResumableSession.RESUMED_NOTIF, json.getString("notification"));
+        JSONObject data = json.getJSONObject("data");
+        assertEquals(sequence, data.getLong(ResumableSession.SEQUENCE));
+        assertEquals(replayed, data.getLong("replayed"));
+        assertEquals(complete, data.getBoolean("complete"));
+        return data;
+    }
+
+    private static void assertSequences(Connection conn, int from, long... expected) throws JSONException {
+        List<Long> actual = sequences(conn, from);
+        assertEquals(expected.length, actual.size());
+        for(int i=0; i<expected.length; i++) {
+            assertEquals(expected[i], (long) actual.get(i));
+        }
+    }
+
+    private static List<Long> sequences(Connection conn, int from) throws JSONException {
+        List<Long> result = new ArrayList<>();
+        List<String> messages;
+        synchronized (conn) {
+            messages = new ArrayList<>(conn.messages);
+        }
+        for(String message : messages.subList(from, messages.size())) {
+            result.add(new JSONObject(message).getLong(ResumableSession.SEQUENCE));
+        }
+        return result;
+    }
+
+    private static void assertContiguous(List<Long> sequences, long first) {
+        for(int i=0; i<sequences.size(); i++) {
+            assertEquals(first + i, (long) sequences.get(i));
+        }
+    }
+
+    static final class Connection implements ClientConnection {
+        final List<String> messages = new ArrayList<>();
+        volatile boolean open = true;
+        private Object attachment;
+
+        @Override
+        public synchronized void send(String text) {
+            if(!open) {
+                throw new WebsocketNotConnectedException();
+            }
+            messages.add(text);
+        }
+
+        synchronized int size() {
+            return messages.size();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T getAttachment() {
+            return (T) attachment;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+    }
+
+    static final class TrackingTask extends TimerTask {
+        volatile boolean cancelled;
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public boolean cancel() {
+            cancelled = true;
+            return super.cancel();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RssiStreamTest {
+    private static final long TIMEOUT_MS = 5000L;
+
+    private RaceTracker tracker;
+
+    @After
+    public void tearDown() {
+        if(tracker != null) {
+            tracker.disconnect();
+        }
+    }
+
+    @Test
+    public void ringBufferCapacityMustBeAPowerOf2() {
+        try {
+            new RssiStream.RingBuffer(100);
+            fail("Expected rejection");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void ringBufferKeepsTheLatestSamples() {
+        RssiStream.RingBuffer buffer = new RssiStream.RingBuffer(4);
+        assertEquals(0L, buffer.sequence());
+        assertEquals(0L, buffer.oldestSequence());
+        for(int i=0; i<6; i++) {
+            buffer.add(i*10L, 100 + i);
+        }
+        assertEquals(6L, buffer.sequence());
+        assertEquals(2L, buffer.oldestSequence());
+        for(long seq=2L; seq<6L; seq++) {
+            assertEquals(seq*10L, buffer.timeAt(seq));
+            assertEquals(100 + seq, buffer.valueAt(seq));
+        }
+    }
+
+    /**
+     * The subscription is created without subscribing, so nothing is sampled and the test fills the buffer.
+     */
+    @Test
+    public void batchesAreDecimatedToThePeakOfEachInterval() {
+        RssiStream stream = new RssiStream(null);
+        Batches batches = new Batches();
+        RssiStream.Subscription sub = stream.new Subscription(10, batches);
+        addSample(stream, 0L, 60);
+        addSample(stream, 30L, 65);
+        addSample(stream, 60L, 62);
+        addSample(stream, 100L, 61);
+        addSample(stream, 150L, 180);
+        // nothing between 200 and 300
+        addSample(stream, 310L, 70);
+        sub.publish();
+        assertEquals(1, batches.size());
+        Batch batch = batches.get(0);
+        assertEquals(0L, batch.startMillis);
+        assertEquals(100L, batch.intervalMillis);
+        assertArrayEquals(new int[] {65, 180, 70}, batch.rssi);
+
+        // only new samples
+        sub.publish();
+        assertEquals(1, batches.size());
+        addSample(stream, 420L, 64);
+        sub.publish();
+        assertEquals(2, batches.size());
+        assertEquals(420L, batches.get(1).startMillis);
+        assertArrayEquals(new int[] {64}, batches.get(1).rssi);
+    }
+
+    @Test
+    public void overwrittenSamplesAreSkipped() {
+        RssiStream stream = new RssiStream(null);
+        Batches batches = new Batches();
+        RssiStream.Subscription sub = stream.new Subscription(RssiStream.MAX_RATE_HZ, batches);
+        for(int i=0; i<1000; i++) {
+            addSample(stream, i*100L, i % 200);
+        }
+        int capacity = (int) (stream.samples.sequence() - stream.samples.oldestSequence());
+        sub.publish();
+        Batch batch = batches.get(0);
+        assertEquals((1000L - capacity)*100L, batch.startMillis);
+        assertEquals(capacity, batch.rssi.length);
+    }
+
+    @Test
+    public void samplesTheTrackerUntilCancelled() throws InterruptedException {
+        tracker = new RaceTracker(new SimulatedTracker(1, 60000L, 0L));
+        tracker.connect();
+        RssiStream stream = new RssiStream(tracker);
+        Batches batches = new Batches();
+        RssiStream.Subscription sub = stream.subscribe(10, batches);
+        assertTrue(stream.isActive());
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(batches.size() < 2) {
+            if(System.currentTimeMillis() > deadline) {
+                fail("No RSSI batches");
+            }
+            Thread.sleep(10L);
+        }
+        for(Batch batch : batches.snapshot()) {
+            assertEquals(100L, batch.intervalMillis);
+            for(int rssi : batch.rssi) {
+                // simulated noise floor
+                assertTrue("RSSI "+rssi, rssi >= 57 && rssi <= 63);
+            }
+        }
+
+        sub.cancel();
+        assertFalse(stream.isActive());
+        // let any sample in progress finish
+        Thread.sleep(300L);
+        int published = batches.size();
+        Thread.sleep(600L);
+        assertEquals(published, batches.size());
+    }
+
+    @Test
+    public void rateIsCapped() {
+        // not connected, so sampling just fails
+        RssiStream stream = new RssiStream(new RaceTracker(new SimulatedTracker()));
+        try {
+            stream.subscribe(0, new Batches());
+            fail("Expected rejection");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+        assertFalse(stream.isActive());
+        RssiStream.Subscription sub = stream.subscribe(1000, new Batches());
+        assertEquals(RssiStream.MAX_RATE_HZ, sub.getRate());
+        sub.cancel();
+        assertFalse(stream.isActive());
+    }
+
+    private static void addSample(RssiStream stream, long millis, int rssi) {
+        stream.samples.add(TimeUnit.MILLISECONDS.toNanos(millis), rssi);
+    }
+
+    static final class Batch {
+        final long startMillis;
+        final long intervalMillis;
+        final int[] rssi;
+
+        Batch(long startMillis, long intervalMillis, int[] rssi) {
+            this.startMillis = startMillis;
+            this.intervalMillis = intervalMillis;
+            this.rssi = rssi;
+        }
+    }
+
+    static final class Batches implements RssiStream.Listener {
+        private final List<Batch> batches = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onRssi(long startMillis, long intervalMillis, int[] rssi, int count) {
+            batches.add(new Batch(startMillis, intervalMillis, Arrays.copyOf(rssi, count)));
+        }
+
+        int size() {
+            return batches.size();
+        }
+
+        Batch get(int i) {
+            return batches.get(i);
+        }
+
+        List<Batch> snapshot() {
+            synchronized (batches) {
+                return new ArrayList<>(batches);
+            }
+        }
+    }
+}
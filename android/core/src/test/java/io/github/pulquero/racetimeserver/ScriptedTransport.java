@@ -0,0 +1,192 @@
+package io.github.pulquero.racetimeserver;
+
+import com.jakewharton.rxrelay2.BehaviorRelay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+/**
+ * Test tracker that logs every command written and answers from a table of responses.
+ * Writes can be held at a gate and notifications are pushed by the test.
+ */
+final class ScriptedTransport implements TrackerTransport {
+    private static final long TIMEOUT_SECS = 5L;
+
+    private final List<String> writes = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String,String> responses = new HashMap<>();
+    private final BehaviorRelay<ConnectionState> stateSubject = BehaviorRelay.createDefault(ConnectionState.DISCONNECTED);
+    private final AtomicInteger exchanging = new AtomicInteger();
+    private final AtomicInteger overlaps = new AtomicInteger();
+    private volatile Subject<TrackerLink.Notification> notifications = PublishSubject.create();
+    private volatile CountDownLatch gate;
+    private volatile CountDownLatch held;
+    private volatile boolean silent;
+    private String response = "";
+
+    ScriptedTransport() {
+        respond(RaceTracker.PILOTS, "Racers: 4");
+        respond(RaceTracker.VRX, "C1,-40dbm,+0");
+        respond(RaceTracker.STOP_RACE, "READY");
+        respond(String.valueOf(RaceTracker.SHOTGUN_RACE), "READY");
+        respond(String.valueOf(RaceTracker.FLYOVER_RACE), "READY");
+        respond("/", "RSSI: 60");
+        respond("Z 1", "1: 150");
+        respond("Z 6", "6: 5");
+        for(int i=0; i<8; i++) {
+            respond("Z "+(25 + i), (25 + i)+": C"+(i + 1));
+        }
+    }
+
+    /**
+     * @param cmd the whole command, or its first character for commands with arguments.
+     */
+    synchronized ScriptedTransport respond(String cmd, String response) {
+        responses.put(cmd, response);
+        return this;
+    }
+
+    /**
+     * Holds writes until {@link #releaseWrites()}.
+     */
+    void holdWrites() {
+        held = new CountDownLatch(1);
+        gate = new CountDownLatch(1);
+    }
+
+    void releaseWrites() {
+        CountDownLatch g = gate;
+        gate = null;
+        if(g != null) {
+            g.countDown();
+        }
+    }
+
+    /**
+     * Waits until a write is being held at the gate.
+     */
+    boolean awaitHeld() throws InterruptedException {
+        return held.await(TIMEOUT_SECS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reads never complete, as if the tracker stopped responding.
+     */
+    void setSilent(boolean silent) {
+        this.silent = silent;
+    }
+
+    void notify(String data) {
+        notify(data, System.nanoTime());
+    }
+
+    void notify(String data, long receivedNanos) {
+        notifications.onNext(new TrackerLink.Notification(RaceTracker.stringToBytes(data), receivedNanos));
+    }
+
+    boolean hasNotificationObservers() {
+        return notifications.hasObservers();
+    }
+
+    /**
+     * Fails the notifications, as when the link drops.
+     */
+    void dropLink() {
+        Subject<TrackerLink.Notification> dropped = notifications;
+        notifications = PublishSubject.create();
+        dropped.onError(new TrackerException("Link lost"));
+    }
+
+    int getOverlaps() {
+        return overlaps.get();
+    }
+
+    List<String> getWrites() {
+        synchronized (writes) {
+            return new ArrayList<>(writes);
+        }
+    }
+
+    @Override
+    public String getAddress() {
+        return "scripted";
+    }
+
+    @Override
+    public Observable<ConnectionState> observeConnectionState() {
+        return stateSubject;
+    }
+
+    @Override
+    public ConnectionState getConnectionState() {
+        return stateSubject.getValue();
+    }
+
+    @Override
+    public Observable<TrackerLink> establishConnection() {
+        return Observable.create(emitter -> {
+            stateSubject.accept(ConnectionState.CONNECTED);
+            emitter.setCancellable(() -> stateSubject.accept(ConnectionState.DISCONNECTED));
+            emitter.onNext(new Link());
+        });
+    }
+
+    private void write(String cmd) throws InterruptedException {
+        if(exchanging.incrementAndGet() > 1) {
+            overlaps.incrementAndGet();
+        }
+        CountDownLatch g = gate;
+        if(g != null) {
+            held.countDown();
+            if(!g.await(TIMEOUT_SECS, TimeUnit.SECONDS)) {
+                throw new TrackerException("Gate never opened");
+            }
+        }
+        writes.add(cmd);
+        synchronized (this) {
+            String r = responses.get(cmd);
+            if(r == null && !cmd.isEmpty()) {
+                r = responses.get(cmd.substring(0, 1));
+            }
+            response = (r != null) ? r : "";
+        }
+    }
+
+    private synchronized String read() {
+        exchanging.decrementAndGet();
+        return response;
+    }
+
+    final class Link implements TrackerLink {
+        @Override
+        public Single<byte[]> write(byte[] data) {
+            return Single.fromCallable(() -> {
+                ScriptedTransport.this.write(RaceTracker.bytesToString(data));
+                return data;
+            });
+        }
+
+        @Override
+        public Single<byte[]> read() {
+            if(silent) {
+                return Single.never();
+            }
+            return Single.fromCallable(() -> RaceTracker.stringToBytes(ScriptedTransport.this.read()));
+        }
+
+        @Override
+        public Observable<Notification> notifications() {
+            return Observable.defer(() -> notifications);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SerialExecutorTest {
+    private static final long TIMEOUT_SECS = 5L;
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void tasksRunOneAtATimeInOrder() throws InterruptedException {
+        SerialExecutor serial = new SerialExecutor(pool);
+        int count = 1000;
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(count);
+        for(int i=0; i<count; i++) {
+            int n = i;
+            serial.execute(() -> {
+                if(running.incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                order.add(n);
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for(int i=0; i<count; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheRest() throws InterruptedException {
+        SerialExecutor serial = new SerialExecutor(pool);
+        CountDownLatch done = new CountDownLatch(1);
+        serial.execute(() -> {
+            throw new IllegalStateException("test");
+        });
+        serial.execute(done::countDown);
+        assertTrue(done.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void clearDropsTasksNotYetStarted() throws InterruptedException {
+        SerialExecutor serial = new SerialExecutor(pool);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        serial.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            ran.add("first");
+        });
+        serial.execute(() -> ran.add("cleared"));
+        assertTrue(started.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+        serial.clear();
+        CountDownLatch done = new CountDownLatch(1);
+        serial.execute(() -> {
+            ran.add("after");
+            done.countDown();
+        });
+        release.countDown();
+        assertTrue(done.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "after"), ran);
+    }
+
+    @Test
+    public void rejectionDoesNotWedgeLaterTasks() throws InterruptedException {
+        AtomicInteger rejections = new AtomicInteger(1);
+        SerialExecutor serial = new SerialExecutor(r -> {
+            if(rejections.getAndDecrement() > 0) {
+                throw new RejectedExecutionException("test");
+            }
+            pool.execute(r);
+        });
+        try {
+            serial.execute(() -> {});
+            fail("Expected rejection");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        serial.execute(done::countDown);
+        assertTrue(done.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+}
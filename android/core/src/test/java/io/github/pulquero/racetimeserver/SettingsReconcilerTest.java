@@ -0,0 +1,107 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SettingsReconcilerTest {
+    private final ScriptedTransport transport = new ScriptedTransport();
+    private final RaceTracker tracker = new RaceTracker(transport);
+    private final List<SettingsSnapshot.Settings> changes = new ArrayList<>();
+    private final SettingsReconciler reconciler = new SettingsReconciler(tracker, changes::add);
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("tracker-settings", ".bin");
+        file.delete();
+        reconciler.setSnapshot(new SettingsSnapshot(file));
+        tracker.connect();
+    }
+
+    @After
+    public void tearDown() {
+        tracker.disconnect();
+        file.delete();
+    }
+
+    @Test
+    public void connectingReadsTheTracker() {
+        reconciler.reconcile();
+        assertEquals(Arrays.asList(RaceTracker.PILOTS, "Z 25", "Z 26", "Z 27", "Z 28", "Z 1"), transport.getWrites());
+        assertSaved(150, 5658, 5695, 5732, 5769);
+        assertEquals(1, changes.size());
+        // unchanged
+        reconciler.reconcile();
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    public void appliedChangesAreSavedWithoutReadingBack() {
+        reconciler.reconcile();
+        int writes = transport.getWrites().size();
+        RaceTracker.Configuration config = new RaceTracker.Configuration()
+                .setPilotFrequency(1, 5880)
+                .setTriggerRssi(120);
+        tracker.configure(config);
+        reconciler.applied(config);
+        assertEquals(Arrays.asList("N 2 C7", ", 120"), since(writes));
+        assertSaved(120, 5658, 5880, 5732, 5769);
+        assertEquals(2, changes.size());
+
+        reconciler.applied(new RaceTracker.Configuration().setTriggerRssi(120));
+        assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void pilotsAssignedBeyondThoseKnownAreAdded() {
+        reconciler.reconcile();
+        int writes = transport.getWrites().size();
+        reconciler.applied(new RaceTracker.Configuration()
+                .setPilotFrequency(5, 5843)
+                .setPilotFrequency(7, 0)
+                .setPilotFrequency(0, 0));
+        assertEquals(Collections.emptyList(), since(writes));
+        assertSaved(150, 0, 5695, 5732, 5769, 0, 5843);
+    }
+
+    @Test
+    public void applyingBeforeReadingReadsTheTracker() {
+        reconciler.applied(new RaceTracker.Configuration().setTriggerRssi(150));
+        assertSaved(150, 5658, 5695, 5732, 5769);
+    }
+
+    @Test
+    public void nothingIsReadWithoutASnapshot() {
+        reconciler.setSnapshot(null);
+        reconciler.reconcile();
+        reconciler.applied(new RaceTracker.Configuration().setTriggerRssi(120));
+        assertEquals(Collections.emptyList(), transport.getWrites());
+        assertNull(reconciler.getLastKnown());
+    }
+
+    private List<String> since(int writes) {
+        List<String> all = transport.getWrites();
+        return all.subList(writes, all.size());
+    }
+
+    private void assertSaved(int triggerRssi, int... frequencies) {
+        SettingsSnapshot.Settings known = reconciler.getLastKnown();
+        assertEquals(triggerRssi, known.getTriggerRssi());
+        assertArrayEquals(frequencies, known.frequencies);
+        // as it would be served before the tracker next connects
+        SettingsSnapshot.Settings reloaded = new SettingsSnapshot(file).get(tracker.getAddress());
+        assertEquals(known, reloaded);
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SettingsSnapshotTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("tracker-settings", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath()+".tmp").delete();
+    }
+
+    @Test
+    public void settingsSurviveAReload() throws IOException {
+        SettingsSnapshot snapshot = new SettingsSnapshot(file);
+        SettingsSnapshot.Settings first = new SettingsSnapshot.Settings(150, new int[] {5658, 5695, 0, 5880});
+        SettingsSnapshot.Settings second = new SettingsSnapshot.Settings(120, new int[0]);
+        assertTrue(snapshot.put("tracker-1", first));
+        assertTrue(snapshot.put("tracker-2", second));
+        assertFalse(new File(file.getPath()+".tmp").exists());
+
+        SettingsSnapshot reloaded = new SettingsSnapshot(file);
+        assertSettings(first, reloaded.get("tracker-1"));
+        assertSettings(second, reloaded.get("tracker-2"));
+        assertNull(reloaded.get("tracker-3"));
+    }
+
+    @Test
+    public void unchangedSettingsAreNotSaved() throws IOException {
+        SettingsSnapshot snapshot = new SettingsSnapshot(file);
+        assertTrue(snapshot.put("tracker", new SettingsSnapshot.Settings(150, new int[] {5658})));
+        assertFalse(snapshot.put("tracker", new SettingsSnapshot.Settings(150, new int[] {5658})));
+        assertTrue(snapshot.put("tracker", new SettingsSnapshot.Settings(150, new int[] {5695})));
+        assertEquals(5695, new SettingsSnapshot(file).get("tracker").getPilotFrequency(0));
+    }
+
+    @Test
+    public void corruptSnapshotIsIgnored() throws IOException {
+        try(OutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] {'R', 'T', 'S', 'S', 1, 0});
+        }
+        SettingsSnapshot snapshot = new SettingsSnapshot(file);
+        assertNull(snapshot.get("tracker"));
+        // and replaced on the next change
+        assertTrue(snapshot.put("tracker", new SettingsSnapshot.Settings(150, new int[] {5658})));
+        assertEquals(150, new SettingsSnapshot(file).get("tracker").getTriggerRssi());
+    }
+
+    private static void assertSettings(SettingsSnapshot.Settings expected, SettingsSnapshot.Settings actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getTriggerRssi(), actual.getTriggerRssi());
+        assertArrayEquals(expected.frequencies, actual.frequencies);
+        assertEquals(expected.getSavedMillis(), actual.getSavedMillis());
+    }
+}
@@ -0,0 +1,187 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+    private static final long TIMEOUT_SECS = 5L;
+    private static final int FOLLOWERS = 8;
+
+    private final SingleFlight<String,String> flights = new SingleFlight<>();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void concurrentGetsShareOneLoad() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Callable<String> loader = () -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            release.await();
+            return "value";
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(executor.submit(() -> flights.get("key", loader)));
+            assertTrue(loading.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+            List<Thread> followers = new CopyOnWriteArrayList<>();
+            for(int i=0; i<FOLLOWERS; i++) {
+                results.add(executor.submit(() -> {
+                    followers.add(Thread.currentThread());
+                    return flights.get("key", loader);
+                }));
+            }
+            awaitWaiting(followers, FOLLOWERS);
+            release.countDown();
+
+            String first = results.get(0).get(TIMEOUT_SECS, TimeUnit.SECONDS);
+            for(Future<String> result : results) {
+                assertSame(first, result.get(TIMEOUT_SECS, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failureIsSharedWithWaitersButNotKept() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Callable<String> failing = () -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            release.await();
+            throw new IllegalArgumentException("no reply");
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(executor.submit(() -> flights.get("key", 60000L, failing)));
+            assertTrue(loading.await(TIMEOUT_SECS, TimeUnit.SECONDS));
+            List<Thread> followers = new CopyOnWriteArrayList<>();
+            for(int i=0; i<FOLLOWERS; i++) {
+                results.add(executor.submit(() -> {
+                    followers.add(Thread.currentThread());
+                    return flights.get("key", 60000L, failing);
+                }));
+            }
+            awaitWaiting(followers, FOLLOWERS);
+            release.countDown();
+
+            for(Future<String> result : results) {
+                try {
+                    result.get(TIMEOUT_SECS, TimeUnit.SECONDS);
+                    fail("Expected the shared failure");
+                } catch(ExecutionException ex) {
+                    assertTrue(ex.getCause() instanceof IllegalArgumentException);
+                }
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // a failure is never reused, even within the max age
+        assertEquals("value", flights.get("key", 60000L, this::load));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void checkedFailureIsWrapped() {
+        try {
+            flights.get("key", () -> {
+                throw new IOException("link lost");
+            });
+            fail("Expected failure");
+        } catch(IllegalStateException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void sequentialGetsLoadAgainWithoutMaxAge() {
+        flights.get("key", this::load);
+        flights.get("key", this::load);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void completedResultIsReusedWithinMaxAge() {
+        flights.get("key", 60000L, this::load);
+        flights.get("key", 60000L, this::load);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void completedResultIsReloadedOnceStale() throws InterruptedException {
+        flights.get("key", 1L, this::load);
+        Thread.sleep(10L);
+        flights.get("key", 1L, this::load);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void differentKeysLoadSeparately() {
+        assertEquals("value", flights.get("a", 60000L, this::load));
+        assertEquals("value", flights.get("b", 60000L, this::load));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void invalidateDropsAKeptResult() {
+        flights.get("a", 60000L, this::load);
+        flights.get("b", 60000L, this::load);
+        flights.invalidate("a");
+        flights.get("a", 60000L, this::load);
+        flights.get("b", 60000L, this::load);
+        assertEquals(3, loads.get());
+        flights.invalidateAll();
+        flights.get("b", 60000L, this::load);
+        assertEquals(4, loads.get());
+    }
+
+    private String load() {
+        loads.incrementAndGet();
+        return "value";
+    }
+
+    /**
+     * Until every follower is blocked on the in-flight load.
+     */
+    private static void awaitWaiting(List<Thread> threads, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECS);
+        while(System.nanoTime() < deadline) {
+            int waiting = 0;
+            for(Thread t : threads) {
+                Thread.State state = t.getState();
+                if(state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) {
+                    waiting++;
+                }
+            }
+            if(waiting == count) {
+                return;
+            }
+            Thread.sleep(1L);
+        }
+        fail("Followers not waiting");
+    }
+}
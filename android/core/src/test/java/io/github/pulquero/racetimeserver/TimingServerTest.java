@@ -0,0 +1,314 @@
+package io.github.pulquero.racetimeserver;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TimingServerTest {
+    private static final long TIMEOUT_MS = 5000L;
+
+    private final ScriptedTransport transport = new ScriptedTransport();
+    private final RaceTracker tracker = new RaceTracker(transport);
+    private final LoopbackEngine engine = new LoopbackEngine();
+    private final TimingServer server = new TimingServer(tracker, engine, Executors.newCachedThreadPool());
+
+    @Before
+    public void setUp() {
+        tracker.connect();
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        transport.releaseWrites();
+        server.stop();
+        tracker.disconnect();
+    }
+
+    @Test
+    public void heartbeatSubscriptionDoesNotStopTheRace() throws Exception {
+        Client client = connect("/");
+        startRace(client);
+        int writes = transport.getWrites().size();
+
+        client.send("{\"subscribe\": {\"heartbeat\": {\"interval\": 100}}}");
+        client.send("{\"subscribe\": {\"heartbeat\": {\"interval\": 200, \"threshold\": 2}}}");
+        client.send("{\"subscribe\": {\"heartbeat\": false, \"state\": {\"interval\": 100}}}");
+        client.awaitNotification("state");
+        assertTrue(tracker.isRaceRunning());
+        assertFalse(since(writes).contains(RaceTracker.STOP_RACE));
+
+        // as before, any other message stops it
+        client.send("{\"minimum_lap_time\": 5}");
+        awaitRace(false);
+        assertTrue(since(writes).contains(RaceTracker.STOP_RACE));
+    }
+
+    @Test
+    public void heartbeatSubscribedToWhileRacingStartsOnceStopped() throws Exception {
+        Client client = connect("/");
+        startRace(client);
+        client.send("{\"subscribe\": {\"heartbeat\": {\"interval\": 100}}}");
+        Thread.sleep(300L);
+        assertEquals(0, client.count("heartbeat"));
+
+        client.send("get_version");
+        awaitRace(false);
+        client.awaitNotification("heartbeat");
+    }
+
+    @Test
+    public void heartbeatCanBeRescheduled() throws Exception {
+        Client client = connect("/");
+        client.send("{\"subscribe\": {\"heartbeat\": {\"interval\": 100}}}");
+        client.awaitNotification("heartbeat");
+        client.send("{\"subscribe\": {\"heartbeat\": false}}");
+        awaitOpenSubscriptions(0);
+        client.send("{\"subscribe\": {\"heartbeat\": {\"interval\": 100, \"threshold\": 3}}}");
+        awaitOpenSubscriptions(1);
+        client.close();
+        awaitOpenSubscriptions(0);
+    }
+
+    @Test
+    public void closingTheConnectionASessionMovedFromKeepsItsRequests() throws Exception {
+        Client first = connect("/");
+        first.send("{\"resumable\": true}");
+        String id = first.awaitNotification("session").getString("session");
+        startRace(first);
+
+        // holds up delivery, so the new connection's requests are handled before the close of the one it replaces
+        Client blocker = connect(TimingServer.PASSIVE_PATH);
+        blocker.closing = new CountDownLatch(1);
+        blocker.close();
+        transport.holdWrites();
+        Client second = connect("/?session="+id+"&sequence=0");
+        // stops the race, so held with the version request queued behind it
+        second.send("{\"minimum_lap_time\": 5}");
+        second.send("get_version");
+        blocker.closing.countDown();
+        assertTrue(transport.awaitHeld());
+        first.awaitClosed();
+        transport.releaseWrites();
+
+        second.awaitMessage("major");
+        awaitRace(false);
+        assertFalse(second.closed);
+    }
+
+    @Test
+    public void racePassesAreJournaledAndSentBeforeTheStopIsAnswered() throws Exception {
+        int passes = 5;
+        File file = File.createTempFile("race-history", ".log");
+        file.delete();
+        AtomicInteger journaled = new AtomicInteger();
+        RaceHistory history = new RaceHistory(file) {
+            @Override
+            public synchronized Lap recordLap(Heat heat, int node, int frequency, long timestampMillis) {
+                // slower than the racer, so still journaling as the race stops
+                try {
+                    Thread.sleep(20L);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                Lap lap = super.recordLap(heat, node, frequency, timestampMillis);
+                if(lap != null) {
+                    journaled.incrementAndGet();
+                }
+                return lap;
+            }
+        };
+        try {
+            server.setHistory(history);
+            Client client = connect("/");
+            startRace(client);
+            awaitRaceObserved();
+            for(int i=1; i<=passes; i++) {
+                transport.notify("P2R"+i+"T"+(i*5000)+","+(i*5000));
+            }
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while(tracker.getClock().getSamples() < passes) {
+                if(System.currentTimeMillis() > deadline) {
+                    fail("Passes not received");
+                }
+                Thread.sleep(1L);
+            }
+
+            client.send("get_version");
+            client.awaitMessage("major");
+            assertEquals(passes, journaled.get());
+            synchronized (client.messages) {
+                int sent = 0;
+                for(JSONObject json : client.messages) {
+                    if(json.has("major")) {
+                        break;
+                    }
+                    if("pass_record".equals(json.optString("notification"))) {
+                        sent++;
+                    }
+                }
+                assertEquals(passes, sent);
+            }
+        } finally {
+            history.close();
+            file.delete();
+        }
+    }
+
+    private Client connect(String resource) {
+        Client client = new Client();
+        client.conn = engine.connect(resource, client);
+        return client;
+    }
+
+    private void startRace(Client client) throws InterruptedException {
+        client.send("{\"node\": -1}");
+        awaitRace(true);
+    }
+
+    private List<String> since(int writes) {
+        List<String> all = transport.getWrites();
+        return all.subList(writes, all.size());
+    }
+
+    private void awaitRace(boolean running) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(tracker.isRaceRunning() != running) {
+            if(System.currentTimeMillis() > deadline) {
+                fail("Race running not "+running);
+            }
+            Thread.sleep(1L);
+        }
+    }
+
+    private void awaitRaceObserved() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(!transport.hasNotificationObservers()) {
+            if(System.currentTimeMillis() > deadline) {
+                fail("Race not observed");
+            }
+            Thread.sleep(1L);
+        }
+    }
+
+    private void awaitOpenSubscriptions(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(server.getOpenSubscriptions() != count) {
+            if(System.currentTimeMillis() > deadline) {
+                fail("Open subscriptions "+server.getOpenSubscriptions()+" not "+count);
+            }
+            Thread.sleep(1L);
+        }
+    }
+
+    static final class Client implements LoopbackEngine.ClientListener {
+        final List<JSONObject> messages = new ArrayList<>();
+        ClientConnection conn;
+        volatile boolean closed;
+        /**
+         * If set, the close is held until released, as is all delivery.
+         */
+        CountDownLatch closing;
+
+        void send(String message) {
+            conn.send(message);
+        }
+
+        void close() {
+            conn.close();
+        }
+
+        @Override
+        public void onMessage(String message) {
+            try {
+                JSONObject json = new JSONObject(message);
+                synchronized (messages) {
+                    messages.add(json);
+                }
+            } catch (Exception ex) {
+                throw new AssertionError(message, ex);
+            }
+        }
+
+        @Override
+        public void onClose() {
+            closed = true;
+            if(closing != null) {
+                try {
+                    assertTrue(closing.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        void awaitClosed() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while(!closed) {
+                if(System.currentTimeMillis() > deadline) {
+                    fail("Not closed");
+                }
+                Thread.sleep(1L);
+            }
+        }
+
+        JSONObject awaitMessage(String key) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while(true) {
+                synchronized (messages) {
+                    for(JSONObject json : messages) {
+                        if(json.has(key)) {
+                            return json;
+                        }
+                    }
+                }
+                if(System.currentTimeMillis() > deadline) {
+                    fail("No message with "+key);
+                }
+                Thread.sleep(1L);
+            }
+        }
+
+        int count(String notification) {
+            return notifications(notification).size();
+        }
+
+        List<JSONObject> notifications(String notification) {
+            List<JSONObject> found = new ArrayList<>();
+            synchronized (messages) {
+                for(JSONObject json : messages) {
+                    if(notification.equals(json.optString("notification"))) {
+                        found.add(json.optJSONObject("data"));
+                    }
+                }
+            }
+            return found;
+        }
+
+        JSONObject awaitNotification(String notification) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            List<JSONObject> found;
+            while((found = notifications(notification)).isEmpty()) {
+                if(System.currentTimeMillis() > deadline) {
+                    fail("No "+notification+" notification");
+                }
+                Thread.sleep(1L);
+            }
+            return found.get(0);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package io.github.pulquero.racetimeserver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Timer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TopicsTest {
+    private static final long TIMEOUT_MS = 5000L;
+
+    private final Timer timer = new Timer("Topics test", true);
+    private final AtomicInteger openTasks = new AtomicInteger();
+    private final Topics topics = new Topics(timer, openTasks);
+
+    @After
+    public void tearDown() {
+        timer.cancel();
+    }
+
+    @Test
+    public void reschedulingReplacesTheTopicsTask() throws Exception {
+        CountingTask first = new CountingTask("heartbeat");
+        topics.schedule(first, 0L, 10L);
+        first.await(1);
+        CountingTask second = new CountingTask("heartbeat");
+        topics.schedule(second, 0L, 10L);
+        assertEquals(1, openTasks.get());
+        assertFalse(first.isCurrent());
+        assertTrue(second.isCurrent());
+        int runs = first.runs.get();
+        second.await(3);
+        assertEquals(runs, first.runs.get());
+    }
+
+    @Test
+    public void stoppingOneTopicLeavesTheOthers() {
+        CountingTask heartbeat = new CountingTask("heartbeat");
+        CountingTask state = new CountingTask("state");
+        topics.schedule(heartbeat, 60000L, 60000L);
+        topics.schedule(state, 60000L, 60000L);
+        assertEquals(2, openTasks.get());
+
+        topics.stop("heartbeat");
+        assertFalse(topics.isScheduled("heartbeat"));
+        assertFalse(heartbeat.isCurrent());
+        assertTrue(topics.isScheduled("state"));
+        assertEquals(1, openTasks.get());
+        // already stopped
+        topics.stop("heartbeat");
+        assertEquals(1, openTasks.get());
+
+        topics.stopAll();
+        assertFalse(topics.isScheduled("state"));
+        assertEquals(0, openTasks.get());
+    }
+
+    @Test
+    public void pollTaskOnlySendsChanges() {
+        AtomicInteger sent = new AtomicInteger();
+        AtomicInteger value = new AtomicInteger();
+        Topics.PollTask task = new Topics.PollTask(new OpenConnection(), "state", "state", (conn, type, data) -> sent.incrementAndGet()) {
+            @Override
+            JSONObject poll() throws JSONException {
+                JSONObject json = new JSONObject();
+                json.put("value", value.get());
+                return json;
+            }
+        };
+        task.run();
+        task.run();
+        assertEquals(1, sent.get());
+        value.set(1);
+        task.run();
+        task.run();
+        assertEquals(2, sent.get());
+    }
+
+    @Test
+    public void intervalIsNoShorterThanTheMinimum() throws Exception {
+        assertEquals(1000L, Topics.interval(new JSONObject(), "interval", 1000L, 100L));
+        assertEquals(500L, Topics.interval(new JSONObject("{\"interval\": 500}"), "interval", 1000L, 100L));
+        assertEquals(100L, Topics.interval(new JSONObject("{\"interval\": 1}"), "interval", 1000L, 100L));
+    }
+
+    static final class CountingTask extends Topics.Task {
+        final AtomicInteger runs = new AtomicInteger();
+
+        CountingTask(String topic) {
+            super(topic);
+        }
+
+        @Override
+        public void run() {
+            runs.incrementAndGet();
+        }
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while(runs.get() < count) {
+                assertTrue("Not run", System.currentTimeMillis() < deadline);
+                Thread.sleep(1L);
+            }
+        }
+    }
+
+    static final class OpenConnection implements ClientConnection {
+        @Override
+        public void send(String text) {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T getAttachment() {
+            return (T) this;
+        }
+
+        @Override
+        public void setAttachment(Object attachment) {
+        }
+    }
+}
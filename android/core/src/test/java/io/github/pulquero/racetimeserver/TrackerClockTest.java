@@ -0,0 +1,116 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Samples are synthetic: local arrival nanos from a known origin, rate and delay for each tracker timestamp.
+ */
+public class TrackerClockTest {
+    private static final long START_NANOS = 1000000000L;
+    private static final long START_WALL_MILLIS = 1500000000000L;
+
+    private final TrackerClock clock = new TrackerClock();
+
+    @Test
+    public void unstartedClockReadsZero() {
+        assertFalse(clock.isStarted());
+        assertEquals(0L, clock.toTrackerMillis(START_NANOS));
+        clock.observe(1000L, START_NANOS);
+        assertEquals(0L, clock.getSamples());
+    }
+
+    @Test
+    public void offsetFollowsTheFastestDelivery() {
+        clock.start(START_NANOS, START_WALL_MILLIS);
+        // the tracker's timer started 30ms after the start
+        clock.observe(1000L, arrival(30L + 1000L + 50L));
+        assertEquals(START_WALL_MILLIS + 80L, clock.getOriginMillis());
+        clock.observe(2000L, arrival(30L + 2000L + 10L));
+        assertEquals(START_WALL_MILLIS + 40L, clock.getOriginMillis());
+        // delayed, so no change
+        clock.observe(3000L, arrival(30L + 3000L + 200L));
+        assertEquals(START_WALL_MILLIS + 40L, clock.getOriginMillis());
+        assertEquals(3000L, clock.toTrackerMillis(arrival(40L + 3000L)));
+        assertEquals(3L, clock.getSamples());
+        assertEquals(0.0, clock.getDriftPpm(), 0.0);
+    }
+
+    @Test
+    public void originIsNeverBeforeTheStart() {
+        clock.start(START_NANOS, START_WALL_MILLIS);
+        // impossibly early, e.g. a timestamp from before the race
+        clock.observe(1000L, arrival(500L));
+        assertEquals(START_WALL_MILLIS, clock.getOriginMillis());
+        assertEquals(0L, clock.toTrackerMillis(START_NANOS));
+    }
+
+    @Test
+    public void driftIsFittedDespiteSlowDeliveries() {
+        clock.start(START_NANOS, START_WALL_MILLIS);
+        Random random = new Random(5L);
+        // 200ppm slow over ten minutes, with jittery delivery and the odd long delay
+        double rate = 1.0002;
+        for(long ts=1000L; ts<=600000L; ts+=1000L) {
+            long delay = (random.nextInt(20) == 0) ? 500L + random.nextInt(1000) : random.nextInt(10);
+            clock.observe(ts, arrival(Math.round(20L + rate*ts) + delay));
+        }
+        assertEquals(200.0, clock.getDriftPpm(), 20.0);
+        long expected = Math.round(20L + rate*600000L);
+        assertEquals(600000L, clock.toTrackerMillis(arrival(expected)), 5L);
+    }
+
+    @Test
+    public void driftIsOnlyFittedOverALongEnoughSpan() {
+        clock.start(START_NANOS, START_WALL_MILLIS);
+        clock.observe(1000L, arrival(1000L));
+        clock.observe(5000L, arrival(5100L));
+        assertEquals(0.0, clock.getDriftPpm(), 0.0);
+    }
+
+    @Test
+    public void implausibleDriftIsClamped() {
+        clock.start(START_NANOS, START_WALL_MILLIS);
+        // 1% slow
+        for(long ts=1000L; ts<=60000L; ts+=1000L) {
+            clock.observe(ts, arrival(Math.round(1.01*ts)));
+        }
+        assertEquals(5000.0, clock.getDriftPpm(), 0.1);
+    }
+
+    @Test
+    public void restartingForgetsThePreviousRace() {
+        clock.start(START_NANOS, START_WALL_MILLIS);
+        for(long ts=1000L; ts<=60000L; ts+=1000L) {
+            clock.observe(ts, arrival(Math.round(1.001*ts) + 100L));
+        }
+        clock.stop();
+        assertFalse(clock.isStarted());
+        assertEquals(0L, clock.toTrackerMillis(arrival(1000L)));
+
+        clock.start(START_NANOS, START_WALL_MILLIS);
+        assertTrue(clock.isStarted());
+        assertEquals(0L, clock.getSamples());
+        assertEquals(0.0, clock.getDriftPpm(), 0.0);
+        assertEquals(START_WALL_MILLIS, clock.getOriginMillis());
+    }
+
+    @Test
+    public void unboundedClockStartsFromItsFirstPass() {
+        // a peer's, whose race start isn't seen
+        clock.start(5000L, START_NANOS, START_WALL_MILLIS);
+        assertEquals(START_WALL_MILLIS - 5000L, clock.getOriginMillis());
+        assertEquals(START_WALL_MILLIS + 1000L, clock.toWallMillis(6000L));
+        clock.observe(6000L, START_NANOS + 900000000L);
+        assertEquals(START_WALL_MILLIS - 5100L, clock.getOriginMillis());
+    }
+
+    private static long arrival(long millisSinceStart) {
+        return START_NANOS + millisSinceStart*1000000L;
+    }
+}
@@ -0,0 +1,139 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.reactivex.disposables.Disposable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TrafficRecordingTest {
+    private static final long TIMEOUT_MS = 5000L;
+    private static final int LAPS = 3;
+
+    private final List<RaceTracker> trackers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for(RaceTracker tracker : trackers) {
+            tracker.disconnect();
+        }
+    }
+
+    @Test
+    public void recordsAreReadBackAsWritten() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long before = System.currentTimeMillis();
+        TrafficRecording.Writer writer = new TrafficRecording.Writer(out);
+        writer.write(TrafficRecording.WRITE, RaceTracker.stringToBytes("N"));
+        writer.write(TrafficRecording.READ, RaceTracker.stringToBytes("Racers: 4"));
+        writer.write(TrafficRecording.NOTIFICATION, RaceTracker.stringToBytes("P1R1T5000,5000"));
+        writer.close();
+
+        TrafficRecording.Reader reader = new TrafficRecording.Reader(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(reader.getStartMillis() >= before);
+        List<TrafficRecording.Record> records = reader.readAll();
+        assertEquals(3, records.size());
+        assertRecord(records.get(0), TrafficRecording.WRITE, "N");
+        assertRecord(records.get(1), TrafficRecording.READ, "Racers: 4");
+        assertRecord(records.get(2), TrafficRecording.NOTIFICATION, "P1R1T5000,5000");
+        for(int i=1; i<records.size(); i++) {
+            assertTrue(records.get(i - 1).nanos <= records.get(i).nanos);
+        }
+    }
+
+    @Test
+    public void truncatedRecordingEndsAtTheLastWholeRecord() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TrafficRecording.Writer writer = new TrafficRecording.Writer(out);
+        writer.write(TrafficRecording.WRITE, RaceTracker.stringToBytes("N"));
+        writer.write(TrafficRecording.READ, RaceTracker.stringToBytes("Racers: 4"));
+        writer.close();
+        byte[] data = out.toByteArray();
+
+        TrafficRecording.Reader reader = new TrafficRecording.Reader(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 3)));
+        assertRecord(reader.read(), TrafficRecording.WRITE, "N");
+        assertNull(reader.read());
+    }
+
+    @Test
+    public void otherFilesAreRejected() {
+        try {
+            new TrafficRecording.Reader(new ByteArrayInputStream("RACE".getBytes()));
+            fail("Expected rejection");
+        } catch(IOException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * A session against the simulator, replayed by a fresh tracker making the same calls, sees the same responses and laps.
+     */
+    @Test
+    public void replayReproducesARecordedSession() throws Exception {
+        RecordingTransport recording = new RecordingTransport(new SimulatedTracker(1, 100L, 0L));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recording.startRecording(out);
+        Session recorded = runSession(recording, LAPS);
+        recording.stopRecording();
+        assertFalse(recording.isRecording());
+        assertTrue(recorded.laps.size() >= LAPS);
+
+        List<TrafficRecording.Record> records = new TrafficRecording.Reader(new ByteArrayInputStream(out.toByteArray())).readAll();
+        assertRecord(records.get(0), TrafficRecording.WRITE, RaceTracker.PILOTS);
+        ReplayTransport replay = new ReplayTransport(records, 1.0);
+        Session replayed = runSession(replay, recorded.laps.size());
+        assertEquals(recorded.pilotCount, replayed.pilotCount);
+        assertEquals(recorded.triggerRssi, replayed.triggerRssi);
+        assertEquals(recorded.laps, replayed.laps);
+        assertEquals(0, replay.getMismatches());
+        assertTrue(replay.isFinished());
+    }
+
+    /**
+     * @param laps to wait for before stopping the race.
+     */
+    private Session runSession(TrackerTransport transport, int laps) throws InterruptedException {
+        RaceTracker tracker = new RaceTracker(transport);
+        trackers.add(tracker);
+        tracker.connect();
+        Session session = new Session();
+        session.pilotCount = tracker.getPilotCount();
+        session.triggerRssi = tracker.getTriggerRssi();
+        Disposable race = tracker.startRace(RaceTracker.SHOTGUN_RACE).subscribe(lap -> session.laps.add(lap.pilot+"@"+lap.ts));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(session.laps.size() < laps) {
+            if(System.currentTimeMillis() > deadline) {
+                fail("Not enough laps");
+            }
+            Thread.sleep(10L);
+        }
+        tracker.stopRace();
+        race.dispose();
+        return session;
+    }
+
+    private static void assertRecord(TrafficRecording.Record record, byte type, String data) {
+        assertEquals(type, record.type);
+        assertEquals(data, RaceTracker.bytesToString(record.data));
+        assertEquals(RaceTracker.MAX_DATA_SIZE, record.data.length);
+    }
+
+    static final class Session {
+        int pilotCount;
+        int triggerRssi;
+        final List<String> laps = Collections.synchronizedList(new ArrayList<>());
+    }
+}
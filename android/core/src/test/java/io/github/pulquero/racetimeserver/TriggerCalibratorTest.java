@@ -0,0 +1,101 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TriggerCalibratorTest {
+    private static final int FLOOR = 60;
+
+    private final TriggerCalibrator calibrator = new TriggerCalibrator();
+    private final Random random = new Random(3L);
+
+    @Test
+    public void noProposalWithoutFlyBys() {
+        assertNull(calibrator.getProposal());
+        noise(500);
+        assertNull(calibrator.getProposal());
+    }
+
+    @Test
+    public void triggerIsHalfWayToTheWeakestFlyBy() {
+        noise(100);
+        flyBy(150);
+        noise(50);
+        flyBy(170);
+        noise(50);
+        flyBy(160);
+        noise(50);
+        TriggerCalibrator.Proposal proposal = calibrator.getProposal();
+        assertNotNull(proposal);
+        assertEquals(3, proposal.passes);
+        assertEquals(150, proposal.minPeak);
+        assertEquals(170, proposal.maxPeak);
+        assertTrue("Noise floor "+proposal.noiseFloor, Math.abs(proposal.noiseFloor - FLOOR) <= 2);
+        assertEquals(proposal.noiseFloor + (150 - proposal.noiseFloor)/2.0, proposal.triggerRssi, 1.0);
+    }
+
+    @Test
+    public void flyByDuringWarmUpIsIgnored() {
+        noise(5);
+        flyBy(150);
+        noise(100);
+        assertNull(calibrator.getProposal());
+    }
+
+    @Test
+    public void smallBumpsAreNotFlyBys() {
+        noise(100);
+        for(int i=0; i<10; i++) {
+            calibrator.add(FLOOR + 8);
+            noise(20);
+        }
+        assertNull(calibrator.getProposal());
+    }
+
+    @Test
+    public void passEndsOnlyOnceBackBelowHalfWay() {
+        noise(100);
+        calibrator.add(120);
+        calibrator.add(180);
+        // still above half way to the peak
+        calibrator.add(130);
+        assertNull(calibrator.getProposal());
+        calibrator.add(FLOOR);
+        assertEquals(180, calibrator.getProposal().minPeak);
+        assertEquals(1, calibrator.getProposal().passes);
+    }
+
+    @Test
+    public void batchesAreFedInOrder() {
+        int[] batch = new int[64];
+        for(int i=0; i<batch.length; i++) {
+            batch[i] = FLOOR + random.nextInt(7) - 3;
+        }
+        batch[40] = 140;
+        batch[41] = 155;
+        // the count limits what is used
+        batch[60] = 200;
+        calibrator.onRssi(0L, 33L, batch, 50);
+        TriggerCalibrator.Proposal proposal = calibrator.getProposal();
+        assertEquals(1, proposal.passes);
+        assertEquals(155, proposal.maxPeak);
+    }
+
+    private void noise(int n) {
+        for(int i=0; i<n; i++) {
+            calibrator.add(FLOOR + random.nextInt(7) - 3);
+        }
+    }
+
+    private void flyBy(int peak) {
+        calibrator.add((FLOOR + peak)/2);
+        calibrator.add(peak);
+        calibrator.add((FLOOR + peak)/2);
+    }
+}
@@ -0,0 +1,388 @@
+package io.github.pulquero.racetimeserver;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the network engines on connection scalability (time to connect, heap and threads per connection)
+ * and on broadcast latency, from calling {@link NetworkEngine#broadcast(String, Collection)} to each client receiving the message.
+ * Socket clients all share one selector thread, so as not to swamp the engine being measured, and their small per connection cost is included in the heap figures.
+ *
+ * Usage: EngineBenchmark [--clients &lt;count&gt;] [--broadcasts &lt;count&gt;] [--interval &lt;ms&gt;] [--engine java-websocket|nio|loopback]
+ */
+public final class EngineBenchmark {
+    private static final int PORT = 5101;
+    private static final String LOOPBACK_ENGINE = "loopback";
+    private static final int WARM_UP_BROADCASTS = 50;
+    private static final String SENT = "\"sent\":";
+    private static final String LOG_TAG = "EngineBenchmark";
+
+    private EngineBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = 1000;
+        int broadcastCount = 500;
+        long intervalMillis = 10L;
+        List<String> engines = new ArrayList<>(Arrays.asList(HeadlessServer.JAVA_WEBSOCKET_ENGINE, HeadlessServer.NIO_ENGINE, LOOPBACK_ENGINE));
+        for(int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--clients":
+                    clientCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--broadcasts":
+                    broadcastCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--interval":
+                    intervalMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--engine":
+                    engines = Arrays.asList(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: EngineBenchmark [--clients <count>] [--broadcasts <count>] [--interval <ms>] [--engine java-websocket|nio|loopback]");
+                    System.exit(1);
+            }
+        }
+
+        System.out.println("engine          clients  connect ms  KB/conn  threads  send us   p50 ms   p99 ms   max ms  lost");
+        for(String engine : engines) {
+            run(engine, clientCount, broadcastCount, intervalMillis);
+        }
+    }
+
+    private static void run(String engineName, int clientCount, int broadcastCount, long intervalMillis) throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        ExecutionBenchmark.Latencies latencies = new ExecutionBenchmark.Latencies();
+        AtomicInteger received = new AtomicInteger();
+        boolean loopback = LOOPBACK_ENGINE.equals(engineName);
+        SocketClients socketClients = loopback ? null : new SocketClients(latencies, received);
+
+        int threadsBefore = threadBean.getThreadCount();
+        NetworkEngine engine = loopback ? new LoopbackEngine() : HeadlessServer.createEngine(engineName, new InetSocketAddress("localhost", PORT), TimingServer.DEFAULT_DECODERS);
+        StartHandler handler = new StartHandler();
+        engine.start(handler);
+        handler.awaitStart();
+        long heapBefore = usedHeapAfterGc(memoryBean);
+
+        long connectStart = System.nanoTime();
+        if(loopback) {
+            LoopbackEngine loopbackEngine = (LoopbackEngine) engine;
+            for(int i=0; i<clientCount; i++) {
+                loopbackEngine.connect("/", new LoopbackEngine.ClientListener() {
+                    @Override
+                    public void onMessage(String message) {
+                        received(message, latencies, received);
+                    }
+
+                    @Override
+                    public void onClose() {
+                    }
+                });
+            }
+        } else {
+            socketClients.connect(PORT, clientCount);
+        }
+        while(engine.getConnections().size() < clientCount) {
+            Thread.sleep(1L);
+        }
+        double connectMillis = (System.nanoTime() - connectStart)/1e6;
+        int engineThreads = threadBean.getThreadCount() - threadsBefore;
+        double kbPerConnection = (usedHeapAfterGc(memoryBean) - heapBefore)/1024.0/clientCount;
+
+        Collection<ClientConnection> conns = engine.getConnections();
+        long[] sendTimes = new long[broadcastCount];
+        for(int i=-WARM_UP_BROADCASTS; i<broadcastCount; i++) {
+            if(i == 0) {
+                // let the warm-up drain
+                Thread.sleep(200L);
+                latencies.clear();
+                received.set(0);
+            }
+            long sent = System.nanoTime();
+            engine.broadcast("{\"notification\":\"benchmark\",\"data\":{"+SENT+sent+",\"node\":0,\"timestamp\":123456,\"frequency\":5658}}", conns);
+            if(i >= 0) {
+                sendTimes[i] = System.nanoTime() - sent;
+            }
+            Thread.sleep(intervalMillis);
+        }
+        long expected = (long) clientCount*broadcastCount;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5L);
+        while(received.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        long[] sorted = latencies.stop();
+        Arrays.sort(sendTimes);
+
+        System.out.println(String.format(Locale.ROOT, "%-14s %8d %11.0f %8.1f %8d %8.0f %8.2f %8.2f %8.2f %5d",
+                engineName, clientCount, connectMillis, kbPerConnection, engineThreads,
+                ExecutionBenchmark.percentile(sendTimes, 0.5)*1e3,
+                ExecutionBenchmark.percentile(sorted, 0.5), ExecutionBenchmark.percentile(sorted, 0.99), ExecutionBenchmark.percentile(sorted, 1.0),
+                expected - received.get()));
+
+        // Java-WebSocket fails to stop with connections still closing
+        engine.stop();
+        if(socketClients != null) {
+            socketClients.close();
+        }
+    }
+
+    static void received(String message, ExecutionBenchmark.Latencies latencies, AtomicInteger received) {
+        long now = System.nanoTime();
+        int start = message.indexOf(SENT);
+        if(start != -1) {
+            start += SENT.length();
+            int end = message.indexOf(',', start);
+            latencies.add(now - Long.parseLong(message.substring(start, end)));
+            received.incrementAndGet();
+        }
+    }
+
+    private static long usedHeapAfterGc(MemoryMXBean memoryBean) throws InterruptedException {
+        for(int i=0; i<3; i++) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        return memoryBean.getHeapMemoryUsage().getUsed();
+    }
+
+    static final class StartHandler implements NetworkEngine.Handler {
+        private boolean started;
+
+        synchronized void awaitStart() throws InterruptedException {
+            while(!started) {
+                wait();
+            }
+        }
+
+        @Override
+        public synchronized void onStart() {
+            started = true;
+            notifyAll();
+        }
+
+        @Override
+        public void onOpen(ClientConnection conn, String resource) {
+        }
+
+        @Override
+        public void onMessage(ClientConnection conn, String message) {
+        }
+
+        @Override
+        public void onClose(ClientConnection conn) {
+        }
+
+        @Override
+        public void onError(ClientConnection conn, Exception ex) {
+            if(conn == null) {
+                Log.w(LOG_TAG, "Server", ex);
+            }
+        }
+    }
+
+    /**
+     * Minimal web socket clients, only reading text frames, on a single selector thread.
+     */
+    static final class SocketClients implements Runnable {
+        private static final int MAX_PENDING_CONNECTS = 64;
+        private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+        final ExecutionBenchmark.Latencies latencies;
+        final AtomicInteger received;
+        final AtomicInteger pendingConnects = new AtomicInteger();
+        final AtomicLong upgraded = new AtomicLong();
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64*1024);
+        private final List<SocketChannel> channels = new ArrayList<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        SocketClients(ExecutionBenchmark.Latencies latencies, AtomicInteger received) throws IOException {
+            this.latencies = latencies;
+            this.received = received;
+            selector = Selector.open();
+            thread = new Thread(this, "Benchmark clients");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void connect(int port, int count) throws IOException, InterruptedException {
+            byte[] request = ("GET / HTTP/1.1\r\n"
+                    + "Host: localhost:"+port+"\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            for(int i=0; i<count; i++) {
+                // too many simultaneous connects overflow the accept backlog
+                while(pendingConnects.get() >= MAX_PENDING_CONNECTS) {
+                    Thread.sleep(1L);
+                }
+                pendingConnects.incrementAndGet();
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.connect(new InetSocketAddress("localhost", port));
+                channels.add(channel);
+                Client client = new Client(channel, ByteBuffer.wrap(request));
+                synchronized (this) {
+                    selector.wakeup();
+                    channel.register(selector, SelectionKey.OP_CONNECT, client);
+                }
+            }
+            while(upgraded.get() < count) {
+                Thread.sleep(1L);
+            }
+        }
+
+        void close() throws IOException, InterruptedException {
+            running = false;
+            selector.wakeup();
+            thread.join();
+            for(SocketChannel channel : channels) {
+                channel.close();
+            }
+            selector.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(running) {
+                    selector.select();
+                    // lets connect() register
+                    synchronized (this) {
+                    }
+                    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                    while(iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        if(key.isValid()) {
+                            process(key, (Client) key.attachment());
+                        }
+                    }
+                }
+            } catch(IOException ex) {
+                if(running) {
+                    Log.w(LOG_TAG, "Clients", ex);
+                }
+            }
+        }
+
+        private void process(SelectionKey key, Client client) throws IOException {
+            if(key.isConnectable()) {
+                client.channel.finishConnect();
+                client.channel.write(client.request);
+                client.request = null;
+                key.interestOps(SelectionKey.OP_READ);
+            } else if(key.isReadable()) {
+                readBuffer.clear();
+                if(client.channel.read(readBuffer) == -1) {
+                    key.cancel();
+                    return;
+                }
+                readBuffer.flip();
+                ByteBuffer in = readBuffer;
+                if(client.pending != null) {
+                    in = ByteBuffer.allocate(client.pending.remaining() + readBuffer.remaining());
+                    in.put(client.pending).put(readBuffer).flip();
+                    client.pending = null;
+                }
+                if(!client.upgraded && !readHeader(client, in)) {
+                    client.pending = copy(in);
+                    return;
+                }
+                readFrames(client, in);
+            }
+        }
+
+        private boolean readHeader(Client client, ByteBuffer in) {
+            for(int i=in.position(); i+HEADER_END.length<=in.limit(); i++) {
+                boolean match = true;
+                for(int j=0; j<HEADER_END.length && match; j++) {
+                    match = in.get(i+j) == HEADER_END[j];
+                }
+                if(match) {
+                    in.position(i + HEADER_END.length);
+                    client.upgraded = true;
+                    pendingConnects.decrementAndGet();
+                    upgraded.incrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void readFrames(Client client, ByteBuffer in) {
+            while(in.remaining() >= 2) {
+                int start = in.position();
+                int opcode = in.get(start) & 0x0F;
+                int length = in.get(start+1) & 0x7F;
+                int headerLength = 2;
+                if(length == 126) {
+                    if(in.remaining() < 4) {
+                        break;
+                    }
+                    length = in.getShort(start+2) & 0xFFFF;
+                    headerLength = 4;
+                } else if(length == 127) {
+                    if(in.remaining() < 10) {
+                        break;
+                    }
+                    length = (int) in.getLong(start+2);
+                    headerLength = 10;
+                }
+                if(in.remaining() < headerLength + length) {
+                    break;
+                }
+                if(opcode == 0x1) {
+                    byte[] payload = new byte[length];
+                    in.position(start + headerLength);
+                    in.get(payload);
+                    received(new String(payload, StandardCharsets.UTF_8), latencies, received);
+                }
+                in.position(start + headerLength + length);
+            }
+            if(in.hasRemaining()) {
+                client.pending = copy(in);
+            }
+        }
+
+        private static ByteBuffer copy(ByteBuffer in) {
+            ByteBuffer copy = ByteBuffer.allocate(in.remaining());
+            copy.put(in).flip();
+            return copy;
+        }
+
+        static final class Client {
+            final SocketChannel channel;
+            ByteBuffer request;
+            ByteBuffer pending;
+            boolean upgraded;
+
+            Client(SocketChannel channel, ByteBuffer request) {
+                this.channel = channel;
+                this.request = request;
+            }
+        }
+    }
+}
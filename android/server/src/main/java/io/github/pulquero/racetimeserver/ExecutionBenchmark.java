@@ -0,0 +1,195 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.plugins.RxJavaPlugins;
+
+/**
+ * Compares the platform thread (cached pool and Rx IO scheduler) and virtual thread execution models
+ * with many clients continuously requesting settings from several simulated trackers.
+ *
+ * Usage: ExecutionBenchmark [--clients &lt;count&gt;] [--trackers &lt;count&gt;] [--seconds &lt;duration&gt;] [--latency &lt;ms&gt;] [--threads platform|virtual]
+ */
+public final class ExecutionBenchmark {
+    private static final int BASE_PORT = 5101;
+    private static final long WARM_UP_SECS = 3L;
+    private static final String REQUEST = "get_settings";
+
+    private ExecutionBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = 300;
+        int trackerCount = 4;
+        long seconds = 20L;
+        long latencyMillis = 5L;
+        List<String> models = new ArrayList<>(Arrays.asList(HeadlessServer.PLATFORM_THREADS, HeadlessServer.VIRTUAL_THREADS));
+        for(int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--clients":
+                    clientCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--trackers":
+                    trackerCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Long.parseLong(args[++i]);
+                    break;
+                case "--latency":
+                    latencyMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--threads":
+                    models = Arrays.asList(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: ExecutionBenchmark [--clients <count>] [--trackers <count>] [--seconds <duration>] [--latency <ms>] [--threads platform|virtual]");
+                    System.exit(1);
+            }
+        }
+
+        System.out.println("threads   clients trackers  req/s   p50 ms   p90 ms   p99 ms   max ms  peak threads");
+        for(String model : models) {
+            if(HeadlessServer.VIRTUAL_THREADS.equals(model) && !VirtualThreads.isSupported()) {
+                System.out.println(model+": requires Java 21+");
+                continue;
+            }
+            run(model, clientCount, trackerCount, seconds, latencyMillis);
+            RxJavaPlugins.reset();
+        }
+    }
+
+    private static void run(String model, int clientCount, int trackerCount, long seconds, long latencyMillis) throws Exception {
+        RaceTracker[] trackers = new RaceTracker[trackerCount];
+        TimingServer[] servers = new TimingServer[trackerCount];
+        for(int i=0; i<trackerCount; i++) {
+            ExecutorService executor = HeadlessServer.createExecutor(model);
+            trackers[i] = new RaceTracker(new SimulatedTracker(8, TimeUnit.MINUTES.toMillis(1L), latencyMillis));
+            trackers[i].connect();
+            servers[i] = new TimingServer(trackers[i], new InetSocketAddress("localhost", BASE_PORT + i), TimingServer.DEFAULT_DECODERS, executor);
+            servers[i].start();
+        }
+        for(TimingServer server : servers) {
+            while(server.getState() != TimingServer.State.STARTED) {
+                Thread.sleep(10L);
+            }
+        }
+
+        Latencies latencies = new Latencies();
+        Client[] clients = new Client[clientCount];
+        for(int i=0; i<clientCount; i++) {
+            clients[i] = new Client(new URI("ws://localhost:"+(BASE_PORT + i%trackerCount)+"/"), latencies);
+            clients[i].connectBlocking();
+        }
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        for(Client client : clients) {
+            client.request();
+        }
+        TimeUnit.SECONDS.sleep(WARM_UP_SECS);
+        latencies.clear();
+        long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(seconds);
+        long[] sorted = latencies.stop();
+        double elapsedSecs = (System.nanoTime() - start)/1e9;
+        // includes the client threads, which are the same for each model
+        int peakThreads = threadBean.getPeakThreadCount();
+
+        System.out.println(String.format(Locale.ROOT, "%-9s %7d %8d %6.0f %8.1f %8.1f %8.1f %8.1f %13d",
+                model, clientCount, trackerCount, sorted.length/elapsedSecs,
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 1.0),
+                peakThreads));
+
+        for(Client client : clients) {
+            client.closeBlocking();
+        }
+        for(int i=0; i<trackerCount; i++) {
+            servers[i].stop();
+            trackers[i].disconnect();
+        }
+    }
+
+    static double percentile(long[] sorted, double p) {
+        if(sorted.length == 0) {
+            return Double.NaN;
+        }
+        int i = Math.min(sorted.length - 1, (int) Math.ceil(p*sorted.length) - 1);
+        return sorted[Math.max(i, 0)]/1e6;
+    }
+
+    static final class Latencies {
+        private long[] values = new long[1024];
+        private int count;
+        private boolean stopped;
+
+        synchronized boolean add(long nanos) {
+            if(stopped) {
+                return false;
+            }
+            if(count == values.length) {
+                values = Arrays.copyOf(values, 2*count);
+            }
+            values[count++] = nanos;
+            return true;
+        }
+
+        synchronized void clear() {
+            count = 0;
+        }
+
+        synchronized long[] stop() {
+            stopped = true;
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    static final class Client extends WebSocketClient {
+        final Latencies latencies;
+        volatile long sentAt;
+
+        Client(URI uri, Latencies latencies) {
+            super(uri);
+            this.latencies = latencies;
+        }
+
+        void request() {
+            sentAt = System.nanoTime();
+            send(REQUEST);
+        }
+
+        @Override
+        public void onMessage(String message) {
+            if(!message.contains("\"notification\"")) {
+                if(latencies.add(System.nanoTime() - sentAt)) {
+                    request();
+                }
+            }
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(Exception ex) {
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package io.github.pulquero.racetimeserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.PublishSubject;
+
+/**
+ * Measures the hand off latency of passes, from arriving to each consumer starting on them,
+ * with one consumer much slower than the others, e.g. a journal on a slow disk.
+ * Compares a single Rx subscriber doing each consumer's work in turn, as races used to,
+ * with the pass ring, where each consumer has its own thread.
+ *
+ * Usage: HandoffBenchmark [--passes &lt;count&gt;] [--interval &lt;us&gt;] [--consumers &lt;count&gt;] [--slow &lt;ms&gt;]
+ */
+public final class HandoffBenchmark {
+    private static final String RX = "rx";
+    private static final String RING = "ring";
+    private static final int RING_CAPACITY = 1024;
+    private static final long DRAIN_SECS = 10L;
+
+    private HandoffBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int passCount = 5000;
+        long intervalMicros = 200L;
+        int consumerCount = 3;
+        long slowMillis = 1L;
+        for(int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--passes":
+                    passCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--interval":
+                    intervalMicros = Long.parseLong(args[++i]);
+                    break;
+                case "--consumers":
+                    consumerCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--slow":
+                    slowMillis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: HandoffBenchmark [--passes <count>] [--interval <us>] [--consumers <count>] [--slow <ms>]");
+                    System.exit(1);
+            }
+        }
+
+        System.out.println("mode  consumer  passes   p50 us   p99 us   max us  dropped");
+        for(String mode : Arrays.asList(RX, RING)) {
+            // warm up
+            run(mode, passCount/5, intervalMicros, consumerCount, slowMillis, false);
+            run(mode, passCount, intervalMicros, consumerCount, slowMillis, true);
+        }
+    }
+
+    private static void run(String mode, int passCount, long intervalMicros, int consumerCount, long slowMillis, boolean print) throws Exception {
+        List<Consumer> consumers = new ArrayList<>();
+        for(int i=0; i<consumerCount; i++) {
+            consumers.add(new Consumer(String.valueOf(i), 0L));
+        }
+        if(slowMillis > 0L) {
+            consumers.add(new Consumer("slow", slowMillis));
+        }
+        ExecutionBenchmark.Latencies publishTimes = new ExecutionBenchmark.Latencies();
+
+        PublishSubject<RaceTracker.LapNotification> subject = null;
+        Disposable subscription = null;
+        PassRing ring = null;
+        if(RX.equals(mode)) {
+            subject = PublishSubject.create();
+            subscription = subject.observeOn(Schedulers.io()).subscribe(pass -> {
+                for(Consumer consumer : consumers) {
+                    consumer.onPass(pass.receivedNanos);
+                }
+            });
+        } else {
+            ring = new PassRing(RING_CAPACITY);
+            for(Consumer consumer : consumers) {
+                consumer.ringConsumer = ring.addConsumer("Benchmark "+consumer.name, (pass, endOfBatch) -> consumer.onPass(pass.receivedNanos));
+            }
+        }
+
+        long intervalNanos = TimeUnit.MICROSECONDS.toNanos(intervalMicros);
+        long nextAt = System.nanoTime();
+        for(int i=0; i<passCount; i++) {
+            while(System.nanoTime() < nextAt) {
+                // spin for sub-millisecond intervals
+            }
+            nextAt += intervalNanos;
+            long received = System.nanoTime();
+            if(subject != null) {
+                subject.onNext(new RaceTracker.LapNotification(i%8, i, received, received));
+            } else {
+                ring.publish(i%8, i, received, received, null);
+            }
+            publishTimes.add(System.nanoTime() - received);
+        }
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(DRAIN_SECS);
+        for(Consumer consumer : consumers) {
+            while(consumer.handled(passCount) < passCount && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+        }
+        if(subscription != null) {
+            // abandons any backlog
+            subscription.dispose();
+        } else {
+            ring.close();
+        }
+
+        if(print) {
+            print(mode, "publish", publishTimes.stop(), passCount, 0L);
+            for(Consumer consumer : consumers) {
+                long[] sorted = consumer.latencies.stop();
+                print(mode, consumer.name, sorted, sorted.length, passCount - sorted.length);
+            }
+        }
+    }
+
+    private static void print(String mode, String consumer, long[] sorted, int count, long dropped) {
+        System.out.println(String.format(Locale.ROOT, "%-5s %-8s %7d %8.1f %8.1f %8.1f %8d",
+                mode, consumer, count,
+                ExecutionBenchmark.percentile(sorted, 0.5)*1e3, ExecutionBenchmark.percentile(sorted, 0.99)*1e3, ExecutionBenchmark.percentile(sorted, 1.0)*1e3,
+                dropped));
+    }
+
+    static final class Consumer {
+        final String name;
+        final long workMillis;
+        final ExecutionBenchmark.Latencies latencies = new ExecutionBenchmark.Latencies();
+        PassRing.Consumer ringConsumer;
+        volatile int count;
+
+        Consumer(String name, long workMillis) {
+            this.name = name;
+            this.workMillis = workMillis;
+        }
+
+        void onPass(long receivedNanos) throws InterruptedException {
+            latencies.add(System.nanoTime() - receivedNanos);
+            count++;
+            if(workMillis > 0L) {
+                Thread.sleep(workMillis);
+            }
+        }
+
+        /**
+         * Including any dropped.
+         */
+        int handled(int passCount) {
+            return (ringConsumer != null) ? (int) Math.min(ringConsumer.getSequence(), passCount) : count;
+        }
+    }
+}
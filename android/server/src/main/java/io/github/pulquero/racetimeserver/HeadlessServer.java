@@ -0,0 +1,204 @@
+package io.github.pulquero.racetimeserver;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the timing server on a plain JVM, e.g. a race-control Linux box.
+ *
+ * Usage: HeadlessServer [--tracker sim|replay:&lt;file&gt;|&lt;serial device&gt;|tcp:&lt;host&gt;:&lt;port&gt;] [--speed &lt;replay speed&gt;] [--record &lt;file&gt;] [--history &lt;file&gt;] [--settings &lt;file&gt;] [--pass-feed &lt;group&gt;[:&lt;port&gt;]] [--port &lt;port&gt;] [--leaderboard &lt;port&gt;] [--peers &lt;ws uri&gt;,...] [--reorder-window &lt;ms&gt;] [--engine java-websocket|nio] [--decoders &lt;count&gt;] [--threads platform|virtual]
+ *
+ * A replay speed of 0 plays back as fast as possible.
+ * Race history is kept in race-history.log in the working directory by default,
+ * and the last known tracker settings, served until the tracker connects, in tracker-settings.bin.
+ * Passes are also multicast to the given group, e.g. 239.255.82.84:5002, if a pass feed is requested.
+ * The event leaderboard is served over HTTP on port 5003 by default, 0 to disable.
+ * With peers, e.g. ws://192.168.0.11:5001, this server also coordinates a cluster,
+ * relaying the passes of all the peers to its pass subscribers as one feed in time order.
+ * A cluster can be tried out on one host by giving each simulated peer its own port and no leaderboard.
+ * The nio engine serves web sockets from a single selector thread, the decoder count only applies to java-websocket.
+ * With virtual threads, each client request and tracker command flow runs on its own virtual thread.
+ */
+public final class HeadlessServer {
+    private static final String LOG_TAG = "HeadlessServer";
+    static final int PORT = 5001;
+    static final String PLATFORM_THREADS = "platform";
+    static final String VIRTUAL_THREADS = "virtual";
+    static final String JAVA_WEBSOCKET_ENGINE = "java-websocket";
+    static final String NIO_ENGINE = "nio";
+
+    private HeadlessServer() {
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException, URISyntaxException {
+        String tracker = "sim";
+        double speed = 1.0;
+        String recording = null;
+        String historyFile = RaceHistory.DEFAULT_FILE_NAME;
+        String settingsFile = SettingsSnapshot.DEFAULT_FILE_NAME;
+        String passFeedGroup = null;
+        int port = PORT;
+        int leaderboardPort = LeaderboardServer.DEFAULT_PORT;
+        String peers = null;
+        long reorderWindow = ClusterCoordinator.DEFAULT_REORDER_WINDOW_MS;
+        int decoders = TimingServer.DEFAULT_DECODERS;
+        String threads = PLATFORM_THREADS;
+        String engine = JAVA_WEBSOCKET_ENGINE;
+        for(int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--tracker":
+                    tracker = args[++i];
+                    break;
+                case "--speed":
+                    speed = Double.parseDouble(args[++i]);
+                    break;
+                case "--record":
+                    recording = args[++i];
+                    break;
+                case "--history":
+                    historyFile = args[++i];
+                    break;
+                case "--settings":
+                    settingsFile = args[++i];
+                    break;
+                case "--pass-feed":
+                    passFeedGroup = args[++i];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--peers":
+                    peers = args[++i];
+                    break;
+                case "--reorder-window":
+                    reorderWindow = Long.parseLong(args[++i]);
+                    break;
+                case "--leaderboard":
+                    leaderboardPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--engine":
+                    engine = args[++i];
+                    break;
+                case "--decoders":
+                    decoders = Integer.parseInt(args[++i]);
+                    break;
+                case "--threads":
+                    threads = args[++i];
+                    break;
+                default:
+                    System.err.println("Usage: HeadlessServer [--tracker sim|replay:<file>|<serial device>|tcp:<host>:<port>] [--speed <replay speed>] [--record <file>] [--history <file>] [--settings <file>] [--pass-feed <group>[:<port>]] [--port <port>] [--leaderboard <port>] [--peers <ws uri>,...] [--reorder-window <ms>] [--engine java-websocket|nio] [--decoders <count>] [--threads platform|virtual]");
+                    System.exit(1);
+            }
+        }
+
+        ExecutorService trackerExecutor = createExecutor(threads);
+        TrackerTransport transport = createTransport(tracker, speed);
+        if(recording != null) {
+            RecordingTransport recordingTransport = new RecordingTransport(transport);
+            recordingTransport.startRecording(new FileOutputStream(recording));
+            transport = recordingTransport;
+        }
+        RaceTracker raceTracker = new RaceTracker(transport);
+        raceTracker.connect();
+        RaceHistory history = new RaceHistory(new File(historyFile));
+        TimingServer timingServer = new TimingServer(raceTracker, createEngine(engine, new InetSocketAddress(port), decoders), trackerExecutor);
+        timingServer.setHistory(history);
+        timingServer.setSettingsSnapshot(new SettingsSnapshot(new File(settingsFile)));
+        PassFeed passFeed = (passFeedGroup != null) ? new PassFeed(PassFeed.parseGroup(passFeedGroup)) : null;
+        timingServer.setPassFeed(passFeed);
+        Leaderboard leaderboard = new Leaderboard();
+        timingServer.setLeaderboard(leaderboard);
+        LeaderboardServer leaderboardServer = (leaderboardPort != 0) ? new LeaderboardServer(leaderboard, new InetSocketAddress(leaderboardPort)) : null;
+        ClusterCoordinator cluster = (peers != null) ? new ClusterCoordinator(ClusterCoordinator.parsePeers(peers), reorderWindow, pass -> {
+            try {
+                timingServer.publishClusterPass(pass);
+            } catch (JSONException e) {
+                // never expected to happen
+                throw new AssertionError(e);
+            }
+        }) : null;
+        timingServer.setCluster(cluster);
+        timingServer.start();
+        if(cluster != null) {
+            cluster.start();
+        }
+        Log.i(LOG_TAG, "Timing server on "+TimingServer.getNetworkAddress()+" using tracker "+raceTracker.getAddress());
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if(cluster != null) {
+                cluster.close();
+            }
+            timingServer.stop();
+            raceTracker.disconnect();
+            if(raceTracker.getTransport() instanceof RecordingTransport) {
+                ((RecordingTransport) raceTracker.getTransport()).stopRecording();
+            }
+            if(passFeed != null) {
+                passFeed.close();
+            }
+            if(leaderboardServer != null) {
+                try {
+                    leaderboardServer.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Close leaderboard server", e);
+                }
+            }
+            try {
+                history.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Close history", e);
+            }
+            stopped.countDown();
+        }, "Shutdown"));
+        stopped.await();
+    }
+
+    /**
+     * Also switches the Rx IO scheduler when using virtual threads, so call before connecting.
+     */
+    static ExecutorService createExecutor(String threads) {
+        switch (threads) {
+            case VIRTUAL_THREADS:
+                VirtualThreads.useForRxIo();
+                return VirtualThreads.newExecutor();
+            case PLATFORM_THREADS:
+                return Executors.newCachedThreadPool();
+            default:
+                throw new IllegalArgumentException("Unknown thread model: "+threads);
+        }
+    }
+
+    static NetworkEngine createEngine(String engine, InetSocketAddress address, int decoders) {
+        switch (engine) {
+            case JAVA_WEBSOCKET_ENGINE:
+                return new JavaWebSocketEngine(address, decoders);
+            case NIO_ENGINE:
+                return new NioWebSocketEngine(address);
+            default:
+                throw new IllegalArgumentException("Unknown engine: "+engine);
+        }
+    }
+
+    static TrackerTransport createTransport(String tracker, double speed) throws IOException {
+        if("sim".equals(tracker)) {
+            return new SimulatedTracker();
+        } else if(tracker.startsWith("replay:")) {
+            try(InputStream in = new FileInputStream(tracker.substring("replay:".length()))) {
+                return new ReplayTransport(new TrafficRecording.Reader(in).readAll(), speed);
+            }
+        } else {
+            return StreamTransport.create(tracker);
+        }
+    }
+}
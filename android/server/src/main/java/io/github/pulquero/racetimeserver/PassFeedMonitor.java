@@ -0,0 +1,107 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Prints passes from a multicast pass feed, fetching any missed ones from the timing server
+ * over a passive connection so a running race is not disturbed.
+ *
+ * Usage: PassFeedMonitor [--feed &lt;group&gt;[:&lt;port&gt;]] [--server ws://&lt;host&gt;:&lt;port&gt;/feed]
+ */
+public final class PassFeedMonitor {
+    private static final String LOG_TAG = "PassFeedMonitor";
+
+    private PassFeedMonitor() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String feed = PassFeed.DEFAULT_GROUP;
+        String server = "ws://localhost:"+HeadlessServer.PORT+TimingServer.PASSIVE_PATH;
+        for(int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--feed":
+                    feed = args[++i];
+                    break;
+                case "--server":
+                    server = args[++i];
+                    break;
+                default:
+                    System.err.println("Usage: PassFeedMonitor [--feed <group>[:<port>]] [--server ws://<host>:<port>/feed]");
+                    System.exit(1);
+            }
+        }
+
+        WebSocketClient client = new WebSocketClient(new URI(server)) {
+            @Override
+            public void onMessage(String message) {
+                System.out.println("fetched: "+message);
+            }
+
+            @Override
+            public void onOpen(ServerHandshake handshake) {
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                Log.w(LOG_TAG, "Server connection", ex);
+            }
+        };
+
+        ExecutorService fetcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Missed pass fetcher");
+            t.setDaemon(true);
+            return t;
+        });
+        PassFeed.Receiver.Listener listener = new PassFeed.Receiver.Listener() {
+            @Override
+            public void onPass(int epoch, PassFeed.Pass pass) {
+                System.out.println(String.format("pass %d: node %d, frequency %d, timestamp %d", pass.sequence, pass.node, pass.frequency, pass.timestamp));
+            }
+
+            @Override
+            public void onGap(int epoch, int fromSequence, int toSequence) {
+                System.out.println(String.format("missed %d-%d", fromSequence, toSequence));
+                // reconnecting can take a while, so not on the receiver thread
+                fetcher.execute(() -> fetchMissed(client, epoch, fromSequence, toSequence));
+            }
+        };
+
+        PassFeed.Receiver receiver = new PassFeed.Receiver(PassFeed.parseGroup(feed), listener);
+        try {
+            // until killed
+            new CountDownLatch(1).await();
+        } finally {
+            receiver.close();
+            fetcher.shutdownNow();
+        }
+    }
+
+    private static void fetchMissed(WebSocketClient client, int epoch, int fromSequence, int toSequence) {
+        try {
+            if(!client.isOpen() && !client.reconnectBlocking()) {
+                return;
+            }
+            JSONObject range = new JSONObject();
+            range.put("epoch", epoch);
+            range.put("from", fromSequence);
+            range.put("to", toSequence);
+            JSONObject json = new JSONObject();
+            json.put("missed_passes", range);
+            client.send(json.toString());
+        } catch (InterruptedException | JSONException e) {
+            Log.w(LOG_TAG, "Fetch missed passes", e);
+        }
+    }
+}
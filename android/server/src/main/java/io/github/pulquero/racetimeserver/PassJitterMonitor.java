@@ -0,0 +1,106 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the jitter of pass record delivery from a timing server, e.g. the app over Wi-Fi,
+ * by subscribing to passes over a passive connection.
+ * Jitter is the delay of each pass, arrival here less its tracker timestamp, above the smallest delay seen in the race,
+ * so the clocks don't need to agree.
+ * Run once with the app's low latency Wi-Fi on and once with it off to compare.
+ *
+ * Usage: PassJitterMonitor [--server ws://&lt;host&gt;:&lt;port&gt;/feed]
+ */
+public final class PassJitterMonitor {
+    private static final String LOG_TAG = "PassJitterMonitor";
+
+    private final LatencyStats jitter = new LatencyStats();
+    private long lastTimestamp = -1L;
+    private long minDelayMicros;
+
+    private PassJitterMonitor() {
+    }
+
+    synchronized void onPass(long arrivalNanos, long timestamp) {
+        long delayMicros = TimeUnit.NANOSECONDS.toMicros(arrivalNanos) - TimeUnit.MILLISECONDS.toMicros(timestamp);
+        if(timestamp < lastTimestamp) {
+            // new race, tracker time restarted
+            System.out.println("new race");
+            report();
+        }
+        if(lastTimestamp == -1L || timestamp < lastTimestamp) {
+            minDelayMicros = delayMicros;
+        }
+        lastTimestamp = timestamp;
+        if(delayMicros < minDelayMicros) {
+            // everything so far was later than thought
+            minDelayMicros = delayMicros;
+        }
+        long passJitter = delayMicros - minDelayMicros;
+        jitter.record(passJitter);
+        System.out.println(String.format("pass at %d: jitter %.1f ms", timestamp, passJitter/1000.0));
+    }
+
+    synchronized void report() {
+        System.out.println(String.format("%d passes: jitter mean %.1f ms, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                jitter.getCount(), jitter.getMean()/1000.0, jitter.getPercentile(0.5)/1000.0,
+                jitter.getPercentile(0.9)/1000.0, jitter.getPercentile(0.99)/1000.0, jitter.getMax()/1000.0));
+        jitter.reset();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String server = "ws://localhost:"+HeadlessServer.PORT+TimingServer.PASSIVE_PATH;
+        for(int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--server":
+                    server = args[++i];
+                    break;
+                default:
+                    System.err.println("Usage: PassJitterMonitor [--server ws://<host>:<port>/feed]");
+                    System.exit(1);
+            }
+        }
+
+        PassJitterMonitor monitor = new PassJitterMonitor();
+        CountDownLatch closed = new CountDownLatch(1);
+        WebSocketClient client = new WebSocketClient(new URI(server)) {
+            @Override
+            public void onMessage(String message) {
+                long arrivalNanos = System.nanoTime();
+                try {
+                    JSONObject json = new JSONObject(message);
+                    if("pass_record".equals(json.optString("notification"))) {
+                        monitor.onPass(arrivalNanos, json.getJSONObject("data").getLong("timestamp"));
+                    }
+                } catch (JSONException e) {
+                    Log.w(LOG_TAG, "Invalid message: "+message, e);
+                }
+            }
+
+            @Override
+            public void onOpen(ServerHandshake handshake) {
+                send("{\"subscribe\": {\"passes\": true}}");
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+                closed.countDown();
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                Log.w(LOG_TAG, "Server connection", ex);
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(new Thread(monitor::report));
+        client.connectBlocking();
+        closed.await();
+    }
+}
@@ -0,0 +1,301 @@
+package io.github.pulquero.racetimeserver;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Soaks a timing server with churning clients against a simulated tracker, to catch slow leaks
+ * of connection state, timer tasks and Rx subscriptions.
+ * Time is accelerated: laps are short, topics are polled quickly and clients only stay connected for a moment,
+ * so a minute covers far more connections than a race day.
+ * After each round the clients are closed, a quarter of them abruptly as if out of Wi-Fi range,
+ * and once the server has settled the heap after GC, allocation per connection, threads and open subscriptions are sampled.
+ * Fails, with exit code 1, if any of them grow between the first and last third of the run.
+ * The clients run in the same JVM, so their allocation is included, but it doesn't grow.
+ *
+ * Usage: SoakHarness [--minutes &lt;duration&gt;] [--clients &lt;count&gt;] [--round &lt;secs&gt;] [--lap &lt;ms&gt;]
+ */
+public final class SoakHarness {
+    private static final String LOG_TAG = "SoakHarness";
+    private static final int PORT = 5101;
+    private static final int WARM_UP_ROUNDS = 2;
+    private static final long SETTLE_MS = 5000L;
+    private static final long MIN_SESSION_MS = 200L;
+    private static final long MAX_SESSION_MS = 1000L;
+    /**
+     * Heap growth tolerated, as a fraction and as bytes, for noise.
+     */
+    private static final double HEAP_GROWTH = 0.1;
+    private static final long HEAP_SLACK = 2L*1024L*1024L;
+    private static final double ALLOCATION_GROWTH = 0.5;
+    private static final int THREAD_SLACK = 2;
+    private static final String[][] SESSIONS = {
+            // racer
+            {"/", "{\"node\": -1}"},
+            // race control display
+            {TimingServer.PASSIVE_PATH, "{\"subscribe\": {\"passes\": true, \"state\": {\"interval\": 100}, \"metrics\": {\"interval\": 100}}}"},
+            // RSSI monitor
+            {"/", "{\"subscribe\": {\"heartbeat\": {\"interval\": 100, \"threshold\": 2}}}", "{\"rssi_stream\": 10}"},
+            // settings screen
+            {"/", "get_version", "get_settings", "get_history"},
+    };
+
+    private final TimingServer server;
+    private final int clientCount;
+    private final AtomicLong collectedBytes = new AtomicLong();
+    private final AtomicLong sessions = new AtomicLong();
+    private final Random random = new Random();
+
+    private SoakHarness(TimingServer server, int clientCount) {
+        this.server = server;
+        this.clientCount = clientCount;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    collectedBytes.addAndGet(used(info.getGcInfo().getMemoryUsageBeforeGc()) - used(info.getGcInfo().getMemoryUsageAfterGc()));
+                }
+            }, null, null);
+        }
+    }
+
+    private static long used(Map<String,MemoryUsage> pools) {
+        long used = 0L;
+        for(MemoryUsage usage : pools.values()) {
+            used += usage.getUsed();
+        }
+        return used;
+    }
+
+    /**
+     * Bytes allocated since the JVM started, as far as the collector has seen.
+     */
+    private long allocatedBytes() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() + collectedBytes.get();
+    }
+
+    private void round(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        List<Thread> churners = new ArrayList<>(clientCount);
+        for(int i=0; i<clientCount; i++) {
+            Thread t = new Thread(() -> churn(end), "Soak client "+i);
+            churners.add(t);
+            t.start();
+        }
+        for(Thread t : churners) {
+            t.join();
+        }
+    }
+
+    private void churn(long end) {
+        while(System.currentTimeMillis() < end) {
+            String[] session = SESSIONS[random.nextInt(SESSIONS.length)];
+            try {
+                Client client = new Client(new URI("ws://localhost:"+PORT+session[0]));
+                if(!client.connectBlocking(1L, TimeUnit.SECONDS)) {
+                    continue;
+                }
+                for(int i=1; i<session.length; i++) {
+                    client.send(session[i]);
+                }
+                Thread.sleep(MIN_SESSION_MS + (long) (random.nextDouble()*(MAX_SESSION_MS - MIN_SESSION_MS)));
+                if(random.nextInt(4) == 0) {
+                    // dropped
+                    client.getSocket().close();
+                } else {
+                    client.closeBlocking();
+                }
+                sessions.incrementAndGet();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "Client", e);
+            }
+        }
+    }
+
+    /**
+     * Waits for the server to release every connection.
+     */
+    private void settle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_MS;
+        while(System.currentTimeMillis() < deadline && (!server.getConnections().isEmpty() || server.getOpenSubscriptions() > 0)) {
+            Thread.sleep(50L);
+        }
+        // let client threads exit
+        Thread.sleep(200L);
+    }
+
+    private Sample sample(long previousAllocated, long previousSessions) {
+        long allocated = allocatedBytes();
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long sessionCount = sessions.get();
+        return new Sample(heap, allocated, (allocated - previousAllocated)/Math.max(sessionCount - previousSessions, 1L),
+                ManagementFactory.getThreadMXBean().getThreadCount(), server.getConnections().size(), server.getOpenSubscriptions(), sessionCount);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long minutes = 10L;
+        int clientCount = 20;
+        long roundSecs = 15L;
+        long lapMillis = 2000L;
+        for(int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--minutes":
+                    minutes = Long.parseLong(args[++i]);
+                    break;
+                case "--clients":
+                    clientCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--round":
+                    roundSecs = Long.parseLong(args[++i]);
+                    break;
+                case "--lap":
+                    lapMillis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println("Usage: SoakHarness [--minutes <duration>] [--clients <count>] [--round <secs>] [--lap <ms>]");
+                    System.exit(1);
+            }
+        }
+
+        RaceTracker tracker = new RaceTracker(new SimulatedTracker(8, lapMillis, 5L));
+        tracker.connect();
+        TimingServer server = new TimingServer(tracker, new InetSocketAddress("localhost", PORT), TimingServer.DEFAULT_DECODERS, Executors.newCachedThreadPool());
+        server.start();
+        while(server.getState() != TimingServer.State.STARTED) {
+            Thread.sleep(10L);
+        }
+
+        SoakHarness harness = new SoakHarness(server, clientCount);
+        long rounds = Math.max(TimeUnit.MINUTES.toSeconds(minutes)/roundSecs, WARM_UP_ROUNDS + 3L);
+        List<Sample> samples = new ArrayList<>();
+        System.out.println("round  sessions  heap MB  KB/session  threads  connections  subscriptions");
+        Sample previous = harness.sample(0L, 0L);
+        for(long round=1; round<=rounds; round++) {
+            harness.round(TimeUnit.SECONDS.toMillis(roundSecs));
+            harness.settle();
+            Sample sample = harness.sample(previous.allocatedBytes, previous.sessions);
+            System.out.println(String.format(Locale.ROOT, "%5d %9d %8.1f %11.1f %8d %12d %14d",
+                    round, sample.sessions, sample.heapBytes/1048576.0, sample.bytesPerSession/1024.0,
+                    sample.threads, sample.connections, sample.openSubscriptions));
+            if(round > WARM_UP_ROUNDS) {
+                samples.add(sample);
+            }
+            previous = sample;
+        }
+
+        server.stop();
+        tracker.disconnect();
+        List<String> failures = check(samples);
+        for(String failure : failures) {
+            System.out.println("FAIL: "+failure);
+        }
+        if(failures.isEmpty()) {
+            System.out.println("PASS");
+        }
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Compares the best of the first third with the best of the last, the best being least affected by noise.
+     */
+    static List<String> check(List<Sample> samples) {
+        List<String> failures = new ArrayList<>();
+        int third = Math.max(samples.size()/3, 1);
+        List<Sample> first = samples.subList(0, third);
+        List<Sample> last = samples.subList(samples.size() - third, samples.size());
+        long firstHeap = Long.MAX_VALUE, lastHeap = Long.MAX_VALUE;
+        long firstAllocation = Long.MAX_VALUE, lastAllocation = Long.MAX_VALUE;
+        int firstThreads = Integer.MAX_VALUE, lastThreads = Integer.MAX_VALUE;
+        for(Sample sample : first) {
+            firstHeap = Math.min(firstHeap, sample.heapBytes);
+            firstAllocation = Math.min(firstAllocation, sample.bytesPerSession);
+            firstThreads = Math.min(firstThreads, sample.threads);
+        }
+        for(Sample sample : last) {
+            lastHeap = Math.min(lastHeap, sample.heapBytes);
+            lastAllocation = Math.min(lastAllocation, sample.bytesPerSession);
+            lastThreads = Math.min(lastThreads, sample.threads);
+        }
+        if(lastHeap > firstHeap + Math.max((long) (HEAP_GROWTH*firstHeap), HEAP_SLACK)) {
+            failures.add(String.format(Locale.ROOT, "heap after GC grew from %.1f MB to %.1f MB", firstHeap/1048576.0, lastHeap/1048576.0));
+        }
+        if(lastAllocation > (1.0 + ALLOCATION_GROWTH)*firstAllocation) {
+            failures.add(String.format(Locale.ROOT, "allocation grew from %.1f KB to %.1f KB per session", firstAllocation/1024.0, lastAllocation/1024.0));
+        }
+        if(lastThreads > firstThreads + THREAD_SLACK) {
+            failures.add("threads grew from "+firstThreads+" to "+lastThreads);
+        }
+        for(Sample sample : samples) {
+            if(sample.connections > 0 || sample.openSubscriptions > 0) {
+                failures.add(sample.connections+" connections and "+sample.openSubscriptions+" subscriptions left open after "+sample.sessions+" sessions");
+                break;
+            }
+        }
+        return failures;
+    }
+
+    static final class Sample {
+        final long heapBytes;
+        final long allocatedBytes;
+        final long bytesPerSession;
+        final int threads;
+        final int connections;
+        final int openSubscriptions;
+        final long sessions;
+
+        Sample(long heapBytes, long allocatedBytes, long bytesPerSession, int threads, int connections, int openSubscriptions, long sessions) {
+            this.heapBytes = heapBytes;
+            this.allocatedBytes = allocatedBytes;
+            this.bytesPerSession = bytesPerSession;
+            this.threads = threads;
+            this.connections = connections;
+            this.openSubscriptions = openSubscriptions;
+            this.sessions = sessions;
+        }
+    }
+
+    static final class Client extends WebSocketClient {
+        Client(URI uri) {
+            super(uri);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(Exception ex) {
+        }
+    }
+}
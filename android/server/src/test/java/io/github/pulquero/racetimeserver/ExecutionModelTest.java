@@ -0,0 +1,101 @@
+package io.github.pulquero.racetimeserver;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.schedulers.Schedulers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExecutionModelTest {
+    private static final long TIMEOUT_SECS = 10L;
+    private static final int REQUESTS = 50;
+
+    private ExecutorService executor;
+    private RaceTracker tracker;
+
+    @After
+    public void tearDown() {
+        if(tracker != null) {
+            tracker.disconnect();
+        }
+        if(executor != null) {
+            executor.shutdownNow();
+        }
+        RxJavaPlugins.reset();
+    }
+
+    @Test
+    public void unknownModelIsRejected() {
+        try {
+            HeadlessServer.createExecutor("green");
+            fail("Expected rejection");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void platformThreadsShareTheTracker() throws Exception {
+        executor = HeadlessServer.createExecutor(HeadlessServer.PLATFORM_THREADS);
+        assertCommandsComplete(false);
+    }
+
+    @Test
+    public void virtualThreadsShareTheTracker() throws Exception {
+        if(!VirtualThreads.isSupported()) {
+            Object io = Schedulers.io();
+            try {
+                HeadlessServer.createExecutor(HeadlessServer.VIRTUAL_THREADS);
+                fail("Expected virtual threads to be unsupported");
+            } catch(UnsupportedOperationException ex) {
+                // expected
+            }
+            // left as it was
+            assertSame(io, Schedulers.io());
+            return;
+        }
+        executor = HeadlessServer.createExecutor(HeadlessServer.VIRTUAL_THREADS);
+        assertCommandsComplete(true);
+    }
+
+    /**
+     * Concurrent requests each send a command, as clients do, and all get their own response.
+     */
+    private void assertCommandsComplete(boolean virtual) throws Exception {
+        tracker = new RaceTracker(new SimulatedTracker(4, 60000L, 2L));
+        tracker.connect();
+        List<Future<String>> responses = new ArrayList<>();
+        for(int i=0; i<REQUESTS; i++) {
+            responses.add(executor.submit(() -> {
+                assertEquals(virtual, isVirtual(Thread.currentThread()));
+                return tracker.send(RaceTracker.PILOTS);
+            }));
+        }
+        for(Future<String> response : responses) {
+            assertEquals("Racers: 4", response.get(TIMEOUT_SECS, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(TIMEOUT_SECS, TimeUnit.SECONDS));
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+}